@@ -14,8 +14,9 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.StatementCache;
 import simpledb.optimizer.TableStats;
-import simpledb.storage.IntField;
+import simpledb.storage.DoubleField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -71,10 +72,17 @@ public class Parser {
                 throw new simpledb.ParsingException(
                         "Only simple binary expresssions of the form A op B are currently supported.");
             }
+            ops = Arrays.asList(fold(ops.get(0)), fold(ops.get(1)));
 
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isConstant(ops.get(0)) && isConstant(ops.get(1))) {
+                lp.addConstantFilter(compareConstants((ZConstant) ops.get(0), op,
+                        (ZConstant) ops.get(1)));
+                return;
+            }
+
             boolean op1const = ops.get(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -87,6 +95,8 @@ public class Parser {
             } else if (ops.get(0) instanceof ZQuery
                     || ops.get(1) instanceof ZQuery) {
                 isJoin = true;
+            } else if (isParameter(ops.get(0)) || isParameter(ops.get(1))) {
+                isJoin = false;
             } else if (ops.get(0) instanceof ZExpression
                     || ops.get(1) instanceof ZExpression) {
                 throw new simpledb.ParsingException(
@@ -119,18 +129,23 @@ public class Parser {
 
             } else { // select node
                 String column;
-                String compValue;
-                ZConstant op1 = (ZConstant) ops.get(0);
-                ZConstant op2 = (ZConstant) ops.get(1);
-                if (op1.getType() == ZConstant.COLUMNNAME) {
-                    column = op1.getValue();
-                    compValue = op2.getValue();
+                ZExp compValue;
+                if (ops.get(0) instanceof ZConstant
+                        && ((ZConstant) ops.get(0)).getType() == ZConstant.COLUMNNAME) {
+                    column = ((ZConstant) ops.get(0)).getValue();
+                    compValue = ops.get(1);
+                } else if (ops.get(1) instanceof ZConstant) {
+                    column = ((ZConstant) ops.get(1)).getValue();
+                    compValue = ops.get(0);
                 } else {
-                    column = op2.getValue();
-                    compValue = op1.getValue();
+                    throw new simpledb.ParsingException(
+                            "Parameters can only be compared with fields.");
                 }
 
-                lp.addFilter(column, op, compValue);
+                if (isParameter(compValue))
+                    lp.addParameter(column, op);
+                else
+                    lp.addFilter(column, op, ((ZConstant) compValue).getValue());
 
             }
         }
@@ -278,16 +293,228 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
-    public Query handleQueryStatement(ZQuery s, TransactionId tId)
-            throws IOException,
-            simpledb.ParsingException, Zql.ParseException {
-        Query query = new Query(tId);
+    /** @return whether an expression is a parameter, written ? */
+    static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+    /**
+     * Replace the constants that the filters of a WHERE clause compare
+     * fields with by parameters, so that queries that differ only in those
+     * constants have the same text, and share a cached plan.
+     *
+     * @param w the WHERE clause, which is modified in place; may be null
+     * @param values receives the constant each parameter replaced, in the
+     *            order the parameters are added to the plan, or null for a
+     *            parameter that was already in the query
+     * @return false if the clause has a subquery, which is planned as the
+     *         query is parsed, so that its plan cannot be cached
+     */
+    static boolean parameterize(ZExp w, List<String> values) {
+        if (!(w instanceof ZExpression))
+            return !(w instanceof ZQuery);
+        ZExpression wx = (ZExpression) w;
+        if (isParameter(wx)) {
+            values.add(null);
+            return true;
+        }
+        if (wx.getOperator().equals("AND")) {
+            boolean cacheable = true;
+            for (int i = 0; i < wx.nbOperands(); i++)
+                cacheable &= parameterize(wx.getOperand(i), values);
+            return cacheable;
+        }
+        if (wx.nbOperands() != 2)
+            return true;
+        ZExp op1 = fold(wx.getOperand(0)), op2 = fold(wx.getOperand(1));
+        if (op1 instanceof ZQuery || op2 instanceof ZQuery)
+            return false;
+        if (isColumn(op1) && isConstant(op2)) {
+            values.add(((ZConstant) op2).getValue());
+            op2 = new ZExpression("?");
+        } else if (isColumn(op2) && isConstant(op1)) {
+            values.add(((ZConstant) op1).getValue());
+            op1 = new ZExpression("?");
+        } else if (isParameter(op1) || isParameter(op2)) {
+            values.add(null);
+        }
+        Vector<ZExp> operands = new Vector<>();
+        operands.add(op1);
+        operands.add(op2);
+        wx.setOperands(operands);
+        return true;
+    }
+
+    private static boolean isColumn(ZExp e) {
+        return e instanceof ZConstant && ((ZConstant) e).getType() == ZConstant.COLUMNNAME;
+    }
+
+    private static boolean isConstant(ZExp e) {
+        return e instanceof ZConstant && (((ZConstant) e).getType() == ZConstant.NUMBER
+                || ((ZConstant) e).getType() == ZConstant.STRING);
+    }
+
+    private static final java.util.regex.Pattern INTEGER = java.util.regex.Pattern.compile("-?[0-9]+");
+
+    /**
+     * Fold arithmetic over numbers, e.g. {@code 10 - 2 * 3} or {@code -5},
+     * into the number it evaluates to.  Integers are folded with integer
+     * arithmetic, and other numbers as doubles.
+     *
+     * @return the number e evaluates to, or e if it is not arithmetic over
+     *         numbers, or cannot be evaluated (e.g. divides by zero)
+     */
+    static ZExp fold(ZExp e) {
+        if (!(e instanceof ZExpression))
+            return e;
+        ZExpression x = (ZExpression) e;
+        String op = x.getOperator();
+        if (!"+-*/".contains(op) || op.length() != 1 || x.nbOperands() == 0)
+            return e;
+        List<String> values = new ArrayList<>();
+        boolean integers = true;
+        for (int i = 0; i < x.nbOperands(); i++) {
+            ZExp operand = fold(x.getOperand(i));
+            if (!(operand instanceof ZConstant) || ((ZConstant) operand).getType() != ZConstant.NUMBER)
+                return e;
+            String v = ((ZConstant) operand).getValue();
+            integers &= INTEGER.matcher(v).matches();
+            values.add(v);
+        }
+        String result;
+        try {
+            if (integers) {
+                long r = Long.parseLong(values.get(0));
+                if (values.size() == 1 && op.equals("-"))
+                    r = Math.negateExact(r);
+                for (String v : values.subList(1, values.size())) {
+                    long l = Long.parseLong(v);
+                    switch (op) {
+                        case "+": r = Math.addExact(r, l); break;
+                        case "-": r = Math.subtractExact(r, l); break;
+                        case "*": r = Math.multiplyExact(r, l); break;
+                        default: r = r / l;
+                    }
+                }
+                result = Long.toString(r);
+            } else {
+                double r = Double.parseDouble(values.get(0));
+                if (values.size() == 1 && op.equals("-"))
+                    r = -r;
+                for (String v : values.subList(1, values.size())) {
+                    double d = Double.parseDouble(v);
+                    switch (op) {
+                        case "+": r += d; break;
+                        case "-": r -= d; break;
+                        case "*": r *= d; break;
+                        default:
+                            if (d == 0)
+                                return e;
+                            r /= d;
+                    }
+                }
+                result = Double.toString(r);
+            }
+        } catch (ArithmeticException | NumberFormatException ex) {
+            // overflow, or an integer divided by zero
+            return e;
+        }
+        return new ZConstant(result, ZConstant.NUMBER);
+    }
+
+    /** @return whether a comparison of two constants holds */
+    static boolean compareConstants(ZConstant c1, Predicate.Op op, ZConstant c2)
+            throws simpledb.ParsingException {
+        if (c1.getType() != c2.getType()) {
+            throw new simpledb.ParsingException("Cannot compare " + c1
+                    + " with " + c2);
+        }
+        if (c1.getType() == ZConstant.NUMBER) {
+            try {
+                // adding 0.0 turns -0 into 0, which literals compare equal to
+                return new DoubleField(Double.parseDouble(c1.getValue()) + 0.0).compare(op,
+                        new DoubleField(Double.parseDouble(c2.getValue()) + 0.0));
+            } catch (NumberFormatException e) {
+                throw new simpledb.ParsingException("Invalid number in " + c1 + " " + op + " " + c2);
+            }
+        }
+        return new StringField(c1.getValue(), Type.STRING_LEN).compare(op,
+                new StringField(c2.getValue(), Type.STRING_LEN));
+    }
+
+    /**
+     * Plan a query whose constants have been replaced by parameters (see
+     * {@link #parameterize}), using the plan cached for its text if there is
+     * one, so that only the first run of a query parses it and orders its
+     * joins.
+     *
+     * @param q the query, with parameters
+     * @param text the text of the query, with its constants
+     * @param cacheable whether the plan of the query can be cached
+     * @param values the value of each parameter, in order
+     * @param tId the transaction the query runs in
+     */
+    Query planQuery(ZQuery q, String text, boolean cacheable, List<String> values, TransactionId tId)
+            throws IOException, simpledb.ParsingException, Zql.ParseException {
+        StatementCache cache = Database.getStatementCache();
+        long catalogVersion = Database.getCatalog().getVersion();
+        long statsVersion = TableStats.getVersion();
+        String key = cacheable ? q.toString() : null;
+        LogicalPlan template = key == null ? null : cache.get(key);
+        boolean cached = template != null;
+        if (!cached)
+            template = parseQueryLogicalPlan(tId, q);
+
+        LogicalPlan lp = template.bind(values);
+        lp.setQuery(text);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
+        // cache a copy, which does not hold on to the operators just built
+        if (key != null && !cached)
+            cache.put(key, lp.bind(values), catalogVersion, statsVersion);
+
+        Query query = new Query(tId);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        return query;
+    }
+
+    /**
+     * Prepare a query to be run many times with different values for its
+     * parameters, which are written ? in place of the constants that fields
+     * are compared with, e.g. {@code SELECT * FROM t WHERE t.a = ?}.
+     *
+     * @throws simpledb.ParsingException if the statement is not a query
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        ZStatement s;
+        try {
+            s = new ZqlParser(new ByteArrayInputStream(sql.getBytes(StandardCharsets.UTF_8))).readStatement();
+        } catch (Zql.ParseException | TokenMgrError e) {
+            throw new simpledb.ParsingException("Invalid SQL expression: \n \t " + e);
+        }
+        if (!(s instanceof ZQuery))
+            throw new simpledb.ParsingException("Only queries can be prepared: " + sql);
+        ZQuery q = (ZQuery) s;
+        String text = q.toString();
+        List<String> constants = new ArrayList<>();
+        boolean cacheable = parameterize(q.getWhere(), constants);
+        return new PreparedStatement(this, q, text, cacheable, constants);
+    }
+
+    public Query handleQueryStatement(ZQuery s, TransactionId tId)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
+        String text = s.toString();
+        List<String> values = new ArrayList<>();
+        boolean cacheable = parameterize(s.getWhere(), values);
+        if (values.contains(null))
+            throw new simpledb.ParsingException(
+                    "Queries with parameters must be prepared.");
+        Query query = planQuery(s, text, cacheable, values, tId);
+        LogicalPlan lp = query.getLogicalPlan();
+        OpIterator physicalPlan = query.getPhysicalPlan();
 
         if (physicalPlan != null) {
             Class<?> c;
@@ -352,26 +579,29 @@ public class Parser {
                     throw new simpledb.ParsingException(
                             "Complex expressions not allowed in INSERT statements.");
                 ZConstant zc = (ZConstant) e;
+                Type ftype = td.getFieldType(i);
                 if (zc.getType() == ZConstant.NUMBER) {
-                    if (td.getFieldType(i) != Type.INT_TYPE) {
+                    if (ftype == Type.STRING_TYPE) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
-                                + " is not an integer, expected a string.");
+                                + " is a number, expected a string.");
                     }
-                    IntField f = new IntField(new Integer(zc.getValue()));
-                    t.setField(i, f);
                 } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    // dates are written as quoted strings, e.g. '2021-03-01'
+                    if (ftype != Type.STRING_TYPE && ftype != Type.DATE_TYPE) {
                         throw new simpledb.ParsingException("Value "
                                 + zc.getValue()
-                                + " is a string, expected an integer.");
+                                + " is a string, expected a number.");
                     }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
-                    t.setField(i, f);
                 } else {
                     throw new simpledb.ParsingException(
-                            "Only string or int fields are supported.");
+                            "Only string, numeric or date fields are supported.");
+                }
+                try {
+                    t.setField(i, ftype.parse(zc.getValue()));
+                } catch (IllegalArgumentException ex) {
+                    throw new simpledb.ParsingException("Value "
+                            + zc.getValue() + " is not a valid " + ftype);
                 }
 
                 i++;
@@ -585,6 +815,7 @@ public class Parser {
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
@@ -593,7 +824,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // table statistics are loaded from their stats files on first use
 
         String queryFile = null;
 
@@ -0,0 +1,74 @@
+package simpledb;
+
+import Zql.ZQuery;
+import simpledb.execution.Query;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query prepared by {@link Parser#prepare}, to be run many times with
+ * different values for its parameters.  Each run is planned from the plan
+ * of the first (see {@link simpledb.optimizer.StatementCache}), so that the
+ * query is parsed and its joins ordered once, as long as the catalog and
+ * table statistics do not change.
+ */
+public class PreparedStatement {
+    private final Parser parser;
+    private final ZQuery query;
+    private final String text;
+    private final boolean cacheable;
+    // the value of each parameter of the plan: a constant of the query, or
+    // null for a parameter of the statement
+    private final List<String> constants;
+    private final int parameters;
+
+    PreparedStatement(Parser parser, ZQuery query, String text, boolean cacheable, List<String> constants) {
+        this.parser = parser;
+        this.query = query;
+        this.text = text;
+        this.cacheable = cacheable;
+        this.constants = constants;
+        int n = 0;
+        for (String c : constants) {
+            if (c == null)
+                n++;
+        }
+        this.parameters = n;
+    }
+
+    /** @return the number of parameters of the statement */
+    public int getParameterCount() {
+        return parameters;
+    }
+
+    /**
+     * Plan the statement with its parameters bound to values.
+     *
+     * @param tid the transaction the query runs in
+     * @param values the value of each parameter, in the order they appear
+     * @return the query, ready to be started
+     * @throws ParsingException if there are not as many values as parameters,
+     *         or a value is not valid for the field it is compared with
+     */
+    public Query bind(TransactionId tid, String... values) throws ParsingException, IOException {
+        if (values.length != parameters)
+            throw new ParsingException("Expected " + parameters + " parameters, got " + values.length);
+        List<String> bound = new ArrayList<>(constants.size());
+        int next = 0;
+        for (String c : constants)
+            bound.add(c != null ? c : values[next++]);
+        try {
+            return parser.planQuery(query, text, cacheable, bound, tid);
+        } catch (Zql.ParseException e) {
+            throw new ParsingException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
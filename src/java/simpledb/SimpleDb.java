@@ -14,6 +14,7 @@ public class SimpleDb {
         // convert a file
         switch (args[0]) {
             case "convert":
+            case "convertpax":
                 try {
                     if (args.length < 3 || args.length > 5) {
                         System.err.println("Unexpected number of arguments to convert ");
@@ -37,10 +38,9 @@ public class SimpleDb {
                         }
                         int index = 0;
                         for (String s : typeStringAr) {
-                            if (s.equalsIgnoreCase("int"))
-                                ts[index++] = Type.INT_TYPE;
-                            else if (s.equalsIgnoreCase("string"))
-                                ts[index++] = Type.STRING_TYPE;
+                            Type type = Type.forName(s);
+                            if (type != null)
+                                ts[index++] = type;
                             else {
                                 System.err.println("Unknown type " + s);
                                 return;
@@ -50,8 +50,13 @@ public class SimpleDb {
                             fieldSeparator = args[4].charAt(0);
                     }
 
-                    HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
-                            BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    if (args[0].equals("convertpax"))
+                        PaxFileEncoder.convert(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    else
+                        HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
+                                BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
+                    new PageChecksums(targetDatFile, 0).recordAll();
 
                 } catch (IOException e) {
                     throw new RuntimeException(e);
@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PaxFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -11,6 +12,10 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their associated schemas. For now, this is a stub catalog that must
@@ -26,6 +31,11 @@ public class Catalog {
 //    private ArrayList<Integer> tableIdList = new ArrayList<>();
     public final ConcurrentHashMap<Integer,Table> hashTable;
 
+    //每次表或列组变化时加一，缓存的查询计划据此失效
+    private final AtomicLong version = new AtomicLong();
+
+    private static final Pattern COLUMN_GROUP = Pattern.compile("group\\s*\\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
     //Table内部类，用于组织Table
     public static class Table implements Serializable {
 
@@ -35,6 +45,9 @@ public class Catalog {
 
         public String pkeyField;
 
+        //列组：取值相关的几列，统计信息会记录它们的联合分布
+        public final List<int[]> columnGroups = new CopyOnWriteArrayList<>();
+
         public Table(DbFile file, String name, String pkeyField) {
             this.file = file;
             this.name = name;
@@ -105,6 +118,7 @@ public class Catalog {
 //        }
         Table t = new Table(file,name,pkeyField);
         hashTable.put(file.getId(),t);
+        version.incrementAndGet();
     }
 
     public void addTable(DbFile file, String name) {
@@ -193,6 +207,53 @@ public class Catalog {
         }
     }
 
+    /**
+     * Declare a column group of a table: columns whose values are correlated
+     * (e.g. a city and its zip code), so that its statistics describe the
+     * values they take together and the optimizer does not assume that
+     * predicates on them are independent.  The group's statistics are
+     * collected the next time the table is analyzed.
+     *
+     * @param tableid
+     *         The id of the table
+     * @param fieldNames
+     *         the names of two or more columns of the table
+     * @throws NoSuchElementException
+     *         if the table or one of the columns doesn't exist
+     */
+    public void addColumnGroup(int tableid, String... fieldNames) throws NoSuchElementException {
+        Table t=hashTable.getOrDefault(tableid,null);
+        if(t==null){
+            throw new NoSuchElementException("不存在id为："+tableid+"的表");
+        }
+        if(fieldNames.length<2){
+            throw new IllegalArgumentException("列组至少需要两列");
+        }
+        TupleDesc td = t.file.getTupleDesc();
+        int[] fields = new int[fieldNames.length];
+        for(int i=0;i<fields.length;i++){
+            fields[i]=td.fieldNameToIndex(fieldNames[i]);
+        }
+        t.columnGroups.add(fields);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns the column groups declared for a table, each as the indexes
+     * of its columns.
+     *
+     * @param tableid
+     *         The id of the table
+     */
+    public List<int[]> getColumnGroups(int tableid) throws NoSuchElementException {
+        Table t=hashTable.getOrDefault(tableid,null);
+        if(t!=null){
+            return Collections.unmodifiableList(t.columnGroups);
+        }else{
+            throw new NoSuchElementException("不存在id为："+tableid+"的表");
+        }
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return hashTable.keySet().iterator();
@@ -212,6 +273,16 @@ public class Catalog {
     public void clear() {
         // some code goes here
         hashTable.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * Returns the version of the catalog, which changes whenever a table or
+     * column group is added or the catalog is cleared, so that plans made
+     * against an older version can be discarded.
+     */
+    public long getVersion() {
+        return version.get();
     }
 
     /**
@@ -227,7 +298,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [pax] [group(field, field, ...) ...]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -238,10 +309,9 @@ public class Catalog {
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
-                    if (els2[1].trim().equalsIgnoreCase("int"))
-                        types.add(Type.INT_TYPE);
-                    else if (els2[1].trim().equalsIgnoreCase("string"))
-                        types.add(Type.STRING_TYPE);
+                    Type type = Type.forName(els2[1]);
+                    if (type != null)
+                        types.add(type);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -258,14 +328,38 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                //表名后的括号之后可以指定存储格式，pax表示按列分组的页面布局
+                //group(a, b)声明一个列组
+                String layout = line.substring(line.indexOf(")") + 1);
+                List<String[]> groups = new ArrayList<>();
+                Matcher m = COLUMN_GROUP.matcher(layout);
+                while (m.find()) {
+                    String[] groupFields = m.group(1).split(",");
+                    for (int i = 0; i < groupFields.length; i++)
+                        groupFields[i] = groupFields[i].trim();
+                    groups.add(groupFields);
+                }
+                layout = m.replaceAll("").trim();
+                File dataFile = new File(baseFolder + "/" + name + ".dat");
+                DbFile tabHf;
+                if (layout.isEmpty())
+                    tabHf = new HeapFile(dataFile, t);
+                else if (layout.equalsIgnoreCase("pax"))
+                    tabHf = new PaxFile(dataFile, t);
+                else {
+                    System.out.println("Unknown storage layout " + layout);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf, name, primaryKey);
+                for (String[] group : groups)
+                    addColumnGroup(tabHf.getId(), group);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException | IllegalArgumentException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
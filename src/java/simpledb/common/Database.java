@@ -1,7 +1,13 @@
 package simpledb.common;
 
+import simpledb.optimizer.StatementCache;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.PageCleaner;
+import simpledb.storage.PageScrubber;
+import simpledb.storage.TrickleWriter;
+import simpledb.storage.VersionStore;
+import simpledb.transaction.TransactionTable;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -12,17 +18,26 @@ import java.util.concurrent.atomic.AtomicReference;
  * particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
- * anywhere.
+ * anywhere. It also runs the background threads that look after the files:
+ * the {@link PageCleaner}, the {@link TrickleWriter} and the
+ * {@link PageScrubber}.
  * 
  * @Threadsafe
  */
 public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
-    private final BufferPool _bufferpool;
+    private volatile BufferPool _bufferpool;
+    private volatile PageCleaner _pagecleaner;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final VersionStore _versionstore = new VersionStore();
+    private final TransactionTable _transactiontable = new TransactionTable();
+    private final StatementCache _statementcache = new StatementCache();
+    private final PageScrubber _pagescrubber = new PageScrubber(PageScrubber.DEFAULT_PAGES_PER_SECOND,
+            PageScrubber.DEFAULT_MIN_AGE_MILLIS);
+    private final TrickleWriter _tricklewriter = new TrickleWriter(TrickleWriter.DEFAULT_PAGES_PER_SECOND);
 
     private Database() {
         _catalog = new Catalog();
@@ -36,6 +51,26 @@ public class Database {
         }
         _logfile = tmp;
         // startControllerThread();
+        _pagecleaner = startCleaner(_bufferpool, BufferPool.DEFAULT_PAGES);
+        _tricklewriter.start();
+        _pagescrubber.start();
+    }
+
+    private static PageCleaner startCleaner(BufferPool bufferPool, int pages) {
+        PageCleaner cleaner = new PageCleaner(bufferPool, pages * PageCleaner.DEFAULT_CLEAN_PERCENT / 100);
+        cleaner.start();
+        return cleaner;
+    }
+
+    /** Stop the background threads of this instance. */
+    private void shutdown() {
+        try {
+            _pagecleaner.stop();
+            _tricklewriter.stop();
+            _pagescrubber.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /** Return the log file of the static Database instance */
@@ -48,6 +83,36 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the version store of the static Database instance */
+    public static VersionStore getVersionStore() {
+        return _instance.get()._versionstore;
+    }
+
+    /** Return the table of running transactions of the static Database instance */
+    public static TransactionTable getTransactionTable() {
+        return _instance.get()._transactiontable;
+    }
+
+    /** Return the cache of query plans of the static Database instance */
+    public static StatementCache getStatementCache() {
+        return _instance.get()._statementcache;
+    }
+
+    /** Return the page cleaner of the buffer pool of the static Database instance */
+    public static PageCleaner getPageCleaner() {
+        return _instance.get()._pagecleaner;
+    }
+
+    /** Return the trickle writer of the static Database instance */
+    public static TrickleWriter getTrickleWriter() {
+        return _instance.get()._tricklewriter;
+    }
+
+    /** Return the page scrubber of the static Database instance */
+    public static PageScrubber getPageScrubber() {
+        return _instance.get()._pagescrubber;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,23 +120,26 @@ public class Database {
 
     /**
      * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * return it, with a new page cleaner
      */
     public static BufferPool resetBufferPool(int pages) {
-        java.lang.reflect.Field bufferPoolF=null;
-        try {
-            bufferPoolF = Database.class.getDeclaredField("_bufferpool");
-            bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
-        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
-            e.printStackTrace();
+        Database db = _instance.get();
+        synchronized (db) {
+            try {
+                db._pagecleaner.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            db._bufferpool = new BufferPool(pages);
+            db._pagecleaner = startCleaner(db._bufferpool, pages);
         }
-//        _instance._bufferpool = new BufferPool(pages);
-        return _instance.get()._bufferpool;
+        return db._bufferpool;
     }
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // stop the old threads first, so that none of them works on the new instance
+        _instance.get().shutdown();
         _instance.set(new Database());
     }
 
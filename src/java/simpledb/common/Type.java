@@ -1,5 +1,8 @@
 package simpledb.common;
 
+import simpledb.storage.DateField;
+import simpledb.storage.DoubleField;
+import simpledb.storage.LongField;
 import simpledb.storage.StringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
@@ -28,6 +31,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(String s) {
+            return new IntField(Integer.parseInt(s.trim()));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +54,68 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(String s) {
+            return new StringField(s, STRING_LEN);
+        }
+    }, LONG_TYPE() {
+        @Override
+        public int getLen() {
+            return 8;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                return new LongField(dis.readLong());
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(String s) {
+            return new LongField(Long.parseLong(s.trim()));
+        }
+    }, DOUBLE_TYPE() {
+        @Override
+        public int getLen() {
+            return 8;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                return new DoubleField(dis.readDouble());
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(String s) {
+            return new DoubleField(Double.parseDouble(s.trim()));
+        }
+    }, DATE_TYPE() {
+        @Override
+        public int getLen() {
+            return 8;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                return new DateField(dis.readLong());
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(String s) {
+            return DateField.parse(s.trim());
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +134,36 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object whose value is
+   *   the textual representation s, as found in query constants and in the
+   *   text files read by {@link simpledb.storage.HeapFileEncoder}.
+   * @param s The text to parse
+   * @throws IllegalArgumentException if s is not a valid value of this type.
+   */
+    public abstract Field parse(String s);
+
+  /**
+   * @return the Type named by s in a catalog file or on the command line
+   *   ("int", "string", "long", "double" or "date"), or null if s does not
+   *   name a type.
+   */
+    public static Type forName(String s) {
+        switch (s.trim().toLowerCase()) {
+            case "int":
+                return INT_TYPE;
+            case "string":
+                return STRING_TYPE;
+            case "long":
+                return LONG_TYPE;
+            case "double":
+                return DOUBLE_TYPE;
+            case "date":
+            case "timestamp":
+                return DATE_TYPE;
+            default:
+                return null;
+        }
+    }
+
 }
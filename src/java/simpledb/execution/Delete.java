@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
@@ -84,7 +85,11 @@ public class Delete extends Operator {
             //执行删除操作
             while (opIterator.hasNext()){
                 try{
-                    Database.getBufferPool().deleteTuple(transactionId,opIterator.next());
+                    Tuple t = opIterator.next();
+                    //删除后元组的RecordId可能被清空，先记下表id
+                    int tableId = t.getRecordId().getPageId().getTableId();
+                    Database.getBufferPool().deleteTuple(transactionId,t);
+                    TableStats.tupleDeleted(tableId);
                     count++;
                 }catch (IOException e){
                     e.printStackTrace();
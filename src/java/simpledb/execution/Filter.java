@@ -86,14 +86,13 @@ public class Filter extends Operator {
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-//        return new OpIterator[] { child };
-        return null;
+        return new OpIterator[] { child };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
-//        this.child=children[0];
+        this.child=children[0];
     }
 
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
@@ -65,6 +66,8 @@ public class Insert extends Operator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        //先锁定要插入的表，再逐行插入
+        Database.getBufferPool().lockTableForInsert(transactionId,tableId);
         opIterator.open();
         super.open();
     }
@@ -107,7 +110,10 @@ public class Insert extends Operator {
             while (opIterator.hasNext()){
                 //获取要插入的元组
                 try{
-                    Database.getBufferPool().insertTuple(transactionId,tableId,opIterator.next());
+                    Tuple t = opIterator.next();
+                    Database.getBufferPool().insertTuple(transactionId,tableId,t);
+                    //让统计信息跟上表的变化
+                    TableStats.tupleInserted(tableId,t);
                     count++;
                 }catch (IOException e){
                     e.printStackTrace();
@@ -2,7 +2,11 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.storage.DateField;
+import simpledb.storage.DoubleField;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.LongField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -115,14 +119,30 @@ class TupleComparator implements Comparator<Tuple> {
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        int cmp = compareFields((o1).getField(field), (o2).getField(field));
+        return asc ? cmp : -cmp;
+    }
+
+    /**
+     * Compare two fields of the same type. Fixed-width numeric types are
+     * compared directly on their primitive values; other types fall back to
+     * {@link Field#compare}.
+     */
+    static int compareFields(Field t1, Field t2) {
+        switch (t1.getType()) {
+            case INT_TYPE:
+                return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+            case LONG_TYPE:
+                return Long.compare(((LongField) t1).getValue(), ((LongField) t2).getValue());
+            case DATE_TYPE:
+                return Long.compare(((DateField) t1).getValue(), ((DateField) t2).getValue());
+            case DOUBLE_TYPE:
+                return Double.compare(((DoubleField) t1).getValue(), ((DoubleField) t2).getValue());
+            default:
+                if (t1.compare(Predicate.Op.EQUALS, t2))
+                    return 0;
+                return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+        }
     }
     
 }
@@ -1,53 +1,107 @@
 package simpledb.execution;
 import simpledb.optimizer.LogicalJoinNode;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.  A set is a bitmask over the tables
+ * (vertices of the join graph) it joins, and plans are kept in an open
+ * addressing table keyed by that mask, so a lookup hashes one long. */
 public class PlanCache {
-    final Map<Set<LogicalJoinNode>,List<LogicalJoinNode>> bestOrders= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<>();
-    final Map<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<>();
-    
+    private static final int INITIAL_CAPACITY = 64;
+
+    // sets[i] == 0 marks a free slot; the empty set is never cached
+    private long[] sets = new long[INITIAL_CAPACITY];
+    private double[] bestCosts = new double[INITIAL_CAPACITY];
+    private int[] bestCardinalities = new int[INITIAL_CAPACITY];
+    private Object[] bestOrders = new Object[INITIAL_CAPACITY];
+    private int size;
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        @param s the set of tables joined by the plan, as a bitmask
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
         @param order the ordering of the joins in the plan
     */
-    public void addPlan(Set<LogicalJoinNode> s, double cost, int card, List<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
+    public void addPlan(long s, double cost, int card, List<LogicalJoinNode> order) {
+        if (s == 0)
+            throw new IllegalArgumentException("cannot cache a plan for no tables");
+        int i = slot(s);
+        if (sets[i] == 0) {
+            if (2 * (size + 1) > sets.length) {
+                grow();
+                i = slot(s);
+            }
+            sets[i] = s;
+            size++;
+        }
+        bestCosts[i] = cost;
+        bestCardinalities[i] = card;
+        bestOrders[i] = order;
     }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+
+    /** Find the best join order in the cache for the specified plan
+        @param s the set of tables to look up the best order for
+        @return the best order for s in the cache, or null if there is none
     */
-    public List<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    @SuppressWarnings("unchecked")
+    public List<LogicalJoinNode> getOrder(long s) {
+        int i = slot(s);
+        return sets[i] == 0 ? null : (List<LogicalJoinNode>) bestOrders[i];
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** Find the cost of the best join order in the cache for the specified plan
+        @param s the set of tables to look up the best cost for
+        @return the cost of the best order for s in the cache, or
+            Double.MAX_VALUE if there is none
     */
-    public double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    public double getCost(long s) {
+        int i = slot(s);
+        return sets[i] == 0 ? Double.MAX_VALUE : bestCosts[i];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
+        @param s the set of tables to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
-    public int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    public int getCard(long s) {
+        return bestCardinalities[slot(s)];
+    }
+
+    /** @return the number of sets with a plan in the cache */
+    public int size() {
+        return size;
+    }
+
+    /** @return the slot that holds s, or the free slot where it would go */
+    private int slot(long s) {
+        int mask = sets.length - 1;
+        int i = Long.hashCode(s * 0x9E3779B97F4A7C15L) & mask;
+        while (sets[i] != 0 && sets[i] != s)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldSets = sets;
+        double[] oldCosts = bestCosts;
+        int[] oldCards = bestCardinalities;
+        Object[] oldOrders = bestOrders;
+        int capacity = oldSets.length * 2;
+        sets = new long[capacity];
+        bestCosts = new double[capacity];
+        bestCardinalities = new int[capacity];
+        bestOrders = new Object[capacity];
+        for (int j = 0; j < oldSets.length; j++) {
+            if (oldSets[j] != 0) {
+                int i = slot(oldSets[j]);
+                sets[i] = oldSets[j];
+                bestCosts[i] = oldCosts[j];
+                bestCardinalities[i] = oldCards[j];
+                bestOrders[i] = oldOrders[j];
+            }
+        }
     }
 }
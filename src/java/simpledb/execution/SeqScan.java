@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.common.Database;
+import simpledb.storage.AbstractDbFileIterator;
 import simpledb.storage.DbFile;
+import simpledb.storage.PaxFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
@@ -28,6 +30,12 @@ public class SeqScan implements OpIterator {
 
     private String tableAlias;
 
+    /** the table columns returned by this scan, or null for all of them */
+    private final int[] fields;
+
+    /** predicates over table columns evaluated inside the scan */
+    private final Predicate[] predicates;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -47,10 +55,51 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
-        // some code goes here
+        this(tid, tableid, tableAlias, null, new Predicate[0]);
+    }
+
+    /**
+     * Creates a sequential scan that returns only some columns of the table,
+     * and only the tuples satisfying the given predicates. For a
+     * {@link PaxFile} the predicates are evaluated over whole column arrays
+     * and columns that are not referenced are never decoded; for other
+     * files they are applied to each tuple as it is read.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param fields
+     *            the indices of the table columns to return, in output
+     *            order, or null to return every column
+     * @param predicates
+     *            predicates whose field numbers are indices of table columns
+     *            (not of the output); a tuple is returned only if all hold
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields, Predicate[] predicates) {
         this.transactionId=tid;
         this.tableId=tableid;
         this.tableAlias=tableAlias;
+        this.fields=fields;
+        this.predicates=predicates;
+    }
+
+    /**
+     * @return the table columns returned by this scan, or null if it returns
+     *         all of them
+     */
+    public int[] getFields() {
+        return fields;
+    }
+
+    /**
+     * @return the predicates evaluated inside this scan; field numbers are
+     *         indices of table columns
+     */
+    public Predicate[] getPredicates() {
+        return predicates;
     }
 
     /**
@@ -62,6 +111,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableId;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -95,7 +151,21 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        iterator=Database.getCatalog().getDatabaseFile(tableId).iterator(transactionId);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof PaxFile) {
+            int[] cols = fields;
+            if (cols == null) {
+                cols = new int[file.getTupleDesc().numFields()];
+                for (int i = 0; i < cols.length; i++)
+                    cols[i] = i;
+            }
+            iterator = ((PaxFile) file).iterator(transactionId, cols, predicates);
+        } else if (fields != null || predicates.length > 0) {
+            iterator = new FilteringIterator(file.iterator(transactionId), fields, predicates,
+                    fields == null ? null : getTupleDesc());
+        } else {
+            iterator = file.iterator(transactionId);
+        }
         iterator.open();
     }
 
@@ -112,11 +182,13 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc tupleDesc=Database.getCatalog().getTupleDesc(tableId);
-        Type[] typeAr = new Type[tupleDesc.numFields()];
-        String[] filedAr = new String[tupleDesc.numFields()];
-        for(int i=0;i<tupleDesc.numFields();i++){
-            typeAr[i]=tupleDesc.getFieldType(i);
-            filedAr[i]=tableAlias+"."+tupleDesc.getFieldName(i);
+        int n = fields == null ? tupleDesc.numFields() : fields.length;
+        Type[] typeAr = new Type[n];
+        String[] filedAr = new String[n];
+        for(int i=0;i<n;i++){
+            int col = fields == null ? i : fields[i];
+            typeAr[i]=tupleDesc.getFieldType(col);
+            filedAr[i]=tableAlias+"."+tupleDesc.getFieldName(col);
         }
         TupleDesc result= new TupleDesc(typeAr,filedAr);
         return result;
@@ -153,4 +225,55 @@ public class SeqScan implements OpIterator {
         // some code goes here
         iterator.rewind();
     }
+
+    /**
+     * Applies scan predicates and the column projection to the tuples of a
+     * file that has no columnar access path.
+     */
+    private static final class FilteringIterator extends AbstractDbFileIterator {
+        private final DbFileIterator child;
+        private final int[] fields;
+        private final Predicate[] predicates;
+        private final TupleDesc outTd;
+
+        FilteringIterator(DbFileIterator child, int[] fields, Predicate[] predicates, TupleDesc outTd) {
+            this.child = child;
+            this.fields = fields;
+            this.predicates = predicates;
+            this.outTd = outTd;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            child.open();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            child.rewind();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            outer:
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                for (Predicate p : predicates) {
+                    if (!p.filter(t))
+                        continue outer;
+                }
+                if (fields == null)
+                    return t;
+                Tuple out = new Tuple(outTd);
+                out.setRecordId(t.getRecordId());
+                for (int i = 0; i < fields.length; i++)
+                    out.setField(i, t.getField(fields[i]));
+                return out;
+            }
+            return null;
+        }
+    }
 }
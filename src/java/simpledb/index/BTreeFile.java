@@ -10,6 +10,7 @@ import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.storage.*;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -32,6 +33,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final PageChecksums checksums;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +48,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.checksums = new PageChecksums(f, BTreeRootPtrPage.getPageSize());
 	}
 
 	/**
@@ -55,6 +58,14 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Returns the checksums of the pages of this BTreeFile. The root pointer
+	 * page is page 0.
+	 */
+	public PageChecksums getChecksums() {
+		return checksums;
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -98,8 +109,11 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read "
                             + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
                 }
+                long lsn = checksums.verify(0, pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
+                BTreeRootPtrPage page = new BTreeRootPtrPage(id, pageBuf);
+                page.setLsn(lsn);
+                return page;
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
                 if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
@@ -115,14 +129,18 @@ public class BTreeFile implements DbFile {
                     throw new IllegalArgumentException("Unable to read "
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
+                long lsn = checksums.verify(id.getPageNumber(), pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+                Page page;
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    page = new BTreeInternalPage(id, pageBuf, keyField);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    page = new BTreeLeafPage(id, pageBuf, keyField);
                 } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
+                    page = new BTreeHeaderPage(id, pageBuf);
                 }
+                page.setLsn(lsn);
+                return page;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -140,17 +158,10 @@ public class BTreeFile implements DbFile {
 	public void writePage(Page page) throws IOException {
 		BTreePageId id = (BTreePageId) page.getId();
 		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
-		}
+		// the root pointer page is page 0, so page numbers line up with
+		// the offsets PageChecksums computes
+		checksums.write(id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : id.getPageNumber(), page.getPageData(),
+				page.getLsn());
 	}
 	
 	/**
@@ -188,7 +199,23 @@ public class BTreeFile implements DbFile {
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			// the left-most child that can hold f: the first whose key is >= f
+			if(f == null || e.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + pid + " has no entries");
+		}
+		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
 	}
 	
 	/**
@@ -413,6 +440,90 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Find the smallest key in this B+ tree that is greater than key, reading
+	 * the leaf pages with READ_ONLY permission.
+	 * 
+	 * @param tid - the transaction id
+	 * @param key - the key to look past
+	 * @return the next key, or null if no key is greater than key
+	 */
+	Field nextKey(TransactionId tid, Field key) throws DbException, TransactionAbortedException {
+		if(f.length() == 0) {
+			return null;
+		}
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+		if(rootPtr.getRootId() == null) {
+			return null;
+		}
+		BTreeLeafPage page = findLeafPage(tid, rootPtr.getRootId(), key);
+		while(page != null) {
+			Iterator<Tuple> it = page.iterator();
+			while(it.hasNext()) {
+				Field k = it.next().getField(keyField);
+				if(k.compare(Op.GREATER_THAN, key)) {
+					return k;
+				}
+			}
+			BTreePageId next = page.getRightSiblingId();
+			page = next == null ? null
+					: (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+		}
+		return null;
+	}
+
+	/**
+	 * Take the key locks an insert of t needs (next-key locking), unless that
+	 * means waiting: check that no other transaction holds a lock on the key
+	 * after t's key, which it took by scanning or deleting across the gap t
+	 * goes into, and lock t's key exclusively until tid completes. The
+	 * BufferPool calls this and insertTuple under its monitor, which a locking
+	 * scan also holds while it reads a key and locks it, so no scan can pass
+	 * the gap between the check and the insert.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to be inserted
+	 * @return whether tid now holds the locks; if not, call lockForInsert
+	 *         outside the monitor and try again
+	 */
+	public boolean tryLockForInsert(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+		LockManager locks = Database.getBufferPool().getLockManager();
+		Field key = t.getField(keyField);
+		return locks.tryLockGap(tid, tableid, nextKey(tid, key))
+				&& locks.tryLockKey(tid, tableid, key, LockManager.Mode.X);
+	}
+
+	/**
+	 * Wait for the key locks an insert of t needs, as tryLockForInsert found
+	 * them, and lock t's key exclusively. The key after t's may change before
+	 * the insert, so tryLockForInsert must still be called again with it.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to be inserted
+	 */
+	public void lockForInsert(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+		LockManager locks = Database.getBufferPool().getLockManager();
+		Field key = t.getField(keyField);
+		locks.lockGap(tid, tableid, nextKey(tid, key));
+		locks.lockKey(tid, tableid, key, LockManager.Mode.X);
+	}
+
+	/**
+	 * Take the key locks a delete of t needs: t's key, and the key after it
+	 * so that no range scan passes the gap t leaves until tid completes.
+	 * Called by the BufferPool before deleteTuple, since it may block.
+	 * 
+	 * @param tid - the transaction id
+	 * @param t - the tuple to be deleted
+	 */
+	public void lockForDelete(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+		LockManager locks = Database.getBufferPool().getLockManager();
+		Field key = t.getField(keyField);
+		locks.lockKey(tid, tableid, key, LockManager.Mode.X);
+		locks.lockKey(tid, tableid, nextKey(tid, key), LockManager.Mode.X);
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -839,6 +950,8 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
 				bw.close();
+				checksums.record(0, emptyRootPtrData);
+				checksums.record(1, emptyLeafData);
 			}
 		}
 
@@ -900,6 +1013,7 @@ public class BTreeFile implements DbFile {
 				bw.write(emptyData);
 				bw.close();
 				emptyPageNo = numPages();
+				checksums.record(emptyPageNo, emptyData);
 			}
 		}
 
@@ -929,10 +1043,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		checksums.write(emptyPageNo, BTreePage.createEmptyPageData(), -1);
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1137,7 +1248,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File. Unless the transaction reads a snapshot, the iterator locks
+ * the key of every tuple it returns and the first key past the range (or the
+ * end of the index), so that the range stays free of phantoms. It reads each
+ * key and locks it under the BufferPool's monitor, so that no insert (see
+ * BTreeFile.tryLockForInsert) goes into the gap before the key in between.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1147,6 +1262,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	boolean locking;
+
+	/** the key the last call to scan stopped at: that of the tuple it
+	 * returned, the first past the range, or null for the end of the index */
+	private Field stopKey;
+	/** the key of the last tuple returned, or null */
+	private Field lastKey;
+	/** after repositioning, tuples with keys up to this one were returned already */
+	private Field skipThrough;
 
 	/**
 	 * Constructor for this iterator
@@ -1165,44 +1289,105 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		locking = !Database.getVersionStore().isSnapshot(tid);
+		lastKey = null;
+		skipThrough = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			position(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			position(null);
 		}
+	}
+
+	/**
+	 * Get an iterator on the leftmost leaf page that may hold key
+	 * @param key - the key, or null for the first leaf page
+	 */
+	private void position(Field key) throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		curp = f.findLeafPage(tid, root, key);
 		it = curp.iterator();
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * Read the next tuple matching the predicate, and lock its key or, at the
+	 * end of the range, the key past it. If the lock means waiting, wait for
+	 * it outside the monitor and then find the place after the last key
+	 * returned again, since keys may have been added in the meantime.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		if(!locking || it == null) {
+			return scan();
+		}
+		BufferPool bufferPool = Database.getBufferPool();
+		while(true) {
+			Field wanted;
+			synchronized(bufferPool) {
+				Tuple t = scan();
+				if(bufferPool.getLockManager().tryLockKey(tid, f.getId(), stopKey, LockManager.Mode.S)) {
+					if(t != null) {
+						lastKey = stopKey;
+					}
+					return t;
+				}
+				wanted = stopKey;
+			}
+			bufferPool.getLockManager().lockKey(tid, f.getId(), wanted, LockManager.Mode.S);
+			synchronized(bufferPool) {
+				// the gap before the wanted key is now ours; start again after
+				// the last key returned to see what was added to it
+				if(lastKey != null) {
+					position(lastKey);
+					skipThrough = lastKey;
+				}
+				else {
+					open();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the next page by following the right sibling pointer,
+	 * and set stopKey to the key to lock.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	private Tuple scan() throws TransactionAbortedException, DbException {
 		while (it != null) {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = t.getField(f.keyField());
+				if (skipThrough != null) {
+					if (key.compare(Op.LESS_THAN_OR_EQ, skipThrough))
+						continue;
+					skipThrough = null;
+				}
+				if (key.compare(ipred.getOp(), ipred.getField())) {
+					stopKey = key;
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
+					// hit the end; lock the next key to cover the gap before it
+					stopKey = key;
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					stopKey = key;
 					return null;
 				}
 			}
@@ -1210,6 +1395,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				stopKey = null;
 				return null;
 			}
 			else {
@@ -1219,6 +1405,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			}
 		}
 
+		stopKey = null;
 		return null;
 	}
 
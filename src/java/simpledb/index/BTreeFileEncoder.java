@@ -74,6 +74,7 @@ public class BTreeFileEncoder {
 		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
 
 		// add the heap file to B+ tree file
+		PageChecksums.discard(bFile);
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
 
 		try {
@@ -218,6 +219,7 @@ public class BTreeFileEncoder {
 		tuples.sort(new TupleComparator(keyField));
 
 		// add the tuples to B+ tree file
+		PageChecksums.discard(bFile);
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
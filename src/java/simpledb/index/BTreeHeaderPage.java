@@ -22,6 +22,7 @@ import java.util.Arrays;
  */
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
+	private volatile long lsn = -1;
 	private volatile TransactionId dirtier = null;
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
@@ -273,6 +274,16 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	// see Page.java for javadocs
+	public long getLsn() {
+		return lsn;
+	}
+
+	// see Page.java for javadocs
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
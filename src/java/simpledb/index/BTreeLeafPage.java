@@ -19,7 +19,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlotPage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
@@ -478,6 +478,62 @@ public class BTreeLeafPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	public byte[] getSlotImage(int i) {
+		if (!isSlotUsed(i))
+			return null;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(dos);
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public void setSlotImage(int i, byte[] image) {
+		if (image == null) {
+			markSlotUsed(i, false);
+			tuples[i] = null;
+			return;
+		}
+		markSlotUsed(i, true);
+		tuples[i] = readNextTuple(new DataInputStream(new ByteArrayInputStream(image)), i);
+	}
+
+	/**
+	 * @return the parent and sibling pointers
+	 */
+	public byte[] getNonSlotData() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(3 * INDEX_SIZE);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeInt(leftSibling);
+			dos.writeInt(rightSibling);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public void setNonSlotData(byte[] data) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			parent = dis.readInt();
+			leftSibling = dis.readInt();
+			rightSibling = dis.readInt();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -18,6 +18,7 @@ public class BTreeRootPtrPage implements Page {
 	public final static int PAGE_SIZE = 9;
 
 	private boolean dirty = false;
+	private volatile long lsn = -1;
 	private TransactionId dirtier = null;
 
 	private final BTreePageId pid;
@@ -140,6 +141,16 @@ public class BTreeRootPtrPage implements Page {
 			return null;
 	}
 
+	// see Page.java for javadocs
+	public long getLsn() {
+		return lsn;
+	}
+
+	// see Page.java for javadocs
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
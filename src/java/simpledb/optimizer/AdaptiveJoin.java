@@ -0,0 +1,267 @@
+package simpledb.optimizer;
+
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * AdaptiveJoin runs the joins of a query one at a time, in the order the
+ * {@link JoinOptimizer} chose, instead of as one pipelined tree.  The result
+ * of every join but the last is materialized, which makes a checkpoint at
+ * which the number of rows it produced is known.  If that differs from the
+ * optimizer's estimate by more than the reoptimization factor (see
+ * {@link #setReoptimizationFactor}), the joins that remain are ordered again
+ * (see {@link JoinOptimizer#orderJoins(Map, Map, Map, Map, boolean)}), with
+ * the materialized results in place of the tables they join.
+ * <p>
+ * Knowing how large its inputs are also lets each equality join choose how
+ * to run: a nested-loop join over a materialized input of at most
+ * {@link #NESTED_LOOP_MAX_ROWS} rows, and otherwise a hash join that hashes
+ * the smaller input.
+ * <p>
+ * Its child is the join tree as planned, which explains the plan and fixes
+ * the order of the fields of its tuples; the joins it runs are only known
+ * once it is opened.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Adaptive execution is off unless a factor is set. */
+    public static final double DEFAULT_REOPTIMIZATION_FACTOR = 0;
+    /**
+     * Equality joins with a materialized input of at most this many rows
+     * compare each row of the other input with it rather than hash.
+     */
+    public static final int NESTED_LOOP_MAX_ROWS = 16;
+
+    private static double reoptimizationFactor = DEFAULT_REOPTIMIZATION_FACTOR;
+
+    private final LogicalPlan p;
+    private final List<LogicalJoinNode> joins;
+    private final Map<String, OpIterator> basePlans;
+    private final Map<String, TableStats> stats;
+    private final Map<String, Double> filterSelectivities;
+    private final JoinOptimizer optimizer;
+    private final boolean explain;
+    private OpIterator planned;
+
+    private transient OpIterator root;
+    /** the index in root's tuples of each field of this operator's tuples */
+    private transient int[] fieldOrder;
+    private int reoptimizations;
+
+    /**
+     * @param p the plan of the query
+     * @param joins the joins of the query, in the order optimizer chose;
+     *              they must join distinct tables without cycles
+     * @param basePlans the plan of each table before it is joined, by alias
+     * @param stats table statistics, by table name
+     * @param filterSelectivities the selectivity of the filters on each
+     *                            table, by alias
+     * @param optimizer the JoinOptimizer that ordered the joins
+     * @param planned the join tree as planned
+     * @param explain whether to print the joins that are ordered again
+     */
+    public AdaptiveJoin(LogicalPlan p, List<LogicalJoinNode> joins, Map<String, OpIterator> basePlans,
+                        Map<String, TableStats> stats, Map<String, Double> filterSelectivities,
+                        JoinOptimizer optimizer, OpIterator planned, boolean explain) {
+        this.p = p;
+        this.joins = new ArrayList<>(joins);
+        this.basePlans = new HashMap<>(basePlans);
+        this.stats = stats;
+        this.filterSelectivities = filterSelectivities;
+        this.optimizer = optimizer;
+        this.planned = planned;
+        this.explain = explain;
+    }
+
+    /**
+     * Set the factor by which the actual cardinality of a join may differ
+     * from its estimate before the remaining joins are ordered again.  0
+     * turns adaptive execution off, so that queries run as planned.
+     */
+    public static void setReoptimizationFactor(double factor) {
+        reoptimizationFactor = factor;
+    }
+
+    public static double getReoptimizationFactor() {
+        return reoptimizationFactor;
+    }
+
+    /**
+     * @return whether the joins of a query can be run adaptively: they join
+     *         tables, not subqueries, and join each table to the others once
+     */
+    static boolean canRun(List<LogicalJoinNode> joins) {
+        Set<String> tables = new HashSet<>();
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode)
+                return false;
+            tables.add(j.t1Alias);
+            tables.add(j.t2Alias);
+        }
+        return tables.size() == joins.size() + 1;
+    }
+
+    /** @return how many times the joins were ordered again when last opened */
+    public int getReoptimizations() {
+        return reoptimizations;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return planned.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        Map<String, OpIterator> plans = new HashMap<>(basePlans);
+        // the alias each table was joined into, and the actual cardinality
+        // of the materialized result of the joins into an alias
+        Map<String, String> joined = new HashMap<>();
+        Map<String, Integer> observed = new HashMap<>();
+        List<LogicalJoinNode> remaining = new ArrayList<>(joins);
+        JoinOptimizer jo = optimizer;
+        reoptimizations = 0;
+
+        try {
+            while (true) {
+                LogicalJoinNode lj = remaining.remove(0);
+                String t1 = joined.getOrDefault(lj.t1Alias, lj.t1Alias);
+                String t2 = joined.getOrDefault(lj.t2Alias, lj.t2Alias);
+                OpIterator j = join(lj, plans.get(t1), plans.get(t2), cardinality(t1, observed),
+                        cardinality(t2, observed), observed.containsKey(t1), observed.containsKey(t2));
+                plans.remove(t2);
+                observed.remove(t2);
+                for (Map.Entry<String, String> e : joined.entrySet()) {
+                    if (e.getValue().equals(t2))
+                        e.setValue(t1);
+                }
+                joined.put(t2, t1);
+                if (remaining.isEmpty()) {
+                    root = j;
+                    break;
+                }
+
+                List<Tuple> rows = materialize(j);
+                plans.put(t1, new TupleIterator(j.getTupleDesc(), rows));
+                observed.put(t1, rows.size());
+                List<String> tables = new ArrayList<>();
+                tables.add(t1);
+                for (Map.Entry<String, String> e : joined.entrySet()) {
+                    if (e.getValue().equals(t1))
+                        tables.add(e.getKey());
+                }
+                int estimate = jo.estimatedCardinality(tables);
+                if (remaining.size() > 1 && estimate >= 0 && diverges(rows.size(), estimate)) {
+                    if (explain)
+                        System.out.println("Join of " + tables + " produced " + rows.size() + " rows where "
+                                + estimate + " were estimated; ordering the remaining joins again");
+                    jo = new JoinOptimizer(p, remaining);
+                    remaining = new ArrayList<>(jo.orderJoins(stats, filterSelectivities, joined, observed, false));
+                    reoptimizations++;
+                }
+            }
+        } catch (ParsingException e) {
+            throw new DbException("could not order joins again: " + e.getMessage());
+        }
+
+        root.open();
+        TupleDesc td = getTupleDesc(), actual = root.getTupleDesc();
+        fieldOrder = new int[td.numFields()];
+        for (int i = 0; i < fieldOrder.length; i++)
+            fieldOrder[i] = actual.fieldNameToIndex(td.getFieldName(i));
+        super.open();
+    }
+
+    private static boolean diverges(int actual, int estimate) {
+        double factor = reoptimizationFactor;
+        return factor > 0 && Math.max(actual, estimate) > factor * Math.max(1, Math.min(actual, estimate));
+    }
+
+    /** @return the cardinality of a table's plan: observed, or estimated */
+    private int cardinality(String alias, Map<String, Integer> observed) {
+        Integer card = observed.get(alias);
+        if (card != null)
+            return card;
+        TableStats s = stats.get(Database.getCatalog().getTableName(p.getTableId(alias)));
+        return s.estimateTableCardinality(filterSelectivities.get(alias));
+    }
+
+    /**
+     * @return an iterator for a join of two plans, given their cardinalities
+     *         and whether they are materialized
+     */
+    private OpIterator join(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2, int card1, int card2,
+                            boolean materialized1, boolean materialized2) throws ParsingException {
+        boolean hash = lj.p == Predicate.Op.EQUALS;
+        boolean swap;
+        if (hash && Math.min(card1, card2) <= NESTED_LOOP_MAX_ROWS
+                && (card1 <= card2 ? materialized1 : materialized2)) {
+            // rescan the small materialized input for each row of the other
+            hash = false;
+            swap = card1 <= card2;
+        } else if (hash) {
+            // hash the smaller input
+            swap = card2 < card1;
+        } else {
+            // rescan the materialized input, if only one is
+            swap = materialized1 && !materialized2;
+        }
+        if (swap)
+            return JoinOptimizer.instantiateJoin(lj.swapInnerOuter(), plan2, plan1, hash);
+        return JoinOptimizer.instantiateJoin(lj, plan1, plan2, hash);
+    }
+
+    /** @return every tuple of a plan */
+    private static List<Tuple> materialize(OpIterator plan) throws DbException, TransactionAbortedException {
+        List<Tuple> rows = new ArrayList<>();
+        plan.open();
+        try {
+            while (plan.hasNext())
+                rows.add(plan.next());
+        } finally {
+            plan.close();
+        }
+        return rows;
+    }
+
+    public void close() {
+        super.close();
+        if (root != null)
+            root.close();
+        root = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        root.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!root.hasNext())
+            return null;
+        Tuple t = root.next();
+        Tuple result = new Tuple(getTupleDesc());
+        for (int i = 0; i < fieldOrder.length; i++)
+            result.setField(i, t.getField(fieldOrder[i]));
+        return result;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { planned };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        planned = children[0];
+    }
+}
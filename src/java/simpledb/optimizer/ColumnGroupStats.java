@@ -0,0 +1,123 @@
+package simpledb.optimizer;
+
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.io.Serializable;
+
+/**
+ * ColumnGroupStats describes the values that a group of columns of a table
+ * take together, for columns whose values are correlated (e.g. a city and
+ * its zip code), where multiplying the selectivities of predicates on each
+ * column underestimates how many rows satisfy all of them.
+ * <p>
+ * It keeps the group's values in a uniform sample of the table's rows, and
+ * a {@link HyperLogLog} sketch of the distinct combinations of values,
+ * which inserts keep current.  A conjunction of
+ * predicates on the group's columns is estimated as the fraction of sampled
+ * rows that satisfy all of them.  Column groups are declared in the
+ * catalog (see {@link simpledb.common.Catalog#addColumnGroup}).
+ */
+public class ColumnGroupStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] fields;
+    /** the group's values in each sampled row */
+    private final Field[][] rows;
+    /** the distinct combinations of values in every row */
+    private final HyperLogLog sketch;
+
+    /**
+     * @param fields the indexes of the group's columns in the table
+     * @param rows the values of those columns in each row of a sample
+     * @param sketch a sketch of the combinations of values of every row
+     */
+    ColumnGroupStats(int[] fields, Field[][] rows, HyperLogLog sketch) {
+        this.fields = fields;
+        this.rows = rows;
+        this.sketch = sketch;
+    }
+
+    /** Add the combination of values of an inserted row to the sketch. */
+    void add(Tuple t) {
+        sketch.add(HyperLogLog.hash(values(t, fields)));
+    }
+
+    /** @return the values of some columns of a row */
+    static Field[] values(Tuple t, int[] fields) {
+        Field[] values = new Field[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            values[i] = t.getField(fields[i]);
+        return values;
+    }
+
+    /** @return the indexes of the group's columns in the table */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /** @return the estimated number of distinct combinations of values */
+    public double getDistinct() {
+        return Math.max(sketch.estimate(), 1);
+    }
+
+    /** @return the position of a table column in the group, or -1 */
+    int indexOf(int field) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of predicates
+     * <tt>fields[i] ops[i] constants[i]</tt>, all on columns of the group.
+     *
+     * @param independent the estimate that assumes the predicates are
+     *                    independent, used when no sampled row satisfies
+     *                    them all
+     * @return the estimated fraction of rows that satisfy every predicate
+     */
+    public double estimateSelectivity(int[] fields, Predicate.Op[] ops, Field[] constants, double independent) {
+        if (rows.length == 0)
+            return 0.0;
+        int[] positions = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            positions[i] = indexOf(fields[i]);
+            if (positions[i] < 0)
+                throw new IllegalArgumentException("field " + fields[i] + " is not in the column group");
+        }
+        int matches = 0;
+        for (Field[] row : rows) {
+            boolean all = true;
+            for (int i = 0; i < positions.length && all; i++)
+                all = row[positions[i]].compare(ops[i], constants[i]);
+            if (all)
+                matches++;
+        }
+        if (matches > 0)
+            return (double) matches / rows.length;
+        // rarer than one row of the sample; an equality on every column of
+        // the group matches one combination of values
+        double s = Math.min(independent, 1.0 / rows.length);
+        if (coversGroupWithEqualities(positions, ops))
+            s = Math.min(s, 1.0 / getDistinct());
+        return s;
+    }
+
+    private boolean coversGroupWithEqualities(int[] positions, Predicate.Op[] ops) {
+        boolean[] covered = new boolean[fields.length];
+        for (int i = 0; i < positions.length; i++) {
+            if (ops[i] == Predicate.Op.EQUALS)
+                covered[positions[i]] = true;
+        }
+        for (boolean c : covered) {
+            if (!c)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,437 @@
+package simpledb.optimizer;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.DateField;
+import simpledb.storage.DoubleField;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.LongField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ColumnStats describes the values of one column of a table: its most common
+ * values with their frequencies, an equi-depth histogram of the other values
+ * that records how many distinct values each bucket holds, and the number of
+ * distinct values in the column.
+ * <p>
+ * Histogram buckets are ranges of keys (see {@link #key}): the value itself
+ * for numeric and date columns, and a number made of the first six
+ * characters for strings.  Common values are kept as fields, so that
+ * predicates on them, and joins of skewed columns, are estimated exactly.
+ */
+public class ColumnStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** the most common values kept */
+    public static final int NUM_MCVS = 100;
+    /** how much more frequent than average a value must be to be common */
+    static final double MCV_FACTOR = 1.25;
+
+    private final Type type;
+    private final long rows;
+    private final double distinct;
+
+    private final Field[] mcvs;
+    private final double[] mcvKeys;
+    private final double[] mcvFreqs;
+    /** fraction of the rows that are not common values */
+    private final double restFreq;
+
+    private final double[] lo;
+    private final double[] hi;
+    private final double[] freqs;
+    private final double[] bucketDistinct;
+
+    private ColumnStats(Type type, long rows, double distinct, Field[] mcvs, double[] mcvFreqs,
+                        double[] lo, double[] hi, double[] freqs, double[] bucketDistinct) {
+        this.type = type;
+        this.rows = rows;
+        this.distinct = distinct;
+        this.mcvs = mcvs;
+        this.mcvFreqs = mcvFreqs;
+        this.mcvKeys = new double[mcvs.length];
+        double common = 0;
+        for (int i = 0; i < mcvs.length; i++) {
+            mcvKeys[i] = key(mcvs[i]);
+            common += mcvFreqs[i];
+        }
+        this.restFreq = Math.max(0, 1 - common);
+        this.lo = lo;
+        this.hi = hi;
+        this.freqs = freqs;
+        this.bucketDistinct = bucketDistinct;
+    }
+
+    /**
+     * Build the statistics of a column from a sample of its values.
+     *
+     * @param type the type of the column
+     * @param sample values of the column, in any order; it is sorted
+     * @param size the number of values in sample to use
+     * @param rows the number of rows in the table
+     * @param distinct the estimated number of distinct values in the column
+     *                 (see {@link HyperLogLog})
+     */
+    public static ColumnStats build(Type type, Field[] sample, int size, long rows, double distinct) {
+        if (size == 0 || rows == 0)
+            return new ColumnStats(type, 0, 0, new Field[0], new double[0],
+                    new double[0], new double[0], new double[0], new double[0]);
+        Field[] values = Arrays.copyOf(sample, size);
+        Arrays.sort(values, ColumnStats::compare);
+
+        // runs of equal values
+        List<Field> runValues = new ArrayList<>();
+        List<Integer> runCounts = new ArrayList<>();
+        for (int i = 0; i < size; ) {
+            int j = i + 1;
+            while (j < size && compare(values[i], values[j]) == 0)
+                j++;
+            runValues.add(values[i]);
+            runCounts.add(j - i);
+            i = j;
+        }
+        int runs = runValues.size();
+        distinct = Math.min(rows, Math.max(distinct, runs));
+
+        // the values seen often enough to be common, most common first
+        double threshold = Math.max(1, MCV_FACTOR * size / distinct);
+        Integer[] order = new Integer[runs];
+        for (int i = 0; i < runs; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(runCounts.get(b), runCounts.get(a)));
+        boolean[] common = new boolean[runs];
+        List<Field> mcvs = new ArrayList<>();
+        List<Double> mcvFreqs = new ArrayList<>();
+        for (int i = 0; i < runs && mcvs.size() < NUM_MCVS && runCounts.get(order[i]) > threshold; i++) {
+            common[order[i]] = true;
+            mcvs.add(runValues.get(order[i]));
+            mcvFreqs.add((double) runCounts.get(order[i]) / size);
+        }
+
+        // equi-depth buckets over the other values, never splitting a value
+        int rest = 0;
+        for (int i = 0; i < runs; i++) {
+            if (!common[i])
+                rest += runCounts.get(i);
+        }
+        double depth = (double) rest / TableStats.NUM_HIST_BINS;
+        double restDistinct = Math.max(1, distinct - mcvs.size());
+        double scale = restDistinct / Math.max(1, runs - mcvs.size());
+        List<double[]> buckets = new ArrayList<>();
+        double[] bucket = null;
+        for (int i = 0; i < runs; i++) {
+            if (common[i])
+                continue;
+            double k = key(runValues.get(i));
+            if (bucket == null) {
+                // lo, hi, rows, distinct values
+                bucket = new double[] { k, k, 0, 0 };
+                buckets.add(bucket);
+            }
+            bucket[1] = k;
+            bucket[2] += runCounts.get(i);
+            bucket[3] += 1;
+            if (bucket[2] >= depth)
+                bucket = null;
+        }
+        int n = buckets.size();
+        double[] lo = new double[n], hi = new double[n], freqs = new double[n], bucketDistinct = new double[n];
+        for (int i = 0; i < n; i++) {
+            double[] b = buckets.get(i);
+            lo[i] = b[0];
+            hi[i] = b[1];
+            freqs[i] = b[2] / size;
+            bucketDistinct[i] = Math.max(1, b[3] * scale);
+        }
+
+        double[] f = new double[mcvFreqs.size()];
+        for (int i = 0; i < f.length; i++)
+            f[i] = mcvFreqs.get(i);
+        return new ColumnStats(type, rows, distinct, mcvs.toArray(new Field[0]), f,
+                lo, hi, freqs, bucketDistinct);
+    }
+
+    /**
+     * @return these statistics for a table that has grown or shrunk to rows
+     *         rows with the given number of distinct values, assuming the
+     *         values keep their distribution
+     */
+    ColumnStats withCounts(long rows, double distinct) {
+        return new ColumnStats(type, rows, Math.min(rows, Math.max(distinct, mcvs.length)), mcvs, mcvFreqs,
+                lo, hi, freqs, bucketDistinct);
+    }
+
+    /** Order fields of one type by value. */
+    static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.LESS_THAN, b))
+            return -1;
+        return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : 0;
+    }
+
+    /**
+     * @return the histogram key of a field: its value for numeric and date
+     *         fields, and for strings a number ordered like their first six
+     *         characters
+     */
+    public static double key(Field f) {
+        if (f instanceof IntField)
+            return ((IntField) f).getValue();
+        if (f instanceof LongField)
+            return ((LongField) f).getValue();
+        if (f instanceof DoubleField)
+            return ((DoubleField) f).getValue();
+        if (f instanceof DateField)
+            return ((DateField) f).getValue();
+        if (f instanceof StringField) {
+            String s = ((StringField) f).getValue();
+            double k = 0;
+            for (int i = 0; i < 6; i++)
+                k = k * 256 + (i < s.length() ? Math.min(s.charAt(i), 255) : 0);
+            return k;
+        }
+        throw new IllegalArgumentException("cannot histogram fields of type " + f.getType());
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the number of rows in the table */
+    public long getRows() {
+        return rows;
+    }
+
+    /** @return the estimated number of distinct values in the column */
+    public double getDistinct() {
+        return distinct;
+    }
+
+    /** @return the number of most common values kept */
+    public int numCommonValues() {
+        return mcvs.length;
+    }
+
+    /** @return the number of histogram buckets */
+    public int numBuckets() {
+        return freqs.length;
+    }
+
+    /** @return the fraction of values in the buckets below key k */
+    private double bucketsBelow(double k) {
+        double f = 0;
+        for (int i = 0; i < freqs.length && lo[i] < k; i++) {
+            if (hi[i] < k)
+                f += freqs[i];
+            else
+                f += freqs[i] * (k - lo[i]) / (hi[i] - lo[i] + 1);
+        }
+        return f;
+    }
+
+    /** @return the fraction of values in the buckets equal to key k */
+    private double bucketsEqual(double k) {
+        int i = Arrays.binarySearch(hi, k);
+        if (i < 0)
+            i = -i - 1;
+        if (i == freqs.length || lo[i] > k)
+            return 0;
+        return freqs[i] / bucketDistinct[i];
+    }
+
+    /** @return the fraction of values less than key k */
+    private double lessKey(double k) {
+        double f = bucketsBelow(k);
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvKeys[i] < k)
+                f += mcvFreqs[i];
+        }
+        return f;
+    }
+
+    /** @return the fraction of values with key k */
+    private double equalKey(double k) {
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvKeys[i] == k)
+                return mcvFreqs[i];
+        }
+        return bucketsEqual(k);
+    }
+
+    /** @return the fraction of values less than v */
+    private double less(Field v) {
+        double f = bucketsBelow(key(v));
+        for (Field mcv : mcvs) {
+            if (mcv.compare(Predicate.Op.LESS_THAN, v))
+                f += mcvFreqs[indexOf(mcv)];
+        }
+        return f;
+    }
+
+    /** @return the fraction of values equal to v */
+    private double equal(Field v) {
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i].equals(v))
+                return mcvFreqs[i];
+        }
+        return bucketsEqual(key(v));
+    }
+
+    private int indexOf(Field mcv) {
+        for (int i = 0; i < mcvs.length; i++) {
+            if (mcvs[i] == mcv)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Estimate the selectivity of predicate <tt>column op v</tt>.
+     *
+     * @return the estimated fraction of rows that satisfy the predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, Field v) {
+        if (rows == 0)
+            return 0.0;
+        double s;
+        switch (op) {
+            case EQUALS:
+                s = equal(v);
+                break;
+            case NOT_EQUALS:
+                s = 1 - equal(v);
+                break;
+            case LESS_THAN:
+                s = less(v);
+                break;
+            case LESS_THAN_OR_EQ:
+                s = less(v) + equal(v);
+                break;
+            case GREATER_THAN:
+                s = 1 - less(v) - equal(v);
+                break;
+            case GREATER_THAN_OR_EQ:
+                s = 1 - less(v);
+                break;
+            case LIKE:
+                if (type != Type.STRING_TYPE) {
+                    s = equal(v);
+                    break;
+                }
+                // common values are matched; any other value is assumed to
+                // match as often as an equality would
+                s = restFreq / Math.max(1, distinct - mcvs.length);
+                for (int i = 0; i < mcvs.length; i++) {
+                    if (mcvs[i].compare(Predicate.Op.LIKE, v))
+                        s += mcvFreqs[i];
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Op is illegal");
+        }
+        return Math.max(0.0, Math.min(1.0, s));
+    }
+
+    /**
+     * @return the expected selectivity of <tt>column op v</tt> for a v taken
+     *         from the column itself
+     */
+    public double avgSelectivity(Predicate.Op op) {
+        if (rows == 0)
+            return 0.0;
+        double eq = restFreq * restFreq / Math.max(1, distinct - mcvs.length);
+        for (double f : mcvFreqs)
+            eq += f * f;
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return eq;
+            case NOT_EQUALS:
+                return 1 - eq;
+            default:
+                return 0.5;
+        }
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate <tt>a op b</tt>: the
+     * fraction of the pairs of a row of a's table and a row of b's table
+     * that satisfy it.
+     * <p>
+     * For an equality, common values found in both columns are matched
+     * exactly, common values of one column are matched against the
+     * histogram of the other, and the remaining values are assumed to match
+     * the fewer distinct values among them (containment).  Other predicates
+     * compare each common value and bucket of a against b's distribution.
+     */
+    public static double joinSelectivity(ColumnStats a, Predicate.Op op, ColumnStats b) {
+        if (a.rows == 0 || b.rows == 0)
+            return 0.0;
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return equiJoinSelectivity(a, b);
+            case NOT_EQUALS:
+                return 1 - equiJoinSelectivity(a, b);
+            default:
+                break;
+        }
+        // fraction of b that satisfies "point op b" for each point of a
+        double s = 0;
+        for (int i = 0; i < a.mcvs.length; i++)
+            s += a.mcvFreqs[i] * b.satisfiedBy(op, a.mcvKeys[i]);
+        for (int i = 0; i < a.freqs.length; i++)
+            s += a.freqs[i] * b.satisfiedBy(op, (a.lo[i] + a.hi[i]) / 2);
+        return Math.max(0.0, Math.min(1.0, s));
+    }
+
+    /** @return the fraction of this column's values x with <tt>k op x</tt> */
+    private double satisfiedBy(Predicate.Op op, double k) {
+        switch (op) {
+            case LESS_THAN:
+                return 1 - lessKey(k) - equalKey(k);
+            case LESS_THAN_OR_EQ:
+                return 1 - lessKey(k);
+            case GREATER_THAN:
+                return lessKey(k);
+            case GREATER_THAN_OR_EQ:
+                return lessKey(k) + equalKey(k);
+            default:
+                throw new UnsupportedOperationException("Op is illegal");
+        }
+    }
+
+    private static double equiJoinSelectivity(ColumnStats a, ColumnStats b) {
+        double s = 0;
+        boolean[] matched = new boolean[b.mcvs.length];
+        for (int i = 0; i < a.mcvs.length; i++) {
+            int j = Arrays.asList(b.mcvs).indexOf(a.mcvs[i]);
+            if (j >= 0) {
+                matched[j] = true;
+                s += a.mcvFreqs[i] * b.mcvFreqs[j];
+            } else {
+                s += a.mcvFreqs[i] * b.bucketsEqual(a.mcvKeys[i]);
+            }
+        }
+        for (int j = 0; j < b.mcvs.length; j++) {
+            if (!matched[j])
+                s += b.mcvFreqs[j] * a.bucketsEqual(b.mcvKeys[j]);
+        }
+        double aRest = Math.max(1, a.distinct - a.mcvs.length);
+        double bRest = Math.max(1, b.distinct - b.mcvs.length);
+        s += a.restFreq * b.restFreq / Math.max(aRest, bRest);
+        return Math.max(0.0, Math.min(1.0, s));
+    }
+
+    public String toString() {
+        return "ColumnStats{rows = " + rows + ", distinct = " + Math.round(distinct)
+                + ", common values = " + Arrays.toString(mcvs)
+                + ", buckets = " + freqs.length + "}";
+    }
+}
@@ -0,0 +1,219 @@
+package simpledb.optimizer;
+
+import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * CostModel holds the constants that the planner's cost formulas are in
+ * terms of.  Costs are in units of the CPU cost of processing one tuple
+ * (applying a predicate to it), so a cost model is the cost of reading a
+ * page from disk sequentially and at random, in tuples.
+ * <p>
+ * {@link #calibrate} measures both on the host, by timing reads of a
+ * scratch file and predicate applications, and {@link #main} saves the
+ * result to {@link #FILE}, which is loaded, if it exists in the working
+ * directory, the first time the planner needs a cost.  Without it the
+ * defaults are used.
+ */
+public class CostModel {
+
+    /** The cost of reading a page sequentially, when not calibrated. */
+    public static final double DEFAULT_SEQ_PAGE_COST = 1000;
+    /** The cost of reading a page at random, when not calibrated. */
+    public static final double DEFAULT_RANDOM_PAGE_COST = 4000;
+    /** The file calibrated constants are saved to and loaded from. */
+    public static final String FILE = "costmodel.properties";
+
+    /** Pages of the scratch file read by {@link #main}. */
+    static final int CALIBRATION_PAGES = 4096;
+    /** Tuples a predicate is applied to when timing the CPU cost. */
+    static final int CALIBRATION_TUPLES = 1 << 20;
+
+    private static volatile CostModel current;
+
+    private final double seqPageCost;
+    private final double randomPageCost;
+
+    public CostModel(double seqPageCost, double randomPageCost) {
+        this.seqPageCost = seqPageCost;
+        this.randomPageCost = randomPageCost;
+    }
+
+    /** @return the cost model the planner uses */
+    public static CostModel get() {
+        CostModel m = current;
+        if (m == null) {
+            synchronized (CostModel.class) {
+                if (current == null) {
+                    File f = new File(FILE);
+                    CostModel loaded = null;
+                    if (f.exists()) {
+                        try {
+                            loaded = load(f);
+                        } catch (IOException | NumberFormatException e) {
+                            Debug.log("CostModel: could not read %s: %s", f, e);
+                        }
+                    }
+                    current = loaded != null ? loaded : new CostModel(DEFAULT_SEQ_PAGE_COST, DEFAULT_RANDOM_PAGE_COST);
+                }
+                m = current;
+            }
+        }
+        return m;
+    }
+
+    /** Set the cost model the planner uses. */
+    public static void set(CostModel m) {
+        current = m;
+    }
+
+    /** @return the cost of reading a page sequentially */
+    public double seqPageCost() {
+        return seqPageCost;
+    }
+
+    /**
+     * @return the cost of reading a page at random, e.g. a page of one file
+     *         read between pages of another
+     */
+    public double randomPageCost() {
+        return randomPageCost;
+    }
+
+    /**
+     * @return the cost of processing a tuple, the unit of every cost: 1
+     */
+    public double tupleCost() {
+        return 1.0;
+    }
+
+    /**
+     * @return the cost of reading a table of some pages and tuples once
+     *         more, given that it has been read before: just its tuples if
+     *         it fits in the buffer pool, which keeps its pages, and its
+     *         pages at random if not, as they are read between the pages of
+     *         the other table of a join
+     */
+    public double rescanCost(int pages, int tuples) {
+        if (pages <= BufferPool.numPages)
+            return tuples * tupleCost();
+        return pages * randomPageCost + tuples * tupleCost();
+    }
+
+    public static CostModel load(File f) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(f)) {
+            p.load(in);
+        }
+        return new CostModel(Double.parseDouble(p.getProperty("seqPageCost")),
+                Double.parseDouble(p.getProperty("randomPageCost")));
+    }
+
+    public void save(File f) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("seqPageCost", Double.toString(seqPageCost));
+        p.setProperty("randomPageCost", Double.toString(randomPageCost));
+        try (OutputStream out = new FileOutputStream(f)) {
+            p.store(out, "simpledb cost model, in units of the CPU cost of a tuple");
+        }
+    }
+
+    /**
+     * Measure the costs of reading pages on this host.  Reads of a scratch
+     * file in dir of the given number of pages are timed in order and in a
+     * random order; pages the operating system caches are read as fast as
+     * it serves them, so the file should be larger than its cache for the
+     * costs of a cold disk.
+     */
+    public static CostModel calibrate(File dir, int pages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        File scratch = File.createTempFile("costmodel", ".dat", dir);
+        scratch.deleteOnExit();
+        try {
+            byte[] page = new byte[pageSize];
+            Random random = new Random(0);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(scratch))) {
+                for (int i = 0; i < pages; i++) {
+                    random.nextBytes(page);
+                    out.write(page);
+                }
+            }
+            List<Integer> order = new ArrayList<>(pages);
+            for (int i = 0; i < pages; i++)
+                order.add(i);
+            double seq = nanosPerRead(scratch, order, page);
+            Collections.shuffle(order, random);
+            double rand = nanosPerRead(scratch, order, page);
+            double tuple = nanosPerTuple();
+            return new CostModel(seq / tuple, rand / tuple);
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    /** @return the time to read each page of f in the given order, in ns */
+    private static double nanosPerRead(File f, List<Integer> order, byte[] page) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long start = System.nanoTime();
+            for (int p : order) {
+                raf.seek((long) p * page.length);
+                raf.readFully(page);
+            }
+            return (double) (System.nanoTime() - start) / order.size();
+        }
+    }
+
+    /** @return the time to apply a predicate to a tuple, in ns */
+    private static double nanosPerTuple() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE });
+        Tuple[] tuples = new Tuple[CALIBRATION_TUPLES];
+        Random random = new Random(0);
+        for (int i = 0; i < tuples.length; i++) {
+            tuples[i] = new Tuple(td);
+            tuples[i].setField(0, new IntField(random.nextInt()));
+        }
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0));
+        // the fastest of a few runs, once the loop is compiled
+        long best = Long.MAX_VALUE;
+        int matches = 0;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (Tuple t : tuples) {
+                if (p.filter(t))
+                    matches++;
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        Debug.log("CostModel: %d matches", matches);
+        return Math.max(best, 1) / (double) tuples.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("seqPageCost=%.1f randomPageCost=%.1f", seqPageCost, randomPageCost);
+    }
+
+    /**
+     * Calibrate the cost model on this host and save it to {@link #FILE}, or
+     * to the file given as the first argument.
+     */
+    public static void main(String[] args) throws IOException {
+        File f = new File(args.length > 0 ? args[0] : FILE);
+        File dir = f.getAbsoluteFile().getParentFile();
+        CostModel m = calibrate(dir, CALIBRATION_PAGES);
+        m.save(f);
+        System.out.println("Saved " + m + " to " + f);
+    }
+}
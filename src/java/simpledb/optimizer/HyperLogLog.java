@@ -0,0 +1,125 @@
+package simpledb.optimizer;
+
+import simpledb.storage.DateField;
+import simpledb.storage.DoubleField;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.LongField;
+import simpledb.storage.StringField;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al., "HyperLogLog: the analysis of a
+ * near-optimal cardinality estimation algorithm") that estimates the number
+ * of distinct values added to it in constant space: 2^precision one-byte
+ * registers, with a relative error of about 1.04 / sqrt(2^precision).
+ * Sketches of the same precision can be merged.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** 4096 registers; about 1.6% error */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /** @param precision the number of hash bits that pick a register, 4 to 18 */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 18)
+            throw new IllegalArgumentException("precision " + precision + " is not between 4 and 18");
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /** Add a value, given its 64 bit hash (see {@link #hash}). */
+    public void add(long hash) {
+        int register = (int) (hash >>> (Long.SIZE - precision));
+        // the position of the first 1 bit after the register bits, from 1
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[register])
+            registers[register] = (byte) rank;
+    }
+
+    public void add(Field f) {
+        add(hash(f));
+    }
+
+    /** Add every value added to other, which must have the same precision. */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("cannot merge sketches of precision " + other.precision
+                    + " into one of precision " + precision);
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    /** @return the estimated number of distinct values added */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        // small cardinalities are counted better by the empty registers
+        if (e <= 2.5 * m && zeros > 0)
+            return m * Math.log((double) m / zeros);
+        return e;
+    }
+
+    /** @return a 64 bit hash of a field's value, equal for equal fields */
+    public static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else if (f instanceof LongField) {
+            h = ((LongField) f).getValue();
+        } else if (f instanceof DoubleField) {
+            h = Double.doubleToLongBits(((DoubleField) f).getValue());
+        } else if (f instanceof DateField) {
+            h = ((DateField) f).getValue();
+        } else if (f instanceof StringField) {
+            // FNV-1a
+            String s = ((StringField) f).getValue();
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        } else {
+            h = f.hashCode();
+        }
+        return mix(h);
+    }
+
+    /** @return a 64 bit hash of a combination of values, e.g. a row */
+    public static long hash(Field[] fields) {
+        long h = 0;
+        for (Field f : fields)
+            h = h * 0x9E3779B97F4A7C15L + hash(f);
+        return mix(h);
+    }
+
+    /** MurmurHash3's finalizer, which spreads the bits of small keys. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
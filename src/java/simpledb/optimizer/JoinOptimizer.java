@@ -6,6 +6,7 @@ import simpledb.execution.*;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
+import java.util.function.IntPredicate;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -18,9 +19,24 @@ import javax.swing.tree.*;
  * JoinOptimizer类负责对一系列连接操作进行最优排序，并为给定的逻辑计划选择最佳的连接实现方式。
  */
 public class JoinOptimizer {
+    /** Joins of more tables than this are ordered greedily. */
+    public static final int DEFAULT_DP_TABLE_LIMIT = 20;
+    /** Milliseconds join enumeration may take before joins are ordered greedily. */
+    public static final long DEFAULT_OPTIMIZATION_BUDGET = 1000;
+
+    private static int dpTableLimit = DEFAULT_DP_TABLE_LIMIT;
+    private static long optimizationBudget = DEFAULT_OPTIMIZATION_BUDGET;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
+    /** the table each alias was joined into, for tables already joined */
+    private Map<String, String> joined = Collections.emptyMap();
+    /** the actual cardinality of each table already joined into, by alias */
+    private Map<String, Integer> observed = Collections.emptyMap();
+    /** the estimates the last call to orderJoins chose its order on */
+    private Estimates estimates;
+
     /**
      * Constructor
      * 
@@ -34,6 +50,27 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /** Set the number of tables above which joins are ordered greedily. */
+    public static void setDpTableLimit(int limit) {
+        dpTableLimit = limit;
+    }
+
+    public static int getDpTableLimit() {
+        return dpTableLimit;
+    }
+
+    /**
+     * Set how long, in milliseconds, join enumeration may take before it
+     * gives up and joins are ordered greedily.
+     */
+    public static void setOptimizationBudget(long millis) {
+        optimizationBudget = millis;
+    }
+
+    public static long getOptimizationBudget() {
+        return optimizationBudget;
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -54,6 +91,19 @@ public class JoinOptimizer {
      */
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
+        return instantiateJoin(lj, plan1, plan2, lj.p == Predicate.Op.EQUALS);
+    }
+
+    /**
+     * Return an iterator for a given logical join of two subplans: a hash
+     * join, which hashes plan1, or a nested-loop join, which scans plan2
+     * once for each tuple of plan1.
+     *
+     * @param hash
+     *            whether to use a hash join; only equality joins can
+     */
+    public static OpIterator instantiateJoin(LogicalJoinNode lj, OpIterator plan1, OpIterator plan2,
+                                             boolean hash) throws ParsingException {
 
         int t1id = 0, t2id = 0;
         OpIterator j;
@@ -78,7 +128,7 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (hash && lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -126,17 +176,37 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, cost2);
+    }
+
+    /**
+     * Estimate the cost of a join run as {@link #instantiateJoin} runs it.
+     * An equality is a {@link HashEquiJoin}, which hashes the left-hand
+     * side {@link HashEquiJoin#MAP_SIZE} tuples at a time and reads the
+     * right-hand side once for each batch; any other predicate is a
+     * nested-loop {@link Join}, which reads the right-hand side once for
+     * each tuple of the left.  Every tuple hashed, probed or compared costs
+     * the CPU cost of a tuple (see {@link CostModel}).
+     *
+     * @param rescan2
+     *            Estimated cost of each scan of the right-hand side after
+     *            the first, less than cost2 if the buffer pool keeps its
+     *            pages (see {@link CostModel#rescanCost})
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, double rescan2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
         }
+        double tuple = CostModel.get().tupleCost();
+        if (j.p == Predicate.Op.EQUALS) {
+            int batches = Math.max(1, (card1 + HashEquiJoin.MAP_SIZE - 1) / HashEquiJoin.MAP_SIZE);
+            return cost1 + cost2 + (batches - 1) * rescan2 + tuple * (card1 + (double) batches * card2);
+        }
+        return cost1 + cost2 + Math.max(card1 - 1, 0) * rescan2 + tuple * card1 * (double) card2;
     }
 
     /**
@@ -173,6 +243,13 @@ public class JoinOptimizer {
 
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equality with a primary key on one side yields a row per row of the
+     * other side.  Otherwise the selectivity of the predicate is estimated
+     * from the column statistics of both fields (see
+     * {@link ColumnStats#joinSelectivity}), so that skewed columns, whose
+     * common values match many more rows than their number of distinct
+     * values suggests, are accounted for.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
                                                    String table1Alias, String table2Alias, String field1PureName,
@@ -181,16 +258,21 @@ public class JoinOptimizer {
                                                    Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
-        if(joinOp == Predicate.Op.EQUALS){
+        ColumnStats c1 = columnStats(table1Alias, field1PureName, stats, tableAliasToId);
+        ColumnStats c2 = columnStats(table2Alias, field2PureName, stats, tableAliasToId);
+        if(joinOp == Predicate.Op.EQUALS && (t1pkey || t2pkey)){
             if(t1pkey && !t2pkey){
                 card = card2;
             }else if(!t1pkey && t2pkey){
                 card = card1;
-            }else if(t1pkey && t2pkey){
-                card = Math.min(card1, card2);
             }else{
-                card = Math.max(card1, card2);
+                card = Math.min(card1, card2);
             }
+        }else if(c1 != null && c2 != null && c1.getType() == c2.getType()){
+            double sel = ColumnStats.joinSelectivity(c1, joinOp, c2);
+            card = (int) Math.min(Integer.MAX_VALUE, sel * card1 * card2);
+        }else if(joinOp == Predicate.Op.EQUALS){
+            card = Math.max(card1, card2);
         }else{
             card = (int)(0.3 * card1 * card2);
         }
@@ -198,55 +280,147 @@ public class JoinOptimizer {
     }
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     * 
-     * @param v
-     *            The vector whose subsets are desired
-     * @param size
-     *            The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * @return the statistics of column field of the table with the given
+     *         alias, or null if there are none
      */
-    public <T> Set<Set<T>> enumerateSubsets(List<T> v, int size) {
-        Set<Set<T>> els = new HashSet<>();
-//        els.add(new HashSet<>());
-//        // Iterator<Set> it;
-//        // long start = System.currentTimeMillis();
-//
-//        for (int i = 0; i < size; i++) {
-//            Set<Set<T>> newels = new HashSet<>();
-//            for (Set<T> s : els) {
-//                for (T t : v) {
-//                    Set<T> news = new HashSet<>(s);
-//                    if (news.add(t))
-//                        newels.add(news);
-//                }
-//            }
-//            els = newels;
-//        }
-        dfs(els, v, size, 0, new LinkedList<>());
-
-        return els;
-
+    private static ColumnStats columnStats(String alias, String field, Map<String, TableStats> stats,
+                                           Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId.get(alias);
+        if (id == null || field == null)
+            return null;
+        try {
+            TableStats s = stats.get(Database.getCatalog().getTableName(id));
+            if (s == null)
+                return null;
+            return s.getColumnStats(Database.getCatalog().getTupleDesc(id).fieldNameToIndex(field));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
     }
 
-    private<T> void dfs(Set<Set<T>> els, List<T> v, int size, int curIdx, Deque<T> path){
-        if(path.size() == size){
-            els.add(new HashSet<>(path));
-            return;
+    /**
+     * The join graph of a query: a vertex for each table joined, numbered in
+     * the order the joins first mention them, and one for the subquery of
+     * each subquery join, with an edge for each join.  Tables that have
+     * already been joined together share the vertex of the alias they were
+     * joined into.  Sets of vertices are bitmasks, so the sets of a graph
+     * of more than 64 vertices are only ever built by {@link #orderGreedily},
+     * which keeps its own.
+     */
+    private final class JoinGraph {
+        /** the alias of each vertex (the alias joined into, for tables
+         *  already joined); null for a subquery */
+        final List<String> aliases = new ArrayList<>();
+        /** the joins with an end at each vertex */
+        final List<List<LogicalJoinNode>> incident = new ArrayList<>();
+        final Map<String, Integer> vertices = new HashMap<>();
+        /** the vertex of each subquery, by identity */
+        final Map<OpIterator, Integer> subplans = new IdentityHashMap<>();
+        /** the neighbors of each vertex, if there are at most 64 */
+        long[] neighbors;
+
+        JoinGraph() throws ParsingException {
+            for (LogicalJoinNode j : joins) {
+                int v1 = vertex(j.t1Alias);
+                int v2;
+                if (j instanceof LogicalSubplanJoinNode) {
+                    v2 = addVertex(null);
+                    subplans.put(((LogicalSubplanJoinNode) j).subPlan, v2);
+                } else {
+                    v2 = vertex(j.t2Alias);
+                }
+                incident.get(v1).add(j);
+                if (v2 != v1)
+                    incident.get(v2).add(j);
+            }
+            if (size() > Long.SIZE)
+                return;
+            neighbors = new long[size()];
+            for (LogicalJoinNode j : joins) {
+                long e = ends(j);
+                for (long vs = e; vs != 0; vs &= vs - 1) {
+                    int v = Long.numberOfTrailingZeros(vs);
+                    neighbors[v] |= e & ~(1L << v);
+                }
+            }
+        }
+
+        /** @return the vertices a join (or its swapped version) joins */
+        long ends(LogicalJoinNode j) {
+            return (1L << vertices.get(j.t1Alias)) | (1L << vertex2(j));
+        }
+
+        /** @return the vertex of the second table (or subquery) of a join */
+        int vertex2(LogicalJoinNode j) {
+            if (j instanceof LogicalSubplanJoinNode)
+                return subplans.get(((LogicalSubplanJoinNode) j).subPlan);
+            return vertices.get(j.t2Alias);
+        }
+
+        private int vertex(String alias) throws ParsingException {
+            if (p.getTableId(alias) == null)
+                throw new ParsingException("Unknown table " + alias);
+            Integer v = vertices.get(alias);
+            if (v == null) {
+                String into = joined.getOrDefault(alias, alias);
+                v = vertices.get(into);
+                if (v == null) {
+                    v = addVertex(into);
+                    vertices.put(into, v);
+                }
+                vertices.put(alias, v);
+            }
+            return v;
         }
-        if(curIdx == size){
-            return;
+
+        private int addVertex(String alias) {
+            aliases.add(alias);
+            incident.add(new ArrayList<>());
+            return aliases.size() - 1;
+        }
+
+        int size() {
+            return aliases.size();
+        }
+
+        /** @return the set of all vertices */
+        long all() {
+            return size() == Long.SIZE ? -1L : (1L << size()) - 1;
+        }
+
+        /** @return the vertices outside s adjacent to a vertex of s */
+        long neighbors(long s) {
+            long n = 0;
+            for (long vs = s; vs != 0; vs &= vs - 1)
+                n |= neighbors[Long.numberOfTrailingZeros(vs)];
+            return n & ~s;
+        }
+
+        /** @return the tables joined by a list of joins */
+        long tables(List<LogicalJoinNode> js) {
+            long s = 0;
+            for (LogicalJoinNode j : js)
+                s |= ends(j);
+            return s;
         }
-        path.addFirst(v.get(curIdx));
-        dfs(els, v, size, curIdx + 1, path);
-        path.removeFirst();
-        dfs(els, v, size, curIdx + 1, path);
     }
 
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * PS4 for hints on how this should be implemented.
+     * <p>
+     * Plans are built bottom up over the connected subgraphs of the join
+     * graph with DPccp (Moerkotte and Neumann, "Analysis of Two Existing and
+     * One New Dynamic Programming Algorithm for the Generation of Optimal
+     * Bushy Join Trees without Cross Products"): each pair of a connected set
+     * of tables and a connected set adjacent to it is enumerated exactly
+     * once, after the plans of both sets are known, and sets that could only
+     * be joined with a cross product are never considered.  Plans may be
+     * bushy: both sides of a join can be joins themselves.
+     * <p>
+     * Joins of more than {@link #getDpTableLimit} tables (or 64), or whose
+     * enumeration takes longer than {@link #getOptimizationBudget}, are
+     * ordered greedily instead (see {@link #orderGreedily}).
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -258,8 +432,10 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A List<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A List<LogicalJoinNode> that stores joins in an order in which
+     *         they can be executed: each join comes after the joins of the
+     *         tables on either side of it, so the joins of the two subtrees
+     *         of a bushy plan come before the join that combines them.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -268,44 +444,350 @@ public class JoinOptimizer {
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
+        return orderJoins(stats, filterSelectivities, Collections.emptyMap(), Collections.emptyMap(), explain);
+    }
+
+    /**
+     * Order the joins that remain of a query some of whose joins have
+     * already been run (see {@link AdaptiveJoin}).  The tables those joins
+     * joined are treated as one table, whose cardinality is the number of
+     * rows their joins actually produced.
+     *
+     * @param joined
+     *            the alias of the table that each table already joined was
+     *            joined into, as in {@link LogicalPlan#physicalPlan}
+     * @param observed
+     *            the actual cardinality of each table joined into, by alias
+     * @see #orderJoins(Map, Map, boolean)
+     */
+    public List<LogicalJoinNode> orderJoins(
+            Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities,
+            Map<String, String> joined, Map<String, Integer> observed,
+            boolean explain) throws ParsingException {
 
         // some code goes here
-        //Replace the following
-        CostCard bestCostCard = new CostCard();
+        this.joined = new HashMap<>(joined);
+        this.observed = new HashMap<>(observed);
+        if (joins.isEmpty())
+            return joins;
+        JoinGraph g = new JoinGraph();
+        PlanCache planCache = null;
+        boolean greedy = g.size() > Math.min(dpTableLimit, Long.SIZE);
+        if (!greedy) {
+            planCache = basePlans(g, stats, filterSelectivities);
+            Enumeration e = new Enumeration(g, stats, filterSelectivities, planCache);
+            e.run();
+            greedy = e.exhausted;
+        }
+
+        // a query whose join graph is not connected gets a plan for each
+        // component, and LogicalPlan reports the missing join
+        List<LogicalJoinNode> plan = new ArrayList<>();
+        if (greedy) {
+            planCache = g.size() <= Long.SIZE ? basePlans(g, stats, filterSelectivities) : null;
+            for (Subplan component : orderGreedily(g, stats, filterSelectivities, planCache))
+                plan.addAll(component.order);
+        } else {
+            for (long left = g.all(); left != 0; ) {
+                long component = left & -left;
+                for (long n = g.neighbors(component); n != 0; n = g.neighbors(component))
+                    component |= n;
+                plan.addAll(planCache.getOrder(component));
+                left &= ~component;
+            }
+        }
+        estimates = planCache == null ? null : new Estimates(g, joined, plan, planCache);
+        if (explain) {
+            System.out.println("Joins of " + g.size() + " tables ordered "
+                    + (greedy ? "greedily" : "by dynamic programming"));
+            if (planCache != null)
+                printJoins(plan, planCache, g, stats, filterSelectivities);
+            else
+                System.out.println(plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the estimated cardinality of the join of the tables with the
+     *         given aliases in the plan the last call to orderJoins chose,
+     *         or -1 if no join of that plan joins just those tables (or it
+     *         joined more than 64)
+     */
+    public int estimatedCardinality(Collection<String> aliases) {
+        return estimates == null ? -1 : estimates.cardinality(aliases);
+    }
+
+    /** @return the estimates the last call to orderJoins chose its order on */
+    Estimates getEstimates() {
+        return estimates;
+    }
+
+    /**
+     * Estimate as an order chosen earlier was, for joins that are run in
+     * that order without being ordered again (see {@link LogicalPlan#bind}).
+     */
+    void setEstimates(Estimates estimates) {
+        this.estimates = estimates;
+    }
+
+    /**
+     * The estimated cardinality of the result of each join of a join order,
+     * by the set of tables it joins.  It holds no plans or operators, so a
+     * cached plan can keep the estimates its order was chosen on.
+     */
+    static final class Estimates {
+        /** the vertex of each alias, including tables already joined */
+        private final Map<String, Integer> vertices;
+        private final Map<Long, Integer> cards = new HashMap<>();
+
+        Estimates(JoinGraph g, Map<String, String> joined, List<LogicalJoinNode> order, PlanCache pc) {
+            vertices = new HashMap<>(g.vertices);
+            for (Map.Entry<String, String> e : joined.entrySet()) {
+                Integer v = g.vertices.get(e.getValue());
+                if (v != null)
+                    vertices.putIfAbsent(e.getKey(), v);
+            }
+            // the tables of the subtree each vertex is in so far
+            long[] trees = new long[g.size()];
+            for (int v = 0; v < trees.length; v++)
+                trees[v] = 1L << v;
+            for (LogicalJoinNode j : order) {
+                long e = g.ends(j);
+                long s = trees[Long.numberOfTrailingZeros(e)] | trees[63 - Long.numberOfLeadingZeros(e)];
+                for (long vs = s; vs != 0; vs &= vs - 1)
+                    trees[Long.numberOfTrailingZeros(vs)] = s;
+                if (pc.getOrder(s) != null)
+                    cards.put(s, pc.getCard(s));
+            }
+        }
+
+        int cardinality(Collection<String> aliases) {
+            long s = 0;
+            for (String alias : aliases) {
+                Integer v = vertices.get(alias);
+                if (v == null)
+                    return -1;
+                s |= 1L << v;
+            }
+            return cards.getOrDefault(s, -1);
+        }
+    }
+
+    // ===================== Private Methods =================================
+
+    /**
+     * A plan for a set of tables of a join graph: one side of a join being
+     * costed, or a plan built by {@link #orderGreedily}.
+     */
+    private static final class Subplan {
+        /** the set of tables, if the graph has at most 64 */
+        final long tables;
+        /** the number of tables, and the lowest numbered one */
+        final int size, first;
+        final double cost;
+        final int card;
+        final List<LogicalJoinNode> order;
+
+        Subplan(long tables, int size, int first, double cost, int card,
+                List<LogicalJoinNode> order) {
+            this.tables = tables;
+            this.size = size;
+            this.first = first;
+            this.cost = cost;
+            this.card = card;
+            this.order = order;
+        }
+    }
+
+    /** @return the plan of the set s from a PlanCache */
+    private static Subplan subplan(long s, PlanCache pc) {
+        return new Subplan(s, Long.bitCount(s), Long.numberOfTrailingZeros(s),
+                pc.getCost(s), pc.getCard(s), pc.getOrder(s));
+    }
+
+    /** @return the plan of the single table (or subquery) at vertex v */
+    private Subplan basePlan(JoinGraph g, int v, Map<String, TableStats> stats,
+                             Map<String, Double> filterSelectivities) {
+        long tables = v < Long.SIZE ? 1L << v : 0;
+        String alias = g.aliases.get(v);
+        if (alias == null)
+            return new Subplan(tables, 1, v, 0, 0, Collections.emptyList());
+        if (observed.containsKey(alias)) {
+            // joined already, and held in memory: a scan costs a predicate
+            // application per row
+            int card = observed.get(alias);
+            return new Subplan(tables, 1, v, card, card, Collections.emptyList());
+        }
+        TableStats s = stats.get(Database.getCatalog().getTableName(p.getTableId(alias)));
+        return new Subplan(tables, 1, v, s.estimateScanCost(),
+                s.estimateTableCardinality(filterSelectivities.get(alias)),
+                Collections.emptyList());
+    }
+
+    /** @return a PlanCache holding the plan of each single table of g */
+    private PlanCache basePlans(JoinGraph g, Map<String, TableStats> stats,
+                                Map<String, Double> filterSelectivities) {
         PlanCache planCache = new PlanCache();
-        for(int i = 1; i <= joins.size(); i++){
-            Set<Set<LogicalJoinNode>> subsets = enumerateSubsets(joins, i);
-            for(Set<LogicalJoinNode> set : subsets){
-                double bestCostSoFar = Double.MAX_VALUE;
-                bestCostCard = new CostCard();
-                for(LogicalJoinNode logicalJoinNode : set){
-                    CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities, logicalJoinNode, set, bestCostSoFar, planCache);
-                    if(costCard == null) continue;
-                    bestCostSoFar = costCard.cost;
-                    bestCostCard = costCard;
+        for (int v = 0; v < g.size(); v++) {
+            Subplan s = basePlan(g, v, stats, filterSelectivities);
+            planCache.addPlan(s.tables, s.cost, s.card, s.order);
+        }
+        return planCache;
+    }
+
+    /**
+     * Order joins with greedy operator ordering (Fegaras, "A New Heuristic
+     * for Optimizing Large Queries"): starting from a plan per table, join
+     * the two connected plans whose join yields the fewest tuples (the
+     * cheapest of those), until no two plans are connected.  Takes time
+     * polynomial in the number of tables, and builds bushy plans.  Plans
+     * are tracked by the index of their lowest table rather than as
+     * bitmasks, so any number of tables can be ordered.
+     *
+     * @param pc null, or a PlanCache holding the plan of each single table
+     *           of g, to which the plan of each join is added
+     * @return the plan of each connected component of g, by lowest table
+     */
+    private List<Subplan> orderGreedily(JoinGraph g, Map<String, TableStats> stats,
+                                        Map<String, Double> filterSelectivities,
+                                        PlanCache pc) throws ParsingException {
+        Subplan[] plans = new Subplan[g.size()];
+        // the index in plans of the plan of each table
+        int[] planOf = new int[g.size()];
+        for (int v = 0; v < g.size(); v++) {
+            plans[v] = basePlan(g, v, stats, filterSelectivities);
+            planOf[v] = v;
+        }
+        while (true) {
+            // the joins between each pair of plans, by the pair
+            Map<Long, List<LogicalJoinNode>> pairs = new LinkedHashMap<>();
+            for (LogicalJoinNode j : joins) {
+                int a = planOf[g.vertices.get(j.t1Alias)], b = planOf[g.vertex2(j)];
+                if (a != b) {
+                    long pair = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+                    pairs.computeIfAbsent(pair, k -> new ArrayList<>()).add(j);
                 }
-                if(bestCostSoFar != Double.MAX_VALUE){
-                    planCache.addPlan(set, bestCostCard.cost, bestCostCard.card, bestCostCard.plan);
+            }
+            CostCard best = null;
+            int bestA = -1, bestB = -1;
+            for (Map.Entry<Long, List<LogicalJoinNode>> e : pairs.entrySet()) {
+                int a = (int) (e.getKey() >>> 32), b = (int) (long) e.getKey();
+                CostCard cc = joinCost(stats, g, plans[a], plans[b], v -> planOf[v] == a,
+                        e.getValue(), Double.MAX_VALUE);
+                if (cc != null && (best == null || cc.card < best.card
+                        || (cc.card == best.card && cc.cost < best.cost))) {
+                    best = cc;
+                    bestA = a;
+                    bestB = b;
                 }
             }
+            if (best == null)
+                break;
+            Subplan s = new Subplan(plans[bestA].tables | plans[bestB].tables,
+                    plans[bestA].size + plans[bestB].size, plans[bestA].first,
+                    best.cost, best.card, best.plan);
+            if (pc != null)
+                pc.addPlan(s.tables, s.cost, s.card, s.order);
+            plans[bestA] = s;
+            plans[bestB] = null;
+            for (int v = 0; v < planOf.length; v++) {
+                if (planOf[v] == bestB)
+                    planOf[v] = bestA;
+            }
         }
-        if(explain){
-            printJoins(bestCostCard.plan, planCache, stats, filterSelectivities);
+        List<Subplan> components = new ArrayList<>();
+        for (Subplan s : plans) {
+            if (s != null)
+                components.add(s);
         }
+        return components;
+    }
 
-        if(bestCostCard.plan != null){
-            return bestCostCard.plan;
+    /**
+     * One run of DPccp over a join graph, filling in a PlanCache, that gives
+     * up once it has taken longer than the optimization budget.
+     */
+    private final class Enumeration {
+        final JoinGraph g;
+        final Map<String, TableStats> stats;
+        final Map<String, Double> filterSelectivities;
+        final PlanCache pc;
+        final long deadline = System.nanoTime() + optimizationBudget * 1000000;
+        /** set once the budget has run out; the plans found are incomplete */
+        boolean exhausted;
+        private int pairs;
+
+        Enumeration(JoinGraph g, Map<String, TableStats> stats,
+                    Map<String, Double> filterSelectivities, PlanCache pc) {
+            this.g = g;
+            this.stats = stats;
+            this.filterSelectivities = filterSelectivities;
+            this.pc = pc;
         }
-        return joins;
-    }
 
-    // ===================== Private Methods =================================
+        /** Enumerate every connected set, and every pair it is part of. */
+        void run() throws ParsingException {
+            for (int i = g.size() - 1; i >= 0 && !exhausted; i--) {
+                long v = 1L << i;
+                emit(v, 0);
+                enumerate(v, v | (v - 1), 0);
+            }
+        }
+
+        /**
+         * Extend the connected set s by every nonempty subset of its
+         * neighbors outside x, and those sets recursively, smaller sets
+         * first (EnumerateCsgRec).
+         *
+         * @param s1 0 to enumerate connected sets, or the set the ones
+         *           enumerated are complements of
+         */
+        void enumerate(long s, long x, long s1) throws ParsingException {
+            long n = g.neighbors(s) & ~x;
+            if (n == 0)
+                return;
+            for (long sub = -n & n; sub != 0 && !exhausted; sub = (sub - n) & n)
+                emit(s | sub, s1);
+            for (long sub = -n & n; sub != 0 && !exhausted; sub = (sub - n) & n)
+                enumerate(s | sub, x | n, s1);
+        }
+
+        /**
+         * Handle a connected set s: if s1 is 0, enumerate the connected sets
+         * adjacent to s that contain no vertex numbered below s's lowest one
+         * (EnumerateCmp), and otherwise join s1 with s.
+         */
+        void emit(long s, long s1) throws ParsingException {
+            if (s1 != 0) {
+                if ((pairs++ & 1023) == 0 && System.nanoTime() > deadline)
+                    exhausted = true;
+                CostCard cc = computeCostAndCardOfSubplan(stats, filterSelectivities,
+                        g, s1, s, pc.getCost(s1 | s), pc);
+                if (cc != null)
+                    pc.addPlan(s1 | s, cc.cost, cc.card, cc.plan);
+                return;
+            }
+            long low = s & -s;
+            long x = s | low | (low - 1);
+            long n = g.neighbors(s) & ~x;
+            for (long vs = n; vs != 0 && !exhausted; ) {
+                long v = Long.highestOneBit(vs);
+                vs &= ~v;
+                emit(v, s);
+                enumerate(v, x | (n & (v | (v - 1))), s);
+            }
+        }
+    }
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * This is a helper method that computes the cost and cardinality of
+     * joining two disjoint, connected sets of tables with a join between
+     * them, given that the best plans for both sets have already been
+     * computed and stored in PlanCache pc.  Every join between the two sets
+     * is tried as the join predicate, in both orientations; the others go
+     * in the plan after it (see {@link #joinCost}).
      * 
      * @param stats
      *            table stats for all of the tables, referenced by table names
@@ -314,152 +796,126 @@ public class JoinOptimizer {
      *            the selectivities of the filters over each of the tables
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
+     * @param g
+     *            the join graph the sets are subsets of
+     * @param s1
+     *            one set of tables
+     * @param s2
+     *            the other set of tables
      * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
+     *            the cost of the best way found so far to join the union of
+     *            the two sets
      * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
+     *            the PlanCache for this join; should have plans for s1 and s2
      * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *         optimal subplan, or null if the sets cannot be joined more
+     *         cheaply than bestCostSoFar
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when stats or filterSelectivities is missing tables
+     *             involved in join
      */
-    @SuppressWarnings("unchecked")
     private CostCard computeCostAndCardOfSubplan(
             Map<String, TableStats> stats,
             Map<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
+            JoinGraph g, long s1, long s2,
             double bestCostSoFar, PlanCache pc) throws ParsingException {
 
-        LogicalJoinNode j = joinToRemove;
-
-        List<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = new HashSet<>(joinSet);
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new ArrayList<>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias != null && isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
+        List<LogicalJoinNode> plan1 = pc.getOrder(s1), plan2 = pc.getOrder(s2);
+        if (plan1 == null || plan2 == null)
+            return null;
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias != null && isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        // the joins between s1 and s2, found from the smaller side
+        long small = Long.bitCount(s1) <= Long.bitCount(s2) ? s1 : s2;
+        long other = small == s1 ? s2 : s1;
+        List<LogicalJoinNode> between = new ArrayList<>();
+        for (long vs = small; vs != 0; vs &= vs - 1) {
+            for (LogicalJoinNode j : g.incident.get(Long.numberOfTrailingZeros(vs))) {
+                if ((g.ends(j) & other) != 0)
+                    between.add(j);
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        return joinCost(stats, g, subplan(s1, pc), subplan(s2, pc),
+                v -> (s1 & (1L << v)) != 0, between, bestCostSoFar);
+    }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /**
+     * Compute the cost and cardinality of joining two plans of disjoint sets
+     * of tables, as {@link #computeCostAndCardOfSubplan} does: every join in
+     * between is tried as the join predicate, in both orientations, and the
+     * others go in the plan after it, where {@link LogicalPlan} applies them
+     * as filters on the result of the join.
+     *
+     * @param inS1 whether a table (vertex of g) is in the tables of s1
+     * @param between the joins between the tables of s1 and those of s2
+     */
+    private CostCard joinCost(Map<String, TableStats> stats, JoinGraph g,
+                              Subplan s1, Subplan s2, IntPredicate inS1,
+                              List<LogicalJoinNode> between, double bestCostSoFar) {
+        CostCard best = null;
+        for (LogicalJoinNode j : between) {
+            // orient j so that its first table is on the left
+            Subplan left = inS1.test(g.vertices.get(j.t1Alias)) ? s1 : s2;
+            Subplan right = left == s1 ? s2 : s1;
+
+            double t1cost = left.cost, t2cost = right.cost;
+            int t1card = left.card, t2card = right.card;
+            boolean leftPkey = left.size == 1 ? isPkey(j.t1Alias, j.f1PureName) : hasPkey(left.order);
+            boolean rightPkey = right.size == 1
+                    ? j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)
+                    : hasPkey(right.order);
+
+            double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                    rescanCost(g, right, stats));
+            LogicalJoinNode j2 = j.swapInnerOuter();
+            double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost,
+                    rescanCost(g, left, stats));
+            LogicalJoinNode chosen = j;
+            if (cost2 < cost1) {
+                chosen = j2;
+                cost1 = cost2;
+                int card = t1card;
+                t1card = t2card;
+                t2card = card;
+                boolean tmp = rightPkey;
+                rightPkey = leftPkey;
+                leftPkey = tmp;
+            }
+            if (cost1 >= bestCostSoFar)
+                continue;
+
+            CostCard cc = new CostCard();
+            cc.card = estimateJoinCardinality(chosen, t1card, t2card, leftPkey,
+                    rightPkey, stats);
+            cc.cost = cost1;
+            cc.plan = new ArrayList<>(s1.order.size() + s2.order.size() + between.size());
+            cc.plan.addAll(s1.order);
+            cc.plan.addAll(s2.order);
+            cc.plan.add(chosen);
+            for (LogicalJoinNode k : between) {
+                if (k != j)
+                    cc.plan.add(k);
+            }
+            best = cc;
+            bestCostSoFar = cost1;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
-
-        CostCard cc = new CostCard();
-
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = new ArrayList<>(prevBest);
-        cc.plan.add(j); // prevbest is left -- add new join to end
-        return cc;
+        return best;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * @return the cost of producing the tables of plan s again, after they
+     *         have been produced once: a join runs again, while the pages of
+     *         a single table may still be in the buffer pool
      */
-    private boolean doesJoin(List<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private double rescanCost(JoinGraph g, Subplan s, Map<String, TableStats> stats) {
+        if (s.size == 1) {
+            String alias = g.aliases.get(s.first);
+            if (alias != null && observed.containsKey(alias))
+                return observed.get(alias) * CostModel.get().tupleCost();
+            if (alias != null)
+                return stats.get(Database.getCatalog().getTableName(p.getTableId(alias))).estimateRescanCost();
         }
-        return false;
+        return s.cost;
     }
 
     /**
@@ -501,6 +957,8 @@ public class JoinOptimizer {
      *            the join plan to visualize
      * @param pc
      *            the PlanCache accumulated whild building the optimal plan
+     * @param g
+     *            the join graph the PlanCache's sets are subsets of
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -509,7 +967,7 @@ public class JoinOptimizer {
      *            alias is given)
      */
     private void printJoins(List<LogicalJoinNode> js, PlanCache pc,
-            Map<String, TableStats> stats,
+            JoinGraph g, Map<String, TableStats> stats,
             Map<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -528,45 +986,37 @@ public class JoinOptimizer {
 
         // int k;
         DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<>();
-        boolean neither;
+        List<LogicalJoinNode> pathSoFar = new ArrayList<>();
 
         System.out.println(js);
         for (LogicalJoinNode j : js) {
             pathSoFar.add(j);
             System.out.println("PATH SO FAR = " + pathSoFar);
+            long tables = g.tables(pathSoFar);
 
             String table1Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t1Alias));
             String table2Name = Database.getCatalog().getTableName(
                     this.p.getTableId(j.t2Alias));
 
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
+                    + pc.getCost(tables) + ", card = "
+                    + pc.getCard(tables) + ")");
+            DefaultMutableTreeNode n1 = m.get(j.t1Alias);
+            if (n1 == null) { // never seen this table before
+                n1 = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
                         + stats.get(table1Name).estimateScanCost()
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
             }
-            m.put(j.t1Alias, root);
+            root.add(n1);
 
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
+            DefaultMutableTreeNode n2 = m.get(j.t2Alias);
+            if (n2 == null) { // never seen this table before
 
-                n = new DefaultMutableTreeNode(
+                n2 = new DefaultMutableTreeNode(
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
@@ -577,21 +1027,17 @@ public class JoinOptimizer {
                                                 .estimateTableCardinality(
                                                         selectivities
                                                                 .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
             }
-            m.put(j.t2Alias, root);
+            root.add(n2);
 
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
+            // the tables of both subtrees (which in a bushy plan may both
+            // be joins) are now accessed from root
+            for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                if (e.getValue() == n1 || e.getValue() == n2)
+                    e.setValue(root);
             }
+            m.put(j.t1Alias, root);
+            m.put(j.t2Alias, root);
 
             treetop = root;
         }
@@ -17,6 +17,9 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public final String c;
+
+    /** The index of the parameter c is bound to, or -1 if c is part of the query */
+    public final int parameter;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public final String fieldPureName;
@@ -24,9 +27,16 @@ public class LogicalFilterNode {
     public final String fieldQuantifiedName;
     
     public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant) {
+        this(table, field, pred, constant, -1);
+    }
+
+    /** A filter against a parameter of a prepared query, which is bound to
+        constant, or to null until the query is executed */
+    public LogicalFilterNode(String table, String field, Predicate.Op pred, String constant, int parameter) {
         tableAlias = table;
         p = pred;
         c = constant;
+        this.parameter = parameter;
         String[] tmps = field.split("[.]");
         if (tmps.length>1)
             fieldPureName = tmps[tmps.length-1];
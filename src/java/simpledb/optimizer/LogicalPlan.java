@@ -39,6 +39,15 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private int parameters = 0;
+    // joins is in the order the optimizer chose, and plans bound from this
+    // one reuse that order instead of ordering the joins again
+    private boolean joinsOrdered = false, reuseJoinOrder = false;
+    // the estimates the order was chosen on, which AdaptiveJoin checks the
+    // joins of a reused order against
+    private JoinOptimizer.Estimates joinEstimates;
+    // false if the WHERE clause compares two constants in a way that is false
+    private boolean constantsHold = true;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -108,6 +117,72 @@ public class LogicalPlan {
         filters.add(lf);
     }
 
+    /** Add a filter that compares two constants, folded to its result: a
+     *   filter that holds is dropped, and one that does not leaves the plan
+     *   with no tuples.
+     *   @param holds whether the comparison holds
+     */
+    public void addConstantFilter(boolean holds) {
+        constantsHold &= holds;
+    }
+
+    /** Add a filter against the next parameter of the query, whose value is
+     *   supplied when the plan is bound (see {@link #bind}).
+     *   @param field The name of the over which the filter applies, as in
+     *   {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @throws ParsingException if field is not in one of the tables
+     *   added via {@link #addScan} or if field is ambiguous
+     */
+    public void addParameter(String field, Predicate.Op p) throws ParsingException {
+        field = disambiguateName(field);
+        String table = field.split("[.]")[0];
+
+        filters.add(new LogicalFilterNode(table, field.split("[.]")[1], p, null, parameters++));
+    }
+
+    /** @return the number of parameters added via {@link #addParameter} */
+    public int getParameterCount() {
+        return parameters;
+    }
+
+    /** Copy this plan with its parameters bound to values.  Once this plan
+     *   has been converted into a physical plan, the copy keeps the order
+     *   the optimizer chose for its joins rather than ordering them again,
+     *   so a query that is run many times is only optimized once.
+     *   @param values the value of each parameter, in order
+     *   @throws ParsingException if there are not as many values as parameters
+     *   @return the bound copy of this plan
+     */
+    public LogicalPlan bind(List<String> values) throws ParsingException {
+        if (values.size() != parameters)
+            throw new ParsingException("Expected " + parameters + " parameters, got " + values.size());
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins.addAll(joins);
+        lp.tables.addAll(tables);
+        for (LogicalFilterNode lf : filters) {
+            if (lf.parameter >= 0)
+                lf = new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, values.get(lf.parameter), lf.parameter);
+            lp.filters.add(lf);
+        }
+        lp.tableMap.putAll(tableMap);
+        lp.selectList.addAll(selectList);
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.query = query;
+        lp.parameters = parameters;
+        lp.constantsHold = constantsHold;
+        lp.joinsOrdered = joinsOrdered;
+        lp.reuseJoinOrder = joinsOrdered;
+        lp.joinEstimates = joinEstimates;
+        return lp;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -274,6 +349,215 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the qualified names of the fields that the operators above
+     *    the joins use: the select list, and the aggregate, grouping and
+     *    ORDER BY fields; null.* or alias.* stands for many fields
+     */
+    private List<String> usedAboveJoins() {
+        List<String> qualified = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            qualified.add(si.fname);
+        qualified.add(groupByField);
+        qualified.add(aggField);
+        qualified.add(oByField);
+        qualified.removeIf(Objects::isNull);
+        return qualified;
+    }
+
+    /** Work out which columns of a table the operators above its scan use,
+     *  so the scan can return only those, and a columnar scan can skip
+     *  decoding the rest. Columns used only by
+     *  filters evaluated inside the scan are not included.
+     *  @param alias the alias of the table in this plan
+     *  @param td the TupleDesc of the table
+     *  @return the indices of the needed columns in table order, or null if
+     *    every column is needed
+     */
+    private int[] referencedColumns(String alias, TupleDesc td) {
+        Set<String> names = new HashSet<>();
+        for (LogicalJoinNode lj : joins) {
+            if (lj.t1Alias.equals(alias))
+                names.add(lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && lj.t2Alias.equals(alias))
+                names.add(lj.f2PureName);
+        }
+        for (String q : usedAboveJoins()) {
+            String[] parts = q.split("[.]");
+            if (parts[1].equals("*") && (parts[0].equals("null") || parts[0].equals(alias)))
+                return null;
+            if (parts[0].equals(alias))
+                names.add(parts[1]);
+        }
+        List<Integer> fields = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(td.getFieldName(i)))
+                fields.add(i);
+        }
+        if (fields.size() == td.numFields())
+            return null;
+        // a tuple needs at least one field, even if nothing above reads it
+        if (fields.isEmpty())
+            fields.add(0);
+        int[] result = new int[fields.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = fields.get(i);
+        return result;
+    }
+
+    /** @return the type of a field of a table in this plan, or null if
+     *    there is no such table or field
+     */
+    private Type fieldType(String alias, String pureName) {
+        Integer id = tableMap.get(alias);
+        if (id == null)
+            return null;
+        try {
+            TupleDesc td = Database.getCatalog().getTupleDesc(id);
+            return td.getFieldType(td.fieldNameToIndex(pureName));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /** @return the constant of a filter as a value of the type of its
+     *    field, or null if it is not bound or not valid for the field
+     */
+    private Field constant(LogicalFilterNode lf) {
+        Type type = fieldType(lf.tableAlias, lf.fieldPureName);
+        if (type == null || lf.c == null)
+            return null;
+        try {
+            return type.parse(lf.c);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String fieldNames(TupleDesc td) {
+        StringJoiner names = new StringJoiner(", ");
+        for (int i = 0; i < td.numFields(); i++)
+            names.add(td.getFieldName(i));
+        return names.toString();
+    }
+
+    private static String describe(LogicalFilterNode lf) {
+        return lf.fieldQuantifiedName + " " + lf.p + " " + lf.c;
+    }
+
+    /** Rewrite the filters of this plan before it is converted into a
+     *   physical plan:
+     *   <ul>
+     *   <li>A filter on a field that an equality join makes equal to other
+     *   fields is inferred for those fields too, so that every table it
+     *   applies to is filtered before it is joined, and its selectivity is
+     *   estimated.
+     *   <li>Duplicate filters are dropped, and the filters on a field that
+     *   also has an equality filter are evaluated on its constant: one that
+     *   holds is dropped, and one that does not means that no tuple passes.
+     *   </ul>
+     *   @param explain whether to print the rewrites
+     *   @return the filters to apply, or null if no tuple can pass them
+     */
+    private List<LogicalFilterNode> rewriteFilters(boolean explain) {
+        // the fields each field is equal to, through equality joins
+        Map<String, Set<String>> equal = new HashMap<>();
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode || lj.p != Predicate.Op.EQUALS)
+                continue;
+            Type type = fieldType(lj.t1Alias, lj.f1PureName);
+            if (type == null || type != fieldType(lj.t2Alias, lj.f2PureName))
+                continue;
+            String f1 = lj.t1Alias + "." + lj.f1PureName, f2 = lj.t2Alias + "." + lj.f2PureName;
+            Set<String> s1 = equal.computeIfAbsent(f1, f -> new HashSet<>(Collections.singleton(f)));
+            Set<String> s2 = equal.computeIfAbsent(f2, f -> new HashSet<>(Collections.singleton(f)));
+            if (s1 != s2) {
+                s1.addAll(s2);
+                for (String f : s2)
+                    equal.put(f, s1);
+            }
+        }
+
+        // filters by field, without duplicates
+        Map<String, List<LogicalFilterNode>> byField = new LinkedHashMap<>();
+        List<LogicalFilterNode> result = new ArrayList<>();
+        for (LogicalFilterNode lf : filters)
+            addFilter(byField, result, lf);
+        for (LogicalFilterNode lf : filters) {
+            for (String f : equal.getOrDefault(lf.fieldQuantifiedName, Collections.emptySet())) {
+                if (f.equals(lf.fieldQuantifiedName))
+                    continue;
+                String[] parts = f.split("[.]");
+                LogicalFilterNode inferred = new LogicalFilterNode(parts[0], parts[1], lf.p, lf.c, lf.parameter);
+                if (addFilter(byField, result, inferred) && explain)
+                    System.out.println("Inferred filter " + describe(inferred) + " from " + describe(lf));
+            }
+        }
+
+        for (List<LogicalFilterNode> fs : byField.values()) {
+            LogicalFilterNode eq = null;
+            Field v = null;
+            for (LogicalFilterNode lf : fs) {
+                if (lf.p == Predicate.Op.EQUALS && (v = constant(lf)) != null) {
+                    eq = lf;
+                    break;
+                }
+            }
+            if (eq == null)
+                continue;
+            for (LogicalFilterNode lf : fs) {
+                Field c = lf == eq ? null : constant(lf);
+                if (c == null)
+                    continue;
+                if (!v.compare(lf.p, c)) {
+                    if (explain)
+                        System.out.println("Filters " + describe(eq) + " and " + describe(lf)
+                                + " cannot both hold; no tuples pass");
+                    return null;
+                }
+                result.remove(lf);
+                if (explain)
+                    System.out.println("Dropped filter " + describe(lf) + ", implied by " + describe(eq));
+            }
+        }
+        return result;
+    }
+
+    /** Add a filter to the filters of a plan unless it has an equal one.
+     *  @return whether it was added
+     */
+    private static boolean addFilter(Map<String, List<LogicalFilterNode>> byField,
+                                     List<LogicalFilterNode> filters, LogicalFilterNode lf) {
+        List<LogicalFilterNode> fs = byField.computeIfAbsent(lf.fieldQuantifiedName, f -> new ArrayList<>());
+        if (lf.c != null) {
+            for (LogicalFilterNode other : fs) {
+                if (other.p == lf.p && lf.c.equals(other.c))
+                    return false;
+            }
+        }
+        fs.add(lf);
+        filters.add(lf);
+        return true;
+    }
+
+    /** @return the qualified names of the fields that the joins after the
+     *    first done of joins and the operators above them use, or null if
+     *    they use every field
+     */
+    private Set<String> usedAfter(List<LogicalJoinNode> joins, int done) {
+        Set<String> names = new HashSet<>();
+        for (String q : usedAboveJoins()) {
+            if (q.endsWith(".*"))
+                return null;
+            names.add(q);
+        }
+        for (LogicalJoinNode lj : joins.subList(done, joins.size())) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+        return names;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,12 +576,20 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        // filters are evaluated inside the scan, which returns only the
+        // columns the operators above it use
+        Map<String,List<Predicate>> scanPredicates = new HashMap<>();
+        // the filters of each alias are estimated together, so that column
+        // groups can replace the assumption that they are independent
+        Map<String,List<Predicate>> aliasPredicates = new HashMap<>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 ss = new SeqScan(t, file.getId(), table.alias);
+                 scanPredicates.put(table.alias, new ArrayList<>());
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -309,12 +601,21 @@ public class LogicalPlan {
 
         }
 
-        for (LogicalFilterNode lf : filters) {
+        List<LogicalFilterNode> rewritten = rewriteFilters(explain);
+        boolean empty = rewritten == null || !constantsHold;
+        if (rewritten == null)
+            rewritten = filters;
+
+        for (LogicalFilterNode lf : rewritten) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
+            if (lf.c == null) {
+                throw new ParsingException("No value bound to parameter " + (lf.parameter + 1));
+            }
+
             Field f;
             Type ftyp;
             TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
@@ -324,10 +625,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            try {
+                f = ftyp.parse(lf.c);
+            } catch (IllegalArgumentException e) {
+                throw new ParsingException("Invalid constant " + lf.c + " for field " + lf.fieldQuantifiedName);
+            }
 
             Predicate p = null;
             try {
@@ -335,21 +637,58 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            scanPredicates.get(lf.tableAlias).add(p);
+            aliasPredicates.computeIfAbsent(lf.tableAlias, a -> new ArrayList<>()).add(p);
 
-            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
+            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+        }
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+        for (Map.Entry<String,List<Predicate>> e : aliasPredicates.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            List<Predicate> ps = e.getValue();
+            int[] fields = new int[ps.size()];
+            Predicate.Op[] ops = new Predicate.Op[ps.size()];
+            Field[] constants = new Field[ps.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = ps.get(i).getField();
+                ops[i] = ps.get(i).getOp();
+                constants[i] = ps.get(i).getOperand();
+            }
+            filterSelectivities.put(e.getKey(), s.estimateSelectivity(fields, ops, constants));
+        }
 
-            //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
+        for (Map.Entry<String,List<Predicate>> e : scanPredicates.entrySet()) {
+            String alias = e.getKey();
+            int tableId = getTableId(alias);
+            TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+            int[] fields = referencedColumns(alias, td);
+            SeqScan ss = new SeqScan(t, tableId, alias, fields, e.getValue().toArray(new Predicate[0]));
+            if (explain && fields != null)
+                System.out.println("Scan of " + alias + " returns " + fields.length + " of " + td.numFields()
+                        + " columns: " + fieldNames(ss.getTupleDesc()));
+            subplanMap.put(alias, ss);
+            // no tuple passes the filters, so no table needs to be read
+            if (empty)
+                subplanMap.put(alias, new TupleIterator(ss.getTupleDesc(), Collections.emptyList()));
         }
+        if (empty && explain)
+            System.out.println("No tuples pass the filters; the tables are not read");
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!reuseJoinOrder) {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            joinsOrdered = true;
+            joinEstimates = jo.getEstimates();
+        } else {
+            jo.setEstimates(joinEstimates);
+        }
+        Map<String,OpIterator> basePlans = new HashMap<>(subplanMap);
 
-        for (LogicalJoinNode lj : joins) {
+        // each join combines the subplans its two tables are in so far, so
+        // a bushy order, where both may already be joins, builds its tree
+        for (int k = 0; k < joins.size(); k++) {
+            LogicalJoinNode lj = joins.get(k);
             OpIterator plan1;
             OpIterator plan2;
             boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
@@ -367,6 +706,25 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                // a join of a cyclic query whose tables an earlier join has
+                // already joined: it filters the result of that join
+                if (plan1 == null)
+                    throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                TupleDesc td = plan1.getTupleDesc();
+                int f1, f2;
+                try {
+                    f1 = td.fieldNameToIndex(lj.f1QuantifiedName);
+                    f2 = td.fieldNameToIndex(lj.f2QuantifiedName);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field in join " + lj);
+                }
+                subplanMap.put(t1name, new JoinFilter(new JoinPredicate(f1, lj.p, f2), plan1));
+                if (explain)
+                    System.out.println("Join " + lj + " filters the tables already joined");
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode) lj).subPlan;
                 if (plan2 == null)
@@ -382,6 +740,26 @@ public class LogicalPlan {
 
             OpIterator j;
             j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            // pass on only the fields that are used after this join
+            Set<String> used = k < joins.size() - 1 ? usedAfter(joins, k + 1) : null;
+            if (used != null) {
+                TupleDesc td = j.getTupleDesc();
+                List<Integer> keep = new ArrayList<>();
+                List<Type> types = new ArrayList<>();
+                for (int i = 0; i < td.numFields(); i++) {
+                    String name = td.getFieldName(i);
+                    if (used.contains(name) || !tableMap.containsKey(name.split("[.]")[0])) {
+                        keep.add(i);
+                        types.add(td.getFieldType(i));
+                    }
+                }
+                if (!keep.isEmpty() && keep.size() < td.numFields()) {
+                    j = new Project(keep, types, j);
+                    if (explain)
+                        System.out.println("Join of " + lj.t1Alias + " and " + lj.t2Alias + " passes on "
+                                + keep.size() + " of " + td.numFields() + " fields: " + fieldNames(j.getTupleDesc()));
+                }
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -406,6 +784,10 @@ public class LogicalPlan {
         }
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
+        // run the joins one at a time, ordering the rest again when their
+        // estimates turn out to be wrong
+        if (AdaptiveJoin.getReoptimizationFactor() > 0 && !joins.isEmpty() && AdaptiveJoin.canRun(joins))
+            node = new AdaptiveJoin(this, joins, basePlans, statsMap, filterSelectivities, jo, node, explain);
 
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
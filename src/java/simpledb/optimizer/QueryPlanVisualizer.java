@@ -16,6 +16,7 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String EMPTY = "empty";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -29,6 +30,10 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
+        // shown as the join tree it planned
+        if (o instanceof AdaptiveJoin)
+            return this.calculateQueryPlanTreeDepth(children[0]);
+
         if (o instanceof Join || o instanceof HashEquiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
@@ -58,26 +63,55 @@ public class QueryPlanVisualizer {
 
     }
 
+    private static String fieldNames(TupleDesc td) {
+        StringBuilder fields = new StringBuilder();
+        Iterator<TDItem> it = td.iterator();
+        while (it.hasNext())
+            fields.append(it.next().fieldName).append(",");
+        return fields.substring(0, fields.length() - 1);
+    }
+
     private SubTreeDescriptor buildTree(int queryPlanDepth, int currentDepth,
                                         OpIterator queryPlan, int currentStartPosition,
                                         int parentUpperBarStartShift) {
         if (queryPlan == null)
             return null;
+        if (queryPlan instanceof AdaptiveJoin)
+            return this.buildTree(queryPlanDepth, currentDepth, ((AdaptiveJoin) queryPlan).getChildren()[0],
+                    currentStartPosition, parentUpperBarStartShift);
 
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
-            if (!tableName.equals(alias))
-                alias = " " + alias;
-            else
-                alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+        if (queryPlan instanceof SeqScan || !(queryPlan instanceof Operator)) {
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                String tableName = s.getTableName();
+                String alias = s.getAlias();
+//                TupleDesc td = s.getTupleDesc();
+                if (!tableName.equals(alias))
+                    alias = " " + alias;
+                else
+                    alias = "";
+                thisNode.text = String
+                        .format("%1$s(%2$s)", SCAN, tableName + alias);
+                // predicates evaluated inside the scan
+                TupleDesc tableTd = simpledb.common.Database.getCatalog()
+                        .getTupleDesc(s.getTableId());
+                for (Predicate p : s.getPredicates()) {
+                    thisNode.text += String.format(" %1$s(%2$s)", SELECT,
+                            s.getAlias() + "." + tableTd.getFieldName(p.getField())
+                                    + p.getOp() + p.getOperand());
+                }
+                // the columns it returns, if not all of them
+                if (s.getFields() != null)
+                    thisNode.text += String.format(" %1$s(%2$s)", PROJECT,
+                            fieldNames(s.getTupleDesc()));
+            } else {
+                // tuples that are not read from a table, e.g. none at all
+                thisNode.text = String.format("%1$s(%2$s)", EMPTY,
+                        fieldNames(queryPlan.getTupleDesc()));
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -198,13 +232,19 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof Filter) {
-                Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+            } else if (plan instanceof Filter || plan instanceof JoinFilter) {
+                TupleDesc td = children[0].getTupleDesc();
+                String condition;
+                if (plan instanceof Filter) {
+                    Predicate p = ((Filter) plan).getPredicate();
+                    condition = td.getFieldName(p.getField()) + p.getOp() + p.getOperand();
+                } else {
+                    JoinPredicate jp = ((JoinFilter) plan).getJoinPredicate();
+                    condition = td.getFieldName(jp.getField1()) + jp.getOperator()
+                            + td.getFieldName(jp.getField2());
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        condition, plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -242,12 +282,7 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
-                StringBuilder fields = new StringBuilder();
-                Iterator<TDItem> it = p.getTupleDesc().iterator();
-                while (it.hasNext())
-                    fields.append(it.next().fieldName).append(",");
-                fields = new StringBuilder(fields.substring(0, fields.length() - 1));
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields.toString(),p.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fieldNames(p.getTupleDesc()),p.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -0,0 +1,113 @@
+package simpledb.optimizer;
+
+import simpledb.common.Database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StatementCache keeps the plans of recently run queries, so that a query
+ * that is run again skips parsing and join ordering.  A plan is keyed by
+ * the text of its query with constants replaced by parameters, and is a
+ * {@link LogicalPlan} whose joins are already ordered, to be bound to the
+ * constants of each run (see {@link LogicalPlan#bind}).
+ * <p>
+ * A plan is only used while the catalog and the table statistics are at
+ * the versions it was planned against (see {@link simpledb.common.Catalog#getVersion}
+ * and {@link TableStats#getVersion}).  The cache holds at most its capacity
+ * in plans, evicting the least recently used.
+ *
+ * @Threadsafe
+ */
+public class StatementCache {
+
+    /** The number of plans kept, unless set otherwise. */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private static int capacity = DEFAULT_CAPACITY;
+
+    private static class Entry {
+        final LogicalPlan plan;
+        final long catalogVersion;
+        final long statsVersion;
+
+        Entry(LogicalPlan plan, long catalogVersion, long statsVersion) {
+            this.plan = plan;
+            this.catalogVersion = catalogVersion;
+            this.statsVersion = statsVersion;
+        }
+    }
+
+    private final Map<String, Entry> plans = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    };
+    private long hits, misses;
+
+    /**
+     * Set the number of plans a cache keeps; 0 turns caching off.  Takes
+     * effect as plans are added.
+     */
+    public static void setCapacity(int plans) {
+        capacity = plans;
+    }
+
+    public static int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the plan cached for a query, or null if there is none or it
+     *         was planned against a catalog or statistics that have changed
+     */
+    public synchronized LogicalPlan get(String key) {
+        Entry e = plans.get(key);
+        if (e != null && (e.catalogVersion != Database.getCatalog().getVersion()
+                || e.statsVersion != TableStats.getVersion())) {
+            plans.remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return e.plan;
+    }
+
+    /**
+     * Cache the plan of a query.
+     *
+     * @param key the text of the query, with constants replaced by parameters
+     * @param plan the plan, with its joins ordered
+     * @param catalogVersion the version of the catalog before it was planned
+     * @param statsVersion the version of the statistics before it was planned
+     */
+    public synchronized void put(String key, LogicalPlan plan, long catalogVersion, long statsVersion) {
+        if (capacity > 0)
+            plans.put(key, new Entry(plan, catalogVersion, statsVersion));
+    }
+
+    /** Discard every cached plan. */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a plan */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that did not */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb.optimizer;
+
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * TableSample is what a scan of some of the pages of a table collects for
+ * {@link TableStats}: the number of rows, a {@link HyperLogLog} sketch of
+ * each column and of each column group, and a uniform random sample of whole rows (a reservoir,
+ * Vitter's algorithm R).  Samples of disjoint parts of a table merge into a
+ * sample of their union, so parts can be scanned in parallel.
+ */
+class TableSample {
+    private final int capacity;
+    private final Random random;
+    private long rows;
+    private final HyperLogLog[] sketches;
+    private final int[][] groups;
+    private final HyperLogLog[] groupSketches;
+    private List<Field[]> sample = new ArrayList<>();
+
+    /**
+     * @param numFields the number of columns of the table
+     * @param capacity the number of rows to sample
+     * @param seed the seed of the random sampling
+     * @param groups the columns of each column group of the table
+     */
+    TableSample(int numFields, int capacity, long seed, int[][] groups) {
+        this.capacity = capacity;
+        this.random = new Random(seed);
+        this.sketches = new HyperLogLog[numFields];
+        for (int i = 0; i < numFields; i++)
+            sketches[i] = new HyperLogLog();
+        this.groups = groups;
+        this.groupSketches = new HyperLogLog[groups.length];
+        for (int g = 0; g < groups.length; g++)
+            groupSketches[g] = new HyperLogLog();
+    }
+
+    void add(Tuple t) {
+        Field[] row = new Field[sketches.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = t.getField(i);
+            sketches[i].add(row[i]);
+        }
+        for (int g = 0; g < groups.length; g++)
+            groupSketches[g].add(HyperLogLog.hash(ColumnGroupStats.values(t, groups[g])));
+        rows++;
+        if (sample.size() < capacity) {
+            sample.add(row);
+        } else {
+            // keep the row with probability capacity / rows
+            long j = (long) (random.nextDouble() * rows);
+            if (j < capacity)
+                sample.set((int) j, row);
+        }
+    }
+
+    /**
+     * Add the rows of other, a sample of a disjoint part of the table, to
+     * this sample.  The merged sample draws from each part in proportion to
+     * its number of rows, so it is a uniform sample of both.
+     *
+     * @return this sample
+     */
+    TableSample merge(TableSample other) {
+        for (int i = 0; i < sketches.length; i++)
+            sketches[i].merge(other.sketches[i]);
+        for (int g = 0; g < groups.length; g++)
+            groupSketches[g].merge(other.groupSketches[g]);
+        if (sample.size() + other.sample.size() <= capacity) {
+            sample.addAll(other.sample);
+        } else {
+            Collections.shuffle(sample, random);
+            Collections.shuffle(other.sample, random);
+            List<Field[]> merged = new ArrayList<>(capacity);
+            long mine = rows, theirs = other.rows;
+            int i = 0, j = 0;
+            while (merged.size() < capacity) {
+                if (random.nextDouble() * (mine + theirs) < mine) {
+                    merged.add(sample.get(i++));
+                    mine--;
+                } else {
+                    merged.add(other.sample.get(j++));
+                    theirs--;
+                }
+            }
+            sample = merged;
+        }
+        rows += other.rows;
+        return this;
+    }
+
+    /** @return the number of rows scanned */
+    long rows() {
+        return rows;
+    }
+
+    /** @return the number of rows in the sample */
+    int size() {
+        return sample.size();
+    }
+
+    /** @return the sampled values of a column */
+    Field[] column(int i) {
+        Field[] values = new Field[sample.size()];
+        for (int r = 0; r < values.length; r++)
+            values[r] = sample.get(r)[i];
+        return values;
+    }
+
+    /** @return the sketch of the distinct values of a column */
+    HyperLogLog sketch(int i) {
+        return sketches[i];
+    }
+
+    /** @return the statistics of the g-th column group */
+    ColumnGroupStats group(int g) {
+        int[] fields = groups[g];
+        Field[][] values = new Field[sample.size()][fields.length];
+        for (int r = 0; r < values.length; r++) {
+            for (int i = 0; i < fields.length; i++)
+                values[r][i] = sample.get(r)[fields[i]];
+        }
+        return new ColumnGroupStats(fields.clone(), values, groupSketches[g]);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.optimizer;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Debug;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
@@ -9,18 +10,38 @@ import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query.
  * 查询中基础表的统计信息
- * 对这张表的每一列都构建Histogram
+ * 对这张表的每一列都构建ColumnStats（常见值、等深直方图、HyperLogLog不同值个数）
+ * <p>
+ * Statistics are saved in a stats file next to the table file and loaded
+ * the first time a table's statistics are looked up.  Insert and Delete
+ * keep the row count and distinct values current; once more than a
+ * fraction of the rows (see {@link #setStaleFraction}) have changed, the
+ * table is analyzed again in the background.
+ * <p>
+ * For each column group declared in the catalog (see
+ * {@link simpledb.common.Catalog#addColumnGroup}) there is also a
+ * {@link ColumnGroupStats}, which {@link #estimateSelectivity(int[],
+ * Predicate.Op[], Field[])} uses for conjunctions of predicates on the
+ * group's columns instead of assuming that they are independent.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
@@ -28,17 +49,82 @@ public class TableStats {
     //总元组数
     private int totalTuples;
     private TupleDesc td;
-    private HeapFile dbFile;
+    private PagedFile dbFile;
     private int ioCostPerPage;
 
-    //用来存储每一列的直方图
-    private ConcurrentHashMap<Integer, IntHistogram> intHistograms;
+    private final int tableid;
 
-    private ConcurrentHashMap<Integer, StringHistogram> strHistograms;
+    //每一列的统计信息：常见值、等深直方图和不同值个数
+    private ColumnStats[] columns;
+    //每一列的不同值草图，插入时增量更新
+    private HyperLogLog[] sketches;
+    //目录中声明的每个列组的联合统计信息
+    private ColumnGroupStats[] groups;
+    //扫描失败时为false，这样的统计信息不会被保存
+    private boolean analyzed = true;
 
-    private static final ConcurrentMap<String, TableStats> statsMap = new ConcurrentHashMap<>();
+    //分析时的元组数，以及此后插入和删除的元组数
+    private int analyzedTuples;
+    private long modifications;
+    //totalTuples或sketches变化后，columns需要更新计数
+    private boolean countsChanged;
+    private final AtomicBoolean reanalyzing = new AtomicBoolean();
 
-    static final int IOCOSTPERPAGE = 1000;
+    private static final ConcurrentMap<String, TableStats> statsMap = new LazyStatsMap();
+    //每次统计信息被替换时加一，缓存的查询计划据此失效
+    private static final AtomicLong version = new AtomicLong();
+
+    /** @return the cost of reading a page, from the planner's cost model */
+    static int ioCostPerPage() {
+        return (int) Math.round(CostModel.get().seqPageCost());
+    }
+
+    /** The number of rows sampled from each table to build its histograms. */
+    public static final int DEFAULT_SAMPLE_SIZE = 20000;
+    /** Pages scanned by each parallel task. */
+    static final int PAGES_PER_TASK = 64;
+
+    /**
+     * The fraction of a table's rows that may be inserted or deleted before
+     * its statistics are analyzed again.
+     */
+    public static final double DEFAULT_STALE_FRACTION = 0.2;
+    /** Tables smaller than this are treated as this large when deciding staleness. */
+    static final int STALE_MIN_ROWS = 500;
+
+    private static final int MAGIC = 0x53544154;
+
+    private static int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private static double staleFraction = DEFAULT_STALE_FRACTION;
+
+    //后台重新分析统计信息的线程
+    private static final ExecutorService analyzer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "table-stats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The statistics of every table in the catalog, by table name.  The
+     * statistics of a table are loaded from its stats file the first time
+     * they are looked up, or computed (and saved) if it has none.
+     */
+    private static final class LazyStatsMap extends ConcurrentHashMap<String, TableStats> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public TableStats get(Object tablename) {
+            TableStats s = super.get(tablename);
+            if (s == null && tablename instanceof String)
+                s = computeIfAbsent((String) tablename, TableStats::load);
+            return s;
+        }
+
+        /** @return the statistics of a table if they are loaded, else null */
+        TableStats loaded(String tablename) {
+            return super.get(tablename);
+        }
+    }
 
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
@@ -46,6 +132,7 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
     
     public static void setStatsMap(Map<String,TableStats> s)
@@ -54,6 +141,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -64,18 +152,214 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * @return the version of the statistics, which changes whenever the
+     *         statistics of a table are replaced, e.g. when it is analyzed
+     *         again; not when they are updated for an insert or delete
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Compute the statistics of every table in the catalog, in parallel, and
+     * save them to the tables' stats files.
+     */
     public static void computeStatistics() {
-        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        List<Integer> tableIds = new ArrayList<>();
+        Database.getCatalog().tableIdIterator().forEachRemaining(tableIds::add);
 
         System.out.println("Computing table stats.");
-        while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+        // statsMap may have been replaced by a map that is not thread safe
+        List<TableStats> stats = tableIds.parallelStream()
+                .map(tableid -> new TableStats(tableid, ioCostPerPage()))
+                .collect(Collectors.toList());
+        for (int i = 0; i < tableIds.size(); i++) {
+            setTableStats(Database.getCatalog().getTableName(tableIds.get(i)), stats.get(i));
+            stats.get(i).save();
         }
         System.out.println("Done.");
     }
 
+    /** Save the statistics of every table whose statistics are loaded. */
+    public static void saveStatistics() {
+        for (TableStats s : statsMap.values())
+            s.save();
+    }
+
+    /**
+     * Set the fraction of a table's rows that may be inserted or deleted
+     * before its statistics are analyzed again in the background.
+     */
+    public static void setStaleFraction(double fraction) {
+        staleFraction = fraction;
+    }
+
+    public static double getStaleFraction() {
+        return staleFraction;
+    }
+
+    /** @return the file next to a table file that holds its statistics */
+    public static File statsFileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".stats");
+    }
+
+    /**
+     * @return the statistics of a table from its stats file, or computed
+     *         from the table if it has none; null if there is no such table
+     */
+    private static TableStats load(String tablename) {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tablename);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof PagedFile))
+            return null;
+        TableStats s = read(tableid, ioCostPerPage());
+        if (s == null) {
+            s = new TableStats(tableid, ioCostPerPage());
+            s.save();
+        }
+        return s;
+    }
+
+    /**
+     * @return the statistics saved in a table's stats file, or null if it
+     *         has none that can be read.  If the table file has changed
+     *         size since they were saved, they are analyzed again in the
+     *         background.
+     */
+    private static TableStats read(int tableid, int ioCostPerPage) {
+        PagedFile f = (PagedFile) Database.getCatalog().getDatabaseFile(tableid);
+        File statsFile = statsFileFor(f.getFile());
+        if (!statsFile.exists())
+            return null;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(statsFile)))) {
+            if (in.readInt() != MAGIC)
+                return null;
+            long length = in.readLong();
+            int tuples = in.readInt();
+            ColumnStats[] columns = (ColumnStats[]) in.readObject();
+            HyperLogLog[] sketches = (HyperLogLog[]) in.readObject();
+            ColumnGroupStats[] groups = (ColumnGroupStats[]) in.readObject();
+            if (columns.length != f.getTupleDesc().numFields() || !sameGroups(groups, columnGroups(tableid)))
+                return null;
+            TableStats s = new TableStats(tableid, ioCostPerPage, tuples, columns, sketches, groups);
+            if (length != f.getFile().length())
+                s.reanalyze();
+            return s;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Debug.log("TableStats: could not read %s: %s", statsFile, e);
+            return null;
+        }
+    }
+
+    /** Write these statistics to the table's stats file. */
+    private void save() {
+        File statsFile = statsFileFor(dbFile.getFile());
+        synchronized (this) {
+            if (!analyzed)
+                return;
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(statsFile)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(dbFile.getFile().length());
+                out.writeInt(totalTuples);
+                out.writeObject(columns);
+                out.writeObject(sketches);
+                out.writeObject(groups);
+            } catch (IOException e) {
+                Debug.log("TableStats: could not write %s: %s", statsFile, e);
+            }
+        }
+    }
+
+    /**
+     * Record that a tuple was inserted into a table, so that its row count
+     * and distinct values stay current until it is analyzed again.
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = loaded(tableid);
+        if (s != null)
+            s.modified(1, t);
+    }
+
+    /** Record that a tuple was deleted from a table. */
+    public static void tupleDeleted(int tableid) {
+        TableStats s = loaded(tableid);
+        if (s != null)
+            s.modified(-1, null);
+    }
+
+    /** @return the statistics of a table, if they are loaded */
+    private static TableStats loaded(int tableid) {
+        String name;
+        try {
+            name = Database.getCatalog().getTableName(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return statsMap instanceof LazyStatsMap ? ((LazyStatsMap) statsMap).loaded(name) : statsMap.get(name);
+    }
+
+    private void modified(int tuples, Tuple t) {
+        boolean stale;
+        synchronized (this) {
+            totalTuples = Math.max(0, totalTuples + tuples);
+            if (t != null) {
+                for (int i = 0; i < sketches.length; i++)
+                    sketches[i].add(t.getField(i));
+                for (ColumnGroupStats g : groups)
+                    g.add(t);
+            }
+            countsChanged = true;
+            modifications++;
+            stale = modifications > staleFraction * Math.max(analyzedTuples, STALE_MIN_ROWS);
+        }
+        if (stale)
+            reanalyze();
+    }
+
+    /**
+     * Analyze the table again in the background, unless that is already
+     * under way, and replace these statistics with the result.
+     */
+    private void reanalyze() {
+        if (!reanalyzing.compareAndSet(false, true))
+            return;
+        analyzer.execute(() -> {
+            TableStats fresh = new TableStats(tableid, ioCostPerPage);
+            if (!fresh.analyzed) {
+                reanalyzing.set(false);
+                return;
+            }
+            try {
+                if (statsMap.replace(Database.getCatalog().getTableName(tableid), this, fresh))
+                    version.incrementAndGet();
+                fresh.save();
+            } catch (NoSuchElementException e) {
+                // the table was removed
+            }
+        });
+    }
+
+    /**
+     * Set the number of rows sampled from each table.  Larger samples give
+     * more accurate histograms and common values at the cost of memory and
+     * time; row counts and distinct values are counted over every row
+     * whatever the sample size.
+     */
+    public static void setSampleSize(int rows) {
+        sampleSize = rows;
+    }
+
+    public static int getSampleSize() {
+        return sampleSize;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -96,75 +380,103 @@ public class TableStats {
     public TableStats(int tableid, int ioCostPerPage) {
         // 对于这个函数，你需要获取到相关表的 DbFile，
         // 然后扫描其元组并计算出你需要的值。
-        // 你应该尽量高效地完成这个任务，但你也不一定非得（例如）
-        // 在一次扫描表的过程中完成所有操作。
-        Map<Integer, Integer> minMap = new HashMap<>();
-        Map<Integer, Integer> maxMap = new HashMap<>();
-        this.dbFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.intHistograms = new ConcurrentHashMap<>();
-        this.strHistograms = new ConcurrentHashMap<>();
+        // 一次扫描：页面按范围并行扫描，每个范围抽样并构建HyperLogLog，最后合并
+        this.tableid = tableid;
+        this.dbFile = (PagedFile) Database.getCatalog().getDatabaseFile(tableid);
         this.td = dbFile.getTupleDesc();
         this.ioCostPerPage = ioCostPerPage;
+        int n = td.numFields();
+        int pages = dbFile.numPages();
+        int ranges = Math.max(1, (pages + PAGES_PER_TASK - 1) / PAGES_PER_TASK);
+        int capacity = sampleSize;
+        int[][] groupFields = columnGroups(tableid);
 
         Transaction tx = new Transaction();
         tx.start();
-        DbFileIterator child = dbFile.iterator(tx.getId());
-
+        TableSample sample = new TableSample(n, capacity, tableid, groupFields);
         try{
-            child.open();
-            while(child.hasNext()){
-                this.totalTuples++;
-                Tuple tuple = child.next();
-                for(int i = 0; i < td.numFields(); i++){
-                    if(td.getFieldType(i).equals(Type.INT_TYPE)){
-                        IntField field = (IntField) tuple.getField(i);
-                        minMap.put(i, Math.min(minMap.getOrDefault(i, Integer.MAX_VALUE), field.getValue()));
-                        maxMap.put(i, Math.max(maxMap.getOrDefault(i, Integer.MIN_VALUE), field.getValue()));
-                    }else if(td.getFieldType(i).equals(Type.STRING_TYPE)){
-                        StringHistogram histogram = this.strHistograms.getOrDefault(i, new StringHistogram(NUM_HIST_BINS));
-                        StringField field = (StringField) tuple.getField(i);
-                        histogram.addValue(field.getValue());
-                        this.strHistograms.put(i, histogram);
-                    }
-                }
-            }
-            //根据最大最小值构造直方图
-            for(int i = 0; i < td.numFields(); i++){
-                if(minMap.get(i) != null){
-                    this.intHistograms.put(i, new IntHistogram(NUM_HIST_BINS, minMap.get(i), maxMap.get(i)));
-                }
-            }
-            //重新扫描表，往Int直方图添加数据
-            child.rewind();
-            while(child.hasNext()){
-                Tuple tuple = child.next();
-                for(int i = 0; i < td.numFields(); i++){
-                    if(td.getFieldType(i).equals(Type.INT_TYPE)){
-                        IntField f = (IntField) tuple.getField(i);
-                        IntHistogram intHis = this.intHistograms.get(i);
-                        if(intHis == null)throw new IllegalArgumentException("获得直方图失败！！");
-                        intHis.addValue(f.getValue());
-                        this.intHistograms.put(i, intHis);
-                    }
-                }
-            }
-
+            sample = IntStream.range(0, ranges).parallel()
+                    .mapToObj(r -> scan(tx, r * PAGES_PER_TASK, (r + 1) * PAGES_PER_TASK, capacity, tableid + r,
+                            groupFields))
+                    .reduce(TableSample::merge)
+                    .orElse(sample);
         } catch (Exception e) {
             e.printStackTrace();
+            analyzed = false;
         }finally {
-            child.close();
             try {
                 tx.commit();
             } catch (IOException e) {
                 System.out.println("事务提交失败");
             }
         }
+        this.totalTuples = (int) sample.rows();
+        this.analyzedTuples = totalTuples;
+        this.columns = new ColumnStats[n];
+        this.sketches = new HyperLogLog[n];
+        for (int i = 0; i < n; i++) {
+            Field[] column = sample.column(i);
+            sketches[i] = sample.sketch(i);
+            columns[i] = ColumnStats.build(td.getFieldType(i), column, column.length,
+                    totalTuples, sketches[i].estimate());
+        }
+        this.groups = new ColumnGroupStats[groupFields.length];
+        for (int g = 0; g < groups.length; g++)
+            groups[g] = sample.group(g);
+    }
+
+    /** Statistics read from a stats file. */
+    private TableStats(int tableid, int ioCostPerPage, int totalTuples, ColumnStats[] columns,
+                       HyperLogLog[] sketches, ColumnGroupStats[] groups) {
+        this.tableid = tableid;
+        this.dbFile = (PagedFile) Database.getCatalog().getDatabaseFile(tableid);
+        this.td = dbFile.getTupleDesc();
+        this.ioCostPerPage = ioCostPerPage;
+        this.totalTuples = totalTuples;
+        this.analyzedTuples = totalTuples;
+        this.columns = columns;
+        this.sketches = sketches;
+        this.groups = groups;
+    }
+
+    /** @return the columns of each column group declared for a table */
+    private static int[][] columnGroups(int tableid) {
+        return Database.getCatalog().getColumnGroups(tableid).toArray(new int[0][]);
+    }
+
+    /** @return whether saved groups are the column groups declared now */
+    private static boolean sameGroups(ColumnGroupStats[] groups, int[][] declared) {
+        if (groups.length != declared.length)
+            return false;
+        for (int g = 0; g < groups.length; g++) {
+            if (!Arrays.equals(groups[g].getFields(), declared[g]))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return a sample of pages firstPage to endPage (exclusive) of the table */
+    private TableSample scan(Transaction tx, int firstPage, int endPage, int capacity, long seed,
+                             int[][] groupFields) {
+        TableSample sample = new TableSample(td.numFields(), capacity, seed, groupFields);
+        DbFileIterator child = dbFile.iterator(tx.getId(), firstPage, endPage);
+        try {
+            child.open();
+            while (child.hasNext())
+                sample.add(child.next());
+        } catch (DbException | TransactionAbortedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            child.close();
+        }
+        return sample;
     }
 
     /**
      * Estimates the cost of sequentially scanning the file, given that the cost
      * to read a page is costPerPageIO. You can assume that there are no seeks
-     * and that no pages are in the buffer pool.
+     * and that no pages are in the buffer pool.  Each tuple read costs the
+     * CPU cost of a tuple as well (see {@link CostModel}).
      * 
      * Also, assume that your hard drive can only read entire pages at once, so
      * if the last page of the table only has one tuple on it, it's just as
@@ -175,7 +487,15 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return dbFile.numPages() * ioCostPerPage * 2;
+        return dbFile.numPages() * (double) ioCostPerPage + totalTuples() * CostModel.get().tupleCost();
+    }
+
+    /**
+     * @return the cost of scanning the file again after a scan (see
+     *         {@link CostModel#rescanCost})
+     */
+    public double estimateRescanCost() {
+        return CostModel.get().rescanCost(dbFile.numPages(), totalTuples());
     }
 
     /**
@@ -187,7 +507,7 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
         // some code goes here
         return (int)(totalTuples * selectivityFactor);
     }
@@ -204,12 +524,7 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        if(td.getFieldType(field).equals(Type.INT_TYPE)){
-            return intHistograms.get(field).avgSelectivity();
-        }else if(td.getFieldType(field).equals(Type.STRING_TYPE)){
-            return strHistograms.get(field).avgSelectivity();
-        }
-        return -1.00;
+        return getColumnStats(field).avgSelectivity(op);
     }
 
     /**
@@ -227,20 +542,82 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        if(td.getFieldType(field).equals(Type.INT_TYPE)){
-            IntField intField = (IntField) constant;
-            return intHistograms.get(field).estimateSelectivity(op, intField.getValue());
-        }else if(td.getFieldType(field).equals(Type.STRING_TYPE)){
-            StringField stringField = (StringField) constant;
-            return strHistograms.get(field).estimateSelectivity(op, stringField.getValue());
+        return getColumnStats(field).estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of predicates
+     * <tt>fields[i] ops[i] constants[i]</tt> on the table.  Predicates on
+     * two or more columns of a column group are estimated together from
+     * the group's statistics; the others are assumed to be independent.
+     *
+     * @return The estimated selectivity (fraction of tuples that satisfy)
+     *         every predicate
+     */
+    public double estimateSelectivity(int[] fields, Predicate.Op[] ops, Field[] constants) {
+        double[] single = new double[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            single[i] = estimateSelectivity(fields[i], ops[i], constants[i]);
+        boolean[] covered = new boolean[fields.length];
+        double selectivity = 1.0;
+        synchronized (this) {
+            // use the group that covers the most predicates not yet covered
+            while (true) {
+                ColumnGroupStats best = null;
+                int bestCount = 1;
+                for (ColumnGroupStats g : groups) {
+                    int count = 0;
+                    for (int i = 0; i < fields.length; i++) {
+                        if (!covered[i] && g.indexOf(fields[i]) >= 0)
+                            count++;
+                    }
+                    if (count > bestCount) {
+                        best = g;
+                        bestCount = count;
+                    }
+                }
+                if (best == null)
+                    break;
+                int[] f = new int[bestCount];
+                Predicate.Op[] o = new Predicate.Op[bestCount];
+                Field[] c = new Field[bestCount];
+                double independent = 1.0;
+                for (int i = 0, j = 0; i < fields.length; i++) {
+                    if (!covered[i] && best.indexOf(fields[i]) >= 0) {
+                        f[j] = fields[i];
+                        o[j] = ops[i];
+                        c[j++] = constants[i];
+                        independent *= single[i];
+                        covered[i] = true;
+                    }
+                }
+                selectivity *= best.estimateSelectivity(f, o, c, independent);
+            }
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!covered[i])
+                selectivity *= single[i];
+        }
+        return selectivity;
+    }
+
+    /**
+     * @param field the index of the field
+     * @return the statistics of the field's column
+     */
+    public synchronized ColumnStats getColumnStats(int field) {
+        if (countsChanged) {
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = columns[i].withCounts(totalTuples, sketches[i].estimate());
+            countsChanged = false;
         }
-        return -1.00;
+        return columns[field];
     }
 
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
         return totalTuples;
     }
@@ -4,15 +4,23 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.index.BTreeFile;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.TransactionTable;
 
 import java.io.*;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -20,9 +28,32 @@ import java.util.concurrent.ConcurrentHashMap;
  * disk. Access methods call into it to retrieve pages, and it fetches
  * pages from the appropriate location.
  * <p>
- * The BufferPool is also responsible for locking;  when a transaction fetches
- * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * The BufferPool is also responsible for locking, through its
+ * {@link LockManager}.  Updates of heap files lock the rows they change
+ * (and the rows' page and table with intention locks), so transactions
+ * updating different rows of one page do not wait for each other.  B+ trees
+ * lock key ranges instead (see BTreeFile.tryLockForInsert), and updates of
+ * other files lock the whole table.  Transactions reading a snapshot
+ * (see VersionStore) take no locks.  Changing a page and logging the change
+ * happen together under the BufferPool's monitor, so that the log record of
+ * one transaction never picks up another's change to the same page.
+ * <p>
+ * Every update made through insertTuple and deleteTuple is logged as it
+ * happens, and the page's before image is advanced past it, so the log
+ * holds one record per update.  The BufferPool keeps the dirty page table:
+ * for each dirty page, the LSN of the first record that dirtied it since it
+ * was last written (its recLSN, which bounds how far back recovery has to
+ * redo it) and of the last one (its pageLSN).  A dirty page is only written
+ * once the log is on disk past its pageLSN.  Pages are copied under the
+ * monitor, together with their pageLSNs, and the copies are written outside
+ * it, so that a background write never sees a change without its log
+ * record, nor holds up the threads changing pages.
+ * <p>
+ * Pages are written NO-FORCE (not at commit) and STEAL (possibly before
+ * commit).  A {@link PageCleaner} writes dirty pages in the background, in
+ * page number order and combining adjacent pages into one write, so that
+ * there are always some clean pages; evictPage only drops clean pages, and
+ * writes a page itself only when every cached page is dirty.
  * 
  * @Threadsafe, all fields are final
  */
@@ -41,6 +72,32 @@ public class BufferPool {
 
     public static ConcurrentHashMap<Integer,Page> pageHashMap;
 
+    /** LSN of the first log record that dirtied each dirty page (or an
+        LSN just before it); also guards pageLsns */
+    private final Map<PageId, Long> recLsns = new HashMap<>();
+    /** LSN of the last log record that updated each dirty page */
+    private final Map<PageId, Long> pageLsns = new HashMap<>();
+
+    /** order in which cleanPages sweeps the dirty pages */
+    private static final Comparator<PageId> PAGE_ORDER = Comparator
+            .comparingInt(PageId::getTableId)
+            .thenComparingInt(PageId::getPageNumber)
+            .thenComparingInt(PageId::hashCode);
+
+    /** held while page copies are written, so that two copies of one page
+        never reach the disk out of order; taken inside the monitor, never
+        the other way around */
+    private final Object writeLock = new Object();
+
+    /** the background cleaner, if one is running */
+    private volatile PageCleaner cleaner;
+    /** the last page cleanPages wrote; the next sweep starts after it */
+    private PageId cleanCursor;
+    /** evictions that found no clean page and had to write one */
+    private long foregroundWrites;
+
+    private final LockManager lockManager = new LockManager();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -68,11 +125,16 @@ public class BufferPool {
 
     public static  void setNumPages(int numPages){BufferPool.numPages=numPages;}
 
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
 
     /**
      * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * Takes no locks: reads see a snapshot (see VersionStore), and
+     * insertTuple and deleteTuple lock what they change before they fetch
+     * the pages to change.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -132,7 +194,7 @@ public class BufferPool {
      */
     public  void unsafeReleasePage(TransactionId tid, PageId pid) {
         // some code goes here
-        // not necessary for lab1|lab2
+        lockManager.releasePage(tid, pid);
     }
 
     /**
@@ -142,33 +204,54 @@ public class BufferPool {
      */
     public void transactionComplete(TransactionId tid) {
         // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  Pages are written NO-FORCE, so commit writes nothing;
+     * an abort rolls back the updates the transaction logged, unless
+     * LogFile.logAbort already has.  Either way only the locks and log
+     * records in the transaction's own TransactionTable entry are visited,
+     * not the whole pool.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
-        // not necessary for lab1|lab2
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (!commit && e != null) {
+            LogFile log = Database.getLogFile();
+            boolean logged;
+            synchronized (log) {
+                logged = !e.getUpdates().isEmpty();
+            }
+            if (logged) {
+                try {
+                    log.logAbort(tid);
+                } catch (IOException ex) {
+                    throw new RuntimeException("cannot roll back transaction " + tid.getId(), ex);
+                }
+            }
+        }
+        lockManager.releaseAll(tid);
+        Database.getTransactionTable().remove(tid);
     }
 
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
-     * acquire a write lock on the page the tuple is added to and any other 
-     * pages that are updated (Lock acquisition is not needed for lab2). 
-     * May block if the lock(s) cannot be acquired.
+     * acquire an intention lock on a heap file and an exclusive lock on the
+     * row the tuple is added as, or on a B+ tree, an exclusive lock on the
+     * tuple's key once no one has locked the gap it goes into (or an
+     * exclusive lock on any other file).  May block if the locks cannot be
+     * acquired.
      * 
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
@@ -183,20 +266,39 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        //首先找到要删除的文件
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-        //之后删除文件
-        //将被脏化的页面，添加到现有的缓存中
-        for (Page page:heapFile.insertTuple(tid,t)){
-            page.markDirty(true,tid);
-            pageHashMap.put(page.getId().hashCode(),page);
+        //首先找到要插入的文件
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        lockTableForInsert(tid, tableId);
+        while (true) {
+            //B+树的间隙检查和插入都在监视器内完成（next-key locking）
+            synchronized (this) {
+                if (!(dbFile instanceof BTreeFile) || ((BTreeFile) dbFile).tryLockForInsert(tid, t)) {
+                    //将被脏化的页面，添加到现有的缓存中
+                    updated(tid, dbFile.insertTuple(tid,t));
+                    return;
+                }
+            }
+            //需要等待时在监视器外等待，然后重新检查
+            ((BTreeFile) dbFile).lockForInsert(tid, t);
         }
     }
 
+    /**
+     * Lock a table for inserts by tid: with an intention lock if it is a heap
+     * file, whose inserts lock the rows they fill as they choose them, or a
+     * B+ tree, whose inserts lock keys, and exclusively otherwise.  May block.
+     */
+    public void lockTableForInsert(TransactionId tid, int tableId) throws TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        boolean finer = dbFile instanceof HeapFile || dbFile instanceof BTreeFile;
+        lockManager.lockTable(tid, tableId, finer ? LockManager.Mode.IX : LockManager.Mode.X);
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
-     * Will acquire a write lock on the page the tuple is removed from and any
-     * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * Will acquire an exclusive lock on the tuple's row, with intention locks
+     * on its page and table (on a B+ tree, on its key and the next key; on
+     * other files, on the table). May block if the lock(s) cannot be acquired.
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have 
@@ -211,11 +313,71 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        RecordId rid = t.getRecordId();
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        //先在监视器外等待行锁（其他文件锁定整张表）
+        if (dbFile instanceof HeapFile)
+            lockManager.lockRow(tid, rid, LockManager.Mode.X);
+        else if (dbFile instanceof BTreeFile)
+            ((BTreeFile) dbFile).lockForDelete(tid, t);
+        else
+            lockManager.lockTable(tid, rid.getPageId().getTableId(), LockManager.Mode.X);
+        //快照隔离：先修改该元组的事务获胜
+        Database.getVersionStore().checkWrite(tid, rid);
         //将被脏化的页面，添加到现有的缓存中
-        for (Page page:heapFile.deleteTuple(tid,t)){
-            page.markDirty(true,tid);
-            pageHashMap.put(page.getId().hashCode(),page);
+        synchronized (this) {
+            updated(tid, dbFile.deleteTuple(tid,t));
+        }
+    }
+
+    /**
+     * Log the changes tid just made to pages, mark them dirty and cache them.
+     */
+    private void updated(TransactionId tid, List<Page> pages) throws IOException {
+        LogFile log = Database.getLogFile();
+        Set<PageId> dirtied = Database.getTransactionTable().register(tid).getDirtyPages();
+        for (Page page : pages) {
+            dirtied.add(page.getId());
+            // enter the page in the dirty page table before its record is
+            // appended, so that a checkpoint never sees the record without
+            // the page
+            long recLsn = log.currentLsn();
+            synchronized (recLsns) {
+                recLsns.putIfAbsent(page.getId(), recLsn);
+            }
+            Page before = page.getBeforeImage();
+            SlotDelta delta = SlotDelta.diff(before, page);
+            long lsn = log.logWrite(tid, before, page, delta);
+            if (delta != null)
+                Database.getVersionStore().recordUpdate(tid, delta);
+            page.setBeforeImage();
+            pageHashMap.put(page.getId().hashCode(), page);
+            logged(page, tid, lsn);
+        }
+    }
+
+    /**
+     * Record that the log record at lsn updated page, which is cached, and
+     * mark it dirty.  Both happen under the dirty page table's lock, so a
+     * write that is marking the page clean either sees the new pageLSN and
+     * leaves it dirty, or finishes before the page is marked dirty again.
+     */
+    void logged(Page page, TransactionId tid, long lsn) {
+        synchronized (recLsns) {
+            recLsns.putIfAbsent(page.getId(), lsn);
+            pageLsns.put(page.getId(), lsn);
+            page.setLsn(lsn);
+            page.markDirty(true, tid);
+        }
+    }
+
+    /**
+     * @return a copy of the dirty page table, mapping each dirty page to
+     *         its recLSN
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        synchronized (recLsns) {
+            return new HashMap<>(recLsns);
         }
     }
 
@@ -229,13 +391,8 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(Page page:pageHashMap.values()){
-            if(page.isDirty()!=null){
-                flushPage(page.getId());
-                page.markDirty(false,null);
-            }
-        }
-
+        //按页号顺序写出所有脏页，相邻的页合并成一次写
+        cleanPages(Integer.MAX_VALUE);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -250,7 +407,10 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         pageHashMap.remove(pid.hashCode());
-
+        synchronized (recLsns) {
+            recLsns.remove(pid);
+            pageLsns.remove(pid);
+        }
     }
 
     /**
@@ -258,13 +418,229 @@ public class BufferPool {
      * 将某个页面刷新到磁盘
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
         //获取该页
         Page page = pageHashMap.get(pid.hashCode());
-        //将该页刷新到磁盘
-        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        if (page == null)
+            return;
+        writeRuns(copy(Collections.singletonList(page)));
+    }
+
+    /**
+     * Write up to maxPages dirty pages in page number order, starting after
+     * the page the previous call stopped at, so that repeated calls sweep
+     * the whole pool.  Dirty pages that are adjacent in a heap file are
+     * written with a single write.  Only choosing and copying the pages
+     * holds the monitor.
+     *
+     * @return the number of pages in each write issued
+     */
+    List<Integer> cleanPages(int maxPages) throws IOException {
+        List<PageCopy> copies;
+        synchronized (this) {
+            List<Page> dirty = new ArrayList<>();
+            for (Page page : pageHashMap.values()) {
+                if (page.isDirty() != null)
+                    dirty.add(page);
+            }
+            dirty.sort((a, b) -> PAGE_ORDER.compare(a.getId(), b.getId()));
+            int start = 0;
+            PageId cursor;
+            synchronized (recLsns) {
+                cursor = cleanCursor;
+            }
+            if (cursor != null) {
+                while (start < dirty.size() && PAGE_ORDER.compare(dirty.get(start).getId(), cursor) <= 0)
+                    start++;
+            }
+            Collections.rotate(dirty, -start);
+            if (dirty.size() > maxPages)
+                dirty = dirty.subList(0, maxPages);
+            copies = copy(dirty);
+        }
+        return writeRuns(copies);
+    }
+
+    /**
+     * Copy the contents and pageLSNs of pages.  Must be called with the
+     * monitor held, so that each copy holds exactly the updates logged up
+     * to its pageLSN.
+     */
+    private List<PageCopy> copy(List<Page> pages) {
+        List<PageCopy> copies = new ArrayList<>();
+        synchronized (recLsns) {
+            for (Page page : pages)
+                copies.add(new PageCopy(page, pageLsns.get(page.getId())));
+        }
+        return copies;
+    }
+
+    /**
+     * Write copies of pages given in page number order, a run of adjacent
+     * ones at a time, once the log is on disk past all their pageLSNs.
+     * A copy whose page has been updated or written since it was made is
+     * skipped: the page is either still dirty, or already on disk in a
+     * newer version that the copy must not overwrite.  Pages not updated
+     * again while being written are marked clean.
+     *
+     * @return the number of pages in each write issued
+     */
+    private List<Integer> writeRuns(List<PageCopy> copies) throws IOException {
+        long maxLsn = -1;
+        for (PageCopy c : copies) {
+            if (c.pageLsn != null)
+                maxLsn = Math.max(maxLsn, c.pageLsn);
+        }
+        //先写日志：日志落盘超过这些页的pageLSN后才能写页
+        if (maxLsn >= 0)
+            Database.getLogFile().forceTo(maxLsn + 1);
+        List<Integer> writes = new ArrayList<>();
+        synchronized (writeLock) {
+            List<PageCopy> run = new ArrayList<>();
+            for (PageCopy c : copies) {
+                if (!current(c))
+                    continue;
+                if (!run.isEmpty() && !adjacent(run.get(run.size() - 1).getId(), c.getId())) {
+                    writes.add(writeRun(run));
+                    run = new ArrayList<>();
+                }
+                run.add(c);
+            }
+            if (!run.isEmpty())
+                writes.add(writeRun(run));
+        }
+        return writes;
+    }
+
+    /** @return whether c is still the latest version of its page */
+    private boolean current(PageCopy c) {
+        synchronized (recLsns) {
+            return Objects.equals(pageLsns.get(c.getId()), c.pageLsn);
+        }
+    }
+
+    private static boolean adjacent(PageId a, PageId b) {
+        return a instanceof HeapPageId && b instanceof HeapPageId
+                && a.getTableId() == b.getTableId() && a.getPageNumber() + 1 == b.getPageNumber();
+    }
+
+    /**
+     * Write copies of pages, with a single write if they are adjacent pages
+     * of a heap file.  Must be called with writeLock held.
+     *
+     * @return the number of pages written
+     */
+    private int writeRun(List<PageCopy> run) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(run.get(0).getId().getTableId());
+        if (file instanceof PagedFile) {
+            ((PagedFile) file).writePages(new ArrayList<>(run));
+        } else {
+            for (PageCopy c : run)
+                file.writePage(c);
+        }
+        //写页期间又被更新的页仍然是脏页
+        synchronized (recLsns) {
+            for (PageCopy c : run) {
+                if (current(c)) {
+                    c.page.markDirty(false, null);
+                    recLsns.remove(c.getId());
+                    pageLsns.remove(c.getId());
+                }
+            }
+            cleanCursor = run.get(run.size() - 1).getId();
+        }
+        return run.size();
+    }
+
+    /**
+     * Write page straight to disk in place of the cached copy, which is
+     * dropped.  Used by rollback to install a before image.
+     */
+    synchronized void installPage(Page page) throws IOException {
+        synchronized (writeLock) {
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            discardPage(page.getId());
+        }
+    }
+
+    /**
+     * A copy of a cached page as of its pageLSN, which is what writeRuns
+     * writes; only what DbFile.writePage needs is implemented.
+     */
+    private static final class PageCopy implements Page {
+        /** the cached page, to mark clean once the copy is written */
+        final Page page;
+        /** the page's pageLSN when copied, or null if it was not logged */
+        final Long pageLsn;
+        private final byte[] data;
+        private final long lsn;
+
+        PageCopy(Page page, Long pageLsn) {
+            this.page = page;
+            this.pageLsn = pageLsn;
+            this.data = page.getPageData();
+            this.lsn = page.getLsn();
+        }
+
+        public PageId getId() {
+            return page.getId();
+        }
+
+        public byte[] getPageData() {
+            return data;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+
+        public void setLsn(long lsn) {
+            throw new UnsupportedOperationException();
+        }
+
+        public TransactionId isDirty() {
+            return null;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Page getBeforeImage() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setBeforeImage() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * @return the number of pages that can be read in without writing one:
+     *         the cached pages that are not dirty plus the unused frames
+     */
+    int numCleanPages() {
+        int clean = 0;
+        for (Page page : pageHashMap.values()) {
+            if (page.isDirty() == null)
+                clean++;
+        }
+        return clean + Math.max(0, numPages - pageHashMap.size());
+    }
+
+    /** Called by a PageCleaner as it starts (with itself) and stops (with null). */
+    void setCleaner(PageCleaner cleaner) {
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * @return the number of evictions that found every cached page dirty and
+     *         so had to write one before dropping it
+     */
+    public synchronized long getForegroundWrites() {
+        return foregroundWrites;
     }
 
     /** Write all pages of the specified transaction to disk.
@@ -272,24 +648,52 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        //只写出该事务弄脏且仍在缓存中的页，相邻的页合并成一次写
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (e == null)
+            return;
+        List<Page> dirty = new ArrayList<>();
+        for (PageId pid : e.getDirtyPages()) {
+            Page page = pageHashMap.get(pid.hashCode());
+            if (page != null && page.isDirty() != null)
+                dirty.add(page);
+        }
+        dirty.sort((a, b) -> PAGE_ORDER.compare(a.getId(), b.getId()));
+        writeRuns(copy(dirty));
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Drops a random clean page; only if every page is dirty is one flushed
+     * to disk first.  Wakes the cleaner when clean pages run low.
      */
     private synchronized  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        ArrayList<Map.Entry<Integer,Page>> list = new ArrayList<>(pageHashMap.entrySet());
+        List<Map.Entry<Integer,Page>> clean = new ArrayList<>();
+        for (Map.Entry<Integer,Page> entry : pageHashMap.entrySet()) {
+            if (entry.getValue().isDirty() == null)
+                clean.add(entry);
+        }
         Random random = new Random();
-        Map.Entry<Integer,Page> entry = list.get(random.nextInt(list.size()));
-        try {
-            flushPage(entry.getValue().getId());
-        }catch (IOException e){
-            e.printStackTrace();
+        Map.Entry<Integer,Page> victim;
+        if (!clean.isEmpty()) {
+            victim = clean.get(random.nextInt(clean.size()));
+        } else {
+            //没有干净页，只能在前台写出一个脏页
+            List<Map.Entry<Integer,Page>> list = new ArrayList<>(pageHashMap.entrySet());
+            victim = list.get(random.nextInt(list.size()));
+            foregroundWrites++;
+            try {
+                flushPage(victim.getValue().getId());
+            }catch (IOException e){
+                e.printStackTrace();
+            }
         }
-        pageHashMap.remove(entry.getKey());
+        pageHashMap.remove(victim.getKey());
+        PageCleaner c = cleaner;
+        if (c != null && clean.size() - 1 < c.getCleanPages())
+            c.wakeUp();
     }
 
 }
@@ -0,0 +1,458 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The lightweight encodings a {@link PaxPage} can use for a column minipage.
+ * Every minipage on disk starts with the id of its codec, so each page (and
+ * each column on a page) picks whichever encoding is smallest for the values
+ * it actually holds; see {@link #encodeBest}.
+ * <p>
+ * A decoded minipage is a {@link Column}. Besides turning back into fields,
+ * a Column can evaluate a predicate directly on its encoded form: a
+ * dictionary column compares each distinct value once and then tests codes,
+ * a run-length column compares once per run, and a frame-of-reference column
+ * compares primitive longs without creating any Field objects.
+ */
+public enum ColumnCodec {
+    /** Values stored one after another, exactly as {@link Field#serialize} writes them. */
+    PLAIN {
+        boolean supports(Type type) {
+            return true;
+        }
+
+        void encode(Type type, Field[] values, DataOutputStream dos) throws IOException {
+            for (Field f : values) {
+                f.serialize(dos);
+            }
+        }
+
+        Column read(Type type, int n, DataInputStream dis) throws IOException, ParseException {
+            Field[] values = new Field[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = type.parse(dis);
+            }
+            return new PlainColumn(values);
+        }
+    },
+
+    /**
+     * The distinct strings of the minipage, followed by one bit-packed code
+     * per slot indexing into them.
+     */
+    DICTIONARY {
+        boolean supports(Type type) {
+            return type == Type.STRING_TYPE;
+        }
+
+        void encode(Type type, Field[] values, DataOutputStream dos) throws IOException {
+            Map<Field, Integer> codes = new HashMap<>();
+            long[] packed = new long[values.length];
+            ByteArrayOutputStream dict = new ByteArrayOutputStream();
+            DataOutputStream dictOut = new DataOutputStream(dict);
+            for (int i = 0; i < values.length; i++) {
+                Integer code = codes.get(values[i]);
+                if (code == null) {
+                    code = codes.size();
+                    codes.put(values[i], code);
+                    writeValue(type, values[i], dictOut);
+                }
+                packed[i] = code;
+            }
+            int width = bitWidth(codes.size() - 1);
+            dos.writeInt(codes.size());
+            dos.write(dict.toByteArray());
+            dos.writeByte(width);
+            dos.write(pack(packed, width));
+        }
+
+        Column read(Type type, int n, DataInputStream dis) throws IOException, ParseException {
+            Field[] dict = new Field[dis.readInt()];
+            for (int k = 0; k < dict.length; k++) {
+                dict[k] = readValue(type, dis);
+            }
+            long[] packed = unpack(dis, n, dis.readUnsignedByte());
+            int[] codes = new int[n];
+            for (int i = 0; i < n; i++) {
+                codes[i] = (int) packed[i];
+            }
+            return new DictionaryColumn(dict, codes);
+        }
+    },
+
+    /** A list of (run length, value) pairs. */
+    RUN_LENGTH {
+        boolean supports(Type type) {
+            return true;
+        }
+
+        void encode(Type type, Field[] values, DataOutputStream dos) throws IOException {
+            ByteArrayOutputStream runs = new ByteArrayOutputStream();
+            DataOutputStream runsOut = new DataOutputStream(runs);
+            int numRuns = 0;
+            for (int start = 0; start < values.length; ) {
+                int end = start + 1;
+                while (end < values.length && values[end].equals(values[start]))
+                    end++;
+                runsOut.writeInt(end - start);
+                writeValue(type, values[start], runsOut);
+                numRuns++;
+                start = end;
+            }
+            dos.writeInt(numRuns);
+            dos.write(runs.toByteArray());
+        }
+
+        Column read(Type type, int n, DataInputStream dis) throws IOException, ParseException {
+            int numRuns = dis.readInt();
+            int[] ends = new int[numRuns];
+            Field[] values = new Field[numRuns];
+            int end = 0;
+            for (int r = 0; r < numRuns; r++) {
+                end += dis.readInt();
+                ends[r] = end;
+                values[r] = readValue(type, dis);
+            }
+            return new RunLengthColumn(values, ends);
+        }
+    },
+
+    /**
+     * The minimum value of the minipage, followed by each value's offset from
+     * it, bit-packed to the width of the largest offset.
+     */
+    FRAME_OF_REFERENCE {
+        boolean supports(Type type) {
+            return type == Type.INT_TYPE || type == Type.LONG_TYPE || type == Type.DATE_TYPE;
+        }
+
+        void encode(Type type, Field[] values, DataOutputStream dos) throws IOException {
+            long base = Long.MAX_VALUE;
+            for (Field f : values) {
+                base = Math.min(base, toLong(f));
+            }
+            long maxOffset = 0;
+            long[] offsets = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                // offsets are unsigned, so a full 64 bit range still fits
+                offsets[i] = toLong(values[i]) - base;
+                if (Long.compareUnsigned(offsets[i], maxOffset) > 0)
+                    maxOffset = offsets[i];
+            }
+            int width = bitWidth(maxOffset);
+            dos.writeLong(base);
+            dos.writeByte(width);
+            dos.write(pack(offsets, width));
+        }
+
+        Column read(Type type, int n, DataInputStream dis) throws IOException {
+            long base = dis.readLong();
+            long[] offsets = unpack(dis, n, dis.readUnsignedByte());
+            return new FrameOfReferenceColumn(type, base, offsets);
+        }
+    };
+
+    /** @return true if this codec can encode values of the given type */
+    abstract boolean supports(Type type);
+
+    /** Write values, none of which may be null, in this encoding. */
+    abstract void encode(Type type, Field[] values, DataOutputStream dos) throws IOException;
+
+    /** Read n values written by {@link #encode}. */
+    abstract Column read(Type type, int n, DataInputStream dis) throws IOException, ParseException;
+
+    /**
+     * Encode values with every codec that supports their type and keep the
+     * smallest result.
+     *
+     * @return the id of the chosen codec followed by its encoding of values
+     */
+    static byte[] encodeBest(Type type, Field[] values) {
+        byte[] best = null;
+        for (ColumnCodec codec : values()) {
+            if (!codec.supports(type))
+                continue;
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                dos.writeByte(codec.ordinal());
+                codec.encode(type, values, dos);
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                throw new RuntimeException(e);
+            }
+            if (best == null || baos.size() < best.length)
+                best = baos.toByteArray();
+        }
+        return best;
+    }
+
+    /**
+     * @return the codec whose id (the first byte written by
+     *   {@link #encodeBest}) is id
+     * @throws ParseException if there is no such codec
+     */
+    static ColumnCodec forId(int id) throws ParseException {
+        if (id < 0 || id >= values().length)
+            throw new ParseException("unknown column codec " + id, 0);
+        return values()[id];
+    }
+
+    /**
+     * Strings are written without the padding of {@link StringField#serialize},
+     * everything else as usual.
+     */
+    private static void writeValue(Type type, Field f, DataOutputStream dos) throws IOException {
+        if (type == Type.STRING_TYPE) {
+            byte[] bytes = ((StringField) f).getValue().getBytes();
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        } else {
+            f.serialize(dos);
+        }
+    }
+
+    private static Field readValue(Type type, DataInputStream dis) throws IOException, ParseException {
+        if (type == Type.STRING_TYPE) {
+            byte[] bytes = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            return new StringField(new String(bytes), Type.STRING_LEN);
+        }
+        return type.parse(dis);
+    }
+
+    private static long toLong(Field f) {
+        switch (f.getType()) {
+            case INT_TYPE:
+                return ((IntField) f).getValue();
+            case LONG_TYPE:
+                return ((LongField) f).getValue();
+            case DATE_TYPE:
+                return ((DateField) f).getValue();
+            default:
+                throw new IllegalArgumentException("not an integral field: " + f.getType());
+        }
+    }
+
+    /** @return the number of bits needed to hold the unsigned value v */
+    static int bitWidth(long v) {
+        return 64 - Long.numberOfLeadingZeros(v);
+    }
+
+    /** Pack the low width bits of each value, least significant bit first. */
+    static byte[] pack(long[] values, int width) {
+        byte[] out = new byte[(int) (((long) values.length * width + 7) / 8)];
+        long pos = 0;
+        for (long v : values) {
+            for (int b = 0; b < width; ) {
+                int off = (int) (pos & 7);
+                int take = Math.min(8 - off, width - b);
+                out[(int) (pos >>> 3)] |= (byte) (((v >>> b) & ((1 << take) - 1)) << off);
+                b += take;
+                pos += take;
+            }
+        }
+        return out;
+    }
+
+    /** Read back n values written by {@link #pack}. */
+    static long[] unpack(DataInputStream dis, int n, int width) throws IOException {
+        byte[] in = new byte[(int) (((long) n * width + 7) / 8)];
+        dis.readFully(in);
+        long[] values = new long[n];
+        long pos = 0;
+        for (int i = 0; i < n; i++) {
+            long v = 0;
+            for (int b = 0; b < width; ) {
+                int off = (int) (pos & 7);
+                int take = Math.min(8 - off, width - b);
+                v |= (long) ((in[(int) (pos >>> 3)] >>> off) & ((1 << take) - 1)) << b;
+                b += take;
+                pos += take;
+            }
+            values[i] = v;
+        }
+        return values;
+    }
+
+    /**
+     * A minipage read back from disk, still in its encoded form.
+     */
+    public abstract static class Column {
+
+        /** @return the number of values in this column */
+        public abstract int size();
+
+        /** @return the values of this column, one per slot */
+        public abstract Field[] decode();
+
+        /**
+         * Clear the entries of sel whose value does not satisfy
+         * <tt>value op operand</tt>. The default decodes the column and
+         * compares field by field.
+         */
+        public void filter(Predicate.Op op, Field operand, boolean[] sel) {
+            Field[] values = decode();
+            for (int i = 0; i < values.length; i++) {
+                if (sel[i] && !values[i].compare(op, operand))
+                    sel[i] = false;
+            }
+        }
+    }
+
+    private static final class PlainColumn extends Column {
+        private final Field[] values;
+
+        PlainColumn(Field[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public Field[] decode() {
+            return values.clone();
+        }
+    }
+
+    private static final class DictionaryColumn extends Column {
+        private final Field[] dict;
+        private final int[] codes;
+
+        DictionaryColumn(Field[] dict, int[] codes) {
+            this.dict = dict;
+            this.codes = codes;
+        }
+
+        public int size() {
+            return codes.length;
+        }
+
+        public Field[] decode() {
+            Field[] values = new Field[codes.length];
+            for (int i = 0; i < codes.length; i++) {
+                values[i] = dict[codes[i]];
+            }
+            return values;
+        }
+
+        public void filter(Predicate.Op op, Field operand, boolean[] sel) {
+            // evaluate the predicate once per distinct value, then just test codes
+            boolean[] matches = new boolean[dict.length];
+            for (int k = 0; k < dict.length; k++) {
+                matches[k] = dict[k].compare(op, operand);
+            }
+            for (int i = 0; i < codes.length; i++) {
+                if (sel[i] && !matches[codes[i]])
+                    sel[i] = false;
+            }
+        }
+    }
+
+    private static final class RunLengthColumn extends Column {
+        private final Field[] values;
+        /** exclusive end slot of each run */
+        private final int[] ends;
+
+        RunLengthColumn(Field[] values, int[] ends) {
+            this.values = values;
+            this.ends = ends;
+        }
+
+        public int size() {
+            return ends.length == 0 ? 0 : ends[ends.length - 1];
+        }
+
+        public Field[] decode() {
+            Field[] out = new Field[size()];
+            int start = 0;
+            for (int r = 0; r < ends.length; r++) {
+                java.util.Arrays.fill(out, start, ends[r], values[r]);
+                start = ends[r];
+            }
+            return out;
+        }
+
+        public void filter(Predicate.Op op, Field operand, boolean[] sel) {
+            int start = 0;
+            for (int r = 0; r < ends.length; r++) {
+                if (!values[r].compare(op, operand))
+                    java.util.Arrays.fill(sel, start, ends[r], false);
+                start = ends[r];
+            }
+        }
+    }
+
+    private static final class FrameOfReferenceColumn extends Column {
+        private final Type type;
+        private final long base;
+        private final long[] offsets;
+
+        FrameOfReferenceColumn(Type type, long base, long[] offsets) {
+            this.type = type;
+            this.base = base;
+            this.offsets = offsets;
+        }
+
+        public int size() {
+            return offsets.length;
+        }
+
+        public Field[] decode() {
+            Field[] values = new Field[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                long v = base + offsets[i];
+                switch (type) {
+                    case INT_TYPE:
+                        values[i] = new IntField((int) v);
+                        break;
+                    case LONG_TYPE:
+                        values[i] = new LongField(v);
+                        break;
+                    default:
+                        values[i] = new DateField(v);
+                }
+            }
+            return values;
+        }
+
+        public void filter(Predicate.Op op, Field operand, boolean[] sel) {
+            if (operand.getType() != type) {
+                super.filter(op, operand, sel);
+                return;
+            }
+            long c = toLong(operand);
+            for (int i = 0; i < offsets.length; i++) {
+                if (sel[i] && !compare(base + offsets[i], op, c))
+                    sel[i] = false;
+            }
+        }
+
+        private static boolean compare(long v, Predicate.Op op, long c) {
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    return v == c;
+                case NOT_EQUALS:
+                    return v != c;
+                case GREATER_THAN:
+                    return v > c;
+                case GREATER_THAN_OR_EQ:
+                    return v >= c;
+                case LESS_THAN:
+                    return v < c;
+                case LESS_THAN_OR_EQ:
+                    return v <= c;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package simpledb.storage;
+
+import java.io.File;
+
+/**
+ * Exception that is thrown when a page read from disk does not match its
+ * checksum, i.e. it is corrupt or was torn by an incomplete write. Unlike
+ * the IllegalArgumentException readPage throws for a page that does not
+ * exist, this means the page is there but cannot be trusted.
+ *
+ * @see PageChecksums#verify
+ */
+public class CorruptPageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final int pageNo;
+
+    public CorruptPageException(File file, int pageNo) {
+        super("checksum mismatch on page " + pageNo + " of " + file
+                + ": the page is corrupt or was torn by an incomplete write");
+        this.file = file;
+        this.pageNo = pageNo;
+    }
+
+    /** @return the table file holding the page */
+    public File getFile() {
+        return file;
+    }
+
+    /** @return the number of the page in its file */
+    public int getPageNo() {
+        return pageNo;
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb.storage;
+
+import simpledb.execution.Predicate;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Instance of Field that stores a date or timestamp. The value is kept as
+ * milliseconds since the epoch (UTC), so it is stored in a fixed 8 bytes and
+ * compared as a primitive long rather than as a string.
+ */
+public class DateField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final long millis;
+
+    /**
+     * @return the milliseconds since the epoch (UTC) of this date
+     */
+    public long getValue() {
+        return millis;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param millis The value of this field, in milliseconds since the epoch
+     *               (UTC).
+     */
+    public DateField(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Parse a date from its textual form. Accepted forms are
+     * <tt>yyyy-MM-dd</tt>, <tt>yyyy-MM-dd HH:mm:ss</tt> (a 'T' may separate
+     * the date and time) and a plain number of milliseconds since the epoch.
+     * All dates are interpreted in UTC.
+     *
+     * @param s the text to parse
+     * @throws IllegalArgumentException if s is not a valid date
+     */
+    public static DateField parse(String s) {
+        try {
+            if (s.indexOf('-', 1) < 0)
+                return new DateField(Long.parseLong(s));
+            if (s.length() <= 10)
+                return new DateField(LocalDate.parse(s).atStartOfDay()
+                        .toInstant(ZoneOffset.UTC).toEpochMilli());
+            LocalDateTime dt = LocalDateTime.parse(s.replace('T', ' '), TIMESTAMP_FORMAT);
+            return new DateField(dt.toInstant(ZoneOffset.UTC).toEpochMilli());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date " + s, e);
+        }
+    }
+
+    /**
+     * @return the date as <tt>yyyy-MM-dd</tt> if it falls on midnight, or as
+     *   <tt>yyyy-MM-dd HH:mm:ss</tt> otherwise
+     */
+    public String toString() {
+        LocalDateTime dt = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+        if (dt.toLocalTime().toNanoOfDay() == 0)
+            return dt.toLocalDate().toString();
+        return dt.format(TIMESTAMP_FORMAT);
+    }
+
+    public int hashCode() {
+        return Long.hashCode(millis);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof DateField)) return false;
+        return ((DateField) field).millis == millis;
+    }
+
+    public void serialize(DataOutputStream dos) throws IOException {
+        dos.writeLong(millis);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field.
+     * Return semantics are as specified by Field.compare
+     *
+     * @throws IllegalCastException if val is not a DateField
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+
+        long dVal = ((DateField) val).millis;
+
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return millis == dVal;
+            case NOT_EQUALS:
+                return millis != dVal;
+            case GREATER_THAN:
+                return millis > dVal;
+            case GREATER_THAN_OR_EQ:
+                return millis >= dVal;
+            case LESS_THAN:
+                return millis < dVal;
+            case LESS_THAN_OR_EQ:
+                return millis <= dVal;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the Type of this field.
+     *
+     * @return Type.DATE_TYPE
+     */
+    public Type getType() {
+        return Type.DATE_TYPE;
+    }
+}
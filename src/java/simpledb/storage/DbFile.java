@@ -21,6 +21,7 @@ public interface DbFile {
      * Read the specified page from disk.
      *
      * @throws IllegalArgumentException if the page does not exist in this file.
+     * @throws CorruptPageException if the page does not match its checksum.
      */
     Page readPage(PageId id) ;
 
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.transaction.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -21,7 +22,7 @@ import java.util.*;
  * @see HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements PagedFile {
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -33,10 +34,12 @@ public class HeapFile implements DbFile {
 
     private final File file;
     private final TupleDesc tupleDesc;
+    private final PageChecksums checksums;
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
         this.file=f;
         this.tupleDesc=td;
+        this.checksums=new PageChecksums(f,0);
     }
 
     /**
@@ -49,6 +52,13 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * Returns the checksums of the pages of this HeapFile.
+     */
+    public PageChecksums getChecksums() {
+        return checksums;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -76,15 +86,11 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        int tableId = pid.getTableId();
         //确定这是第几页
         int pgNo = pid.getPageNumber();
-        RandomAccessFile randomAccessFile =null;
         //创建随机访问文件
-        try{
-            randomAccessFile = new RandomAccessFile(file,"r");
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file,"r")){
             if((long) (pgNo + 1) *BufferPool.getPageSize()>randomAccessFile.length()){
-                randomAccessFile.close();
                 throw new IllegalArgumentException("剩余的数据不足一页");
             }
             //创建读取数组
@@ -93,25 +99,19 @@ public class HeapFile implements DbFile {
             //页数x每页的大小，确定从哪个位置开始读取数据
             //将指针定位到读的位置
             randomAccessFile.seek((long) pgNo *BufferPool.getPageSize());
-            int read=randomAccessFile.read(readBytes,0,BufferPool.getPageSize());
-            if(read!=BufferPool.getPageSize()){
-                throw new IllegalArgumentException("数据未读满");
-            }
+            randomAccessFile.readFully(readBytes);
+            //校验页面的checksum，损坏或写了一半的页面抛出CorruptPageException
+            long lsn = checksums.verify(pgNo,readBytes);
             //创建返回的HeapPage,HeapPage需要HeapPageId和byte[]
             //创建HeapPageId
             HeapPageId heapPageId = new HeapPageId(pid.getTableId(),pgNo);
             HeapPage heapPage = new HeapPage(heapPageId,readBytes);
+            //记录磁盘上这一版页面的pageLSN，恢复时据此跳过已经反映在页上的日志
+            heapPage.setLsn(lsn);
             return heapPage;
         }catch (IOException e){
-            e.printStackTrace();
-        }finally {
-            try{
-                randomAccessFile.close();
-            }catch (Exception e) {
-                e.printStackTrace();
-            }
+            throw new UncheckedIOException("cannot read page "+pgNo+" of "+file,e);
         }
-        throw new IllegalArgumentException("this pid is invalid");
     }
 
     // see DbFile.java for javadocs
@@ -122,10 +122,31 @@ public class HeapFile implements DbFile {
         if(pageId>numPages()){
             throw new IllegalArgumentException();
         }
-        RandomAccessFile f = new RandomAccessFile(file,"rw");
-        f.seek(pageId*BufferPool.getPageSize());
-        f.write(page.getPageData());
-        f.close();
+        //写入页面的同时记录它的checksum
+        checksums.write(pageId,page.getPageData(),page.getLsn());
+    }
+
+    /**
+     * Write pages with consecutive page numbers with a single write.
+     *
+     * @param pages the pages, in page number order with no gaps
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        int first = pages.get(0).getId().getPageNumber();
+        if (first > numPages()) {
+            throw new IllegalArgumentException();
+        }
+        List<byte[]> data = new ArrayList<>(pages.size());
+        long[] lsns = new long[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).getId().getPageNumber() != first + i)
+                throw new IllegalArgumentException("pages are not consecutive");
+            data.add(pages.get(i).getPageData());
+            lsns[i] = pages.get(i).getLsn();
+        }
+        checksums.write(first, data, lsns);
     }
 
     /**
@@ -148,9 +169,7 @@ public class HeapFile implements DbFile {
             //根据表id和该页存储在表的位置，查找该页
             HeapPageId heapPageId = new HeapPageId(getId(),i);
             HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-            if(heapPage.getNumEmptySlots()!=0){
-                //如果该页为空的槽位不为0，则将原则插入到该页
-                heapPage.insertTuple(t);
+            if(insertInto(tid,heapPage,t)){
                 arrayList.add(heapPage);
                 return arrayList;
             }
@@ -163,20 +182,46 @@ public class HeapFile implements DbFile {
         //然后将空数据，输出到文件中，所以文件的大小就被扩充了
         outputStream.write(emptyPage);
         outputStream.close();
+        checksums.record(numPages()-1,emptyPage);
 
         //此时创建新的HeapPageId，页面的存储位置为最后一页，此时numPages()已经更新
         HeapPageId heapPageId = new HeapPageId(getId(),numPages()-1);
         //之后从BufferPool中读取该页面
         HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-        heapPage.insertTuple(t);
+        if(!insertInto(tid,heapPage,t)){
+            throw new DbException("新页面没有可用的槽位");
+        }
         arrayList.add(heapPage);
         return arrayList;
     }
 
+    /**
+     * Insert t into the first empty slot of page that tid can lock without
+     * waiting; slots emptied by a transaction that has not committed stay
+     * locked (and kept for its rollback) until it completes.
+     *
+     * @return whether t was inserted
+     */
+    private boolean insertInto(TransactionId tid, HeapPage page, Tuple t) throws DbException {
+        LockManager locks = Database.getBufferPool().getLockManager();
+        //未提交事务清空的槽位要留给它回滚，不能复用
+        for(int slot = Database.getVersionStore().freeSlot(page,0); slot>=0;
+                slot = Database.getVersionStore().freeSlot(page,slot+1)){
+            if(locks.tryLockRow(tid,new RecordId(page.getId(),slot),LockManager.Mode.X)){
+                //如果该页有可用的空槽位，则将原则插入到该页
+                page.insertTuple(t,slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
+        //删除前锁定该行
+        Database.getBufferPool().getLockManager().lockRow(tid,t.getRecordId(),LockManager.Mode.X);
         //必须使用BufferPool.getPage()方法访问页面
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
@@ -191,7 +236,16 @@ public class HeapFile implements DbFile {
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
 
-        return new HeapFileIterator(this,tid);
+        return iterator(tid, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns an iterator over the tuples on pages firstPage (inclusive) to
+     * endPage (exclusive) of this file, so that disjoint ranges of pages can
+     * be scanned in parallel.
+     */
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        return new HeapFileIterator(this,tid,firstPage,endPage);
     }
 
     private static final class HeapFileIterator implements DbFileIterator{
@@ -201,11 +255,22 @@ public class HeapFile implements DbFile {
 
         private Iterator<Tuple> it;
 
-        private int whichPage;
+        //未打开或已关闭时不指向任何页面
+        private int whichPage = Integer.MAX_VALUE;
 
-        public HeapFileIterator(HeapFile file,TransactionId tid){
+        //扫描的页面范围[firstPage, endPage)
+        private final int firstPage;
+        private final int endPage;
+
+        public HeapFileIterator(HeapFile file,TransactionId tid,int firstPage,int endPage){
             this.heapFile=file;
             this.tid=tid;
+            this.firstPage=firstPage;
+            this.endPage=endPage;
+        }
+
+        private int lastPage(){
+            return Math.min(endPage,heapFile.numPages())-1;
         }
 
         //获取一个页面的图元
@@ -214,7 +279,8 @@ public class HeapFile implements DbFile {
             if(pageNumber>=0&&pageNumber<heapFile.numPages()){
                 HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
                 HeapPage page =(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-                return page.iterator();
+                //快照读：返回该事务开始时可见的版本
+                return Database.getVersionStore().visibleTuples(tid,page);
             }else{
                 throw new DbException("无效pageNumber");
             }
@@ -222,9 +288,9 @@ public class HeapFile implements DbFile {
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            whichPage = 0;
-            //
-            it = getPageTuples(whichPage);
+            whichPage = firstPage;
+            //范围内没有页面时返回空迭代器
+            it = whichPage <= lastPage() ? getPageTuples(whichPage) : null;
         }
 
         @Override
@@ -233,7 +299,7 @@ public class HeapFile implements DbFile {
             // 如果迭代器为空，或者遍历结束，则检查其下一页
             if (it == null || !it.hasNext()) {
                 // 如果当前页已经没有元素，检查是否有下一页
-                while (whichPage < heapFile.numPages() - 1) {
+                while (whichPage < lastPage()) {
                     // 跳转到下一页
                     whichPage++;
                     // 获取新的页面迭代器
@@ -252,7 +318,7 @@ public class HeapFile implements DbFile {
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if(!it.hasNext()){
+            if(!hasNext()){
                 throw new NoSuchElementException("没有下一个元组了");
             }
             return it.next();
@@ -267,6 +333,7 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             it=null;
+            whichPage=Integer.MAX_VALUE;
         }
     }
 
@@ -71,8 +71,9 @@ public class HeapFileEncoder {
 
    /** Convert the specified input text file into a binary
     * page file. <br>
-    * Assume format of the input file is (note that only integer fields are
-    * supported):<br>
+    * Assume format of the input file is (integer fields shown; long, double
+    * and date fields are written in the text form accepted by
+    * {@link Type#parse(String)}):<br>
     * int,...,int\n<br>
     * int,...,int\n<br>
     * ...<br>
@@ -109,6 +110,7 @@ public class HeapFileEncoder {
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
     FileOutputStream os = new FileOutputStream(outFile);
+    PageChecksums.discard(outFile);
 
     // our numbers probably won't be much larger than 1024 digits
     char[] buf = new char[1024];
@@ -148,6 +150,16 @@ public class HeapFileEncoder {
                     System.out.println ("BAD LINE : " + s);
                 }
             }
+            else if (typeAr[fieldNo] == Type.LONG_TYPE
+                    || typeAr[fieldNo] == Type.DOUBLE_TYPE
+                    || typeAr[fieldNo] == Type.DATE_TYPE) {
+                try {
+                    typeAr[fieldNo].parse(s).serialize(pageStream);
+                } catch (IllegalArgumentException e) {
+                    System.out.println ("BAD LINE : " + s);
+                    pageStream.write(new byte[typeAr[fieldNo].getLen()]);
+                }
+            }
             else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
                 s = s.trim();
                 int overflow = Type.STRING_LEN - s.length();
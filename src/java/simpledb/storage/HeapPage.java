@@ -17,7 +17,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlotPage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -27,6 +27,7 @@ public class HeapPage implements Page {
     final int numSlots;
     //是否为脏页
     private boolean dirty;
+    private volatile long lsn = -1;
     //事务id
     private TransactionId transactionId;
 
@@ -304,17 +305,33 @@ public class HeapPage implements Page {
         for(int i=0;i<numSlots;i++){
             //如果这个槽位是空的，则将元组插入这个槽位
             if(!isSlotUsed(i)){
-                //首先更新tuple的RecordId
-                t.setRecordId(new RecordId(pid,i));
-                //之后更新页眉
-                markSlotUsed(i,false);
-                //之后将该tuple存入数组
-                tuples[i]=t;
+                insertTuple(t,i);
                 return;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to the page in a given empty slot, e.g. one
+     * chosen by {@link VersionStore#freeSlot}.
+     *
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int i) throws DbException {
+        if(isSlotUsed(i)){
+            throw new DbException("槽位已被占用");
+        }
+        if(!td.equals(t.getTupleDesc())){
+            throw new DbException("TupleDesc不匹配");
+        }
+        //首先更新tuple的RecordId
+        t.setRecordId(new RecordId(pid,i));
+        //之后更新页眉
+        markSlotUsed(i,false);
+        //之后将该tuple存入数组
+        tuples[i]=t;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -326,6 +343,16 @@ public class HeapPage implements Page {
         this.transactionId=tid;
     }
 
+    // see Page.java for javadocs
+    public long getLsn() {
+        return lsn;
+    }
+
+    // see Page.java for javadocs
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      * 返回上次弄脏此页面的事务的id，如果页面不脏，则返回bull
@@ -394,6 +421,44 @@ public class HeapPage implements Page {
 
     }
 
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public byte[] getSlotImage(int i) {
+        if (!isSlotUsed(i))
+            return null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                tuples[i].getField(j).serialize(dos);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    public void setSlotImage(int i, byte[] image) {
+        if (image == null) {
+            markSlotUsed(i, true);
+            tuples[i] = null;
+            return;
+        }
+        // markSlotUsed(i, false) marks the slot as holding a tuple
+        markSlotUsed(i, false);
+        tuples[i] = readNextTuple(new DataInputStream(new ByteArrayInputStream(image)), i);
+    }
+
+    /** A heap page is nothing but its slots and their bitmap. */
+    public byte[] getNonSlotData() {
+        return new byte[0];
+    }
+
+    public void setNonSlotData(byte[] data) {
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -2,12 +2,28 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
+import simpledb.transaction.TransactionTable;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -22,7 +38,7 @@ Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -36,6 +52,51 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Commits do not force the log themselves.  logCommit appends its record
+under the LogFile lock, then waits (without holding the lock) until a
+single flusher thread has forced the log past the record's LSN.  Every
+commit that appends while a force is in progress is covered by the next
+force, so one fsync releases a whole batch of committers.  The flusher
+can also wait up to a commit delay for a batch to fill up; see
+setGroupCommit.  The flusher only ever takes the LogFile lock and then
+the flush lock, never the other way round.
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES.  Every update is logged as it is made (see
+BufferPool), and the LSN of a record is lsnBase (kept in the file header)
+plus its offset in the file.  Checkpoints record the transaction table and the dirty page table
+(each dirty page with its recLSN).  recover() makes three passes:
+analysis rebuilds both tables from the last checkpoint onwards; redo
+repeats history from the smallest recLSN, skipping records for pages that
+were not dirty or were written after the record; undo rolls back the
+transactions that never finished, newest update first, logging a CLR for
+each update it undoes so that a crash during recovery does not undo
+anything twice.  Redo is partitioned by page across worker threads (see
+setRecoveryThreads), so each page's records are still applied in log
+order.
+
+Checkpoints are fuzzy: logCheckpoint only writes down the two tables and
+writes no pages, and logTruncate copies the log without holding the
+LogFile lock.  Records refer to other records by LSN, so truncation copies
+them byte for byte.  A TrickleWriter keeps the oldest recLSNs, and so the redo
+point, moving forward.
+
+Every page carries the LSN of the last record applied to it (its
+pageLSN, see Page.getLsn), set as the record is logged.  Page formats
+leave no room for it, so it is saved next to the page's checksum when the
+page is written (see PageChecksums) and comes back when the page is read.
+Redo skips the records of a page at or below the pageLSN of its image on
+disk.  A page whose pageLSN is not known (one written before it was
+logged, e.g. a new B+ tree page) is redone from its recLSN, which is still
+safe: UPDATE records install a whole page image and DELTA records install
+whole slots, so applying a record to a page that already reflects it,
+followed by the later records for the page, gives the same page.
 */
 
 /**
@@ -43,35 +104,50 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file starts with a header of HEADER_SIZE bytes: a magic
+integer, a format version integer, the long integer LSN of file offset 0
+(lsnBase), and the long integer LSN of the last written checkpoint, or -1
+if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length frames (see LogReader): an integer frame
+length, a byte record type, a long integer transaction id, the body of
+the record, an integer checksum of everything before it, and the frame
+length again, so that the log can be walked backwards.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, CLR,
+BEGIN, and CHECKPOINT
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> ABORT, COMMIT, and BEGIN records have an empty body
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li>UPDATE RECORDS consist of two entries, a before image and an
+after image.  Each image is a byte page type code (HEAP_PAGE etc.), the
+integer table id and page number, and the integer length and bytes of the
+page data; see LogFile.writePageData() and LogFile.readPageData().
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li>DELTA records describe an update of a slotted page (a HeapPage or a
+BTreeLeafPage) by only the slots it changed, with each slot's bytes
+before and after; see SlotDelta.write().  logWrite writes a DELTA record
+instead of an UPDATE record whenever it can.
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>CLR (compensation) records are written while an update is undone.
+They consist of the LSN of the undone record, followed by a byte record
+type (UPDATE or DELTA) and an update of that type which performs the
+undo.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
+the checkpoint was taken and their first log record.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and the long integer LSN of its first
+record for each active transaction, followed by the dirty page table: an
+integer count of dirty pages and, for each, its serialized page id (a
+byte count of integers, then the integers) and the long integer LSN of
+the first record that dirtied it.
 
 </ul>
+
+<p> Records are appended to a direct buffer and written to the file with
+one write when the buffer fills up or the log is forced or read.
 */
 public class LogFile {
 
@@ -84,16 +160,61 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // page type codes of page images
+    static final int HEAP_PAGE = 1;
+    static final int PAX_PAGE = 2;
+    static final int BTREE_ROOT_PTR_PAGE = 3;
+    static final int BTREE_INTERNAL_PAGE = 4;
+    static final int BTREE_LEAF_PAGE = 5;
+    static final int BTREE_HEADER_PAGE = 6;
+
+    private static final int MAGIC = 0x53444c47;
+    private static final int VERSION = 2;
+    private static final int LSN_BASE_POS = 8;
+    private static final int CHECKPOINT_POS = 16;
+    static final int HEADER_SIZE = 24;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    private static final int APPEND_BUFFER_SIZE = 1 << 16;
+
+    /** records appended since the last write to the file, which starts at
+        file offset currentOffset - appendBuffer.position() */
+    private final ByteBuffer appendBuffer = ByteBuffer.allocateDirect(APPEND_BUFFER_SIZE); //protected by this
+    private final RecordOutput record = new RecordOutput(); //protected by this
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
-    final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /** LSN of file offset 0; the LSN of a record is lsnBase plus its file
+        offset, so LSNs keep growing when logTruncate drops old records */
+    long lsnBase = 0; //protected by this
+
+    private final Object flushLock = new Object();
+    // the following are protected by flushLock
+    private long durableLsn = 0;
+    private long requestedLsn = 0;
+    private long commitTickets = 0; // commits that have waited for a force
+    private long coveredTickets = 0; // of those, the ones a force covered
+    private Thread flusher;
+    private IOException flushError;
+    private long numSyncs = 0;
+    private long numCommitSyncs = 0;
+    private long statsStart = System.nanoTime();
+
+    private volatile long commitDelayMicros = 0;
+    private volatile int maxBatchSize = Integer.MAX_VALUE;
+
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** held while truncating, so that only one truncation runs at a time */
+    private final Object truncateLock = new Object();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -129,17 +250,168 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
+        }
+    }
+
+    /** Throw out the contents of the log file and write a fresh header. */
+    private void startLog() throws IOException {
+        raf.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(lsnBase).putLong(NO_CHECKPOINT_ID).flip();
+        writeFully(raf.getChannel(), header, 0);
+        appendBuffer.clear();
+        currentOffset = HEADER_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining())
+            offset += channel.write(b, offset);
+    }
+
+    /** Write a long of the file header. */
+    private void writeHeaderLong(int pos, long value) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        b.putLong(value).flip();
+        writeFully(raf.getChannel(), b, pos);
+    }
+
+    /** @return an int of the file header */
+    private int readHeaderInt(int pos) throws IOException {
+        return (int) (readHeaderLong(pos) >>> 32);
+    }
+
+    /** @return a long of the file header */
+    private long readHeaderLong(int pos) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(LONG_SIZE);
+        while (b.hasRemaining()) {
+            if (raf.getChannel().read(b, pos + b.position()) < 0)
+                throw new EOFException("log header is incomplete");
         }
+        return b.getLong(0);
+    }
+
+    /** Writes a record body. */
+    private interface RecordBody {
+        void write(DataOutput out) throws IOException;
+    }
+
+    /** Encodes one record at a time; reused for every record. */
+    private static class RecordOutput extends ByteArrayOutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+
+        byte[] bytes() {
+            return buf;
+        }
+
+        void setInt(int pos, int v) {
+            buf[pos] = (byte) (v >>> 24);
+            buf[pos + 1] = (byte) (v >>> 16);
+            buf[pos + 2] = (byte) (v >>> 8);
+            buf[pos + 3] = (byte) v;
+        }
+    }
+
+    /** Append a record to the log.  Must be called with the LogFile lock
+        held, after preAppend().
+        @param body writes the body of the record, or null if it has none
+        @return the offset of the record
+    */
+    private long appendRecord(int type, long tid, RecordBody body) throws IOException {
+        long start = currentOffset;
+        record.reset();
+        DataOutputStream out = record.data;
+        out.writeInt(0); // the length, filled in below
+        out.writeByte(type);
+        out.writeLong(tid);
+        if (body != null)
+            body.write(out);
+        int len = record.size() + 2 * INT_SIZE;
+        record.setInt(0, len);
+        out.writeInt(PageChecksums.checksum(record.bytes(), 0, record.size()));
+        out.writeInt(len);
+
+        if (len > appendBuffer.remaining())
+            flushBuffer();
+        if (len > appendBuffer.capacity()) {
+            writeFully(raf.getChannel(), ByteBuffer.wrap(record.bytes(), 0, len), start);
+        } else {
+            appendBuffer.put(record.bytes(), 0, len);
+        }
+        currentOffset += len;
+        return start;
+    }
+
+    /** Write the records in the append buffer to the file.  Must be
+        called with the LogFile lock held. */
+    private void flushBuffer() throws IOException {
+        if (appendBuffer.position() == 0)
+            return;
+        long offset = currentOffset - appendBuffer.position();
+        appendBuffer.flip();
+        writeFully(raf.getChannel(), appendBuffer, offset);
+        appendBuffer.clear();
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the LSN just past the last record appended to the log */
+    public synchronized long currentLsn() {
+        return lsnBase + currentOffset;
+    }
+
+    /** Configure group commit.
+        @param commitDelayMicros how long the flusher waits for more
+            commits to join a batch before forcing the log; 0 forces as
+            soon as any commit is waiting
+        @param maxBatchSize force without waiting out the delay once this
+            many commits are waiting
+    */
+    public void setGroupCommit(long commitDelayMicros, int maxBatchSize) {
+        this.commitDelayMicros = commitDelayMicros;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** Set the number of threads recover() uses to redo the log. */
+    public void setRecoveryThreads(int recoveryThreads) {
+        this.recoveryThreads = Math.max(1, recoveryThreads);
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getNumSyncs() {
+        synchronized (flushLock) {
+            return numSyncs;
+        }
+    }
+
+    /** @return log forces per second since the LogFile was created or
+        resetSyncStats was called */
+    public double getSyncsPerSecond() {
+        synchronized (flushLock) {
+            double seconds = (System.nanoTime() - statsStart) / 1e9;
+            return seconds > 0 ? numSyncs / seconds : 0;
+        }
+    }
+
+    /** @return the average number of commits made durable by one force of
+        the group commit flusher */
+    public double getAverageBatchSize() {
+        synchronized (flushLock) {
+            return numCommitSyncs == 0 ? 0 : (double) coveredTickets / numCommitSyncs;
+        }
+    }
+
+    public void resetSyncStats() {
+        synchronized (flushLock) {
+            numSyncs = 0;
+            numCommitSyncs = 0;
+            commitTickets -= coveredTickets;
+            coveredTickets = 0;
+            statsStart = System.nanoTime();
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -157,135 +429,348 @@ public class LogFile {
                 //should we verify that this is a live transaction?
 
                 // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
+                // live transactions (needs their first LSN)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId(), null);
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+                ended(tid);
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the group commit flusher has forced the log to disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            appendRecord(COMMIT_RECORD, tid.getId(), null);
+            ended(tid);
+            lsn = currentLsn();
+        }
+        awaitDurable(lsn, true);
+    }
+
+    /** Take tid off the transactions a checkpoint lists as running,
+        once its outcome is logged. */
+    private void ended(TransactionId tid) {
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (e != null) {
+            e.setFirstLsn(TransactionTable.NO_LSN);
+            e.getUpdates().clear();
+        }
+    }
+
+    /** Make sure the log is on disk up to lsn, as the write-ahead rule
+        requires before a page last updated below lsn is written.
+    */
+    void forceTo(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            // the flusher needs our lock, so force the log ourselves
+            boolean durable;
+            synchronized (flushLock) {
+                durable = durableLsn >= lsn;
+            }
+            if (!durable)
+                force();
+            return;
+        }
+        awaitDurable(lsn, false);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Block until the log is on disk up to lsn, asking the flusher
+        thread to force it if necessary.  Must not be called while holding
+        the LogFile lock.
+        @param commit whether a commit is waiting, which counts towards
+            the batch size
+    */
+    private void awaitDurable(long lsn, boolean commit) throws IOException {
+        synchronized (flushLock) {
+            if (durableLsn >= lsn)
+                return;
+            if (commit)
+                commitTickets++;
+            requestedLsn = Math.max(requestedLsn, lsn);
+            if (flusher == null) {
+                flusher = new Thread(this::flushLoop, "log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            flushLock.notifyAll();
+            while (durableLsn < lsn) {
+                if (flushError != null)
+                    throw new IOException("log force failed", flushError);
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for log force");
+                }
+            }
+        }
+    }
+
+    /** Body of the group commit flusher thread; exits after a second
+        without work and is restarted by the next commit. */
+    private void flushLoop() {
+        while (true) {
+            synchronized (flushLock) {
+                try {
+                    if (requestedLsn <= durableLsn) {
+                        flushLock.wait(1000);
+                        if (requestedLsn <= durableLsn) {
+                            flusher = null;
+                            return;
+                        }
+                    }
+                    // give more committers a chance to join this batch
+                    long deadline = System.nanoTime() + commitDelayMicros * 1000;
+                    while (commitTickets - coveredTickets < maxBatchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            break;
+                        flushLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    flusher = null;
+                    return;
+                }
+            }
+            long target;
+            long tickets;
+            FileChannel channel;
+            try {
+                synchronized (this) {
+                    flushBuffer();
+                    target = currentLsn();
+                    channel = raf.getChannel();
+                    // every commit waiting now appended before target
+                    synchronized (flushLock) {
+                        tickets = commitTickets;
+                    }
+                }
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // logTruncate replaced the file, and forced the new one
+                continue;
+            } catch (IOException e) {
+                synchronized (flushLock) {
+                    flushError = e;
+                    flusher = null;
+                    flushLock.notifyAll();
+                }
+                return;
+            }
+            synchronized (flushLock) {
+                numCommitSyncs++;
+                coveredTickets = Math.max(coveredTickets, tickets);
+                markDurable(target);
+            }
+        }
+    }
+
+    /** Record that the log is on disk up to lsn and release the commits
+        waiting for it. */
+    private void markDurable(long lsn) {
+        synchronized (flushLock) {
+            numSyncs++;
+            if (lsn > durableLsn)
+                durableLsn = lsn;
+            flushLock.notifyAll();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  If the page is a
+        SlotPage, a DELTA record holding only the changed slots is written
+        instead.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before, Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, SlotDelta.diff(before, after));
+    }
+
+    /** Write an update record for the specified tid and page, as a DELTA
+        record if delta is not null.
+        @param delta SlotDelta.diff(before, after)
+    */
+    synchronized long logWrite(TransactionId tid, Page before, Page after,
+                               SlotDelta delta)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
+        long lsn = currentLsn();
+        /* the body of an update record is
 
-           record type
-           transaction id
            before page data (see writePageData)
            after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+           or, for a delta record,
+
+           slot delta (see SlotDelta.write)
+        */
+        Update update = delta != null ? new Update(delta) : new Update(before, after);
+        appendRecord(update.type, tid.getId(), out -> writeUpdate(out, update));
+        Database.getTransactionTable().register(tid).getUpdates().add(lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** @return the page type code of a page image */
+    static int pageTypeOf(Page p) {
+        if (p instanceof HeapPage)
+            return HEAP_PAGE;
+        if (p instanceof PaxPage)
+            return PAX_PAGE;
+        if (p instanceof BTreeRootPtrPage)
+            return BTREE_ROOT_PTR_PAGE;
+        if (p instanceof BTreeInternalPage)
+            return BTREE_INTERNAL_PAGE;
+        if (p instanceof BTreeLeafPage)
+            return BTREE_LEAF_PAGE;
+        if (p instanceof BTreeHeaderPage)
+            return BTREE_HEADER_PAGE;
+        throw new IllegalArgumentException("cannot log pages of " + p.getClass().getName());
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        // page type code
+        // table id
+        // page number
+        // page data length
+        // page data
+
+        out.writeByte(pageTypeOf(p));
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    Page readPageData(DataInput in) throws IOException {
+        int pageType = in.readByte();
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+
+        switch (pageType) {
+        case HEAP_PAGE:
+            return new HeapPage(new HeapPageId(tableId, pageNo), pageData);
+        case PAX_PAGE:
+            return new PaxPage(new HeapPageId(tableId, pageNo), pageData);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreeRootPtrPage(new BTreePageId(tableId, pageNo, BTreePageId.ROOT_PTR), pageData);
+        case BTREE_INTERNAL_PAGE:
+            // B+ tree node pages also need the field the tree is keyed on
+            return new BTreeInternalPage(new BTreePageId(tableId, pageNo, BTreePageId.INTERNAL), pageData,
+                    keyField(tableId));
+        case BTREE_LEAF_PAGE:
+            return new BTreeLeafPage(new BTreePageId(tableId, pageNo, BTreePageId.LEAF), pageData,
+                    keyField(tableId));
+        case BTREE_HEADER_PAGE:
+            return new BTreeHeaderPage(new BTreePageId(tableId, pageNo, BTreePageId.HEADER), pageData);
+        default:
+            throw new IOException("unknown page type " + pageType + " in log");
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** The body of an UPDATE or DELTA record: a change to one page. */
+    private static class Update {
+        final int type;
+        final SlotDelta delta; // DELTA records
+        final Page before;     // UPDATE records
+        final Page after;
+
+        Update(SlotDelta delta) {
+            this.type = DELTA_RECORD;
+            this.delta = delta;
+            this.before = null;
+            this.after = null;
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        Update(Page before, Page after) {
+            this.type = UPDATE_RECORD;
+            this.delta = null;
+            this.before = before;
+            this.after = after;
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        PageId pid() {
+            return delta != null ? delta.getPageId() : after.getId();
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /** @return the update that undoes this one */
+        Update inverse() {
+            return delta != null ? new Update(delta.inverse()) : new Update(after, before);
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    void writeUpdate(DataOutput out, Update update) throws IOException {
+        if (update.delta != null) {
+            update.delta.write(out);
+        } else {
+            writePageData(out, update.before);
+            writePageData(out, update.after);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    Update readUpdate(DataInput in, int type) throws IOException {
+        switch (type) {
+        case DELTA_RECORD:
+            return new Update(SlotDelta.read(in));
+        case UPDATE_RECORD:
+            Page before = readPageData(in);
+            Page after = readPageData(in);
+            return new Update(before, after);
+        default:
+            throw new IOException("not an update record type: " + type);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] ids = pid.serialize();
+        out.writeByte(ids.length);
+        for (int id : ids) {
+            out.writeInt(id);
         }
-        return newPage;
+    }
 
+    PageId readPageId(DataInput in) throws IOException {
+        int[] ids = new int[in.readByte()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readInt();
+        }
+        switch (ids.length) {
+        case 2:
+            return new HeapPageId(ids[0], ids[1]);
+        case 3:
+            return new BTreePageId(ids[0], ids[1], ids[2]);
+        default:
+            throw new IOException("bad page id of length " + ids.length);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -295,155 +780,157 @@ public class LogFile {
     public synchronized  void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
+        TransactionTable.Entry entry = Database.getTransactionTable().register(tid);
+        if(entry.getFirstLsn() != TransactionTable.NO_LSN){
             System.err.print("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        entry.setFirstLsn(lsnBase + appendRecord(BEGIN_RECORD, tid.getId(), null));
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Write a fuzzy checkpoint: a checkpoint record holding the
+        transaction table and the dirty page table, then truncate the log.
+        No pages are written and the BufferPool is not locked, so queries
+        keep running; dirty pages reach disk on eviction or through a
+        TrickleWriter, and recovery redoes each of them from its recLSN.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            // taken under our lock: BufferPool enters a page in the table
+            // before appending its record, so every page with a record
+            // before this checkpoint is in it
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            long cpLsn = currentLsn();
+            appendRecord(CHECKPOINT_RECORD, -1, out -> { //no tid
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                Map<Long, Long> active = Database.getTransactionTable().logged();
+                out.writeInt(active.size());
+                for (Map.Entry<Long, Long> e : active.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    out.writeLong(e.getKey());
+                    out.writeLong(e.getValue());
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+                //write the dirty page table
+                out.writeInt(dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                    writePageId(out, e.getKey());
+                    out.writeLong(Math.max(lsnBase + HEADER_SIZE, e.getValue()));
+                }
+            });
+
+            //once the CP is on disk, make sure the CP location in the
+            // header of the log file is updated
+            force();
+            writeHeaderLong(CHECKPOINT_POS, cpLsn);
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+        consumption.  The records still needed are copied to a new file
+        without holding the LogFile lock; appenders only wait while the
+        records appended during the copy are moved over and the new file
+        replaces the old one.  Records refer to each other by LSN, so
+        they are copied unchanged.
+    */
+    public void logTruncate() throws IOException {
+        synchronized (truncateLock) {
+            long minLogRecord;
+            long end;
+            synchronized (this) {
+                preAppend();
+                flushBuffer();
+                long cpLsn = readHeaderLong(CHECKPOINT_POS);
+                if (cpLsn == NO_CHECKPOINT_ID)
+                    return;
+                long cpLoc = cpLsn - lsnBase;
+                LogRecord cp = readRecord(LogReader.readAt(raf.getChannel(), cpLoc));
+                if (cp == null || cp.type != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
                 }
+                // undo may need the first record of every running
+                // transaction, and redo the first record of every dirty page
+                minLogRecord = cpLoc;
+                for (long first : cp.active.values())
+                    minLogRecord = Math.min(minLogRecord, first);
+                for (long rec : cp.dirtyPages.values())
+                    minLogRecord = Math.min(minLogRecord, rec);
+                // and rollback the updates of every running transaction,
+                // including those that logged no BEGIN record
+                for (TransactionTable.Entry e : Database.getTransactionTable().entries()) {
+                    List<Long> updates = e.getUpdates();
+                    if (!updates.isEmpty())
+                        minLogRecord = Math.min(minLogRecord, updates.get(0) - lsnBase);
+                }
+                end = currentOffset;
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+            if (minLogRecord <= HEADER_SIZE)
+                return;
+
+            // records move from offset minLogRecord to HEADER_SIZE
+            long shift = minLogRecord - HEADER_SIZE;
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            boolean replaced = false;
+            FileChannel out = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                copy(minLogRecord, end, out, HEADER_SIZE);
+
+                synchronized (this) {
+                    flushBuffer();
+                    copy(end, currentOffset, out, end - shift);
+                    // a checkpoint may have been taken during the copy
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(MAGIC).putInt(VERSION).putLong(lsnBase + shift)
+                            .putLong(readHeaderLong(CHECKPOINT_POS)).flip();
+                    writeFully(out, header, 0);
+                    out.force(true);
+                    // closed before it replaces the log file
+                    out.close();
+
+                    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - shift));
+
+                    raf.close();
+                    logFile.delete();
+                    newFile.renameTo(logFile);
+                    raf = new RandomAccessFile(logFile, "rw");
+                    currentOffset = raf.length();
+                    lsnBase += shift;
+                    replaced = true;
+                    force();
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            } finally {
+                out.close();
+                if (!replaced)
+                    newFile.delete();
             }
+            //print();
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Copy the bytes between offsets from and to of the log to offset
+        dest of out.  Reads through its own channel, so it can run while
+        records are being appended.
+    */
+    private void copy(long from, long to, FileChannel out, long dest) throws IOException {
+        try (FileChannel in = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            out.position(dest);
+            while (from < to) {
+                long n = in.transferTo(from, to - from, out);
+                if (n <= 0)
+                    throw new EOFException("log ends at offset " + from + ", before " + to);
+                from += n;
+            }
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -452,6 +939,10 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        The updates to undo are the ones listed in the transaction's
+        TransactionTable entry, so rollback reads only its own records
+        rather than scanning the log back to its BEGIN record.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
@@ -459,7 +950,98 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+                if (e == null || (e.getFirstLsn() == TransactionTable.NO_LSN && e.getUpdates().isEmpty()))
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                flushBuffer();
+                List<Long> updates = new ArrayList<>();
+                List<Long> lsns = e.getUpdates();
+                for (int i = lsns.size() - 1; i >= 0; i--) {
+                    // logTruncate keeps these, so this is a bug rather than
+                    // something to undo partially
+                    long start = lsns.get(i) - lsnBase;
+                    if (start < HEADER_SIZE)
+                        throw new IOException("update record at LSN " + lsns.get(i) + " of transaction "
+                                + tid.getId() + " was truncated from the log");
+                    updates.add(start);
+                }
+                lsns.clear();
+                undoRecords(updates, tid);
+            }
+        }
+    }
+
+    /** Undo the updates of some transactions, newest first, logging a CLR
+        for each.  Must be called with the BufferPool and LogFile locks held.
+
+        @param losers maps each transaction to roll back to the offset of
+            its oldest update that a CLR already undid, or Long.MAX_VALUE
+        @param stop the offset of the oldest record of any of them
+        @param owner the transaction that pages are fetched and dirtied for
+    */
+    private void undo(Map<Long, Long> losers, long stop, TransactionId owner) throws IOException {
+        // find the updates to undo by walking the log backwards
+        flushBuffer();
+        FileChannel channel = raf.getChannel();
+        ByteBuffer head = ByteBuffer.allocate(LogReader.BODY_OFFSET);
+        List<Long> updates = new ArrayList<>();
+        long pos = currentOffset;
+        while (pos > stop && pos > HEADER_SIZE) {
+            long start = pos - LogReader.readIntAt(channel, pos - INT_SIZE);
+            head.clear();
+            while (head.hasRemaining()) {
+                if (channel.read(head, start + head.position()) < 0)
+                    throw new EOFException("log ends inside record at offset " + start);
+            }
+            int type = head.get(INT_SIZE);
+            long tid = head.getLong(INT_SIZE + 1);
+            if ((type == UPDATE_RECORD || type == DELTA_RECORD) && start < losers.getOrDefault(tid, -1L))
+                updates.add(start);
+            pos = start;
+        }
+        undoRecords(updates, owner);
+    }
+
+    /** Undo update records, in the order given, logging a CLR for each.
+        Must be called with the BufferPool and LogFile locks held and the
+        log buffer flushed.
+
+        @param updates the offsets of the records to undo
+        @param owner the transaction that pages are fetched and dirtied for
+    */
+    private void undoRecords(List<Long> updates, TransactionId owner) throws IOException {
+        FileChannel channel = raf.getChannel();
+        for (long start : updates) {
+            LogRecord r = readRecord(LogReader.readAt(channel, start));
+            if (r == null)
+                throw new IOException("corrupt log record at offset " + start);
+            Update undo = r.update.inverse();
+
+            preAppend();
+            long lsn = currentLsn();
+            appendRecord(CLR_RECORD, r.tid, out -> {
+                out.writeLong(lsnBase + start);
+                out.writeByte(undo.type);
+                writeUpdate(out, undo);
+            });
+
+            BufferPool bufferPool = Database.getBufferPool();
+            PageId pid = undo.pid();
+            if (undo.delta != null) {
+                Page page;
+                try {
+                    page = bufferPool.getPage(owner, pid, Permissions.READ_WRITE);
+                } catch (DbException | TransactionAbortedException e) {
+                    throw new IOException("cannot undo update of " + pid, e);
+                }
+                undo.delta.redo((SlotPage) page);
+                page.setBeforeImage();
+                bufferPool.logged(page, owner, lsn);
+            } else {
+                // write the before image straight to disk, after the CLR
+                force();
+                undo.after.setLsn(lsn);
+                bufferPool.installPage(undo.after);
             }
         }
     }
@@ -468,10 +1050,15 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write all pages so that recovery has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                force();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -486,89 +1073,321 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                appendBuffer.clear();
+                if (raf.length() < HEADER_SIZE || readHeaderInt(0) != MAGIC || readHeaderInt(INT_SIZE) != VERSION) {
+                    // no log, or one in a format we cannot read
+                    startLog();
+                }
+
+                // analysis: rebuild the transaction and dirty page tables
+                // as of the end of the log, starting from the checkpoint
+                Map<Long, Long> active = new HashMap<>();
+                Map<Long, Long> undoFloors = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                lsnBase = readHeaderLong(LSN_BASE_POS);
+                long cpLsn = readHeaderLong(CHECKPOINT_POS);
+                long start = cpLsn == NO_CHECKPOINT_ID ? HEADER_SIZE : cpLsn - lsnBase;
+                LogReader reader = new LogReader(raf.getChannel(), start, raf.length());
+                LogRecord r;
+                // stops where the last record was cut short by the crash
+                while ((r = readRecord(reader.next())) != null) {
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        active.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(r.tid);
+                        undoFloors.remove(r.tid);
+                        break;
+                    case CLR_RECORD:
+                        undoFloors.merge(r.tid, r.undone, Math::min);
+                        dirtyPages.putIfAbsent(r.update.pid(), r.offset);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        dirtyPages.putIfAbsent(r.update.pid(), r.offset);
+                        break;
+                    case CHECKPOINT_RECORD:
+                        active.putAll(r.active);
+                        dirtyPages.putAll(r.dirtyPages);
+                        break;
+                    }
+                }
+                long end = reader.position();
+                raf.setLength(end);
+                currentOffset = end;
+
+                // redo: repeat history for the pages that may be stale
+                if (!dirtyPages.isEmpty())
+                    redo(Collections.min(dirtyPages.values()), end, dirtyPages);
+
+                // undo: roll back the transactions that never finished
+                if (!active.isEmpty()) {
+                    Map<Long, Long> losers = new HashMap<>();
+                    for (Long tid : active.keySet())
+                        losers.put(tid, undoFloors.getOrDefault(tid, Long.MAX_VALUE));
+                    undo(losers, Collections.min(active.values()), new TransactionId());
+                    for (Long tid : active.keySet()) {
+                        preAppend();
+                        appendRecord(ABORT_RECORD, tid, null);
+                    }
+                    force();
+                    Database.getBufferPool().flushAllPages();
+                }
+                // the transactions that were running are all over now
+                for (TransactionTable.Entry e : Database.getTransactionTable().entries())
+                    e.setFirstLsn(TransactionTable.NO_LSN);
+                force();
             }
          }
     }
 
-    /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    /** Redo the updates logged between offsets from and end that are not
+        yet reflected on disk, partitioned by page across worker threads,
+        and write the pages they change.
 
-        raf.seek(0);
+        @param dirtyPages the recLSN offset of every page that may be stale
+    */
+    private void redo(long from, long end, Map<PageId, Long> dirtyPages) throws IOException {
+        RedoWorker[] workers = new RedoWorker[recoveryThreads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new RedoWorker(i, lsnBase);
+            workers[i].start();
+        }
+        try {
+            LogReader reader = new LogReader(raf.getChannel(), from, end);
+            LogRecord r;
+            while ((r = readRecord(reader.next())) != null) {
+                if (r.update == null)
+                    continue;
+                PageId pid = r.update.pid();
+                Long recOffset = dirtyPages.get(pid);
+                if (recOffset == null || r.offset < recOffset)
+                    continue; // the page on disk already has this update
+                workers[Math.floorMod(pid.hashCode(), workers.length)].queue.add(r);
+            }
+        } finally {
+            for (RedoWorker w : workers)
+                w.queue.add(RedoWorker.DONE);
+            for (RedoWorker w : workers) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted during redo");
+                }
+            }
+        }
+        for (RedoWorker w : workers) {
+            if (w.error != null)
+                throw new IOException("redo failed", w.error);
+        }
+    }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+    /** Applies the redo records of its share of the pages, in the order
+        they arrive, to the pages whose pageLSN they are past, then writes
+        those pages. */
+    private static class RedoWorker extends Thread {
+        static final LogRecord DONE = new LogRecord();
+
+        final BlockingQueue<LogRecord> queue = new LinkedBlockingQueue<>();
+        final Map<PageId, Page> pages = new HashMap<>();
+        final Set<PageId> changed = new HashSet<>();
+        final long lsnBase;
+        volatile Throwable error;
+
+        RedoWorker(int i, long lsnBase) {
+            super("log-redo-" + i);
+            setDaemon(true);
+            this.lsnBase = lsnBase;
+        }
 
-        while (true) {
+        public void run() {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                LogRecord r;
+                while ((r = queue.take()) != DONE) {
+                    Update u = r.update;
+                    long lsn = lsnBase + r.offset;
+                    PageId pid = u.pid();
+                    if (!pages.containsKey(pid))
+                        pages.put(pid, readPage(pid, u.delta == null));
+                    Page page = pages.get(pid);
+                    if (page != null && lsn <= page.getLsn())
+                        continue; // the page on disk already has this update
+                    if (u.delta != null) {
+                        u.delta.redo((SlotPage) page);
+                    } else {
+                        page = u.after;
+                        pages.put(pid, page);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
-
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    page.setLsn(lsn);
+                    changed.add(pid);
+                }
+                for (PageId pid : changed)
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pages.get(pid));
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+        /** @return the page as it is on disk, or an empty page if the
+            crash lost the write that appended it to its file
+            @param wholeImage whether the first record to redo holds a whole
+                page image, which replaces a torn page; null is returned
+                for a torn page then */
+        private static Page readPage(PageId pid, boolean wholeImage) throws IOException {
+            DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (!pastEnd(f, pid)) {
+                // a page that is there but unreadable or corrupt fails
+                // recovery, unless the log has a whole image of it
+                try {
+                    return f.readPage(pid);
+                } catch (CorruptPageException e) {
+                    if (wholeImage)
+                        return null;
+                    throw e;
+                }
+            }
+            if (f instanceof PaxFile)
+                return new PaxPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+            if (f instanceof HeapFile)
+                return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+            BTreePageId id = (BTreePageId) pid;
+            switch (id.pgcateg()) {
+            case BTreePageId.INTERNAL:
+                return new BTreeInternalPage(id, BTreePage.createEmptyPageData(), keyField(pid.getTableId()));
+            case BTreePageId.LEAF:
+                return new BTreeLeafPage(id, BTreePage.createEmptyPageData(), keyField(pid.getTableId()));
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(id, BTreeHeaderPage.createEmptyPageData());
+            default:
+                return new BTreeRootPtrPage(id, BTreeRootPtrPage.createEmptyPageData());
+            }
+        }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+        /** @return whether pid lies past the end of f */
+        private static boolean pastEnd(DbFile f, PageId pid) {
+            if (f instanceof PagedFile)
+                return pid.getPageNumber() >= ((PagedFile) f).numPages();
+            if (f instanceof BTreeFile) {
+                // the root pointer page is page 0, and page i > 0 ends
+                // i pages past it
+                BTreeFile bf = (BTreeFile) f;
+                return bf.getFile().length() < BTreeRootPtrPage.getPageSize()
+                        || pid.getPageNumber() > bf.numPages();
+            }
+            return false;
+        }
+    }
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    /** A log record read back during recovery. */
+    private static class LogRecord {
+        long offset;
+        int type;
+        long tid;
+        Update update; // UPDATE, DELTA and CLR records
+        long undone;   // CLR records
+        final Map<Long, Long> active = new HashMap<>();         // CHECKPOINT records
+        final Map<PageId, Long> dirtyPages = new HashMap<>();   // CHECKPOINT records
+    }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    /** Decode a record, turning the LSNs it holds into file offsets.
+        @return the record, or null if frame is null
+    */
+    private LogRecord readRecord(LogReader.Frame frame) throws IOException {
+        if (frame == null)
+            return null;
+        LogRecord r = new LogRecord();
+        r.offset = frame.offset;
+        r.type = frame.type;
+        r.tid = frame.tid;
+        DataInputStream in = frame.body();
+        switch (r.type) {
+        case UPDATE_RECORD:
+        case DELTA_RECORD:
+            r.update = readUpdate(in, r.type);
+            break;
+        case CLR_RECORD:
+            r.undone = in.readLong() - lsnBase;
+            r.update = readUpdate(in, in.readByte());
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long tid = in.readLong();
+                r.active.put(tid, in.readLong() - lsnBase);
+            }
+            int numDirty = in.readInt();
+            while (numDirty-- > 0) {
+                PageId pid = readPageId(in);
+                r.dirtyPages.put(pid, Math.max(HEADER_SIZE, in.readLong() - lsnBase));
+            }
+            break;
+        case BEGIN_RECORD:
+        case COMMIT_RECORD:
+        case ABORT_RECORD:
+            break;
+        default:
+            throw new IOException("unknown log record type " + r.type + " at offset " + r.offset);
+        }
+        return r;
+    }
 
-                    break;
-                }
+    private static final String[] RECORD_NAMES = {
+        null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA", "CLR"
+    };
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
+    /** Print out a human readable represenation of the log */
+    public synchronized void print() throws IOException {
+        flushBuffer();
+        long base = readHeaderLong(LSN_BASE_POS);
+        System.out.println("0: header: lsn of offset 0 " + base + ", checkpoint at lsn "
+                + readHeaderLong(CHECKPOINT_POS));
+
+        LogReader reader = new LogReader(raf.getChannel(), HEADER_SIZE, raf.length());
+        LogReader.Frame frame;
+        while ((frame = reader.next()) != null) {
+            System.out.println(frame.offset + ": " + RECORD_NAMES[frame.type] + " TID " + frame.tid
+                    + " (" + frame.length() + " bytes, lsn " + (base + frame.offset) + ")");
+            LogRecord r = readRecord(frame);
+            switch (r.type) {
+            case CHECKPOINT_RECORD:
+                for (Map.Entry<Long, Long> e : r.active.entrySet())
+                    System.out.println("    TID " + e.getKey() + " FIRST LOG RECORD: " + e.getValue());
+                for (Map.Entry<PageId, Long> e : r.dirtyPages.entrySet())
+                    System.out.println("    PAGE " + e.getKey().getTableId() + ":" + e.getKey().getPageNumber()
+                            + " FIRST DIRTIED BY RECORD: " + e.getValue());
+                break;
+            case CLR_RECORD:
+                System.out.println("    UNDONE RECORD: " + r.undone);
+                printUpdate(r.update);
+                break;
+            case UPDATE_RECORD:
+            case DELTA_RECORD:
+                printUpdate(r.update);
                 break;
             }
         }
+        if (reader.position() < raf.length())
+            System.out.println(reader.position() + ": " + (raf.length() - reader.position())
+                    + " bytes of incomplete or corrupt records");
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    private static void printUpdate(Update u) {
+        if (u.delta != null) {
+            System.out.println("    " + u.delta);
+        } else {
+            System.out.println("    table " + u.pid().getTableId() + " page " + u.pid().getPageNumber()
+                    + ": " + u.before.getClass().getSimpleName() + " before and after images");
+        }
     }
 
     public  synchronized void force() throws IOException {
+        flushBuffer();
+        long lsn = currentLsn();
         raf.getChannel().force(true);
+        markDurable(lsn);
     }
 
 }
@@ -0,0 +1,161 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogReader reads the records of a {@link LogFile} front to back through a
+ * large buffer, so that recovery and LogFile.print() read the log with a
+ * few big reads instead of several small ones per record.
+ * <p>
+ * Every record is a frame: its length as an int, the record type as a byte,
+ * the transaction id as a long, the body, a checksum of all of that as an
+ * int, and the length again, so that the log can also be walked backwards.
+ * The reader stops at the first frame that runs past the end of the log or
+ * does not match its checksum, which is where a crash cut the log short.
+ */
+class LogReader {
+
+    /** bytes in a frame besides its body */
+    static final int FRAME_OVERHEAD = 4 + 1 + 8 + 4 + 4;
+    /** bytes before the body of a frame */
+    static final int BODY_OFFSET = 4 + 1 + 8;
+
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    /** One record of the log, with its body still encoded. */
+    static final class Frame {
+        final long offset;
+        final int type;
+        final long tid;
+        private final byte[] data;
+
+        Frame(long offset, byte[] data) {
+            this.offset = offset;
+            this.data = data;
+            ByteBuffer b = ByteBuffer.wrap(data);
+            this.type = b.get(4);
+            this.tid = b.getLong(5);
+        }
+
+        /** @return the length of the frame in bytes */
+        int length() {
+            return data.length;
+        }
+
+        /** @return the body of the record */
+        DataInputStream body() {
+            return new DataInputStream(new ByteArrayInputStream(data, BODY_OFFSET, data.length - FRAME_OVERHEAD));
+        }
+    }
+
+    private final FileChannel channel;
+    private final long end;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    /** file offset of the first byte in the buffer */
+    private long bufferStart;
+
+    /**
+     * @param channel the log file
+     * @param start the offset of the first frame to read
+     * @param end the offset to stop reading at
+     */
+    LogReader(FileChannel channel, long start, long end) {
+        this.channel = channel;
+        this.end = end;
+        this.bufferStart = start;
+        buffer.limit(0);
+    }
+
+    /** @return the offset of the frame next() will return */
+    long position() {
+        return bufferStart + buffer.position();
+    }
+
+    /**
+     * @return the next frame, or null at the end of the log or at a frame
+     *         that is incomplete or corrupt
+     */
+    Frame next() throws IOException {
+        long offset = position();
+        if (offset + FRAME_OVERHEAD > end || !fill(4))
+            return null;
+        int len = buffer.getInt(buffer.position());
+        if (len < FRAME_OVERHEAD || offset + len > end)
+            return null;
+        byte[] data = new byte[len];
+        if (len <= buffer.capacity()) {
+            if (!fill(len))
+                return null;
+            buffer.get(data);
+        } else {
+            // larger than the buffer: read it directly
+            if (!readFully(channel, ByteBuffer.wrap(data), offset))
+                return null;
+            bufferStart = offset + len;
+            buffer.limit(0);
+        }
+        if (!valid(data))
+            return null;
+        return new Frame(offset, data);
+    }
+
+    /** Make at least n bytes available in the buffer, if the log has them. */
+    private boolean fill(int n) throws IOException {
+        if (buffer.remaining() >= n)
+            return true;
+        bufferStart += buffer.position();
+        buffer.compact();
+        long want = Math.min(buffer.remaining(), end - bufferStart - buffer.position());
+        buffer.limit(buffer.position() + (int) Math.max(0, want));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, bufferStart + buffer.position()) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= n;
+    }
+
+    /**
+     * Read the frame at offset, without buffering.
+     *
+     * @return the frame, or null if it is incomplete or corrupt
+     */
+    static Frame readAt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer lenBuf = ByteBuffer.allocate(4);
+        if (!readFully(channel, lenBuf, offset))
+            return null;
+        int len = lenBuf.getInt(0);
+        if (len < FRAME_OVERHEAD)
+            return null;
+        byte[] data = new byte[len];
+        if (!readFully(channel, ByteBuffer.wrap(data), offset) || !valid(data))
+            return null;
+        return new Frame(offset, data);
+    }
+
+    /** @return the int at offset, e.g. the length that ends a frame */
+    static int readIntAt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(4);
+        if (!readFully(channel, b, offset))
+            throw new EOFException("log ends before offset " + (offset + 4));
+        return b.getInt(0);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer b, long offset) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b, offset + b.position()) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return whether a frame's checksum and trailing length are right */
+    private static boolean valid(byte[] data) {
+        ByteBuffer b = ByteBuffer.wrap(data);
+        int len = data.length;
+        return b.getInt(len - 4) == len
+                && b.getInt(len - 8) == PageChecksums.checksum(data, 0, len - 8);
+    }
+}
@@ -48,6 +48,19 @@ public interface Page {
 
   byte[] getPageData();
 
+    /**
+     * @return the LSN of the last log record applied to this page (its
+     *         pageLSN), or -1 if it is not known
+     */
+    long getLsn();
+
+    /**
+     * Set the pageLSN of this page, when an update of it is logged or
+     * redone.  It is saved with the page when the page is written, so that
+     * recovery can tell which records the page on disk already reflects.
+     */
+    void setLsn(long lsn);
+
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
     */
@@ -0,0 +1,374 @@
+package simpledb.storage;
+
+import simpledb.common.Debug;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * PageChecksums keeps a checksum of every page of a table file, so that
+ * pages that were corrupted or only partially written (torn) on disk are
+ * caught when they are read instead of flowing into query results. Along
+ * with each checksum it keeps the pageLSN of the page image it was computed
+ * over (see {@link Page#getLsn}), so that recovery knows which log records
+ * the page on disk already reflects.
+ * <p>
+ * The page formats leave no room for a checksum or an LSN, so both live in
+ * a small side file next to the table file (<tt>table.dat.crc</tt>), with one
+ * 32 byte entry per page. The side file is read once and then kept in
+ * memory, so verifying a page on read costs one checksum computation and no
+ * extra I/O. Pages are written through {@link #write}, which updates the
+ * page and its checksum under the same lock.
+ * <p>
+ * The page and its checksum are two writes to two files, and a crash can
+ * come between them. So each entry holds the checksum of the page's new
+ * contents and of its previous ones, and is forced to disk before the page
+ * is written: a page matching either is one that was written whole, and
+ * only a page torn part way through its own write matches neither. Which
+ * one it matches also tells which pageLSN is the page's.
+ * <p>
+ * Pages with no recorded checksum (for example pages of a file written by an
+ * older version) are not verified until they are next written. Tools that
+ * rewrite a table file from scratch must call {@link #discard} so that the
+ * old checksums are not held against the new contents.
+ * <p>
+ * CRC32C is used where the JVM provides it (Java 9 and later, hardware
+ * accelerated on most CPUs), and CRC32 otherwise; the side file records which
+ * one it holds.
+ *
+ * @see PageScrubber
+ */
+public class PageChecksums {
+
+    private static final int MAGIC = 0x53444245;
+    private static final int ENTRY_SIZE = 32;
+    private static final int HEADER_SIZE = 8;
+    private static final int ALGORITHM_CRC32 = 1;
+    private static final int ALGORITHM_CRC32C = 2;
+
+    private static final int ALGORITHM;
+    private static final ThreadLocal<Checksum> CHECKSUM;
+
+    static {
+        Class<?> crc32c = null;
+        try {
+            crc32c = Class.forName("java.util.zip.CRC32C");
+        } catch (ClassNotFoundException e) {
+            // Java 8: fall back to CRC32
+        }
+        final Class<?> cls = crc32c;
+        ALGORITHM = cls == null ? ALGORITHM_CRC32 : ALGORITHM_CRC32C;
+        CHECKSUM = ThreadLocal.withInitial(() -> {
+            if (cls == null)
+                return new CRC32();
+            try {
+                return (Checksum) cls.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static volatile boolean verifyOnRead = true;
+
+    private final File dataFile;
+    private final File sideFile;
+    private final int firstPageSize;
+
+    /** entry per page: 0 if unknown, else (1 << 32) | checksum; null until loaded */
+    private long[] sums;
+    /** the entry each page had before its last write, in the same form */
+    private long[] prevSums;
+    /** the pageLSN of each page image in sums and prevSums, or -1 */
+    private long[] lsns;
+    private long[] prevLsns;
+    /** when each page was last verified, in System.currentTimeMillis() */
+    private long[] verifiedAt;
+
+    /**
+     * @param dataFile the table file whose pages are checksummed
+     * @param firstPageSize the size of page 0 if it differs from the other
+     *        pages (as with the root pointer page of a BTreeFile), or 0 if
+     *        every page is BufferPool.getPageSize() bytes
+     */
+    public PageChecksums(File dataFile, int firstPageSize) {
+        this.dataFile = dataFile;
+        this.sideFile = sideFileFor(dataFile);
+        this.firstPageSize = firstPageSize;
+    }
+
+    /** @return the file holding the checksums of dataFile */
+    public static File sideFileFor(File dataFile) {
+        return new File(dataFile.getPath() + ".crc");
+    }
+
+    /**
+     * Forget the checksums of dataFile. Must be called by anything that
+     * rewrites a table file without going through {@link #write}.
+     */
+    public static void discard(File dataFile) {
+        File f = sideFileFor(dataFile);
+        if (f.exists() && !f.delete())
+            Debug.log("PageChecksums: could not delete %s", f);
+    }
+
+    /**
+     * Turn verification of pages as they are read on or off, e.g. to measure
+     * its cost. Checksums are recorded on write either way.
+     */
+    public static void setVerifyOnRead(boolean verify) {
+        verifyOnRead = verify;
+    }
+
+    public static boolean isVerifyOnRead() {
+        return verifyOnRead;
+    }
+
+    /** @return the name of the checksum algorithm in use */
+    public static String algorithm() {
+        return ALGORITHM == ALGORITHM_CRC32C ? "CRC32C" : "CRC32";
+    }
+
+    /** @return the checksum of len bytes of data starting at off */
+    static int checksum(byte[] data, int off, int len) {
+        Checksum c = CHECKSUM.get();
+        c.reset();
+        c.update(data, off, len);
+        return (int) c.getValue();
+    }
+
+    private long offsetOf(int pageNo) {
+        if (firstPageSize <= 0)
+            return (long) pageNo * BufferPool.getPageSize();
+        return pageNo == 0 ? 0 : firstPageSize + (long) (pageNo - 1) * BufferPool.getPageSize();
+    }
+
+    private int sizeOf(int pageNo) {
+        return firstPageSize > 0 && pageNo == 0 ? firstPageSize : BufferPool.getPageSize();
+    }
+
+    private void load() {
+        if (sums != null)
+            return;
+        sums = new long[0];
+        if (sideFile.exists()) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sideFile)))) {
+                if (dis.readInt() == MAGIC && dis.readInt() == ALGORITHM) {
+                    int n = (int) ((sideFile.length() - HEADER_SIZE) / ENTRY_SIZE);
+                    sums = new long[n];
+                    prevSums = new long[n];
+                    lsns = new long[n];
+                    prevLsns = new long[n];
+                    for (int i = 0; i < n; i++) {
+                        sums[i] = dis.readLong();
+                        prevSums[i] = dis.readLong();
+                        lsns[i] = dis.readLong();
+                        prevLsns[i] = dis.readLong();
+                    }
+                } else {
+                    // written with another algorithm; start over
+                    Debug.log("PageChecksums: ignoring %s", sideFile);
+                    discard(dataFile);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                sums = new long[0];
+            }
+        }
+        if (prevSums == null || prevSums.length != sums.length) {
+            prevSums = new long[sums.length];
+            lsns = new long[sums.length];
+            prevLsns = new long[sums.length];
+        }
+        verifiedAt = new long[sums.length];
+    }
+
+    private void ensureCapacity(int pageNo) {
+        if (pageNo >= sums.length) {
+            int n = Math.max(pageNo + 1, sums.length * 2);
+            sums = Arrays.copyOf(sums, n);
+            prevSums = Arrays.copyOf(prevSums, n);
+            lsns = Arrays.copyOf(lsns, n);
+            prevLsns = Arrays.copyOf(prevLsns, n);
+            verifiedAt = Arrays.copyOf(verifiedAt, n);
+        }
+    }
+
+    /**
+     * Write a page to the table file and record its checksum.
+     *
+     * @param pageNo the number of the page
+     * @param data the contents of the page
+     * @param lsn the pageLSN of the page, or -1 if it is not known
+     */
+    public synchronized void write(int pageNo, byte[] data, long lsn) throws IOException {
+        record(pageNo, Collections.singletonList(data), new long[] { lsn }, true);
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.seek(offsetOf(pageNo));
+            raf.write(data);
+        }
+    }
+
+    /**
+     * Write adjacent pages to the table file with a single write and record
+     * their checksums.
+     *
+     * @param firstPageNo the number of the first page
+     * @param pages the contents of pages firstPageNo, firstPageNo + 1, ...
+     * @param lsns the pageLSN of each page, or -1 where it is not known
+     */
+    public synchronized void write(int firstPageNo, List<byte[]> pages, long[] lsns) throws IOException {
+        int len = 0;
+        for (byte[] data : pages)
+            len += data.length;
+        byte[] run = new byte[len];
+        int off = 0;
+        for (byte[] data : pages) {
+            System.arraycopy(data, 0, run, off, data.length);
+            off += data.length;
+        }
+        record(firstPageNo, pages, lsns, true);
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            raf.seek(offsetOf(firstPageNo));
+            raf.write(run);
+        }
+    }
+
+    /**
+     * Record the checksum of a page that was just written to the end of the
+     * table file by other means, e.g. an empty page appended to grow it.
+     */
+    public synchronized void record(int pageNo, byte[] data) throws IOException {
+        record(pageNo, Collections.singletonList(data), new long[] { -1 }, false);
+    }
+
+    /**
+     * Make the checksums of pages the current ones, keeping the ones they
+     * replace as the previous ones.
+     *
+     * @param force whether to force the side file to disk, as it must be
+     *        before pages it describes are overwritten
+     */
+    private void record(int firstPageNo, List<byte[]> pages, long[] pageLsns, boolean force)
+            throws IOException {
+        load();
+        ensureCapacity(firstPageNo + pages.size() - 1);
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream entries = new ByteArrayOutputStream(pages.size() * ENTRY_SIZE);
+        DataOutputStream out = new DataOutputStream(entries);
+        for (int i = 0; i < pages.size(); i++) {
+            byte[] data = pages.get(i);
+            int pageNo = firstPageNo + i;
+            long entry = (1L << 32) | (checksum(data, 0, data.length) & 0xffffffffL);
+            if (sums[pageNo] != entry) {
+                prevSums[pageNo] = sums[pageNo];
+                prevLsns[pageNo] = lsns[pageNo];
+            }
+            sums[pageNo] = entry;
+            lsns[pageNo] = pageLsns[i];
+            verifiedAt[pageNo] = now;
+            out.writeLong(entry);
+            out.writeLong(prevSums[pageNo]);
+            out.writeLong(lsns[pageNo]);
+            out.writeLong(prevLsns[pageNo]);
+        }
+        boolean fresh = !sideFile.exists();
+        try (RandomAccessFile raf = new RandomAccessFile(sideFile, "rw")) {
+            if (fresh || raf.length() < HEADER_SIZE) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(ALGORITHM);
+            }
+            raf.seek(HEADER_SIZE + (long) firstPageNo * ENTRY_SIZE);
+            raf.write(entries.toByteArray());
+            if (force)
+                raf.getFD().sync();
+        }
+    }
+
+    private static boolean matches(long entry, long sum) {
+        return entry != 0 && sum == (entry & 0xffffffffL);
+    }
+
+    /** @return whether sum is the checksum of the current or the previous contents of a page */
+    private boolean matches(int pageNo, long sum) {
+        return matches(sums[pageNo], sum) || matches(prevSums[pageNo], sum);
+    }
+
+    /**
+     * Record the checksum of every page currently in the table file, e.g.
+     * right after it was written by an encoder.
+     */
+    public synchronized void recordAll() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            for (int pageNo = 0; offsetOf(pageNo) + sizeOf(pageNo) <= raf.length(); pageNo++) {
+                byte[] data = new byte[sizeOf(pageNo)];
+                raf.seek(offsetOf(pageNo));
+                raf.readFully(data);
+                record(pageNo, data);
+            }
+        }
+    }
+
+    /**
+     * Check a page that was just read from disk against its recorded
+     * checksums. Does nothing if verification is turned off or the page has
+     * no checksum.
+     *
+     * @return the pageLSN of the page, or -1 if it is not known
+     * @throws CorruptPageException if the page matches neither its current
+     *         nor its previous checksum
+     */
+    public long verify(int pageNo, byte[] data) {
+        if (!verifyOnRead)
+            return -1;
+        long sum = checksum(data, 0, data.length) & 0xffffffffL;
+        synchronized (this) {
+            load();
+            if (pageNo >= sums.length || sums[pageNo] == 0)
+                return -1;
+            if (!matches(pageNo, sum))
+                throw new CorruptPageException(dataFile, pageNo);
+            verifiedAt[pageNo] = System.currentTimeMillis();
+            return matches(sums[pageNo], sum) ? lsns[pageNo] : prevLsns[pageNo];
+        }
+    }
+
+    /**
+     * Re-read a page from disk and check it against its checksum, unless it
+     * has no checksum or was verified within the last minAgeMillis.
+     *
+     * @return false if the page on disk does not match its checksum
+     */
+    public synchronized boolean scrub(int pageNo, long minAgeMillis) throws IOException {
+        load();
+        if (pageNo >= sums.length || sums[pageNo] == 0)
+            return true;
+        long now = System.currentTimeMillis();
+        if (now - verifiedAt[pageNo] < minAgeMillis)
+            return true;
+        byte[] data = new byte[sizeOf(pageNo)];
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            if (offsetOf(pageNo) + data.length > raf.length())
+                return false;
+            raf.seek(offsetOf(pageNo));
+            raf.readFully(data);
+        }
+        if (!matches(pageNo, checksum(data, 0, data.length) & 0xffffffffL))
+            return false;
+        verifiedAt[pageNo] = now;
+        return true;
+    }
+
+    /** @return one more than the highest page number with a recorded checksum */
+    public synchronized int numPages() {
+        load();
+        int n = sums.length;
+        while (n > 0 && sums[n - 1] == 0)
+            n--;
+        return n;
+    }
+}
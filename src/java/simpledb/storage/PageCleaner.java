@@ -0,0 +1,139 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * PageCleaner is a background thread that writes dirty pages of a
+ * {@link BufferPool} so that a number of its pages are always clean, and
+ * evicting a page to make room for another costs no write on the thread that
+ * needs the room.
+ * <p>
+ * Each pass writes the dirty pages in page number order, picking up where
+ * the previous pass stopped, and pages that are adjacent in a heap file go
+ * out in a single write (see BufferPool.cleanPages). Pages are written
+ * whether or not their transactions have committed (STEAL); each write waits
+ * until the log is on disk past the page's last update, so undo information
+ * always reaches the log first.
+ * <p>
+ * The cleaner checks the pool every few milliseconds, and evictPage wakes it
+ * as soon as the clean pages run low. (A {@link TrickleWriter} instead
+ * writes the pages that have been dirty longest, to shorten recovery.)
+ */
+public class PageCleaner implements Runnable {
+
+    /** Default share, in percent, of its pool the cleaner Database starts keeps clean. */
+    public static final int DEFAULT_CLEAN_PERCENT = 10;
+
+    private static final long POLL_MILLIS = 50;
+
+    private final BufferPool bufferPool;
+    private final int cleanPages;
+
+    private volatile boolean running;
+    private Thread thread;
+    private boolean wakeUp;
+
+    private long pagesWritten;
+    private long writes;
+
+    /**
+     * @param bufferPool the pool to clean
+     * @param cleanPages the number of pages of the pool to keep clean
+     */
+    public PageCleaner(BufferPool bufferPool, int cleanPages) {
+        this.bufferPool = bufferPool;
+        this.cleanPages = Math.max(1, cleanPages);
+    }
+
+    /** @return the number of pages this cleaner keeps clean */
+    public int getCleanPages() {
+        return cleanPages;
+    }
+
+    /** Start cleaning in a daemon thread. */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this, "page-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+        bufferPool.setCleaner(this);
+    }
+
+    /** Stop the cleaning thread and wait for it to exit. */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+            notifyAll();
+        }
+        bufferPool.setCleaner(null);
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    /** Make the cleaning thread check the pool now. */
+    public synchronized void wakeUp() {
+        wakeUp = true;
+        notifyAll();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                try {
+                    cleanOnce();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    if (!wakeUp && running)
+                        wait(POLL_MILLIS);
+                    wakeUp = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Write enough dirty pages to bring the pool's clean pages up to the
+     * target, if it has that many pages.
+     *
+     * @return the number of pages written
+     */
+    public int cleanOnce() throws IOException {
+        int wanted = cleanPages - bufferPool.numCleanPages();
+        if (wanted <= 0)
+            return 0;
+        List<Integer> runs = bufferPool.cleanPages(wanted);
+        int written = 0;
+        for (int n : runs)
+            written += n;
+        synchronized (this) {
+            pagesWritten += written;
+            writes += runs.size();
+        }
+        return written;
+    }
+
+    /** @return the number of pages this cleaner has written */
+    public synchronized long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /**
+     * @return the number of writes this cleaner has issued; less than
+     *         getPagesWritten when adjacent pages were combined
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * PageScrubber is a background thread that re-reads pages of the tables in
+ * the catalog and checks them against their {@link PageChecksums}. Pages are
+ * verified whenever they are read into the buffer pool, so the scrubber only
+ * looks at cold pages: those that have not been verified for a while. It
+ * reads at most a fixed number of pages per second so that it does not
+ * compete with queries for the disk.
+ * <p>
+ * Corrupt pages are reported on System.err and collected for
+ * {@link #getCorruptPages}.
+ */
+public class PageScrubber implements Runnable {
+
+    /** A page of a table that did not match its checksum. */
+    public static final class CorruptPage {
+        public final int tableId;
+        public final int pageNo;
+
+        CorruptPage(int tableId, int pageNo) {
+            this.tableId = tableId;
+            this.pageNo = pageNo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CorruptPage))
+                return false;
+            CorruptPage other = (CorruptPage) o;
+            return tableId == other.tableId && pageNo == other.pageNo;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tableId, pageNo);
+        }
+
+        @Override
+        public String toString() {
+            return "table " + tableId + " page " + pageNo;
+        }
+    }
+
+    /** Default rate of the scrubber Database starts. */
+    public static final int DEFAULT_PAGES_PER_SECOND = 50;
+    /** Default age, in milliseconds, of the pages the scrubber Database starts reads. */
+    public static final long DEFAULT_MIN_AGE_MILLIS = 10 * 60 * 1000;
+
+    private final int pagesPerSecond;
+    private final long minAgeMillis;
+    private final Set<CorruptPage> corruptPages = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param pagesPerSecond the most pages to read per second
+     * @param minAgeMillis only pages not verified for this long are read
+     */
+    public PageScrubber(int pagesPerSecond, long minAgeMillis) {
+        this.pagesPerSecond = pagesPerSecond;
+        this.minAgeMillis = minAgeMillis;
+    }
+
+    /** @return the checksums of f, or null if its pages are not checksummed */
+    static PageChecksums checksumsOf(DbFile f) {
+        if (f instanceof PagedFile)
+            return ((PagedFile) f).getChecksums();
+        if (f instanceof BTreeFile)
+            return ((BTreeFile) f).getChecksums();
+        return null;
+    }
+
+    /** Start scrubbing in a daemon thread. */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this, "page-scrubber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the scrubbing thread and wait for it to exit. */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                scrubOnce(true);
+                Thread.sleep(Math.max(1000, minAgeMillis));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Make one pass over every table in the catalog.
+     *
+     * @return the corrupt pages found in this pass
+     */
+    public List<CorruptPage> scrubOnce() {
+        try {
+            return scrubOnce(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+    }
+
+    private List<CorruptPage> scrubOnce(boolean throttle) throws InterruptedException {
+        List<CorruptPage> found = new ArrayList<>();
+        long pauseNanos = pagesPerSecond > 0 ? 1000000000L / pagesPerSecond : 0;
+        Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+        while (tables.hasNext()) {
+            int tableId = tables.next();
+            PageChecksums checksums = checksumsOf(Database.getCatalog().getDatabaseFile(tableId));
+            if (checksums == null)
+                continue;
+            int numPages = checksums.numPages();
+            for (int pageNo = 0; pageNo < numPages; pageNo++) {
+                if (throttle && !running)
+                    return found;
+                boolean ok;
+                try {
+                    ok = checksums.scrub(pageNo, minAgeMillis);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+                if (!ok) {
+                    CorruptPage p = new CorruptPage(tableId, pageNo);
+                    found.add(p);
+                    if (corruptPages.add(p))
+                        System.err.println("PageScrubber: checksum mismatch on " + p);
+                }
+                if (throttle && pauseNanos > 0)
+                    Thread.sleep(pauseNanos / 1000000, (int) (pauseNanos % 1000000));
+            }
+        }
+        return found;
+    }
+
+    /** @return every corrupt page found so far */
+    public List<CorruptPage> getCorruptPages() {
+        synchronized (corruptPages) {
+            return new ArrayList<>(corruptPages);
+        }
+    }
+}
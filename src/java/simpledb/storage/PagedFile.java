@@ -0,0 +1,41 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * PagedFile is implemented by DbFiles that store an unordered collection of
+ * tuples on pages numbered from 0 in a single checksummed file, such as
+ * {@link HeapFile} and {@link PaxFile}. It is what table statistics, the
+ * page scrubber and the buffer pool's page cleaner need of a file, without
+ * tying them to one page layout; how tuples are locked, versioned and
+ * logged is still up to each file.
+ */
+public interface PagedFile extends DbFile {
+
+    /** @return the File backing this file on disk */
+    File getFile();
+
+    /** @return the number of pages in this file */
+    int numPages();
+
+    /** @return the checksums of the pages of this file */
+    PageChecksums getChecksums();
+
+    /**
+     * Returns an iterator over the tuples on pages firstPage (inclusive) to
+     * endPage (exclusive) of this file, so that disjoint ranges of pages can
+     * be scanned in parallel.
+     */
+    DbFileIterator iterator(TransactionId tid, int firstPage, int endPage);
+
+    /**
+     * Write pages with consecutive page numbers with a single write.
+     *
+     * @param pages the pages, in page number order with no gaps
+     */
+    void writePages(List<Page> pages) throws IOException;
+}
@@ -0,0 +1,247 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PaxFile is a DbFile that stores an unordered collection of tuples, like
+ * {@link HeapFile}, but lays each page out column by column (see
+ * {@link PaxPage}). Besides the usual tuple iterator it offers
+ * {@link #iterator(TransactionId, int[], Predicate[])}, which decodes only
+ * the referenced columns of each page and evaluates predicates over whole
+ * column arrays before building any tuples.
+ * <p>
+ * A PaxPage has no stable slot images, so none of a heap file's row-level
+ * machinery applies: the buffer pool locks a PaxFile whole for inserts and
+ * deletes, its updates are logged as page images rather than slot deltas,
+ * and scans read the current page rather than snapshot versions.
+ * <p>
+ * A table is stored as a PaxFile when its catalog entry is followed by the
+ * word <tt>pax</tt>, e.g. <tt>facts (id int pk, price int, region string) pax</tt>.
+ *
+ * @see PaxPage
+ * @see PaxFileEncoder
+ */
+public class PaxFile implements PagedFile {
+
+    private final File file;
+    private final TupleDesc td;
+    private final PageChecksums checksums;
+
+    public PaxFile(File f, TupleDesc td) {
+        this.file = f;
+        this.td = td;
+        this.checksums = new PageChecksums(f, 0);
+    }
+
+    // see PagedFile.java for javadocs
+    public File getFile() {
+        return file;
+    }
+
+    // see PagedFile.java for javadocs
+    public PageChecksums getChecksums() {
+        return checksums;
+    }
+
+    // see DbFile.java for javadocs
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    // see DbFile.java for javadocs
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see PagedFile.java for javadocs
+    public int numPages() {
+        return (int) (file.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int pgNo = pid.getPageNumber();
+            if ((long) (pgNo + 1) * BufferPool.getPageSize() > raf.length()) {
+                throw new IllegalArgumentException("page " + pgNo + " is past the end of the file");
+            }
+            byte[] data = new byte[BufferPool.getPageSize()];
+            raf.seek((long) pgNo * BufferPool.getPageSize());
+            raf.readFully(data);
+            long lsn = checksums.verify(pgNo, data);
+            PaxPage page = new PaxPage(new HeapPageId(pid.getTableId(), pgNo), data);
+            page.setLsn(lsn);
+            return page;
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot read page " + pid.getPageNumber() + " of " + file, e);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        writePages(Collections.singletonList(page));
+    }
+
+    // see PagedFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        int first = pages.get(0).getId().getPageNumber();
+        if (first > numPages())
+            throw new IllegalArgumentException("page " + first + " is past the end of the file");
+        List<byte[]> data = new ArrayList<>(pages.size());
+        long[] lsns = new long[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            if (pages.get(i).getId().getPageNumber() != first + i)
+                throw new IllegalArgumentException("pages are not consecutive");
+            data.add(pages.get(i).getPageData());
+            lsns[i] = pages.get(i).getLsn();
+        }
+        checksums.write(first, data, lsns);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Page> modified = new ArrayList<>();
+        for (int i = 0; i < numPages(); i++) {
+            PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            if (page.hasRoomFor(t)) {
+                page.insertTuple(t);
+                modified.add(page);
+                return modified;
+            }
+        }
+        // no room anywhere; an all-zero page is an empty PaxPage
+        byte[] emptyData = HeapPage.createEmptyPageData();
+        try (FileOutputStream os = new FileOutputStream(file, true)) {
+            os.write(emptyData);
+        }
+        checksums.record(numPages() - 1, emptyData);
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(getId(), numPages() - 1), Permissions.READ_WRITE);
+        page.insertTuple(t);
+        modified.add(page);
+        return modified;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        ArrayList<Page> modified = new ArrayList<>();
+        modified.add(page);
+        return modified;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, 0, Integer.MAX_VALUE);
+    }
+
+    // see PagedFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, int firstPage, int endPage) {
+        int[] fields = new int[getTupleDesc().numFields()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = i;
+        }
+        return new PaxFileIterator(tid, fields, new Predicate[0], firstPage, endPage);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy every one
+     * of preds, projected onto the given columns. Only the columns named in
+     * fields or preds are decoded.
+     *
+     * @param tid the transaction reading the file
+     * @param fields the columns to return, in output order; the returned
+     *               tuples have a TupleDesc with just these columns
+     * @param preds predicates over columns of this file's TupleDesc
+     */
+    public DbFileIterator iterator(TransactionId tid, int[] fields, Predicate[] preds) {
+        return new PaxFileIterator(tid, fields, preds, 0, Integer.MAX_VALUE);
+    }
+
+    private final class PaxFileIterator extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private final int[] fields;
+        private final Predicate[] preds;
+        private final TupleDesc outTd;
+        private final int firstPage;
+        private final int endPage;
+
+        private int pgNo = Integer.MAX_VALUE;
+        private PaxPage page;
+        private boolean[] sel;
+        private int slot;
+
+        PaxFileIterator(TransactionId tid, int[] fields, Predicate[] preds, int firstPage, int endPage) {
+            this.tid = tid;
+            this.fields = fields;
+            this.preds = preds;
+            this.outTd = project(getTupleDesc(), fields);
+            this.firstPage = firstPage;
+            this.endPage = endPage;
+        }
+
+        public void open() {
+            pgNo = firstPage;
+            page = null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            page = null;
+            pgNo = Integer.MAX_VALUE;
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (true) {
+                if (page != null) {
+                    while (slot < sel.length && !sel[slot])
+                        slot++;
+                    if (slot < sel.length)
+                        return page.getTuple(slot++, fields, outTd);
+                    page = null;
+                }
+                if (pgNo >= Math.min(endPage, numPages()))
+                    return null;
+                page = (PaxPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(getId(), pgNo++), Permissions.READ_ONLY);
+                sel = page.select(preds);
+                slot = 0;
+            }
+        }
+    }
+
+    /**
+     * @return a TupleDesc with just the given fields of td, in order
+     */
+    static TupleDesc project(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int j = 0; j < fields.length; j++) {
+            types[j] = td.getFieldType(fields[j]);
+            names[j] = td.getFieldName(fields[j]);
+        }
+        return new TupleDesc(types, names);
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PaxFileEncoder is the {@link HeapFileEncoder} counterpart for
+ * {@link PaxFile}: it reads a delimited text file, or accepts a list of
+ * tuples, and writes pages in the column-grouped format described in
+ * {@link PaxPage}, packing as many tuples onto each page as fit once its
+ * columns are compressed.
+ */
+public class PaxFileEncoder {
+
+    /**
+     * Convert the specified tuples into a binary PAX page file.
+     *
+     * @param tuples the tuples to write; all must match td
+     * @param outFile The output file to write data to
+     * @param npagebytes The number of bytes per page in the output file
+     * @param td the schema of the tuples
+     * @throws IOException if the output file can't be written
+     */
+    public static void convert(List<Tuple> tuples, File outFile, int npagebytes, TupleDesc td)
+            throws IOException {
+        PageChecksums.discard(outFile);
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile))) {
+            writePages(new ArrayList<>(tuples), true, os, npagebytes, td);
+            // like HeapFileEncoder, an empty table still gets one empty page
+            if (tuples.isEmpty())
+                os.write(new byte[npagebytes]);
+        }
+    }
+
+    /**
+     * Write as many full pages as possible from the front of pending, which
+     * is left holding the tuples not yet written. Each page holds as many
+     * tuples as fit once its columns are compressed.
+     *
+     * @param all write every pending tuple, including a final partial page;
+     *            otherwise only pages followed by at least one more pending
+     *            tuple are known to be full
+     */
+    private static void writePages(List<Tuple> pending, boolean all, OutputStream os,
+                                   int npagebytes, TupleDesc td) throws IOException {
+        while (!pending.isEmpty()) {
+            List<Tuple> candidates = pending.subList(0, Math.min(pending.size(), PaxPage.MAX_SLOTS));
+            int n = PaxPage.countTuplesThatFit(td, candidates, npagebytes);
+            if (n == 0)
+                throw new IOException("tuple does not fit on a page of " + npagebytes + " bytes");
+            if (n == pending.size() && !all)
+                return;
+            List<Tuple> page = pending.subList(0, n);
+            os.write(PaxPage.createPageData(td, page, npagebytes));
+            page.clear();
+        }
+    }
+
+    /**
+     * Convert the specified input text file into a binary PAX page file.
+     * Each line of the input holds one tuple, with fields separated by
+     * fieldSeparator and written in the form accepted by
+     * {@link Type#parse(String)}.
+     *
+     * @param inFile The input file to read data from
+     * @param outFile The output file to write data to
+     * @param npagebytes The number of bytes per page in the output file
+     * @param numFields the number of fields in each input line/output tuple
+     * @param typeAr the types of the fields
+     * @param fieldSeparator the character separating fields on a line
+     * @throws IOException if the input/output file can't be opened or a
+     *   malformed input line is encountered
+     */
+    public static void convert(File inFile, File outFile, int npagebytes,
+                               int numFields, Type[] typeAr, char fieldSeparator)
+            throws IOException {
+        TupleDesc td = new TupleDesc(typeAr);
+        PageChecksums.discard(outFile);
+        List<Tuple> pending = new ArrayList<>();
+        boolean empty = true;
+        try (BufferedReader br = new BufferedReader(new FileReader(inFile));
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+                if (values.length != numFields)
+                    throw new IOException("BAD LINE : " + line);
+                Tuple t = new Tuple(td);
+                try {
+                    for (int i = 0; i < numFields; i++) {
+                        t.setField(i, typeAr[i].parse(typeAr[i] == Type.STRING_TYPE ? values[i].trim() : values[i]));
+                    }
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("BAD LINE : " + line, e);
+                }
+                pending.add(t);
+                empty = false;
+                if (pending.size() > PaxPage.MAX_SLOTS)
+                    writePages(pending, false, os, npagebytes, td);
+            }
+            writePages(pending, true, os, npagebytes, td);
+            if (empty)
+                os.write(new byte[npagebytes]);
+        }
+    }
+}
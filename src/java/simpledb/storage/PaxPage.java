@@ -0,0 +1,522 @@
+package simpledb.storage;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of PaxPage stores data for one page of a PaxFile. Unlike
+ * {@link HeapPage}, which stores tuples one after another, a PaxPage groups
+ * the values of each column into a contiguous "minipage" (the PAX layout), so
+ * that a scan that only needs a few columns decodes only those columns.
+ * <p>
+ * Each minipage is compressed with whichever {@link ColumnCodec} is smallest
+ * for the values it holds, so the number of slots on a page depends on how
+ * well its columns compress. Columns are decoded lazily: the raw page bytes
+ * are kept until a column is asked for, and {@link #select} evaluates
+ * predicates on the encoded minipages where it can. Operations that change
+ * the page (insertion, deletion) decode all columns and re-encode the page
+ * when it is written out.
+ *
+ * @see PaxFile
+ * @see BufferPool
+ */
+public class PaxPage implements Page {
+
+    /** the largest number of slots a page can have, so that it fits in the short slot count */
+    static final int MAX_SLOTS = Short.MAX_VALUE;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    byte[] header;
+    int numSlots;
+    /** byte offset of each column's minipage within the raw page bytes */
+    final int[] columnOffsets;
+
+    /** raw page bytes, used to decode columns on demand */
+    private final byte[] data;
+    /** minipages read from data but not yet decoded; null until read */
+    private final ColumnCodec.Column[] encoded;
+    /** decoded columns, indexed by [column][slot]; null until decoded */
+    private final Field[][] columns;
+    /** true once the page no longer matches data and must be re-encoded */
+    private boolean modified;
+
+    private boolean dirty;
+    private volatile long lsn = -1;
+    private TransactionId transactionId;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk.
+     * The format of a PaxPage is a two byte count of the slots on the page,
+     * then header bytes indicating which of those slots are in use, followed
+     * by one minipage per column. Each minipage is a one byte codec id, a
+     * four byte length, and that many bytes holding numSlots values in the
+     * codec's encoding (see {@link ColumnCodec}). The header takes
+     * ceiling(no. tuple slots / 8) bytes; an all-zero page is an empty page.
+     *
+     * @see Database#getCatalog
+     * @see Catalog#getTupleDesc
+     * @see BufferPool#getPageSize()
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.numSlots = dis.readUnsignedShort();
+        this.header = new byte[getHeaderSize(numSlots)];
+        dis.readFully(header);
+        this.columnOffsets = new int[td.numFields()];
+        int offset = 2 + header.length;
+        for (int i = 0; i < td.numFields(); i++) {
+            columnOffsets[i] = offset;
+            dis.skipBytes(1);
+            int len = dis.readInt();
+            if (len < 0 || dis.skipBytes(len) != len)
+                throw new IOException("corrupt minipage for column " + i);
+            offset += 5 + len;
+        }
+        this.encoded = new ColumnCodec.Column[td.numFields()];
+        this.columns = new Field[td.numFields()][];
+        setBeforeImage();
+    }
+
+    /**
+     * @return the number of tuple slots that always fit on a page of pageSize
+     *   bytes, even with every column stored uncompressed
+     */
+    static int getNumTuples(TupleDesc td, int pageSize) {
+        int fixed = 2 + 5 * td.numFields();
+        return Math.min(MAX_SLOTS, ((pageSize - fixed) * 8) / (td.getSize() * 8 + 1));
+    }
+
+    private static int getHeaderSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData().clone();
+        }
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** @return the minipage of column i, still encoded */
+    private ColumnCodec.Column getEncodedColumn(int i) {
+        if (encoded[i] == null) {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    data, columnOffsets[i], data.length - columnOffsets[i]));
+            try {
+                ColumnCodec codec = ColumnCodec.forId(dis.readUnsignedByte());
+                dis.skipBytes(4);
+                encoded[i] = codec.read(td.getFieldType(i), numSlots, dis);
+            } catch (IOException | java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+        }
+        return encoded[i];
+    }
+
+    /**
+     * Return the values of column i, indexed by slot number. Entries for
+     * empty slots are null. The returned array is shared with the page and
+     * must not be modified.
+     *
+     * @param i the index of the column in this page's TupleDesc
+     */
+    public synchronized Field[] getColumn(int i) {
+        if (columns[i] == null) {
+            Field[] col = getEncodedColumn(i).decode();
+            for (int slot = 0; slot < numSlots; slot++) {
+                if (!isSlotUsed(slot))
+                    col[slot] = null;
+            }
+            columns[i] = col;
+            encoded[i] = null;
+        }
+        return columns[i];
+    }
+
+    /**
+     * Evaluate predicates column-at-a-time over this page. Columns that have
+     * not been decoded yet are filtered in their encoded form.
+     *
+     * @param preds predicates whose field numbers refer to columns of this
+     *              page's TupleDesc; all of them must hold
+     * @return a selection vector with one entry per slot that is true for
+     *         used slots whose values satisfy every predicate
+     */
+    public synchronized boolean[] select(Predicate[] preds) {
+        boolean[] sel = new boolean[numSlots];
+        for (int slot = 0; slot < numSlots; slot++) {
+            sel[slot] = isSlotUsed(slot);
+        }
+        for (Predicate p : preds) {
+            Predicate.Op op = p.getOp();
+            Field operand = p.getOperand();
+            if (columns[p.getField()] == null) {
+                getEncodedColumn(p.getField()).filter(op, operand, sel);
+                continue;
+            }
+            Field[] col = columns[p.getField()];
+            for (int slot = 0; slot < numSlots; slot++) {
+                if (sel[slot] && !col[slot].compare(op, operand)) {
+                    sel[slot] = false;
+                }
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * Build the tuple stored in a used slot, keeping only some of its columns.
+     *
+     * @param slot the slot to read
+     * @param fields the columns to keep, in output order
+     * @param outTd the TupleDesc of the returned tuple
+     */
+    public Tuple getTuple(int slot, int[] fields, TupleDesc outTd) {
+        Tuple t = new Tuple(outTd);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int j = 0; j < fields.length; j++) {
+            t.setField(j, getColumn(fields[j])[slot]);
+        }
+        return t;
+    }
+
+    private void decodeAll() {
+        for (int i = 0; i < td.numFields(); i++) {
+            getColumn(i);
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the PaxPage constructor and
+     * have it produce an identical PaxPage object.
+     *
+     * @see #PaxPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public synchronized byte[] getPageData() {
+        if (!modified) {
+            return data.clone();
+        }
+        byte[] out = encode(td, header, numSlots, columns, BufferPool.getPageSize());
+        if (out == null) {
+            // insertTuple only accepts tuples that leave the page encodable
+            throw new IllegalStateException("page no longer fits in " + BufferPool.getPageSize() + " bytes");
+        }
+        return out;
+    }
+
+    /**
+     * Encode a page in the format described at {@link #PaxPage}.
+     *
+     * @param columns the values of each column, indexed by [column][slot];
+     *                null entries (empty slots) may hold any value
+     * @return the page bytes, or null if they do not fit in pageSize bytes
+     */
+    private static byte[] encode(TupleDesc td, byte[] header, int numSlots, Field[][] columns, int pageSize) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeShort(numSlots);
+            dos.write(header, 0, getHeaderSize(numSlots));
+            for (int i = 0; i < td.numFields(); i++) {
+                Type type = td.getFieldType(i);
+                byte[] minipage = ColumnCodec.encodeBest(type, fillEmptySlots(type, columns[i], numSlots));
+                dos.writeByte(minipage[0]);
+                dos.writeInt(minipage.length - 1);
+                dos.write(minipage, 1, minipage.length - 1);
+                if (baos.size() > pageSize)
+                    return null;
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new RuntimeException(e);
+        }
+        return Arrays.copyOf(baos.toByteArray(), pageSize);
+    }
+
+    /**
+     * Empty slots still take a value in every minipage; repeat the previous
+     * value so they cost as little as possible under run-length and
+     * dictionary encoding.
+     */
+    private static Field[] fillEmptySlots(Type type, Field[] col, int numSlots) {
+        Field[] filled = Arrays.copyOf(col, numSlots);
+        Field prev = null;
+        for (Field f : filled) {
+            if (f != null) {
+                prev = f;
+                break;
+            }
+        }
+        if (prev == null) {
+            try {
+                prev = type.parse(new DataInputStream(new ByteArrayInputStream(new byte[type.getLen()])));
+            } catch (java.text.ParseException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (filled[slot] == null)
+                filled[slot] = prev;
+            prev = filled[slot];
+        }
+        return filled;
+    }
+
+    /**
+     * Generate the bytes of a PaxPage holding the specified tuples, without
+     * going through the catalog. Used by {@link PaxFileEncoder}.
+     *
+     * @param td the schema of the tuples
+     * @param tuples the tuples to store; must fit on one page
+     * @param pageSize the number of bytes per page
+     * @return the page bytes, or null if the tuples do not fit on one page
+     */
+    static byte[] createPageData(TupleDesc td, List<Tuple> tuples, int pageSize) {
+        int numSlots = tuples.size();
+        if (numSlots > MAX_SLOTS)
+            return null;
+        byte[] header = new byte[getHeaderSize(numSlots)];
+        for (int slot = 0; slot < numSlots; slot++) {
+            header[slot / 8] |= (byte) (1 << (slot % 8));
+        }
+        Field[][] columns = new Field[td.numFields()][numSlots];
+        for (int i = 0; i < td.numFields(); i++) {
+            for (int slot = 0; slot < numSlots; slot++) {
+                columns[i][slot] = tuples.get(slot).getField(i);
+            }
+        }
+        return encode(td, header, numSlots, columns, pageSize);
+    }
+
+    /**
+     * @return the largest n such that the first n of tuples fit on one page
+     */
+    static int countTuplesThatFit(TupleDesc td, List<Tuple> tuples, int pageSize) {
+        // the encoded size only grows with the number of tuples, so gallop up
+        // from the count that fits uncompressed, then binary search
+        int lo = Math.min(tuples.size(), getNumTuples(td, pageSize));
+        int hi = Math.min(tuples.size(), MAX_SLOTS);
+        while (lo < hi) {
+            int probe = Math.min(hi, Math.max(lo * 2, lo + 1));
+            if (createPageData(td, tuples.subList(0, probe), pageSize) == null) {
+                hi = probe - 1;
+                break;
+            }
+            lo = probe;
+        }
+        while (lo < hi) {
+            int mid = lo + (hi - lo + 1) / 2;
+            if (createPageData(td, tuples.subList(0, mid), pageSize) != null)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Delete the specified tuple from the page; the corresponding header bit
+     * is cleared to reflect that it is no longer stored on any page.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slot = rid.getTupleNumber();
+        if (slot >= numSlots || !isSlotUsed(slot)) {
+            throw new DbException("tuple slot is already empty");
+        }
+        decodeAll();
+        modified = true;
+        markSlotUsed(slot, false);
+        for (Field[] col : columns) {
+            col[slot] = null;
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple is updated to reflect
+     * that it is now stored on this page. The tuple goes into an empty slot
+     * if there is one, or a new slot otherwise, as long as the page still
+     * fits once re-encoded.
+     *
+     * @throws DbException if the page is full (the page would no longer fit
+     *         with the tuple added) or tupledesc is mismatch.
+     * @param t The tuple to add.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc())) {
+            throw new DbException("TupleDesc mismatch");
+        }
+        if (!tryInsert(t, true)) {
+            throw new DbException("page is full");
+        }
+    }
+
+    /**
+     * @return true if {@link #insertTuple} would accept t
+     */
+    public synchronized boolean hasRoomFor(Tuple t) {
+        return tryInsert(t, false);
+    }
+
+    private boolean tryInsert(Tuple t, boolean keep) {
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot))
+            slot++;
+        if (slot == MAX_SLOTS)
+            return false;
+        // reusing a slot of a page that would fit uncompressed always fits
+        boolean fitsUncompressed = slot < numSlots && numSlots <= getNumTuples(td, BufferPool.getPageSize());
+        if (fitsUncompressed && !keep)
+            return true;
+        decodeAll();
+        byte[] oldHeader = header;
+        int oldNumSlots = numSlots;
+        if (slot == numSlots) {
+            numSlots++;
+            header = Arrays.copyOf(header, getHeaderSize(numSlots));
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], numSlots);
+            }
+        } else {
+            header = header.clone();
+        }
+        markSlotUsed(slot, true);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i][slot] = t.getField(i);
+        }
+        boolean fits = fitsUncompressed
+                || encode(td, header, numSlots, columns, BufferPool.getPageSize()) != null;
+        if (fits && keep) {
+            modified = true;
+            t.setRecordId(new RecordId(pid, slot));
+            return true;
+        }
+        header = oldHeader;
+        numSlots = oldNumSlots;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Arrays.copyOf(columns[i], numSlots);
+            if (slot < numSlots)
+                columns[i][slot] = null;
+        }
+        return fits;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.transactionId = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? transactionId : null;
+    }
+
+    // see Page.java for javadocs
+    public long getLsn() {
+        return lsn;
+    }
+
+    // see Page.java for javadocs
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * Returns the number of empty slots on this page. Because new slots are
+     * added as long as the page still fits, a page with no empty slots may
+     * still accept tuples; see {@link #hasRoomFor}.
+     */
+    public int getNumEmptySlots() {
+        int numEmptySlots = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                numEmptySlots++;
+            }
+        }
+        return numEmptySlots;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && ((header[i / 8] >> (i % 8)) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        byte mask = (byte) (1 << (i % 8));
+        if (value) {
+            header[i / 8] |= mask;
+        } else {
+            header[i / 8] &= ~mask;
+        }
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this
+     * iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        int[] fields = new int[td.numFields()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = i;
+        }
+        List<Tuple> filledTuples = new ArrayList<>();
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (isSlotUsed(slot)) {
+                filledTuples.add(getTuple(slot, fields, td));
+            }
+        }
+        return Collections.unmodifiableList(filledTuples).iterator();
+    }
+}
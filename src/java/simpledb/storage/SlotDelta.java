@@ -0,0 +1,235 @@
+package simpledb.storage;
+
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlotDelta describes an update of one {@link SlotPage} by the slots it
+ * changed: the number of each changed slot together with the slot's bytes
+ * before and after the update (or nothing for an empty slot), plus the
+ * page's other bytes if they changed too. Inserting or deleting one tuple
+ * of a heap page is thus logged in a few dozen bytes instead of two complete
+ * page images.
+ * <p>
+ * Deltas are computed by {@link #diff} from the before and after images
+ * handed to {@link LogFile#logWrite}, so pages do not have to track their
+ * own changes. {@link #redo} and {@link #undo} apply a delta to a page in
+ * either direction.
+ */
+public class SlotDelta {
+
+    private static final int HEAP_PAGE = 1;
+    private static final int BTREE_LEAF_PAGE = 2;
+
+    private static final int HAS_BEFORE = 1;
+    private static final int HAS_AFTER = 2;
+
+    private final int kind;
+    private final PageId pid;
+    private final int slotSize;
+    private final int[] slots;
+    private final byte[][] before; // null entries are empty slots
+    private final byte[][] after;
+    private final byte[] nonSlotBefore; // both null if unchanged
+    private final byte[] nonSlotAfter;
+
+    private SlotDelta(int kind, PageId pid, int slotSize, int[] slots, byte[][] before, byte[][] after,
+                      byte[] nonSlotBefore, byte[] nonSlotAfter) {
+        this.kind = kind;
+        this.pid = pid;
+        this.slotSize = slotSize;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+        this.nonSlotBefore = nonSlotBefore;
+        this.nonSlotAfter = nonSlotAfter;
+    }
+
+    private static int kindOf(Page p) {
+        if (p instanceof HeapPage)
+            return HEAP_PAGE;
+        if (p instanceof BTreeLeafPage)
+            return BTREE_LEAF_PAGE;
+        return 0;
+    }
+
+    /**
+     * Compute the delta that turns one image of a page into another.
+     *
+     * @return the delta, or null if the images are not of the same slotted
+     *         page, in which case the update has to be logged as full images
+     */
+    public static SlotDelta diff(Page before, Page after) {
+        int kind = kindOf(after);
+        if (kind == 0 || kindOf(before) != kind || !before.getId().equals(after.getId()))
+            return null;
+        SlotPage b = (SlotPage) before;
+        SlotPage a = (SlotPage) after;
+        if (b.getNumSlots() != a.getNumSlots())
+            return null;
+
+        int slotSize = 0;
+        List<Integer> slots = new ArrayList<>();
+        List<byte[]> befores = new ArrayList<>();
+        List<byte[]> afters = new ArrayList<>();
+        for (int i = 0; i < a.getNumSlots(); i++) {
+            byte[] bi = b.getSlotImage(i);
+            byte[] ai = a.getSlotImage(i);
+            if (Arrays.equals(bi, ai))
+                continue;
+            slotSize = (ai != null ? ai : bi).length;
+            slots.add(i);
+            befores.add(bi);
+            afters.add(ai);
+        }
+
+        byte[] nb = b.getNonSlotData();
+        byte[] na = a.getNonSlotData();
+        boolean nonSlotChanged = !Arrays.equals(nb, na);
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++)
+            slotArray[i] = slots.get(i);
+        return new SlotDelta(kind, after.getId(), slotSize, slotArray,
+                befores.toArray(new byte[0][]), afters.toArray(new byte[0][]),
+                nonSlotChanged ? nb : null, nonSlotChanged ? na : null);
+    }
+
+    /** @return the id of the page this delta applies to */
+    public PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of slots this delta changes */
+    public int getNumChanges() {
+        return slots.length;
+    }
+
+    /** @return the number of the i-th slot this delta changes */
+    int getSlot(int i) {
+        return slots[i];
+    }
+
+    /** @return the bytes of the i-th changed slot before the update, or
+        null if it was empty */
+    byte[] getBefore(int i) {
+        return before[i];
+    }
+
+    /** @return the delta that undoes this one */
+    public SlotDelta inverse() {
+        return new SlotDelta(kind, pid, slotSize, slots, after, before, nonSlotAfter, nonSlotBefore);
+    }
+
+    /**
+     * Apply this delta to a page in its before state, leaving it in its
+     * after state.
+     */
+    public void redo(SlotPage page) {
+        apply(page, after, nonSlotAfter);
+    }
+
+    /**
+     * Apply this delta backwards to a page in its after state, leaving it in
+     * its before state.
+     */
+    public void undo(SlotPage page) {
+        apply(page, before, nonSlotBefore);
+    }
+
+    private void apply(SlotPage page, byte[][] images, byte[] nonSlot) {
+        if (!page.getId().equals(pid))
+            throw new IllegalArgumentException("delta for " + pid + " applied to " + page.getId());
+        for (int i = 0; i < slots.length; i++)
+            page.setSlotImage(slots[i], images[i]);
+        if (nonSlot != null)
+            page.setNonSlotData(nonSlot);
+    }
+
+    /**
+     * Write this delta. The format is: a page kind byte, the table id and
+     * page number, the slot size and number of changed slots as shorts, then
+     * for each changed slot its number as a short, a byte of flags saying
+     * whether it was and is used, and the bytes of whichever of its images
+     * are present; last a short length, and if non-zero the before and after
+     * non-slot bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeShort(slotSize);
+        out.writeShort(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeShort(slots[i]);
+            out.writeByte((before[i] != null ? HAS_BEFORE : 0) | (after[i] != null ? HAS_AFTER : 0));
+            if (before[i] != null)
+                out.write(before[i]);
+            if (after[i] != null)
+                out.write(after[i]);
+        }
+        if (nonSlotBefore == null) {
+            out.writeShort(0);
+        } else {
+            out.writeShort(nonSlotBefore.length);
+            out.write(nonSlotBefore);
+            out.write(nonSlotAfter);
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #write}.
+     */
+    public static SlotDelta read(DataInput in) throws IOException {
+        int kind = in.readByte();
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        PageId pid;
+        switch (kind) {
+        case HEAP_PAGE:
+            pid = new HeapPageId(tableId, pageNo);
+            break;
+        case BTREE_LEAF_PAGE:
+            pid = new BTreePageId(tableId, pageNo, BTreePageId.LEAF);
+            break;
+        default:
+            throw new IOException("unknown page kind " + kind + " in slot delta");
+        }
+        int slotSize = in.readUnsignedShort();
+        int n = in.readUnsignedShort();
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            slots[i] = in.readUnsignedShort();
+            int flags = in.readByte();
+            if ((flags & HAS_BEFORE) != 0) {
+                before[i] = new byte[slotSize];
+                in.readFully(before[i]);
+            }
+            if ((flags & HAS_AFTER) != 0) {
+                after[i] = new byte[slotSize];
+                in.readFully(after[i]);
+            }
+        }
+        byte[] nonSlotBefore = null;
+        byte[] nonSlotAfter = null;
+        int len = in.readUnsignedShort();
+        if (len > 0) {
+            nonSlotBefore = new byte[len];
+            nonSlotAfter = new byte[len];
+            in.readFully(nonSlotBefore);
+            in.readFully(nonSlotAfter);
+        }
+        return new SlotDelta(kind, pid, slotSize, slots, before, after, nonSlotBefore, nonSlotAfter);
+    }
+
+    @Override
+    public String toString() {
+        return "table " + pid.getTableId() + " page " + pid.getPageNumber() + " slots " + Arrays.toString(slots)
+                + (nonSlotBefore != null ? " and header" : "");
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb.storage;
+
+/**
+ * SlotPage is implemented by pages that store fixed size tuples in numbered
+ * slots, such as {@link HeapPage} and the leaf pages of a B+ tree. Exposing
+ * the raw bytes of each slot lets the log describe an update by the slots it
+ * changed ({@link SlotDelta}) instead of by two complete page images, and
+ * lets recovery redo and undo such an update in place.
+ */
+public interface SlotPage extends Page {
+
+    /** @return the number of slots on this page, used or not */
+    int getNumSlots();
+
+    /**
+     * @return the serialized tuple in slot i, or null if the slot is empty
+     */
+    byte[] getSlotImage(int i);
+
+    /**
+     * Overwrite slot i with a serialized tuple, or empty it.
+     *
+     * @param image the tuple bytes as returned by getSlotImage, or null to
+     *        empty the slot
+     */
+    void setSlotImage(int i, byte[] image);
+
+    /**
+     * @return the bytes of this page that are neither slots nor the bitmap
+     *         of used slots (e.g. parent and sibling pointers); may be empty
+     */
+    byte[] getNonSlotData();
+
+    /**
+     * Overwrite the bytes returned by getNonSlotData.
+     */
+    void setNonSlotData(byte[] data);
+}
@@ -0,0 +1,98 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * TrickleWriter is a background thread that writes dirty pages of the
+ * buffer pool to disk a few at a time, oldest recLSN first.
+ * <p>
+ * Checkpoints are fuzzy and write no pages (see {@link LogFile#logCheckpoint}),
+ * so a page that stays dirty keeps recovery, and the log, reaching back to
+ * the record that first dirtied it. Writing the pages that have been dirty
+ * the longest moves that point forward, so that restart has less to redo
+ * and logTruncate can reclaim more. The writer writes at most a fixed number
+ * of pages per second so that it does not compete with queries for the disk;
+ * each write obeys the write-ahead rule through the BufferPool.
+ */
+public class TrickleWriter implements Runnable {
+
+    /** Default rate of the trickle writer Database starts. */
+    public static final int DEFAULT_PAGES_PER_SECOND = 20;
+
+    private final int pagesPerSecond;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param pagesPerSecond the most pages to write per second
+     */
+    public TrickleWriter(int pagesPerSecond) {
+        this.pagesPerSecond = Math.max(1, pagesPerSecond);
+    }
+
+    /** Start writing in a daemon thread. */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this, "trickle-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Stop the writing thread and wait for it to exit. */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            t.join();
+        }
+    }
+
+    public void run() {
+        long pauseNanos = 1000000000L / pagesPerSecond;
+        try {
+            while (running) {
+                int written = 0;
+                try {
+                    written = writeOnce(1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                // idle for a second when there is nothing to write
+                long pause = written > 0 ? pauseNanos : 1000000000L;
+                Thread.sleep(pause / 1000000, (int) (pause % 1000000));
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Write up to maxPages dirty pages, those with the oldest recLSN first.
+     *
+     * @return the number of pages written
+     */
+    public int writeOnce(int maxPages) throws IOException {
+        BufferPool bufferPool = Database.getBufferPool();
+        List<Map.Entry<PageId, Long>> dirty = new ArrayList<>(bufferPool.dirtyPageTable().entrySet());
+        dirty.sort(Map.Entry.comparingByValue());
+        int written = 0;
+        for (Map.Entry<PageId, Long> e : dirty) {
+            if (written >= maxPages)
+                break;
+            bufferPool.flushPage(e.getKey());
+            written++;
+        }
+        return written;
+    }
+}
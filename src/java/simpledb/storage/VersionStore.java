@@ -0,0 +1,215 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * VersionStore gives transactions snapshot isolation over heap files. A
+ * transaction that was started with {@link #begin} sees the database as it
+ * was when it began: the updates of transactions that committed before
+ * then, and its own, but nothing else. Readers therefore never wait for
+ * writers, and writers never wait for readers.
+ * <p>
+ * Pages hold only the newest version of each slot. Whenever a slot of a
+ * HeapPage is changed, the store keeps the slot's previous bytes together
+ * with the id of the transaction that changed it, newest last, and
+ * {@link #visibleTuples} rebuilds the page a snapshot sees by putting back
+ * the previous bytes of every change the snapshot must not see. Old versions
+ * are dropped as soon as every running snapshot can see the change that
+ * replaced them.
+ * <p>
+ * Writers only conflict with writers, and the first one to change a slot
+ * wins: deleting a tuple that another transaction changed after the deleter
+ * began (or has not committed yet) aborts the deleter (see
+ * {@link #checkWrite}), and inserts do not reuse a slot whose last change
+ * is not committed. Rollback restores pages from the log; {@link #abort}
+ * then forgets the rolled back versions.
+ * <p>
+ * Transactions that were not begun here (e.g. recovery, or tests that make
+ * up a TransactionId) read pages as they are.
+ */
+public class VersionStore {
+
+    /** A slot's bytes before a transaction changed it. */
+    private static final class Version {
+        final long writer;
+        final byte[] before; // null if the slot was empty
+
+        Version(long writer, byte[] before) {
+            this.writer = writer;
+            this.before = before;
+        }
+    }
+
+    private long clock = 0;
+    /** snapshot time of every running transaction */
+    private final Map<Long, Long> started = new HashMap<>();
+    /** commit time of the committed writers whose versions are kept */
+    private final Map<Long, Long> committed = new HashMap<>();
+    /** the pages each writer with kept versions changed */
+    private final Map<Long, Set<PageId>> written = new HashMap<>();
+    /** the versions of each changed slot of each page, oldest first */
+    private final Map<PageId, Map<Integer, List<Version>>> versions = new HashMap<>();
+
+    /** Start a snapshot for tid, which sees every transaction committed so far. */
+    public synchronized void begin(TransactionId tid) {
+        started.put(tid.getId(), clock);
+    }
+
+    /** Make tid's changes visible to the snapshots that begin from now on. */
+    public synchronized void commit(TransactionId tid) {
+        if (started.remove(tid.getId()) == null)
+            return;
+        clock++;
+        if (written.containsKey(tid.getId()))
+            committed.put(tid.getId(), clock);
+        prune();
+    }
+
+    /**
+     * Forget the versions tid made; called once its changes have been
+     * rolled back.
+     */
+    public synchronized void abort(TransactionId tid) {
+        if (started.remove(tid.getId()) == null)
+            return;
+        Set<PageId> pages = written.remove(tid.getId());
+        if (pages != null) {
+            for (PageId pid : pages)
+                removeVersions(pid, tid.getId());
+        }
+        prune();
+    }
+
+    /** @return whether tid reads a snapshot */
+    public synchronized boolean isSnapshot(TransactionId tid) {
+        return started.containsKey(tid.getId());
+    }
+
+    /** @return the number of slot versions kept */
+    public synchronized int numVersions() {
+        int n = 0;
+        for (Map<Integer, List<Version>> slots : versions.values())
+            for (List<Version> chain : slots.values())
+                n += chain.size();
+        return n;
+    }
+
+    private boolean visible(long writer, long reader) {
+        if (writer == reader)
+            return true;
+        Long commit = committed.get(writer);
+        return commit != null && commit <= started.get(reader);
+    }
+
+    /**
+     * Check that tid may change the tuple at rid: that the last change to
+     * its slot is one tid can see.
+     *
+     * @throws TransactionAbortedException if another transaction changed
+     *         the slot after tid began, or has not committed yet
+     */
+    public synchronized void checkWrite(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        if (!started.containsKey(tid.getId()))
+            return;
+        Map<Integer, List<Version>> slots = versions.get(rid.getPageId());
+        List<Version> chain = slots == null ? null : slots.get(rid.getTupleNumber());
+        if (chain != null && !visible(chain.get(chain.size() - 1).writer, tid.getId()))
+            throw new TransactionAbortedException();
+    }
+
+    /**
+     * @return the first empty slot of page from slot from on that an insert
+     *         may use, or -1; slots emptied by a transaction that has not
+     *         committed are kept for its rollback
+     */
+    synchronized int freeSlot(HeapPage page, int from) {
+        Map<Integer, List<Version>> slots = versions.get(page.getId());
+        for (int i = from; i < page.getNumSlots(); i++) {
+            if (page.isSlotUsed(i))
+                continue;
+            List<Version> chain = slots == null ? null : slots.get(i);
+            if (chain == null || committed.containsKey(chain.get(chain.size() - 1).writer))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Keep the previous bytes of the slots tid changed on a page.
+     *
+     * @param delta the change, as computed for the log
+     */
+    synchronized void recordUpdate(TransactionId tid, SlotDelta delta) {
+        long writer = tid.getId();
+        if (!started.containsKey(writer) || !(delta.getPageId() instanceof HeapPageId))
+            return;
+        Map<Integer, List<Version>> slots = versions.computeIfAbsent(delta.getPageId(), k -> new HashMap<>());
+        for (int i = 0; i < delta.getNumChanges(); i++) {
+            List<Version> chain = slots.computeIfAbsent(delta.getSlot(i), k -> new ArrayList<>(1));
+            // a transaction's first change of a slot holds what others see
+            if (chain.isEmpty() || chain.get(chain.size() - 1).writer != writer)
+                chain.add(new Version(writer, delta.getBefore(i)));
+        }
+        written.computeIfAbsent(writer, k -> new HashSet<>()).add(delta.getPageId());
+    }
+
+    /**
+     * @return the tuples of page that tid's snapshot sees
+     */
+    public synchronized Iterator<Tuple> visibleTuples(TransactionId tid, HeapPage page) {
+        Map<Integer, List<Version>> slots = versions.get(page.getId());
+        if (slots == null || !started.containsKey(tid.getId()))
+            return page.iterator();
+        HeapPage snapshot = null;
+        for (Map.Entry<Integer, List<Version>> e : slots.entrySet()) {
+            List<Version> chain = e.getValue();
+            int i = chain.size() - 1;
+            while (i >= 0 && !visible(chain.get(i).writer, tid.getId()))
+                i--;
+            if (i == chain.size() - 1)
+                continue;
+            if (snapshot == null) {
+                try {
+                    snapshot = new HeapPage(page.getId(), page.getPageData());
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            snapshot.setSlotImage(e.getKey(), chain.get(i + 1).before);
+        }
+        return snapshot == null ? page.iterator() : snapshot.iterator();
+    }
+
+    private void removeVersions(PageId pid, long writer) {
+        Map<Integer, List<Version>> slots = versions.get(pid);
+        if (slots == null)
+            return;
+        Iterator<List<Version>> it = slots.values().iterator();
+        while (it.hasNext()) {
+            List<Version> chain = it.next();
+            chain.removeIf(v -> v.writer == writer);
+            if (chain.isEmpty())
+                it.remove();
+        }
+        if (slots.isEmpty())
+            versions.remove(pid);
+    }
+
+    /** Drop the versions replaced by changes every snapshot sees. */
+    private void prune() {
+        long oldest = started.isEmpty() ? Long.MAX_VALUE : Collections.min(started.values());
+        Iterator<Map.Entry<Long, Long>> it = committed.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if (e.getValue() > oldest)
+                continue;
+            for (PageId pid : written.remove(e.getKey()))
+                removeVersions(pid, e.getKey());
+            it.remove();
+        }
+    }
+}
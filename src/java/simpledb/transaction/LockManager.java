@@ -0,0 +1,568 @@
+package simpledb.transaction;
+
+import simpledb.common.Database;
+import simpledb.storage.Field;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+
+import java.util.*;
+
+/**
+ * LockManager keeps the locks transactions hold on tables, pages and rows
+ * (tuples, named by their RecordId), and makes transactions that ask for a
+ * conflicting lock wait until the lock is released.
+ * <p>
+ * Locks form a hierarchy: a transaction that locks a row first takes an
+ * intention lock (IS for reading, IX for writing) on the row's table and
+ * page, so that a lock on a whole table conflicts with the rows locked
+ * underneath it without looking at them. Transactions updating different
+ * rows of the same page therefore do not wait for each other.
+ * <p>
+ * Indexes lock key values instead of rows (next-key locking): the lock on a
+ * key also covers the gap between it and the key before it, and a null key
+ * stands for the end of the index. A range scan locks every key it reads and
+ * the first key past the range, an insert waits until no one holds a lock
+ * on the key after its own (see {@link #lockGap}), and a delete keeps the
+ * key after its own locked until it completes, so no other transaction can
+ * add a row to or remove one from a range that has been scanned.
+ * <p>
+ * Once a transaction holds more than {@link #getEscalationThreshold} row
+ * locks of one table, the row locks are escalated: if no other transaction
+ * is in the way, its table lock is turned into a lock on the whole table
+ * and its page and row locks of that table are released. If others are in
+ * the way it keeps locking rows, and tries again after as many more rows.
+ * <p>
+ * A transaction whose wait would close a cycle of waiting transactions is
+ * aborted by throwing TransactionAbortedException, and so is one that
+ * waits longer than {@link #getLockTimeout}. Locks are held until the
+ * transaction completes (strict two-phase locking).
+ * <p>
+ * What each transaction holds locks on is kept in its entry of the
+ * {@link TransactionTable}, so releasing its locks visits only those.
+ */
+public class LockManager {
+
+    /** Lock modes, from weakest to strongest. */
+    public enum Mode {
+        /** intention to share rows underneath */
+        IS,
+        /** intention to update rows underneath */
+        IX,
+        /** shared */
+        S,
+        /** shared, with intention to update rows underneath */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //        IS     IX     S      SIX    X
+                /* IS */ {true,  true,  true,  true,  false},
+                /* IX */ {true,  true,  false, false, false},
+                /* S  */ {true,  false, true,  false, false},
+                /* SIX*/ {true,  false, false, false, false},
+                /* X  */ {false, false, false, false, false},
+        };
+
+        /** @return whether two transactions may hold this mode and other at once */
+        public boolean compatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this mode and other */
+        public Mode combine(Mode other) {
+            if (this == other || other == IS)
+                return this;
+            if (this == IS)
+                return other;
+            if (this == X || other == X)
+                return X;
+            // two of IX, S and SIX
+            return SIX;
+        }
+
+        /** @return whether holding this mode grants other */
+        public boolean covers(Mode other) {
+            return combine(other) == this;
+        }
+    }
+
+    /** The lockable name of a table. */
+    private static final class Table {
+        final int tableId;
+
+        Table(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Table && ((Table) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId;
+        }
+    }
+
+    /** The lockable name of a key value of an index, and the gap before it. */
+    private static final class Key {
+        final int tableId;
+        final Field key; // null for the end of the index
+
+        Key(int tableId, Field key) {
+            this.tableId = tableId;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return other.tableId == tableId && Objects.equals(other.key, key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * tableId + Objects.hashCode(key);
+        }
+    }
+
+    /** A transaction waiting for a lock. */
+    private static final class Request {
+        final TransactionId tid;
+        final Object resource;
+        final Mode mode;
+
+        Request(TransactionId tid, Object resource, Mode mode) {
+            this.tid = tid;
+            this.resource = resource;
+            this.mode = mode;
+        }
+    }
+
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+    public static final long DEFAULT_LOCK_TIMEOUT = 30000;
+
+    private int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+    /** the holders of each locked table, page or row, and their modes */
+    private final Map<Object, Map<TransactionId, Mode>> locks = new HashMap<>();
+    /** the number of row and key locks each transaction holds in each table */
+    private final Map<TransactionId, Map<Integer, Integer>> rowLocks = new HashMap<>();
+    /** the lock each waiting transaction waits for */
+    private final Map<TransactionId, Request> waiting = new HashMap<>();
+
+    private long escalations;
+
+    /** @return the row locks a transaction may hold in a table before they are escalated */
+    public synchronized int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    public synchronized void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = Math.max(1, escalationThreshold);
+    }
+
+    /** @return the milliseconds a transaction waits for a lock before it is aborted */
+    public synchronized long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    public synchronized void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    /** @return the number of times row locks were escalated to a table lock */
+    public synchronized long getEscalations() {
+        return escalations;
+    }
+
+    /**
+     * Lock a whole table.
+     *
+     * @throws TransactionAbortedException if tid was picked to break a
+     *         deadlock, or waited too long
+     */
+    public synchronized void lockTable(TransactionId tid, int tableId, Mode mode)
+            throws TransactionAbortedException {
+        acquire(tid, new Table(tableId), mode);
+    }
+
+    /**
+     * Lock a page, and its table with the matching intention lock.
+     *
+     * @throws TransactionAbortedException if tid was picked to break a
+     *         deadlock, or waited too long
+     */
+    public synchronized void lockPage(TransactionId tid, PageId pid, Mode mode)
+            throws TransactionAbortedException {
+        Table table = new Table(pid.getTableId());
+        if (holds(tid, table, mode))
+            return;
+        acquire(tid, table, intention(mode));
+        acquire(tid, pid, mode);
+    }
+
+    /**
+     * Lock a row in mode S or X, and its table and page with the matching
+     * intention locks; may escalate tid's row locks in the table.
+     *
+     * @throws TransactionAbortedException if tid was picked to break a
+     *         deadlock, or waited too long
+     */
+    public synchronized void lockRow(TransactionId tid, RecordId rid, Mode mode)
+            throws TransactionAbortedException {
+        Table table = new Table(rid.getPageId().getTableId());
+        if (holds(tid, table, mode) || holds(tid, rid.getPageId(), mode))
+            return;
+        acquire(tid, table, intention(mode));
+        acquire(tid, rid.getPageId(), intention(mode));
+        if (acquire(tid, rid, mode))
+            rowLocked(tid, table, mode);
+    }
+
+    /**
+     * Lock a key value of an index, and the gap before it, in mode S or X,
+     * and the index with the matching intention lock; may escalate tid's key
+     * locks in the index like row locks.
+     *
+     * @param key the key, or null for the end of the index
+     * @throws TransactionAbortedException if tid was picked to break a
+     *         deadlock, or waited too long
+     */
+    public synchronized void lockKey(TransactionId tid, int tableId, Field key, Mode mode)
+            throws TransactionAbortedException {
+        Table table = new Table(tableId);
+        if (holds(tid, table, mode))
+            return;
+        acquire(tid, table, intention(mode));
+        if (acquire(tid, new Key(tableId, key), mode))
+            rowLocked(tid, table, mode);
+    }
+
+    /**
+     * Wait until tid could lock the key after a new key exclusively, i.e.
+     * until no other transaction has scanned or deleted across the gap the
+     * new key goes into, without keeping that lock; takes an intention lock
+     * on the index.
+     *
+     * @param nextKey the smallest key greater than the new key, or null for
+     *        the end of the index
+     * @throws TransactionAbortedException if tid was picked to break a
+     *         deadlock, or waited too long
+     */
+    public synchronized void lockGap(TransactionId tid, int tableId, Field nextKey)
+            throws TransactionAbortedException {
+        Table table = new Table(tableId);
+        if (holds(tid, table, Mode.X))
+            return;
+        acquire(tid, table, Mode.IX);
+        Key next = new Key(tableId, nextKey);
+        awaitGrantable(tid, next, combined(tid, next, Mode.X));
+    }
+
+    /**
+     * Lock a key like lockKey, unless that means waiting for another
+     * transaction.
+     *
+     * @return whether tid now holds the lock
+     */
+    public synchronized boolean tryLockKey(TransactionId tid, int tableId, Field key, Mode mode) {
+        Table table = new Table(tableId);
+        if (holds(tid, table, mode))
+            return true;
+        Mode intention = intention(mode);
+        Key k = new Key(tableId, key);
+        if (!grantable(tid, table, combined(tid, table, intention))
+                || !grantable(tid, k, combined(tid, k, mode)))
+            return false;
+        grant(tid, table, intention);
+        if (grant(tid, k, mode))
+            rowLocked(tid, table, mode);
+        return true;
+    }
+
+    /**
+     * Check the gap before nextKey like lockGap, unless that means waiting
+     * for another transaction.
+     *
+     * @return whether no other transaction has scanned or deleted across
+     *         the gap, in which case tid now holds the intention lock
+     */
+    public synchronized boolean tryLockGap(TransactionId tid, int tableId, Field nextKey) {
+        Table table = new Table(tableId);
+        if (holds(tid, table, Mode.X))
+            return true;
+        Key next = new Key(tableId, nextKey);
+        if (!grantable(tid, table, combined(tid, table, Mode.IX))
+                || !grantable(tid, next, combined(tid, next, Mode.X)))
+            return false;
+        grant(tid, table, Mode.IX);
+        return true;
+    }
+
+    /** @return the mode tid holds on a key of an index, or null */
+    public synchronized Mode getLock(TransactionId tid, int tableId, Field key) {
+        return modeOf(tid, new Key(tableId, key));
+    }
+
+    /**
+     * Lock a row like lockRow, unless that means waiting for another
+     * transaction.
+     *
+     * @return whether tid now holds the lock
+     */
+    public synchronized boolean tryLockRow(TransactionId tid, RecordId rid, Mode mode) {
+        Table table = new Table(rid.getPageId().getTableId());
+        if (holds(tid, table, mode) || holds(tid, rid.getPageId(), mode))
+            return true;
+        Mode intention = intention(mode);
+        if (!grantable(tid, table, combined(tid, table, intention))
+                || !grantable(tid, rid.getPageId(), combined(tid, rid.getPageId(), intention))
+                || !grantable(tid, rid, combined(tid, rid, mode)))
+            return false;
+        grant(tid, table, intention);
+        grant(tid, rid.getPageId(), intention);
+        if (grant(tid, rid, mode))
+            rowLocked(tid, table, mode);
+        return true;
+    }
+
+    /** @return the mode tid holds on a table, or null */
+    public synchronized Mode getLock(TransactionId tid, int tableId) {
+        return modeOf(tid, new Table(tableId));
+    }
+
+    /** @return the mode tid holds on a page, or null */
+    public synchronized Mode getLock(TransactionId tid, PageId pid) {
+        return modeOf(tid, pid);
+    }
+
+    /** @return the mode tid holds on a row, or null */
+    public synchronized Mode getLock(TransactionId tid, RecordId rid) {
+        return modeOf(tid, rid);
+    }
+
+    /**
+     * @return whether tid holds a lock on the page pid, or on rows in it, or
+     *         on all of its table
+     */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        Mode table = modeOf(tid, new Table(pid.getTableId()));
+        return modeOf(tid, pid) != null || (table != null && table.covers(Mode.S));
+    }
+
+    /** @return the number of tables, pages and rows tid holds locks on */
+    public synchronized int numLocks(TransactionId tid) {
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (e == null)
+            return 0;
+        int n = 0;
+        for (Object resource : e.locks) {
+            if (modeOf(tid, resource) != null)
+                n++;
+        }
+        return n;
+    }
+
+    /** Release tid's lock on a page, and its locks on rows in the page. */
+    public synchronized void releasePage(TransactionId tid, PageId pid) {
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (e == null)
+            return;
+        Iterator<Object> it = e.locks.iterator();
+        while (it.hasNext()) {
+            Object resource = it.next();
+            if (resource.equals(pid)
+                    || (resource instanceof RecordId && ((RecordId) resource).getPageId().equals(pid))) {
+                it.remove();
+                release(tid, resource);
+            }
+        }
+        notifyAll();
+    }
+
+    /** Release every lock tid holds. */
+    public synchronized void releaseAll(TransactionId tid) {
+        rowLocks.remove(tid);
+        TransactionTable.Entry e = Database.getTransactionTable().get(tid);
+        if (e == null)
+            return;
+        for (Object resource : e.locks) {
+            // a lock of a BufferPool that has since been replaced is gone
+            Map<TransactionId, Mode> owners = locks.get(resource);
+            if (owners != null && owners.remove(tid) != null && owners.isEmpty())
+                locks.remove(resource);
+        }
+        e.locks.clear();
+        notifyAll();
+    }
+
+    private static Mode intention(Mode mode) {
+        return mode == Mode.IS || mode == Mode.S ? Mode.IS : Mode.IX;
+    }
+
+    private Mode modeOf(TransactionId tid, Object resource) {
+        Map<TransactionId, Mode> owners = locks.get(resource);
+        return owners == null ? null : owners.get(tid);
+    }
+
+    private boolean holds(TransactionId tid, Object resource, Mode mode) {
+        Mode held = modeOf(tid, resource);
+        return held != null && held.covers(mode);
+    }
+
+    /** @return the mode tid would hold on resource after also getting mode */
+    private Mode combined(TransactionId tid, Object resource, Mode mode) {
+        Mode held = modeOf(tid, resource);
+        return held == null ? mode : held.combine(mode);
+    }
+
+    /** @return whether no other transaction holds a lock that conflicts with mode */
+    private boolean grantable(TransactionId tid, Object resource, Mode mode) {
+        Map<TransactionId, Mode> owners = locks.get(resource);
+        if (owners != null) {
+            for (Map.Entry<TransactionId, Mode> e : owners.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatible(mode))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add mode to tid's lock on resource.
+     *
+     * @return whether tid held no lock on resource before
+     */
+    private boolean grant(TransactionId tid, Object resource, Mode mode) {
+        Map<TransactionId, Mode> owners = locks.computeIfAbsent(resource, k -> new HashMap<>());
+        Mode held = owners.get(tid);
+        owners.put(tid, held == null ? mode : held.combine(mode));
+        held(tid).add(resource);
+        return held == null;
+    }
+
+    private Set<Object> held(TransactionId tid) {
+        return Database.getTransactionTable().register(tid).locks;
+    }
+
+    /**
+     * Add mode to tid's lock on resource, waiting while other transactions
+     * hold conflicting locks.
+     *
+     * @return whether tid held no lock on resource before
+     */
+    private boolean acquire(TransactionId tid, Object resource, Mode mode) throws TransactionAbortedException {
+        if (holds(tid, resource, mode))
+            return false;
+        Mode wanted = combined(tid, resource, mode);
+        awaitGrantable(tid, resource, wanted);
+        return grant(tid, resource, wanted);
+    }
+
+    /** Wait while other transactions hold locks on resource that conflict with mode. */
+    private void awaitGrantable(TransactionId tid, Object resource, Mode wanted)
+            throws TransactionAbortedException {
+        if (!grantable(tid, resource, wanted)) {
+            waiting.put(tid, new Request(tid, resource, wanted));
+            long deadline = System.currentTimeMillis() + lockTimeout;
+            try {
+                while (!grantable(tid, resource, wanted)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0 || deadlocked(tid))
+                        throw new TransactionAbortedException();
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            } finally {
+                waiting.remove(tid);
+            }
+        }
+    }
+
+    /** @return whether tid waits, through other waiting transactions, for itself */
+    private boolean deadlocked(TransactionId tid) {
+        Set<TransactionId> seen = new HashSet<>();
+        Deque<TransactionId> todo = new ArrayDeque<>();
+        todo.push(tid);
+        while (!todo.isEmpty()) {
+            Request request = waiting.get(todo.pop());
+            if (request == null)
+                continue;
+            Map<TransactionId, Mode> owners = locks.get(request.resource);
+            if (owners == null)
+                continue;
+            for (Map.Entry<TransactionId, Mode> e : owners.entrySet()) {
+                TransactionId owner = e.getKey();
+                if (owner.equals(request.tid) || e.getValue().compatible(request.mode))
+                    continue;
+                if (owner.equals(tid))
+                    return true;
+                if (seen.add(owner))
+                    todo.push(owner);
+            }
+        }
+        return false;
+    }
+
+    private void release(TransactionId tid, Object resource) {
+        Map<TransactionId, Mode> owners = locks.get(resource);
+        if (owners == null || owners.remove(tid) == null)
+            return;
+        if (owners.isEmpty())
+            locks.remove(resource);
+        if (resource instanceof RecordId || resource instanceof Key) {
+            Map<Integer, Integer> counts = rowLocks.get(tid);
+            int tableId = tableOf(resource);
+            if (counts != null)
+                counts.computeIfPresent(tableId, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    /** @return the table a page, row or key lock is in */
+    private static int tableOf(Object resource) {
+        if (resource instanceof RecordId)
+            return ((RecordId) resource).getPageId().getTableId();
+        if (resource instanceof PageId)
+            return ((PageId) resource).getTableId();
+        if (resource instanceof Key)
+            return ((Key) resource).tableId;
+        return ((Table) resource).tableId;
+    }
+
+    /**
+     * Count a new row lock of tid in table, and escalate tid's row locks
+     * there once they pass the threshold.
+     */
+    private void rowLocked(TransactionId tid, Table table, Mode mode) {
+        Map<Integer, Integer> counts = rowLocks.computeIfAbsent(tid, k -> new HashMap<>());
+        int n = counts.merge(table.tableId, 1, Integer::sum);
+        if (n <= escalationThreshold || (n - 1) % escalationThreshold != 0)
+            return;
+        Mode whole = combined(tid, table, mode == Mode.S ? Mode.S : Mode.X);
+        if (!grantable(tid, table, whole))
+            return;
+        grant(tid, table, whole);
+        Iterator<Object> it = held(tid).iterator();
+        while (it.hasNext()) {
+            Object resource = it.next();
+            if (resource instanceof Table || tableOf(resource) != table.tableId)
+                continue;
+            // a shared table lock does not cover the rows tid updates
+            Mode m = modeOf(tid, resource);
+            if (whole == Mode.X || m == Mode.S || m == Mode.IS) {
+                it.remove();
+                release(tid, resource);
+            }
+        }
+        escalations++;
+        notifyAll();
+    }
+}
@@ -17,7 +17,8 @@ public class Transaction {
         tid = new TransactionId();
     }
 
-    /** Start the transaction running */
+    /** Start the transaction running, reading a snapshot of the
+        transactions committed so far (see VersionStore) */
     public void start() {
         started = true;
         try {
@@ -25,6 +26,7 @@ public class Transaction {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        Database.getVersionStore().begin(tid);
     }
 
     public TransactionId getId() {
@@ -50,14 +52,18 @@ public class Transaction {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
             // write commit log record
             if (!abort) {
             	Database.getLogFile().logCommit(tid);
+            	Database.getVersionStore().commit(tid);
+            } else {
+                Database.getVersionStore().abort(tid);
             }
 
+            // Release locks once the outcome is logged, so that no one
+            // updates a row before its last writer has committed
+            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
@@ -0,0 +1,117 @@
+package simpledb.transaction;
+
+import simpledb.storage.PageId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TransactionTable tracks the transactions that are running: when each
+ * started, the LSN of its BEGIN record and of its update records, the locks
+ * it holds and the pages it dirtied. The BufferPool, the LockManager and the LogFile find a
+ * transaction's entry without taking a lock, and commit and abort only visit
+ * what their own transaction touched.
+ * <p>
+ * An entry is made when a Transaction starts, or the first time one of its
+ * locks or pages is recorded (for TransactionIds made up without a
+ * Transaction), and is removed by BufferPool.transactionComplete once its
+ * locks are released.
+ */
+public class TransactionTable {
+
+    /** firstLsn of a transaction with no BEGIN record in the log */
+    public static final long NO_LSN = -1;
+
+    /** The state of one running transaction. */
+    public static final class Entry {
+        private final TransactionId tid;
+        private final long startTime = System.currentTimeMillis();
+        private volatile long firstLsn = NO_LSN;
+        /** the tables, pages, rows and keys locked; guarded by the LockManager */
+        final Set<Object> locks = new LinkedHashSet<>();
+        private final Set<PageId> dirtyPages = ConcurrentHashMap.newKeySet();
+        /** LSNs of the update records not yet rolled back, oldest first; guarded by the LogFile */
+        private final List<Long> updates = new ArrayList<>();
+
+        Entry(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public TransactionId getId() {
+            return tid;
+        }
+
+        /** @return when the transaction started, in milliseconds since the epoch */
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return the LSN of the transaction's BEGIN record, or NO_LSN if it
+         *         has none or its outcome has been logged
+         */
+        public long getFirstLsn() {
+            return firstLsn;
+        }
+
+        public void setFirstLsn(long firstLsn) {
+            this.firstLsn = firstLsn;
+        }
+
+        /** @return the pages the transaction dirtied, as a live set */
+        public Set<PageId> getDirtyPages() {
+            return dirtyPages;
+        }
+
+        /**
+         * @return the LSNs of the transaction's update records that have not
+         *         been rolled back, oldest first, as a live list; only to be
+         *         used with the LogFile locked
+         */
+        public List<Long> getUpdates() {
+            return updates;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionId, Entry> entries = new ConcurrentHashMap<>();
+
+    /** @return tid's entry, made if tid has none */
+    public Entry register(TransactionId tid) {
+        Entry e = entries.get(tid);
+        return e != null ? e : entries.computeIfAbsent(tid, Entry::new);
+    }
+
+    /** @return tid's entry, or null if it is not running */
+    public Entry get(TransactionId tid) {
+        return entries.get(tid);
+    }
+
+    /** Forget tid, once it has completed. */
+    public void remove(TransactionId tid) {
+        entries.remove(tid);
+    }
+
+    /** @return the number of running transactions */
+    public int size() {
+        return entries.size();
+    }
+
+    /** @return the entries of the running transactions, in no particular order */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * @return the id and first LSN of every transaction that has a BEGIN
+     *         record in the log but no outcome yet
+     */
+    public Map<Long, Long> logged() {
+        Map<Long, Long> active = new HashMap<>();
+        for (Entry e : entries.values()) {
+            long first = e.firstLsn;
+            if (first != NO_LSN)
+                active.put(e.tid.getId(), first);
+        }
+        return active;
+    }
+}
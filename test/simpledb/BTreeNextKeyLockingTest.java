@@ -1,17 +1,26 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
 import simpledb.storage.DbFileIterator;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.index.BTreeUtility.BTreeWriter;
 import simpledb.execution.Predicate.Op;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.After;
 import org.junit.Before;
@@ -19,6 +28,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
@@ -244,6 +254,152 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	@Test
+	public void insertOutsideRangeNotBlocked() throws Exception {
+		// This should create a B+ tree with 100 leaf pages
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200,
+				null, null, 0);
+
+		// get a key near the start and one near the end of the root page
+		BTreePageId rootPtrPid = new BTreePageId(bigFile.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid, rootPtrPid, Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = root.iterator();
+		Field low = null;
+		Field high = null;
+		int count = 0;
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(count == 10) {
+				low = e.getKey();
+			}
+			else if(count == 90) {
+				high = e.getKey();
+			}
+			count++;
+		}
+		assertNotNull(low);
+		assertNotNull(high);
+
+		// make room for the insert by deleting the tuples of a key near the end
+		count = 0;
+		while(count == 0) {
+			high = new IntField(((IntField) high).getValue() + 1);
+			DbFileIterator fit = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, high));
+			fit.open();
+			while(fit.hasNext()) {
+				Database.getBufferPool().deleteTuple(tid, fit.next());
+				count++;
+			}
+			fit.close();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// scan the keys up to the one near the start, and keep the locks
+		// (without escalating them to a lock on the whole tree)
+		Database.getBufferPool().getLockManager().setEscalationThreshold(Integer.MAX_VALUE);
+		DbFileIterator fit = bigFile.indexIterator(tid, new IndexPredicate(Op.LESS_THAN_OR_EQ, low));
+		fit.open();
+		int keyCount = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			keyCount++;
+		}
+		fit.close();
+		assertTrue(keyCount > 0);
+
+		// an insert far past the scanned range goes ahead
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bigFile, ((IntField) high).getValue(), 1);
+		bw1.start();
+		for(int i = 0; i < 50 && !bw1.succeeded() && bw1.getError() == null; i++) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		assertNull(bw1.getError());
+		assertTrue(bw1.succeeded());
+		Database.getBufferPool().transactionComplete(tid1);
+	}
+
+	/** A B+ tree whose inserts pause once their gap check is done. */
+	static class PausingBTreeFile extends BTreeFile {
+		final CountDownLatch inserting = new CountDownLatch(1);
+
+		PausingBTreeFile(File f, int keyField, TupleDesc td) {
+			super(f, keyField, td);
+		}
+
+		@Override
+		public List<Page> insertTuple(TransactionId tid, Tuple t)
+				throws DbException, IOException, TransactionAbortedException {
+			inserting.countDown();
+			try {
+				Thread.sleep(POLL_INTERVAL * 3);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.insertTuple(tid, t);
+		}
+	}
+
+	private int countRange(BTreeFile bf, IndexPredicate ipred) throws Exception {
+		DbFileIterator fit = bf.indexIterator(tid, ipred);
+		fit.open();
+		int n = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			n++;
+		}
+		fit.close();
+		return n;
+	}
+
+	/**
+	 * A scan that starts after an insert into its range has checked the gap
+	 * but before the insert is done waits for the insert, so that scanning
+	 * the range again gives the same tuples.
+	 */
+	@Test
+	public void scanBetweenGapCheckAndInsert() throws Exception {
+		// keys 1 to 100, and a gap at 50
+		BTreeFile f = BTreeUtility.createBTreeFile(2, 100, null, null, 0);
+		PausingBTreeFile bf = new PausingBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		DbFileIterator fit = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(50)));
+		fit.open();
+		while(fit.hasNext()) {
+			Database.getBufferPool().deleteTuple(tid, fit.next());
+		}
+		fit.close();
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// insert into the gap, and commit as soon as the insert is done
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, bf, 50, 1);
+		Thread committer = new Thread(() -> {
+			try {
+				while(!bw1.succeeded() && bw1.getError() == null) {
+					Thread.sleep(10);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			Database.getBufferPool().transactionComplete(tid1);
+		});
+		bw1.start();
+		committer.start();
+		bf.inserting.await();
+
+		// scan the range while the insert is under way, then again once it committed
+		IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN_OR_EQ, new IntField(60));
+		int first = countRange(bf, ipred);
+		committer.join();
+		assertNull(bw1.getError());
+		assertEquals(first, countRange(bf, ipred));
+		assertEquals(60, first);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
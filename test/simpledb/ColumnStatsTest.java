@@ -0,0 +1,114 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.optimizer.ColumnStats;
+import simpledb.optimizer.HyperLogLog;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+
+import java.util.Random;
+
+public class ColumnStatsTest {
+
+	/**
+	 * @return rows values, half of them 7 and the rest spread over
+	 * 0 to spread - 1
+	 */
+	private static ColumnStats skewed(int rows, int spread, long seed) {
+		Random r = new Random(seed);
+		Field[] values = new Field[rows];
+		HyperLogLog hll = new HyperLogLog();
+		for (int i = 0; i < rows; i++) {
+			values[i] = new IntField(i % 2 == 0 ? 7 : r.nextInt(spread));
+			hll.add(values[i]);
+		}
+		return ColumnStats.build(Type.INT_TYPE, values, rows, rows, hll.estimate());
+	}
+
+	/**
+	 * The sketch should count distinct values within a few percent, and
+	 * merged sketches should count the union.
+	 */
+	@Test public void hyperLogLogTest() {
+		HyperLogLog a = new HyperLogLog();
+		HyperLogLog b = new HyperLogLog();
+		for (int i = 0; i < 100000; i++) {
+			a.add(new IntField(i));
+			b.add(new IntField(i + 50000));
+			b.add(new IntField(i + 50000));
+		}
+		Assert.assertEquals(100000, a.estimate(), 5000);
+		a.merge(b);
+		Assert.assertEquals(150000, a.estimate(), 7500);
+
+		HyperLogLog s = new HyperLogLog();
+		for (int i = 0; i < 1000; i++)
+			s.add(new StringField("value" + (i % 10), 20));
+		Assert.assertEquals(10, s.estimate(), 1);
+	}
+
+	/**
+	 * A value that makes up half of the column should be estimated exactly,
+	 * without inflating the estimates of the other values.
+	 */
+	@Test public void skewedSelectivityTest() {
+		ColumnStats s = skewed(20000, 1000, 1);
+		Assert.assertEquals(1000, s.getDistinct(), 50);
+		Assert.assertTrue(s.numCommonValues() >= 1);
+
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.01);
+		Assert.assertEquals(0.0005, s.estimateSelectivity(Op.EQUALS, new IntField(500)), 0.0005);
+		Assert.assertEquals(0.0, s.estimateSelectivity(Op.EQUALS, new IntField(5000)), 0.001);
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.NOT_EQUALS, new IntField(7)), 0.01);
+
+		// 7 and the bottom half of the rest
+		Assert.assertEquals(0.75, s.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.02);
+		Assert.assertEquals(0.25, s.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(500)), 0.02);
+		Assert.assertEquals(0.004, s.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(6)), 0.002);
+		Assert.assertEquals(0.504, s.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(7)), 0.002);
+		Assert.assertEquals(1.0, s.estimateSelectivity(Op.LESS_THAN, new IntField(1000)), 0.001);
+	}
+
+	/**
+	 * Joining two columns that share a common value should be estimated to
+	 * match that value's rows with each other, not the number of rows over
+	 * the number of distinct values.
+	 */
+	@Test public void skewedJoinSelectivityTest() {
+		ColumnStats a = skewed(20000, 1000, 1);
+		ColumnStats b = skewed(20000, 1000, 2);
+		// 0.5 * 0.5 for the common value, and little for the rest
+		double sel = ColumnStats.joinSelectivity(a, Op.EQUALS, b);
+		Assert.assertEquals(0.25, sel, 0.01);
+		Assert.assertEquals(1 - sel, ColumnStats.joinSelectivity(a, Op.NOT_EQUALS, b), 0.0001);
+		// every pair is either equal, less or greater
+		Assert.assertEquals(1 - sel, ColumnStats.joinSelectivity(a, Op.LESS_THAN, b)
+				+ ColumnStats.joinSelectivity(a, Op.GREATER_THAN, b), 0.02);
+		// 7 is less than the larger half of the rest, and the rest less
+		// than each other half the time
+		Assert.assertEquals(0.25 * 0.99 + 0.25 * 0.5 + 0.25 * 0.01,
+				ColumnStats.joinSelectivity(a, Op.LESS_THAN, b), 0.03);
+	}
+
+	/**
+	 * Strings are bucketed on their leading characters, so ranges over
+	 * strings that share a prefix are still estimated.
+	 */
+	@Test public void stringSelectivityTest() {
+		Field[] values = new Field[1000];
+		HyperLogLog hll = new HyperLogLog();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = new StringField("k" + (char) ('a' + i % 26) + (i % 10), 20);
+			hll.add(values[i]);
+		}
+		ColumnStats s = ColumnStats.build(Type.STRING_TYPE, values, values.length, values.length, hll.estimate());
+		Assert.assertEquals(130, s.getDistinct(), 10);
+		Assert.assertEquals(0.5, s.estimateSelectivity(Op.LESS_THAN, new StringField("kn", 20)), 0.05);
+		Assert.assertEquals(1.0 / 130, s.estimateSelectivity(Op.EQUALS, new StringField("kc2", 20)), 0.005);
+	}
+}
@@ -0,0 +1,73 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Predicate;
+import simpledb.optimizer.CostModel;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.storage.BufferPool;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CostModelTest extends SimpleDbTestBase {
+
+    /**
+     * Calibration measures positive page costs, which survive being saved
+     * and loaded.
+     */
+    @Test public void calibrateAndSave() throws Exception {
+        File f = File.createTempFile("costmodel", ".properties");
+        f.deleteOnExit();
+        CostModel m = CostModel.calibrate(f.getParentFile(), 64);
+        assertTrue(m.seqPageCost() > 0);
+        assertTrue(m.randomPageCost() > 0);
+
+        m.save(f);
+        CostModel loaded = CostModel.load(f);
+        assertEquals(m.seqPageCost(), loaded.seqPageCost(), 0);
+        assertEquals(m.randomPageCost(), loaded.randomPageCost(), 0);
+    }
+
+    /**
+     * A table that fits in the buffer pool costs just its tuples to read
+     * again; a larger one costs its pages, at random.
+     */
+    @Test public void rescanCost() {
+        CostModel m = new CostModel(10, 40);
+        assertEquals(500, m.rescanCost(BufferPool.numPages, 500), 0);
+        assertEquals(40 * (BufferPool.numPages + 1) + 500, m.rescanCost(BufferPool.numPages + 1, 500), 0);
+    }
+
+    /**
+     * An equality join is costed as a hash join, which reads its right-hand
+     * side once for each batch of the left it hashes, and any other join as
+     * a nested-loop join, which reads it once for each tuple.
+     */
+    @Test public void joinCosts() {
+        JoinOptimizer jo = new JoinOptimizer(null, Collections.emptyList());
+        LogicalJoinNode eq = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode lt = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+
+        assertEquals(1000 + 2000 + 100 + 200, jo.estimateJoinCost(eq, 100, 200, 1000, 2000, 2000), 0);
+        int card1 = 2 * HashEquiJoin.MAP_SIZE + 1;
+        assertEquals(1000 + 2000 + 2 * 50 + card1 + 3 * 200,
+                jo.estimateJoinCost(eq, card1, 200, 1000, 2000, 50), 0);
+
+        // without a cheaper rescan, the nested-loop cost is cost1 + card1 * cost2 + card1 * card2
+        assertEquals(1000 + 100 * 2000 + 100 * 200, jo.estimateJoinCost(lt, 100, 200, 1000, 2000), 0);
+        assertEquals(1000 + 2000 + 99 * 200 + 100 * 200, jo.estimateJoinCost(lt, 100, 200, 1000, 2000, 200), 0);
+    }
+
+    /** Make this test compatible with older JUnit versions. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CostModelTest.class);
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class FieldTypesTest extends SimpleDbTestBase {
+
+    private static Field roundTrip(Field f) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        f.serialize(new DataOutputStream(baos));
+        assertEquals(f.getType().getLen(), baos.size());
+        return f.getType().parse(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    /**
+     * Unit test for serializing and parsing the fixed-width LONG, DOUBLE and
+     * DATE types.
+     */
+    @Test public void serialize() throws Exception {
+        Field l = new LongField(Long.MAX_VALUE - 7);
+        Field d = new DoubleField(-12.625);
+        Field dt = new DateField(1614556800000L);
+        assertEquals(l, roundTrip(l));
+        assertEquals(d, roundTrip(d));
+        assertEquals(dt, roundTrip(dt));
+    }
+
+    /**
+     * Unit test for Type.parse(String).
+     */
+    @Test public void parseString() {
+        assertEquals(new IntField(42), Type.INT_TYPE.parse(" 42"));
+        assertEquals(new LongField(10000000000L), Type.LONG_TYPE.parse("10000000000"));
+        assertEquals(new DoubleField(3.5), Type.DOUBLE_TYPE.parse("3.5"));
+        assertEquals(new DateField(1614556800000L), Type.DATE_TYPE.parse("2021-03-01"));
+        assertEquals(new DateField(1614556800000L + 3723000L), Type.DATE_TYPE.parse("2021-03-01 01:02:03"));
+        assertEquals("2021-03-01", Type.DATE_TYPE.parse("2021-03-01").toString());
+        assertEquals("2021-03-01 01:02:03", Type.DATE_TYPE.parse("2021-03-01T01:02:03").toString());
+        assertEquals(Type.DATE_TYPE, Type.forName("DATE"));
+        assertNull(Type.forName("blob"));
+    }
+
+    /**
+     * Unit test for Field.compare on the new types.
+     */
+    @Test public void compare() {
+        assertTrue(new LongField(5).compare(Op.LESS_THAN, new LongField(6)));
+        assertFalse(new LongField(5).compare(Op.GREATER_THAN_OR_EQ, new LongField(6)));
+        assertTrue(new DoubleField(0.5).compare(Op.GREATER_THAN, new DoubleField(-0.5)));
+        assertTrue(new DoubleField(0.5).compare(Op.NOT_EQUALS, new DoubleField(0.25)));
+        assertTrue(Type.DATE_TYPE.parse("2020-12-31").compare(Op.LESS_THAN, Type.DATE_TYPE.parse("2021-01-01")));
+        assertTrue(Type.DATE_TYPE.parse("2021-01-01").compare(Op.EQUALS, Type.DATE_TYPE.parse("2021-01-01 00:00:00")));
+    }
+
+    /**
+     * Equality filters agree with equals and hashCode, which hash joins use,
+     * for signed zeroes and NaN.
+     */
+    @Test public void doubleEquality() {
+        double[][] pairs = { { 0.0, -0.0 }, { -0.0, -0.0 }, { Double.NaN, Double.NaN },
+                { Double.NaN, 1.0 }, { 1.5, 1.5 } };
+        for (double[] pair : pairs) {
+            DoubleField a = new DoubleField(pair[0]), b = new DoubleField(pair[1]);
+            boolean equal = a.equals(b);
+            assertEquals(equal, a.compare(Op.EQUALS, b));
+            assertEquals(!equal, a.compare(Op.NOT_EQUALS, b));
+            if (equal)
+                assertEquals(a.hashCode(), b.hashCode());
+        }
+        assertFalse(new DoubleField(0.0).compare(Op.EQUALS, new DoubleField(-0.0)));
+        assertTrue(new DoubleField(-0.0).compare(Op.LESS_THAN, new DoubleField(0.0)));
+        assertTrue(new DoubleField(Double.NaN).compare(Op.EQUALS, new DoubleField(Double.NaN)));
+        assertTrue(new DoubleField(Double.NaN).compare(Op.GREATER_THAN, new DoubleField(Double.POSITIVE_INFINITY)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FieldTypesTest.class);
+    }
+}
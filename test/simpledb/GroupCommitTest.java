@@ -0,0 +1,86 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS_PER_THREAD = 25;
+
+    private void runCommits(LogFile log) throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j = 0; j < COMMITS_PER_THREAD; j++) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    /**
+     * Concurrent commits share log forces, and every commit still returns.
+     */
+    @Test public void commitsShareForces() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(2000, THREADS);
+        log.resetSyncStats();
+        runCommits(log);
+        int commits = THREADS * COMMITS_PER_THREAD;
+        assertTrue("expected fewer forces than commits, got " + log.getNumSyncs(),
+                log.getNumSyncs() < commits);
+        assertTrue(log.getAverageBatchSize() > 1.0);
+        assertTrue(log.getSyncsPerSecond() > 0);
+        assertEquals(2 * commits, log.getTotalRecords());
+    }
+
+    /**
+     * With no commit delay, a lone committer is forced right away.
+     */
+    @Test public void noDelay() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(0, 1);
+        log.resetSyncStats();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = System.nanoTime();
+        log.logCommit(tid);
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        assertEquals(1, log.getNumSyncs());
+        assertEquals(1.0, log.getAverageBatchSize(), 0.0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -11,9 +11,14 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.PlanCache;
 import simpledb.execution.Predicate;
+import simpledb.optimizer.AdaptiveJoin;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
@@ -629,4 +634,298 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+    /**
+     * Test that a star join of many dimension tables is ordered quickly and
+     * without cross products: every join after the first joins a table
+     * already in the plan.
+     */
+    @Test(timeout = 20000)
+    public void starOrderJoinsTest() throws IOException, ParsingException {
+        final int IO_COST = 103;
+        final int DIMENSIONS = 14;
+
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        StringBuilder from = new StringBuilder("fact");
+        StringBuilder where = new StringBuilder();
+
+        List<List<Integer>> dimTuples = new ArrayList<>();
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(2, 100,
+                Integer.MAX_VALUE, null, dimTuples, "c");
+        List<List<Integer>> factTuples = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            factTuples.add(dimTuples.get(i % 100));
+        HeapFile fact = createDuplicateHeapFile(factTuples, 2, "c");
+        Database.getCatalog().addTable(fact, "fact");
+        stats.put("fact", new TableStats(fact.getId(), IO_COST));
+        filterSelectivities.put("fact", 1.0);
+        TableStats dimStats = new TableStats(dim.getId(), IO_COST);
+        for (int i = 0; i < DIMENSIONS; i++) {
+            String name = "d" + i;
+            Database.getCatalog().addTable(createDuplicateHeapFile(dimTuples, 2, "c"), name);
+            stats.put(name, dimStats);
+            filterSelectivities.put(name, 1.0);
+            nodes.add(new LogicalJoinNode("fact", name, "c" + (i % 2), "c0",
+                    Predicate.Op.EQUALS));
+            from.append(", ").append(name);
+            where.append(i == 0 ? "" : " AND ").append("fact.c").append(i % 2)
+                    .append(" = ").append(name).append(".c0");
+        }
+        Collections.shuffle(nodes);
+
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(
+                new TransactionId(), "SELECT COUNT(fact.c0) FROM " + from
+                        + " WHERE " + where + ";"), nodes);
+        List<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+
+        Assert.assertEquals(nodes.size(), result.size());
+        Set<String> joined = new HashSet<>();
+        for (LogicalJoinNode lj : result) {
+            Assert.assertTrue(joined.isEmpty() || joined.contains(lj.t1Alias)
+                    || joined.contains(lj.t2Alias));
+            joined.add(lj.t1Alias);
+            joined.add(lj.t2Alias);
+        }
+        Assert.assertEquals(DIMENSIONS + 1, joined.size());
+    }
+
+    /**
+     * Build a chain of identical tables joined on c0, order its joins and
+     * run the resulting plan.
+     *
+     * @return the join order; the plan must return every row once
+     */
+    private List<LogicalJoinNode> orderAndRunChain(String prefix, int tables)
+            throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        SystemTestUtil.createRandomHeapFile(2, 100, Integer.MAX_VALUE, null,
+                tuples, "c");
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < tables; i++) {
+            String name = prefix + i;
+            HeapFile f = createDuplicateHeapFile(tuples, 2, "c");
+            Database.getCatalog().addTable(f, name);
+            TableStats.setTableStats(name, new TableStats(f.getId(), 103));
+            from.append(i == 0 ? "" : ", ").append(name);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode(prefix + (i - 1), name, "c0", "c0",
+                        Predicate.Op.EQUALS));
+                where.append(i == 1 ? "" : " AND ").append(prefix).append(i - 1)
+                        .append(".c0 = ").append(name).append(".c0");
+            }
+        }
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + from + " WHERE " + where + ";");
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        for (int i = 0; i < tables; i++)
+            filterSelectivities.put(prefix + i, 1.0);
+        List<LogicalJoinNode> order = new JoinOptimizer(lp, nodes).orderJoins(
+                TableStats.getStatsMap(), filterSelectivities, false);
+        Assert.assertEquals(nodes.size(), order.size());
+
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        plan.open();
+        int rows = 0;
+        while (plan.hasNext()) {
+            Assert.assertEquals(2 * tables, plan.next().getTupleDesc().numFields());
+            rows++;
+        }
+        plan.close();
+        Assert.assertEquals(tuples.size(), rows);
+        return order;
+    }
+
+    /** @return true if some join in order joins two joins */
+    private static boolean isBushy(List<LogicalJoinNode> order) {
+        Map<String, Set<String>> trees = new HashMap<>();
+        for (LogicalJoinNode j : order) {
+            Set<String> t1 = trees.getOrDefault(j.t1Alias, Collections.singleton(j.t1Alias));
+            Set<String> t2 = trees.getOrDefault(j.t2Alias, Collections.singleton(j.t2Alias));
+            if (t1.size() > 1 && t2.size() > 1)
+                return true;
+            Set<String> tree = new HashSet<>(t1);
+            tree.addAll(t2);
+            for (String alias : tree)
+                trees.put(alias, tree);
+        }
+        return false;
+    }
+
+    /**
+     * Test that joins of more tables than the dynamic programming limit are
+     * ordered greedily, into a bushy plan that runs correctly.
+     */
+    @Test(timeout = 60000)
+    public void greedyOrderJoinsTest() throws Exception {
+        JoinOptimizer.setDpTableLimit(4);
+        try {
+            Assert.assertTrue(isBushy(orderAndRunChain("g", 6)));
+        } finally {
+            JoinOptimizer.setDpTableLimit(JoinOptimizer.DEFAULT_DP_TABLE_LIMIT);
+        }
+    }
+
+    /**
+     * Test that greedy ordering is not limited to the 64 tables a set of
+     * tables can hold as a bitmask.
+     */
+    @Test(timeout = 60000)
+    public void wideGreedyOrderJoinsTest() throws Exception {
+        Assert.assertEquals(69, orderAndRunChain("w", 70).size());
+    }
+
+    /**
+     * Test that dynamic programming chooses a bushy plan when it is the
+     * cheapest: joining each small table to its large one first, then the
+     * two results, avoids the large join of the two large tables that any
+     * left-deep plan has to produce.
+     */
+    @Test
+    public void bushyOrderJoinsTest() throws Exception {
+        List<List<Integer>> small = new ArrayList<>(), large = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            small.add(Arrays.asList(i, 0));
+        for (int i = 0; i < 1000; i++)
+            large.add(Arrays.asList(i, 0));
+        Map<String, TableStats> stats = new HashMap<>();
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        for (String name : new String[] { "bu_a", "bu_b", "bu_c", "bu_d" }) {
+            boolean isSmall = name.equals("bu_a") || name.equals("bu_d");
+            HeapFile f = createDuplicateHeapFile(isSmall ? small : large, 2, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 103));
+            filterSelectivities.put(name, 1.0);
+        }
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("bu_a", "bu_b", "c0", "c0", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bu_b", "bu_c", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bu_c", "bu_d", "c0", "c0", Predicate.Op.EQUALS));
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM bu_a, bu_b, bu_c, bu_d WHERE bu_a.c0 = bu_b.c0"
+                        + " AND bu_b.c1 = bu_c.c1 AND bu_c.c0 = bu_d.c0;");
+
+        List<LogicalJoinNode> order = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(3, order.size());
+        Assert.assertTrue(isBushy(order));
+        LogicalJoinNode last = order.get(2);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bu_b", "bu_c")),
+                new HashSet<>(Arrays.asList(last.t1Alias, last.t2Alias)));
+    }
+
+    /**
+     * Test that join enumeration that runs out of time falls back to greedy
+     * ordering.
+     */
+    @Test(timeout = 60000)
+    public void optimizationBudgetTest() throws Exception {
+        JoinOptimizer.setOptimizationBudget(0);
+        try {
+            Assert.assertTrue(isBushy(orderAndRunChain("b", 6)));
+        } finally {
+            JoinOptimizer.setOptimizationBudget(JoinOptimizer.DEFAULT_OPTIMIZATION_BUDGET);
+        }
+    }
+
+    /**
+     * Test that a PlanCache keeps a plan for each set of tables, replacing
+     * the plan of a set added again, as it grows.
+     */
+    @Test
+    public void planCacheTest() {
+        PlanCache pc = new PlanCache();
+        List<LogicalJoinNode> order = Collections.singletonList(
+                new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        for (long s = 1; s <= 1000; s++)
+            pc.addPlan(s << 20, s, (int) s, order);
+        pc.addPlan(5L << 20, 0.5, 7, Collections.emptyList());
+
+        Assert.assertEquals(1000, pc.size());
+        Assert.assertEquals(0.5, pc.getCost(5L << 20), 0);
+        Assert.assertEquals(7, pc.getCard(5L << 20));
+        Assert.assertTrue(pc.getOrder(5L << 20).isEmpty());
+        Assert.assertEquals(999.0, pc.getCost(999L << 20), 0);
+        Assert.assertSame(order, pc.getOrder(1000L << 20));
+        Assert.assertNull(pc.getOrder(1001L << 20));
+        Assert.assertEquals(Double.MAX_VALUE, pc.getCost(3), 0);
+    }
+
+    /**
+     * Test that a query whose statistics underestimate a table runs its
+     * remaining joins in a new order once the actual cardinality of a join
+     * with that table is known, and returns the same rows in the same
+     * fields as the plan that runs as planned.
+     */
+    @Test(timeout = 60000)
+    public void adaptiveJoinTest() throws Exception {
+        List<List<Integer>> small = new ArrayList<>(), large = new ArrayList<>(), stub = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            small.add(Arrays.asList(i, i));
+        for (int i = 0; i < 5000; i++)
+            large.add(Arrays.asList(i % 100, i % 100));
+        for (int i = 0; i < 5; i++)
+            stub.add(Arrays.asList(i, i));
+        Map<String, TableStats> stats = new HashMap<>();
+        for (String name : new String[] { "ad_a", "ad_b", "ad_c", "ad_d" }) {
+            HeapFile f = createDuplicateHeapFile(name.equals("ad_b") ? large : small, 2, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 103));
+        }
+        // ad_b looks like a table of 5 rows
+        HeapFile stubFile = createDuplicateHeapFile(stub, 2, "c");
+        stats.put("ad_b", new TableStats(stubFile.getId(), 103));
+        String query = "SELECT * FROM ad_a, ad_b, ad_c, ad_d WHERE ad_a.c0 = ad_b.c0"
+                + " AND ad_b.c1 = ad_c.c0 AND ad_c.c1 = ad_d.c0;";
+
+        List<List<Integer>> expected = runQuery(query, stats);
+        Assert.assertEquals(5000, expected.size());
+
+        AdaptiveJoin.setReoptimizationFactor(4);
+        try {
+            TransactionId tid = new TransactionId();
+            OpIterator plan = new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+            AdaptiveJoin adaptive = findAdaptiveJoin(plan);
+            Assert.assertNotNull(adaptive);
+            List<List<Integer>> actual = run(plan);
+            Assert.assertEquals(1, adaptive.getReoptimizations());
+            Assert.assertEquals(5000, actual.size());
+            Assert.assertEquals(toMultiset(expected), toMultiset(actual));
+        } finally {
+            AdaptiveJoin.setReoptimizationFactor(AdaptiveJoin.DEFAULT_REOPTIMIZATION_FACTOR);
+        }
+    }
+
+    private static List<List<Integer>> runQuery(String query, Map<String, TableStats> stats) throws Exception {
+        TransactionId tid = new TransactionId();
+        return run(new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false));
+    }
+
+    private static List<List<Integer>> run(OpIterator plan) throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            rows.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        return rows;
+    }
+
+    private static Map<List<Integer>, Integer> toMultiset(List<List<Integer>> rows) {
+        Map<List<Integer>, Integer> counts = new HashMap<>();
+        for (List<Integer> row : rows)
+            counts.merge(row, 1, Integer::sum);
+        return counts;
+    }
+
+    static AdaptiveJoin findAdaptiveJoin(OpIterator plan) {
+        if (plan instanceof AdaptiveJoin)
+            return (AdaptiveJoin) plan;
+        if (!(plan instanceof Operator))
+            return null;
+        OpIterator[] children = ((Operator) plan).getChildren();
+        return children == null || children.length == 0 ? null : findAdaptiveJoin(children[0]);
+    }
 }
@@ -0,0 +1,158 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.JoinFilter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+    private final Map<String, TableStats> stats = new HashMap<>();
+
+    /** Tables lp_a, lp_b and lp_c of 100 rows of three columns: i, i % 10, i. */
+    @Before public void createTables() throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            rows.add(Arrays.asList(i, i % 10, i));
+        for (String name : new String[] { "lp_a", "lp_b", "lp_c" }) {
+            HeapFile f = JoinOptimizerTest.createDuplicateHeapFile(rows, 3, "c");
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 1000));
+        }
+    }
+
+    private OpIterator plan(String query) throws Exception {
+        TransactionId tid = new TransactionId();
+        return new Parser().generateLogicalPlan(tid, query).physicalPlan(tid, stats, false);
+    }
+
+    private static List<List<Integer>> run(OpIterator plan) throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext())
+            rows.add(SystemTestUtil.tupleToList(plan.next()));
+        plan.close();
+        return rows;
+    }
+
+    /** @return every operator of a plan of the given class */
+    private static <T> List<T> find(OpIterator plan, Class<T> c) {
+        List<T> found = new ArrayList<>();
+        if (c.isInstance(plan))
+            found.add(c.cast(plan));
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null)
+                    found.addAll(find(child, c));
+            }
+        }
+        return found;
+    }
+
+    private static SeqScan scan(OpIterator plan, String alias) {
+        for (SeqScan s : find(plan, SeqScan.class)) {
+            if (s.getAlias().equals(alias))
+                return s;
+        }
+        fail("no scan of " + alias);
+        return null;
+    }
+
+    /**
+     * A filter on a field is inferred for the fields an equality join makes
+     * it equal to, so every table is filtered before it is joined.
+     */
+    @Test public void transitiveFilters() throws Exception {
+        OpIterator plan = plan("SELECT * FROM lp_a, lp_b, lp_c WHERE lp_a.c0 = lp_b.c2"
+                + " AND lp_b.c2 = lp_c.c0 AND lp_a.c0 = 7;");
+        for (String alias : new String[] { "lp_a", "lp_b", "lp_c" })
+            assertEquals(1, scan(plan, alias).getPredicates().length);
+        List<List<Integer>> rows = run(plan);
+        assertEquals(1, rows.size());
+        assertEquals(Arrays.asList(7, 7, 7, 7, 7, 7, 7, 7, 7), rows.get(0));
+    }
+
+    /**
+     * Scans return only the columns used above them, and joins pass on only
+     * the fields used after them.
+     */
+    @Test public void columnPruning() throws Exception {
+        OpIterator plan = plan("SELECT lp_a.c2 FROM lp_a, lp_b, lp_c WHERE lp_a.c0 = lp_b.c0"
+                + " AND lp_b.c2 = lp_c.c0 AND lp_c.c1 < 3;");
+        assertArrayEquals(new int[] { 0, 2 }, scan(plan, "lp_a").getFields());
+        assertArrayEquals(new int[] { 0, 2 }, scan(plan, "lp_b").getFields());
+        // lp_c.c1 is only used by the filter in the scan
+        assertArrayEquals(new int[] { 0 }, scan(plan, "lp_c").getFields());
+        // the final projection, and one after the first join
+        assertEquals(2, find(plan, Project.class).size());
+
+        List<List<Integer>> rows = run(plan);
+        assertEquals(30, rows.size());
+        for (List<Integer> row : rows)
+            assertTrue(row.get(0) % 10 < 3);
+    }
+
+    /**
+     * Arithmetic over numbers is folded, comparisons of constants are
+     * evaluated, and filters implied by an equality are dropped.
+     */
+    @Test public void constantFolding() throws Exception {
+        OpIterator plan = plan("SELECT * FROM lp_a WHERE lp_a.c0 = 10 - 3 AND 1 < 2"
+                + " AND lp_a.c0 > 5 AND lp_a.c2 > -1;");
+        assertEquals(2, scan(plan, "lp_a").getPredicates().length);
+        assertEquals(1, run(plan).size());
+
+        // none of these can hold, so no table is read
+        for (String where : new String[] { "1 = 2", "lp_a.c0 = 5 AND lp_a.c0 > 6",
+                "lp_a.c0 = 5 AND lp_a.c0 = 2 + 4" }) {
+            plan = plan("SELECT * FROM lp_a, lp_b WHERE lp_a.c1 = lp_b.c1 AND " + where + ";");
+            assertTrue(find(plan, SeqScan.class).isEmpty());
+            assertTrue(run(plan).isEmpty());
+        }
+    }
+
+    /**
+     * In a cyclic query, the join that closes the cycle filters the join of
+     * the tables it compares.
+     */
+    @Test public void cyclicJoins() throws Exception {
+        OpIterator plan = plan("SELECT * FROM lp_a, lp_b, lp_c WHERE lp_a.c0 = lp_b.c0"
+                + " AND lp_b.c1 = lp_c.c1 AND lp_c.c0 < lp_a.c0;");
+        assertEquals(1, find(plan, JoinFilter.class).size());
+        List<List<Integer>> rows = run(plan);
+        // lp_a.c0 = i joins the i / 10 rows of lp_c below it with the same c1
+        assertEquals(450, rows.size());
+        for (List<Integer> row : rows) {
+            assertEquals(row.get(0), row.get(3));
+            assertEquals(row.get(4), row.get(7));
+            assertTrue(row.get(6) < row.get(0));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
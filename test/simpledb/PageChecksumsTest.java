@@ -0,0 +1,170 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageChecksumsTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        hf.getChecksums().recordAll();
+    }
+
+    @After public void tearDown() {
+        PageChecksums.setVerifyOnRead(true);
+        PageChecksums.discard(hf.getFile());
+    }
+
+    private static void flipByte(File f, long offset) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x10);
+        }
+    }
+
+    /**
+     * A page that changes on disk after it was written is rejected on read.
+     */
+    @Test public void detectsCorruption() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        hf.readPage(pid);
+        flipByte(hf.getFile(), BufferPool.getPageSize() + 100);
+        try {
+            hf.readPage(pid);
+            fail("expected a checksum mismatch");
+        } catch (CorruptPageException e) {
+            assertEquals(1, e.getPageNo());
+        }
+        PageChecksums.setVerifyOnRead(false);
+        hf.readPage(pid);
+    }
+
+    /**
+     * Only part of a page making it to disk is caught, while a complete
+     * write through writePage is accepted.
+     */
+    @Test public void detectsTornWrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        hf.readPage(pid);
+
+        // empty slots are written as zeros, so this changes the whole page
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            page.deleteTuple(it.next());
+        }
+        byte[] data = page.getPageData();
+        hf.getChecksums().record(0, data);
+        try (RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw")) {
+            raf.write(data, 0, data.length / 2);
+        }
+        try {
+            hf.readPage(pid);
+            fail("expected a checksum mismatch");
+        } catch (CorruptPageException e) {
+            assertEquals(0, e.getPageNo());
+        }
+    }
+
+    /**
+     * A crash after a page's new checksum is written but before the page
+     * itself is leaves the page as it was, which is still accepted; a page
+     * torn part way through its write is not.
+     */
+    @Test public void crashBetweenWrites() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        byte[] old = page.getPageData();
+        // empty slots are written as zeros, so this changes the whole page
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            page.deleteTuple(it.next());
+        }
+        hf.writePage(page);
+        try (RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw")) {
+            raf.seek(BufferPool.getPageSize());
+            raf.write(old);
+        }
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        assertArrayEquals(old, reopened.readPage(pid).getPageData());
+
+        byte[] data = page.getPageData();
+        try (RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw")) {
+            raf.seek(BufferPool.getPageSize());
+            raf.write(data, 0, data.length / 2);
+        }
+        try {
+            new HeapFile(hf.getFile(), hf.getTupleDesc()).readPage(pid);
+            fail("expected a checksum mismatch");
+        } catch (CorruptPageException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Checksums survive reopening the file, and BTreeFile pages (numbered
+     * from the root pointer page) are covered too.
+     */
+    @Test public void btreeAndReopen() throws Exception {
+        File f = File.createTempFile("btree", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0, 3);
+        BTreePageId leaf = new BTreePageId(bf.getId(), 2, BTreePageId.LEAF);
+        bf.writePage(bf.readPage(leaf));
+        flipByte(f, BTreeRootPtrPage.getPageSize() + BufferPool.getPageSize() + 7);
+
+        BTreeFile reopened = BTreeUtility.openBTreeFile(2, f, 0);
+        try {
+            reopened.readPage(leaf);
+            fail("expected a checksum mismatch");
+        } catch (CorruptPageException e) {
+            // expected
+        }
+        PageChecksums.discard(f);
+    }
+
+    /**
+     * The scrubber finds corrupt pages that nobody reads.
+     */
+    @Test public void scrubber() throws Exception {
+        PageScrubber scrubber = new PageScrubber(0, 0);
+        assertTrue(scrubber.scrubOnce().isEmpty());
+        flipByte(hf.getFile(), 2L * BufferPool.getPageSize() + 5);
+        List<PageScrubber.CorruptPage> bad = scrubber.scrubOnce();
+        assertEquals(1, bad.size());
+        assertEquals(hf.getId(), bad.get(0).tableId);
+        assertEquals(2, bad.get(0).pageNo);
+
+        // pages verified recently are left alone
+        assertTrue(new PageScrubber(0, 60000).scrubOnce().isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageChecksumsTest.class);
+    }
+}
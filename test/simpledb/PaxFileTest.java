@@ -0,0 +1,229 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+public class PaxFileTest extends SimpleDbTestBase {
+    private static final int ROWS = 1000;
+
+    private PaxFile pf;
+    private TransactionId tid;
+
+    /**
+     * Write a three column table (int, string, long) in PAX format.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TupleDesc td = new TupleDesc(
+                new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.LONG_TYPE},
+                new String[]{"id", "name", "amount"});
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + (i % 7), Type.STRING_LEN));
+            t.setField(2, new LongField(i * 1000000000L));
+            tuples.add(t);
+        }
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        PaxFileEncoder.convert(tuples, f, BufferPool.getPageSize(), td);
+        pf = new PaxFile(f, td);
+        Database.getCatalog().addTable(pf, "pax");
+        tid = new TransactionId();
+    }
+
+    /**
+     * Unit test for PaxFile.iterator(): every tuple comes back intact.
+     */
+    @Test public void fullScan() throws Exception {
+        DbFileIterator it = pf.iterator(tid);
+        assertFalse(it.hasNext());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals("name" + (id % 7), t.getField(1).toString());
+            assertEquals(id * 1000000000L, ((LongField) t.getField(2)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(ROWS, count);
+        assertTrue(pf.numPages() > 1);
+    }
+
+    /**
+     * Unit test for a projected scan with predicates pushed into the page.
+     */
+    @Test public void projectedScan() throws Exception {
+        Predicate[] preds = {
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)),
+                new Predicate(1, Predicate.Op.EQUALS, new StringField("name3", Type.STRING_LEN))};
+        SeqScan scan = new SeqScan(tid, pf.getId(), "p", new int[]{2}, preds);
+        assertEquals(1, scan.getTupleDesc().numFields());
+        assertEquals("p.amount", scan.getTupleDesc().getFieldName(0));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            long v = ((LongField) scan.next().getField(0)).getValue();
+            assertEquals(3, (v / 1000000000L) % 7);
+            assertTrue(v < 500 * 1000000000L);
+            count++;
+        }
+        scan.close();
+        assertEquals(71, count);
+    }
+
+    /**
+     * Unit test for inserting into and deleting from a PaxFile.
+     */
+    @Test public void insertDelete() throws Exception {
+        Tuple t = new Tuple(pf.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("new", Type.STRING_LEN));
+        t.setField(2, new LongField(42));
+        PaxPage p = (PaxPage) pf.insertTuple(tid, t).get(0);
+        assertNotNull(t.getRecordId());
+
+        PaxPage reread = new PaxPage(p.getId(), p.getPageData());
+        Predicate[] preds = {new Predicate(0, Predicate.Op.EQUALS, new IntField(-1))};
+        boolean[] sel = reread.select(preds);
+        assertTrue(sel[t.getRecordId().getTupleNumber()]);
+        assertEquals(new LongField(42), reread.getColumn(2)[t.getRecordId().getTupleNumber()]);
+
+        int empty = p.getNumEmptySlots();
+        p.deleteTuple(t);
+        assertEquals(empty + 1, p.getNumEmptySlots());
+    }
+
+    /**
+     * A PaxFile is not a heap file: inserts and deletes through the buffer
+     * pool lock the whole table rather than rows, and its updates are logged
+     * as page images, as PaxPages have no slot images to diff.
+     */
+    @Test public void noHeapPaths() throws Exception {
+        assertFalse(Database.getCatalog().getDatabaseFile(pf.getId()) instanceof HeapFile);
+        LockManager locks = Database.getBufferPool().getLockManager();
+        Tuple t = new Tuple(pf.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("new", Type.STRING_LEN));
+        t.setField(2, new LongField(42));
+        Database.getBufferPool().insertTuple(tid, pf.getId(), t);
+        assertEquals(LockManager.Mode.X, locks.getLock(tid, pf.getId()));
+        assertNull(locks.getLock(tid, t.getRecordId()));
+
+        TransactionId other = new TransactionId();
+        PaxPage p = (PaxPage) Database.getBufferPool().getPage(other,
+                t.getRecordId().getPageId(), simpledb.common.Permissions.READ_ONLY);
+        assertNull(SlotDelta.diff(p.getBeforeImage(), p));
+        Database.getBufferPool().transactionComplete(tid);
+
+        Database.getBufferPool().deleteTuple(other, t);
+        assertEquals(LockManager.Mode.X, locks.getLock(other, pf.getId()));
+        assertNull(locks.getLock(other, t.getRecordId()));
+        Database.getBufferPool().transactionComplete(other);
+    }
+
+    /**
+     * Table statistics and page writes work on a PaxFile as on a heap file.
+     */
+    @Test public void statsAndWrites() throws Exception {
+        assertEquals(ROWS, new TableStats(pf.getId(), 1000).totalTuples());
+
+        PaxPage p = (PaxPage) pf.readPage(new HeapPageId(pf.getId(), 1));
+        Tuple t = new Tuple(pf.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new StringField("new", Type.STRING_LEN));
+        t.setField(2, new LongField(42));
+        p.insertTuple(t);
+        pf.writePage(p);
+        PaxPage reread = (PaxPage) pf.readPage(p.getId());
+        assertEquals(new LongField(42), reread.getColumn(2)[t.getRecordId().getTupleNumber()]);
+    }
+
+    /**
+     * Sorted ints and a low-cardinality string column compress (frame of
+     * reference and dictionary) far below their fixed-width size, so a page
+     * holds many more tuples than a HeapPage would, and predicates on the
+     * encoded columns still give the right answer.
+     */
+    @Test public void compressedColumns() throws Exception {
+        TupleDesc td = new TupleDesc(
+                new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[]{"id", "region", "flag"});
+        String[] regions = {"east", "west", "north"};
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(100000 + i));
+            t.setField(1, new StringField(regions[i % 3], Type.STRING_LEN));
+            t.setField(2, new IntField(i < 1000 ? 0 : 1));
+            tuples.add(t);
+        }
+        File f = File.createTempFile("paxc", ".dat");
+        f.deleteOnExit();
+        PaxFileEncoder.convert(tuples, f, BufferPool.getPageSize(), td);
+        PaxFile cf = new PaxFile(f, td);
+        Database.getCatalog().addTable(cf, "paxc");
+        assertEquals(1, cf.numPages());
+
+        Predicate[] preds = {
+                new Predicate(1, Predicate.Op.EQUALS, new StringField("west", Type.STRING_LEN)),
+                new Predicate(2, Predicate.Op.EQUALS, new IntField(1)),
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(101500))};
+        DbFileIterator it = cf.iterator(tid, new int[]{0, 1}, preds);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(1, (id - 100000) % 3);
+            assertTrue(id >= 101500);
+            assertEquals("west", t.getField(1).toString());
+            count++;
+        }
+        it.close();
+        assertEquals(167, count);
+
+        // a new slot is added to the page while it still fits
+        PaxPage p = (PaxPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(cf.getId(), 0), simpledb.common.Permissions.READ_WRITE);
+        assertEquals(0, p.getNumEmptySlots());
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(102000));
+        t.setField(1, new StringField("south", Type.STRING_LEN));
+        t.setField(2, new IntField(1));
+        assertTrue(p.hasRoomFor(t));
+        p.insertTuple(t);
+        assertEquals(2000, t.getRecordId().getTupleNumber());
+        PaxPage reread = new PaxPage(p.getId(), p.getPageData());
+        assertEquals(t.getField(1), reread.getColumn(1)[2000]);
+        assertEquals(tuples.get(1999).getField(0), reread.getColumn(0)[1999]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxFileTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class SlotDeltaTest extends SimpleDbTestBase {
+
+    @Before public void addTable() {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static SlotDelta roundTrip(SlotDelta delta) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(baos));
+        return SlotDelta.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    /**
+     * Logging a one-tuple insert into a heap page takes a small fraction of
+     * the two page images it used to.
+     */
+    @Test public void heapInsertIsSmall() throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(-1, -1), HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.currentLsn();
+        log.logWrite(tid, before, page);
+        long size = log.currentLsn() - start;
+        assertTrue("delta record took " + size + " bytes", size * 10 < 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * A heap page delta undoes and redoes the update exactly.
+     */
+    @Test public void heapUndoRedo() throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(-1, -1), HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.deleteTuple(page.iterator().next());
+
+        SlotDelta delta = roundTrip(SlotDelta.diff(before, page));
+        assertEquals(2, delta.getNumChanges());
+
+        HeapPage undone = new HeapPage(page.getId(), page.getPageData());
+        delta.undo(undone);
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+
+        delta.redo(before);
+        assertArrayEquals(page.getPageData(), before.getPageData());
+    }
+
+    /**
+     * Inserting into a B+ tree leaf moves tuples to keep them sorted; the
+     * delta covers the moved slots and the sibling pointers.
+     */
+    @Test public void btreeLeafUndoRedo() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.LEAF);
+        BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+        BTreeLeafPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        page.setRightSiblingId(new BTreePageId(-1, 5, BTreePageId.LEAF));
+
+        SlotDelta delta = roundTrip(SlotDelta.diff(before, page));
+        assertTrue(delta.getNumChanges() > 1);
+
+        BTreeLeafPage undone = new BTreeLeafPage(pid, page.getPageData(), 0);
+        delta.undo(undone);
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+
+        delta.redo(before);
+        assertArrayEquals(page.getPageData(), before.getPageData());
+    }
+
+    /**
+     * Pages without slots are still logged as full images.
+     */
+    @Test public void fallsBackToPageImages() throws Exception {
+        BTreePageId pid = new BTreePageId(-1, 1, BTreePageId.HEADER);
+        BTreeHeaderPage page = new BTreeHeaderPage(pid, BTreeHeaderPage.createEmptyPageData());
+        assertNull(SlotDelta.diff(page.getBeforeImage(), page));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlotDeltaTest.class);
+    }
+}
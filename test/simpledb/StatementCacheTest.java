@@ -0,0 +1,157 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Query;
+import simpledb.optimizer.AdaptiveJoin;
+import simpledb.optimizer.StatementCache;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+public class StatementCacheTest extends SimpleDbTestBase {
+
+    private HeapFile a;
+    private StatementCache cache;
+
+    @Before public void createTables() throws Exception {
+        List<List<Integer>> rowsA = new ArrayList<>(), rowsB = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            rowsA.add(Arrays.asList(i, i % 10));
+            rowsB.add(Arrays.asList(i % 10, i));
+        }
+        a = JoinOptimizerTest.createDuplicateHeapFile(rowsA, 2, "c");
+        Database.getCatalog().addTable(a, "sc_a");
+        Database.getCatalog().addTable(JoinOptimizerTest.createDuplicateHeapFile(rowsB, 2, "c"), "sc_b");
+        cache = Database.getStatementCache();
+    }
+
+    private static List<List<Integer>> run(Query q) throws Exception {
+        List<List<Integer>> rows = new ArrayList<>();
+        q.start();
+        while (q.hasNext())
+            rows.add(SystemTestUtil.tupleToList(q.next()));
+        q.close();
+        return rows;
+    }
+
+    private static List<List<Integer>> run(String sql) throws Exception {
+        Zql.ZQuery q = (Zql.ZQuery) new Zql.ZqlParser(
+                new java.io.ByteArrayInputStream(sql.getBytes())).readStatement();
+        return run(new Parser().handleQueryStatement(q, new TransactionId()));
+    }
+
+    /**
+     * A prepared statement is planned once, and each run binds its
+     * parameters to new values.
+     */
+    @Test public void preparedStatement() throws Exception {
+        PreparedStatement ps = new Parser().prepare(
+                "SELECT * FROM sc_a WHERE sc_a.c0 < ? AND sc_a.c1 = 3;");
+        assertEquals(1, ps.getParameterCount());
+
+        assertEquals(5, run(ps.bind(new TransactionId(), "50")).size());
+        assertEquals(2, run(ps.bind(new TransactionId(), "20")).size());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Queries that differ only in their constants share a plan, joins and
+     * all, and get the results of their own constants.
+     */
+    @Test public void constantsShareAPlan() throws Exception {
+        assertEquals(10, run("SELECT * FROM sc_a, sc_b WHERE sc_a.c1 = sc_b.c0 AND sc_a.c0 = 7;").size());
+        assertEquals(30, run("SELECT * FROM sc_a, sc_b WHERE sc_a.c1 = sc_b.c0 AND sc_a.c0 < 3;").size());
+        List<List<Integer>> rows = run("SELECT * FROM sc_a, sc_b WHERE sc_a.c1 = sc_b.c0 AND sc_a.c0 = 12;");
+        assertEquals(10, rows.size());
+        for (List<Integer> row : rows)
+            assertEquals(Arrays.asList(12, 2, 2), row.subList(0, 3));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHits());
+    }
+
+    /** A plan is not used once the catalog or statistics change. */
+    @Test public void invalidation() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM sc_a WHERE sc_a.c0 = ?;");
+        run(ps.bind(new TransactionId(), "1"));
+        run(ps.bind(new TransactionId(), "2"));
+        assertEquals(1, cache.getHits());
+
+        TableStats.setTableStats("sc_a", new TableStats(a.getId(), 1000));
+        run(ps.bind(new TransactionId(), "3"));
+        assertEquals(1, cache.getHits());
+        run(ps.bind(new TransactionId(), "4"));
+        assertEquals(2, cache.getHits());
+
+        Database.getCatalog().addColumnGroup(a.getId(), "c0", "c1");
+        assertEquals(1, run(ps.bind(new TransactionId(), "5")).size());
+        assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * A plan run from the cache keeps its join order, and the estimates that
+     * order was chosen on, so it still reorders its joins when one of them
+     * produces far more rows than estimated.
+     */
+    @Test public void cachedPlanRunsAdaptively() throws Exception {
+        List<List<Integer>> small = new ArrayList<>(), large = new ArrayList<>(), stub = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            small.add(Arrays.asList(i, i));
+        for (int i = 0; i < 5000; i++)
+            large.add(Arrays.asList(i % 100, i % 100));
+        for (int i = 0; i < 5; i++)
+            stub.add(Arrays.asList(i, i));
+        for (String name : new String[] { "sc_ja", "sc_jb", "sc_jc", "sc_jd" }) {
+            HeapFile f = JoinOptimizerTest.createDuplicateHeapFile(name.equals("sc_jb") ? large : small, 2, "c");
+            Database.getCatalog().addTable(f, name);
+            TableStats.setTableStats(name, new TableStats(f.getId(), 103));
+        }
+        // sc_jb looks like a table of 5 rows
+        TableStats.setTableStats("sc_jb", new TableStats(
+                JoinOptimizerTest.createDuplicateHeapFile(stub, 2, "c").getId(), 103));
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM sc_ja, sc_jb, sc_jc, sc_jd"
+                + " WHERE sc_ja.c0 = sc_jb.c0 AND sc_jb.c1 = sc_jc.c0 AND sc_jc.c1 = sc_jd.c0"
+                + " AND sc_ja.c0 < ?;");
+
+        AdaptiveJoin.setReoptimizationFactor(4);
+        try {
+            for (String value : new String[] { "100", "50" }) {
+                Query q = ps.bind(new TransactionId(), value);
+                AdaptiveJoin adaptive = JoinOptimizerTest.findAdaptiveJoin(q.getPhysicalPlan());
+                assertNotNull(adaptive);
+                assertEquals(Integer.parseInt(value) * 50, run(q).size());
+                assertEquals(1, adaptive.getReoptimizations());
+            }
+            assertEquals(1, cache.getHits());
+        } finally {
+            AdaptiveJoin.setReoptimizationFactor(AdaptiveJoin.DEFAULT_REOPTIMIZATION_FACTOR);
+        }
+    }
+
+    /** Binding the wrong number of values is an error. */
+    @Test(expected = ParsingException.class)
+    public void wrongParameterCount() throws Exception {
+        new Parser().prepare("SELECT * FROM sc_a WHERE sc_a.c0 = ?;").bind(new TransactionId(), "1", "2");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StatementCacheTest.class);
+    }
+}
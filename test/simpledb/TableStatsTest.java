@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Before;
@@ -10,13 +12,20 @@ import org.junit.Assert;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
 import simpledb.execution.Predicate;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
 import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 
 public class TableStatsTest extends SimpleDbTestBase {
@@ -160,4 +169,142 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * A small sample, merged from scans of several page ranges, should still
+	 * count every row and estimate selectivities roughly.
+	 */
+	@Test public void sampledStatisticsTest() {
+		TableStats.setSampleSize(2000);
+		try {
+			Assert.assertTrue(f.numPages() > 64);
+			TableStats s = new TableStats(this.tableId, IO_COST);
+			Assert.assertEquals(10200, s.totalTuples());
+			for (int col = 0; col < 10; col++) {
+				Assert.assertEquals(33, s.getColumnStats(col).getDistinct(), 2);
+				Assert.assertEquals(1.0/33.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+				Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+				Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.GREATER_THAN, new IntField(42)), 0.001);
+			}
+		} finally {
+			TableStats.setSampleSize(TableStats.DEFAULT_SAMPLE_SIZE);
+		}
+	}
+
+	/**
+	 * Statistics looked up for the first time are saved to the table's
+	 * stats file, and read back from it the next time.
+	 */
+	@Test public void persistedStatisticsTest() {
+		File statsFile = TableStats.statsFileFor(f.getFile());
+		try {
+			TableStats s = TableStats.getStatsMap().get(tableName);
+			Assert.assertNotNull(s);
+			Assert.assertTrue(statsFile.exists());
+
+			// a sample of one row would histogram a single value
+			TableStats.setSampleSize(1);
+			TableStats.getStatsMap().remove(tableName);
+			TableStats loaded = TableStats.getStatsMap().get(tableName);
+			Assert.assertNotSame(s, loaded);
+			Assert.assertEquals(10200, loaded.totalTuples());
+			for (int col = 0; col < 10; col++) {
+				Assert.assertEquals(s.getColumnStats(col).getDistinct(), loaded.getColumnStats(col).getDistinct(), 0.0);
+				Assert.assertEquals(s.getColumnStats(col).numBuckets(), loaded.getColumnStats(col).numBuckets());
+			}
+		} finally {
+			TableStats.setSampleSize(TableStats.DEFAULT_SAMPLE_SIZE);
+			TableStats.getStatsMap().remove(tableName);
+			statsFile.delete();
+		}
+	}
+
+	/**
+	 * Inserts keep the row count current, and enough of them make the table
+	 * be analyzed again in the background.
+	 */
+	@Test public void incrementalStatisticsTest() throws Exception {
+		File statsFile = TableStats.statsFileFor(f.getFile());
+		try {
+			TableStats s = TableStats.getStatsMap().get(tableName);
+			insertRows(100, 200);
+			Assert.assertSame(s, TableStats.getStatsMap().get(tableName));
+			Assert.assertEquals(10400, s.totalTuples());
+			Assert.assertEquals(233, s.getColumnStats(0).getDistinct(), 10);
+			// the histogram is not rebuilt by inserts
+			Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(99)), 0.001);
+
+			// rows of transactions that are still running when the table
+			// is analyzed again are counted once at most
+			TableStats.setStaleFraction(0.01);
+			insertRows(300, 200);
+			TableStats fresh = s;
+			for (int i = 0; i < 100 && fresh == s; i++) {
+				Thread.sleep(50);
+				fresh = TableStats.getStatsMap().get(tableName);
+			}
+			Assert.assertNotSame(s, fresh);
+			Assert.assertEquals(10600, fresh.totalTuples(), 200);
+			Assert.assertTrue(fresh.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(99)) > 0.015);
+		} finally {
+			TableStats.setStaleFraction(TableStats.DEFAULT_STALE_FRACTION);
+			TableStats.getStatsMap().remove(tableName);
+			statsFile.delete();
+		}
+	}
+
+	/**
+	 * A conjunction of predicates on the columns of a column group is
+	 * estimated from the values they take together, not as if they were
+	 * independent.
+	 */
+	@Test public void columnGroupTest() throws IOException {
+		// the second column is always the first plus 1000, like a zip code
+		// that determines its city
+		List<List<Integer>> rows = new ArrayList<>();
+		for (int i = 0; i < 10000; i++)
+			rows.add(Arrays.asList(i % 100, i % 100 + 1000));
+		File temp = File.createTempFile("columngroup", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(rows, temp, BufferPool.getPageSize(), 2);
+		HeapFile hf = Utility.openHeapFile(2, "zip", temp);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		int id = Database.getCatalog().getTableId(name);
+
+		int[] fields = { 0, 1 };
+		Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.EQUALS };
+		Field[] together = { new IntField(42), new IntField(1042) };
+		Field[] apart = { new IntField(42), new IntField(1043) };
+
+		TableStats independent = new TableStats(id, IO_COST);
+		Assert.assertEquals(1.0 / 10000, independent.estimateSelectivity(fields, ops, together), 0.0002);
+
+		Database.getCatalog().addColumnGroup(id, hf.getTupleDesc().getFieldName(0), hf.getTupleDesc().getFieldName(1));
+		TableStats s = new TableStats(id, IO_COST);
+		Assert.assertEquals(0.01, s.estimateSelectivity(fields, ops, together), 0.002);
+		Assert.assertTrue(s.estimateSelectivity(fields, ops, apart) < 0.0002);
+		// a range on one column and equality on the other
+		Predicate.Op[] range = { Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.EQUALS };
+		Assert.assertEquals(0.01, s.estimateSelectivity(fields, range, together), 0.002);
+		Assert.assertEquals(0.0, s.estimateSelectivity(fields, range,
+				new Field[] { new IntField(42), new IntField(1050) }), 0.0002);
+		// a single predicate is estimated from its column
+		Assert.assertEquals(0.01, s.estimateSelectivity(new int[] { 0 },
+				new Predicate.Op[] { Predicate.Op.EQUALS }, new Field[] { new IntField(42) }), 0.002);
+	}
+
+	/** Insert rows whose first column counts up from first. */
+	private void insertRows(int first, int count) throws Exception {
+		List<Tuple> rows = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			rows.add(Utility.getHeapTuple(new int[] { first + i, 0, 0, 0, 0, 0, 0, 0, 0, 0 }));
+		Transaction t = new Transaction();
+		t.start();
+		Insert insert = new Insert(t.getId(), new TupleIterator(f.getTupleDesc(), rows), tableId);
+		insert.open();
+		insert.next();
+		insert.close();
+		t.commit();
+	}
 }
@@ -0,0 +1,184 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the background page cleaner: dirty pages are written in page order
+ * with adjacent pages combined, evictions drop clean pages instead of
+ * writing dirty ones, and pages written before commit are undone by
+ * recovery.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+    private static final int PAGES = 12;
+
+    private HeapFile hf;
+    private int tuplesPerPage;
+
+    @Before public void createTable() throws Exception {
+        tuplesPerPage = (BufferPool.getPageSize() * 8) / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        hf = SystemTestUtil.createRandomHeapFile(2, PAGES * tuplesPerPage, null, null);
+    }
+
+    /**
+     * A new pool of the given size, which only the tests' own cleaners
+     * write pages of.
+     */
+    private static void resetBufferPool(int pages) throws InterruptedException {
+        Database.resetBufferPool(pages);
+        Database.getPageCleaner().stop();
+        Database.getTrickleWriter().stop();
+    }
+
+    /** @return one tuple from each of the pages numbered from to to - 1 */
+    private List<Tuple> onePerPage(int from, int to) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        List<Tuple> tuples = new ArrayList<>();
+        int lastPage = -1;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            int pageNo = tuple.getRecordId().getPageId().getPageNumber();
+            if (pageNo != lastPage && pageNo >= from && pageNo < to)
+                tuples.add(tuple);
+            lastPage = pageNo;
+        }
+        scan.close();
+        t.commit();
+        return tuples;
+    }
+
+    private void delete(Transaction t, List<Tuple> tuples) throws Exception {
+        for (Tuple tuple : tuples)
+            Database.getBufferPool().deleteTuple(t.getId(), tuple);
+    }
+
+    private int tuplesOnDisk(HeapFile f, int pageNo) {
+        int n = 0;
+        Iterator<Tuple> it = ((HeapPage) f.readPage(new HeapPageId(f.getId(), pageNo))).iterator();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+
+    private int countRows() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    /**
+     * Ten adjacent dirty pages go to disk in a single write.
+     */
+    @Test public void adjacentPagesCombined() throws Exception {
+        resetBufferPool(50);
+        Transaction t = new Transaction();
+        t.start();
+        delete(t, onePerPage(0, 10));
+        t.commit();
+
+        PageCleaner cleaner = new PageCleaner(Database.getBufferPool(), 50);
+        assertEquals(10, cleaner.cleanOnce());
+        assertEquals(1, cleaner.getWrites());
+        for (int i = 0; i < 10; i++)
+            assertEquals(tuplesPerPage - 1, tuplesOnDisk(hf, i));
+        assertEquals(tuplesPerPage, tuplesOnDisk(hf, 10));
+    }
+
+    /**
+     * With clean pages to spare, scanning more pages than the pool holds
+     * evicts only clean pages: the dirty ones are neither written nor lost.
+     */
+    @Test public void evictionSkipsDirtyPages() throws Exception {
+        resetBufferPool(5);
+        List<Tuple> victims = onePerPage(0, 3);
+        Transaction t = new Transaction();
+        t.start();
+        delete(t, victims);
+        t.commit();
+
+        assertEquals(PAGES * tuplesPerPage - 3, countRows());
+        assertEquals(0, Database.getBufferPool().getForegroundWrites());
+        assertEquals(tuplesPerPage, tuplesOnDisk(hf, 0));
+    }
+
+    /**
+     * The cleaner thread writes uncommitted updates to keep pages clean,
+     * and recovery rolls them back after a crash.
+     */
+    @Test public void stolenPagesUndone() throws Exception {
+        resetBufferPool(5);
+        List<Tuple> victims = onePerPage(0, 4);
+        PageCleaner cleaner = new PageCleaner(Database.getBufferPool(), 3);
+        cleaner.start();
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            delete(t, victims);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cleaner.getPagesWritten() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        } finally {
+            cleaner.stop();
+        }
+        assertTrue(cleaner.getPagesWritten() >= 2);
+        int written = 0;
+        for (int i = 0; i < 4; i++)
+            written += tuplesPerPage - tuplesOnDisk(hf, i);
+        assertTrue("no uncommitted page reached disk", written > 0);
+
+        File file = hf.getFile();
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        for (int i = 0; i < 4; i++)
+            assertEquals(tuplesPerPage, tuplesOnDisk(hf, i));
+    }
+
+    /**
+     * Database runs a cleaner for its pool, which keeps pages clean
+     * without being asked.
+     */
+    @Test public void databaseRunsCleaner() throws Exception {
+        Database.resetBufferPool(5);
+        List<Tuple> victims = onePerPage(0, 5);
+        Transaction t = new Transaction();
+        t.start();
+        delete(t, victims);
+        PageCleaner cleaner = Database.getPageCleaner();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cleaner.getPagesWritten() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        t.commit();
+        assertTrue(cleaner.getPagesWritten() > 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
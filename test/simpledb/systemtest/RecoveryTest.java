@@ -0,0 +1,316 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test ARIES recovery: redo from the dirty page table, undo with CLRs, and
+ * redo spread over several threads; fuzzy checkpoints with log
+ * truncation; and the checksummed record format.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    private void insert(Transaction t, int from, int to)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    private Set<Integer> contents() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Set<Integer> values = new HashSet<>();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            assertTrue("duplicate row", values.add(((IntField) scan.next().getField(0)).getValue()));
+        }
+        scan.close();
+        t.commit();
+        return values;
+    }
+
+    private static Set<Integer> range(int from, int to) {
+        Set<Integer> values = new HashSet<>();
+        for (int i = from; i < to; i++)
+            values.add(i);
+        return values;
+    }
+
+    private void crash(int threads) throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Committed updates to many pages that never reached disk are redone
+     * by several threads.
+     */
+    @Test public void parallelRedo() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 3000);
+        t.commit();
+        assertTrue(hf.numPages() > 4);
+
+        crash(4);
+        assertEquals(range(0, 3000), contents());
+    }
+
+    /**
+     * A transaction that was running at a checkpoint and wrote some of its
+     * pages is undone, while work committed on both sides of the checkpoint
+     * is kept.
+     */
+    @Test public void loserAcrossCheckpoint() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 100);
+        t1.commit();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, 1000, 1600);
+        Database.getLogFile().logCheckpoint();
+        insert(loser, 1600, 1700);
+        Database.getBufferPool().flushAllPages();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 100, 200);
+        t2.commit();
+
+        crash(2);
+        assertEquals(range(0, 200), contents());
+    }
+
+    /**
+     * Recovering again after recovery leaves the same database: undone
+     * updates are compensated, not undone a second time.
+     */
+    @Test public void recoverTwice() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 50);
+        t1.commit();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, 50, 80);
+        Database.getBufferPool().flushAllPages();
+
+        crash(1);
+        assertEquals(range(0, 50), contents());
+        crash(3);
+        assertEquals(range(0, 50), contents());
+    }
+
+    /**
+     * A checkpoint neither waits for the BufferPool nor writes pages, and
+     * recovery redoes the pages that were dirty at the checkpoint.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 100);
+        t.commit();
+
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (Database.getBufferPool()) {
+                locked.countDown();
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+        long start = System.nanoTime();
+        Database.getLogFile().logCheckpoint();
+        long millis = (System.nanoTime() - start) / 1000000;
+        holder.interrupt();
+        holder.join();
+        assertTrue("checkpoint took " + millis + " ms", millis < 2000);
+
+        HeapPage onDisk = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertFalse("checkpoint wrote a page", onDisk.iterator().hasNext());
+
+        crash(2);
+        assertEquals(range(0, 100), contents());
+    }
+
+    /**
+     * Once the trickle writer has written the dirty pages, a checkpoint lets
+     * logTruncate drop the log before it, even while another thread keeps
+     * committing.
+     */
+    @Test public void truncateWhileCommitting() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 2000);
+        t.commit();
+        new TrickleWriter(1000).writeOnce(Integer.MAX_VALUE);
+        File log = new File("log");
+        long before = log.length();
+
+        AtomicInteger committed = new AtomicInteger(2000);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 2000; i < 2400; i += 10) {
+                    Transaction w = new Transaction();
+                    w.start();
+                    insert(w, i, i + 10);
+                    w.commit();
+                    committed.set(i + 10);
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+        Database.getLogFile().logCheckpoint();
+        writer.join();
+        assertNull(error.get());
+        assertTrue("log grew from " + before + " to " + log.length(), log.length() < before);
+
+        crash(2);
+        assertEquals(range(0, committed.get()), contents());
+    }
+
+    /**
+     * A page written after its updates carries their pageLSN, and redo
+     * skips the records the page on disk already reflects: here, changing
+     * the page behind the log's back shows that they are not applied again.
+     */
+    @Test public void redoSkipsPageLsn() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertTrue(page.getLsn() > 0);
+        assertTrue(page.getLsn() < Database.getLogFile().currentLsn());
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+
+        crash(2);
+        assertEquals(range(1, 10), contents());
+    }
+
+    /**
+     * A page that is there but fails its checksum stops recovery instead of
+     * being replaced by an empty page.
+     */
+    @Test public void corruptPageFailsRedo() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+        Database.getBufferPool().flushAllPages();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(100);
+            int b = raf.read();
+            raf.seek(100);
+            raf.write(b ^ 1);
+        }
+
+        try {
+            crash(2);
+            fail("expected recovery to fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof CorruptPageException);
+        }
+    }
+
+    /**
+     * A record whose checksum does not match ends the log: the transaction
+     * whose commit record it was is rolled back, and the garbage a crash
+     * left after it is ignored.
+     */
+    @Test public void corruptTailEndsLog() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 0, 50);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 50, 60);
+        t2.commit();
+
+        // flip a bit of the body of the last record, t2's commit
+        try (RandomAccessFile raf = new RandomAccessFile(new File("log"), "rw")) {
+            long pos = raf.length() - 10;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 1);
+            raf.seek(raf.length());
+            raf.write(new byte[]{1, 2, 3});
+        }
+
+        crash(2);
+        assertEquals(range(0, 50), contents());
+    }
+
+    /**
+     * print() decodes every record of the log.
+     */
+    @Test public void printLog() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        try {
+            Database.getLogFile().print();
+        } finally {
+            System.setOut(out);
+        }
+        String log = printed.toString();
+        assertTrue(log.contains("BEGIN TID " + t.getId().getId()));
+        assertTrue(log.contains("DELTA TID " + t.getId().getId()));
+        assertTrue(log.contains("COMMIT TID " + t.getId().getId()));
+        assertFalse(log.contains("corrupt"));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
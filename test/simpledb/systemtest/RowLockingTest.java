@@ -0,0 +1,195 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test row-level locking of heap file updates: writers of different rows of
+ * a page do not wait for each other, writers of the same row do, deadlocks
+ * abort a transaction, and many row locks are escalated to a table lock.
+ */
+public class RowLockingTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private List<Tuple> rows;
+    private LockManager locks;
+
+    @Before public void createTable() throws Exception {
+        File file = File.createTempFile("rowlock", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 20; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        t.commit();
+
+        rows = new ArrayList<>();
+        t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            rows.add(scan.next());
+        scan.close();
+        t.commit();
+        locks = Database.getBufferPool().getLockManager();
+    }
+
+    private int countRows() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        t.commit();
+        return n;
+    }
+
+    private Future<?> deleteLater(ExecutorService executor, Transaction t, Tuple row) {
+        return executor.submit(() -> {
+            Database.getBufferPool().deleteTuple(t.getId(), row);
+            return null;
+        });
+    }
+
+    /**
+     * Two transactions delete different rows of one page without waiting,
+     * holding intention locks on the page and table.
+     */
+    @Test public void differentRowsSamePage() throws Exception {
+        Tuple a = rows.get(0), b = rows.get(1);
+        assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), a);
+        Database.getBufferPool().deleteTuple(t2.getId(), b);
+
+        PageId pid = a.getRecordId().getPageId();
+        assertEquals(LockManager.Mode.X, locks.getLock(t1.getId(), a.getRecordId()));
+        assertEquals(LockManager.Mode.X, locks.getLock(t2.getId(), b.getRecordId()));
+        assertEquals(LockManager.Mode.IX, locks.getLock(t1.getId(), pid));
+        assertEquals(LockManager.Mode.IX, locks.getLock(t2.getId(), hf.getId()));
+        assertTrue(Database.getBufferPool().holdsLock(t2.getId(), pid));
+        t1.commit();
+        t2.commit();
+        assertEquals(0, locks.numLocks(t1.getId()));
+        assertFalse(Database.getBufferPool().holdsLock(t2.getId(), pid));
+        assertEquals(18, countRows());
+    }
+
+    /**
+     * A second writer of a row waits until the first completes, and then
+     * loses to it.
+     */
+    @Test public void sameRowWaits() throws Exception {
+        Tuple row = rows.get(5);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), row);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> second = deleteLater(executor, t2, row);
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("second writer did not wait");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            t1.commit();
+            try {
+                second.get(10, TimeUnit.SECONDS);
+                fail("expected a write-write conflict");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TransactionAbortedException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        t2.abort();
+    }
+
+    /** Of two transactions waiting for each other's rows, one is aborted. */
+    @Test public void deadlockAborts() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), rows.get(0));
+        Database.getBufferPool().deleteTuple(t2.getId(), rows.get(1));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> second = executor.submit(() -> {
+                locks.lockRow(t2.getId(), rows.get(0).getRecordId(), LockManager.Mode.X);
+                return null;
+            });
+            Thread.sleep(100);
+            // t1's wait would close the cycle
+            try {
+                locks.lockRow(t1.getId(), rows.get(1).getRecordId(), LockManager.Mode.X);
+                fail("expected a deadlock");
+            } catch (TransactionAbortedException e) {
+                // expected
+            }
+            t1.abort();
+            second.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        t2.abort();
+        assertEquals(20, countRows());
+    }
+
+    /**
+     * A transaction that locks more rows than the threshold ends up with an
+     * exclusive table lock and no row locks, and others wait for the table.
+     */
+    @Test public void escalation() throws Exception {
+        locks.setEscalationThreshold(10);
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 12; i++)
+            Database.getBufferPool().deleteTuple(t1.getId(), rows.get(i));
+        assertEquals(1, locks.getEscalations());
+        assertEquals(LockManager.Mode.X, locks.getLock(t1.getId(), hf.getId()));
+        assertEquals(1, locks.numLocks(t1.getId()));
+        assertNull(locks.getLock(t1.getId(), rows.get(0).getRecordId()));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        assertFalse(locks.tryLockRow(t2.getId(), rows.get(15).getRecordId(), LockManager.Mode.X));
+        t1.commit();
+        assertTrue(locks.tryLockRow(t2.getId(), rows.get(15).getRecordId(), LockManager.Mode.X));
+        t2.commit();
+        assertEquals(8, countRows());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
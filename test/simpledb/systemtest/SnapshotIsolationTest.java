@@ -0,0 +1,150 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test snapshot isolation: every transaction reads the database as of its
+ * start, and concurrent writers of the same tuple conflict.
+ */
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        File file = File.createTempFile("snapshot", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 0, 10);
+        t.commit();
+    }
+
+    private void insert(Transaction t, int from, int to)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+        }
+    }
+
+    /** @return the rows t sees, by their first field */
+    private Map<Integer, Tuple> scan(Transaction t) throws Exception {
+        Map<Integer, Tuple> rows = new HashMap<>();
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tuple = scan.next();
+            assertNull("duplicate row", rows.put(((IntField) tuple.getField(0)).getValue(), tuple));
+        }
+        scan.close();
+        return rows;
+    }
+
+    private static Set<Integer> range(int from, int to) {
+        Set<Integer> values = new HashSet<>();
+        for (int i = from; i < to; i++)
+            values.add(i);
+        return values;
+    }
+
+    /**
+     * A reader keeps seeing the rows as of its start while a writer inserts
+     * and deletes and commits.
+     */
+    @Test public void readerSeesSnapshot() throws Exception {
+        Transaction reader = new Transaction();
+        reader.start();
+        assertEquals(range(0, 10), scan(reader).keySet());
+
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 10, 20);
+        Database.getBufferPool().deleteTuple(writer.getId(), scan(writer).get(0));
+        assertEquals(range(1, 20), scan(writer).keySet());
+        assertEquals(range(0, 10), scan(reader).keySet());
+        writer.commit();
+
+        assertEquals(range(0, 10), scan(reader).keySet());
+        Transaction later = new Transaction();
+        later.start();
+        assertEquals(range(1, 20), scan(later).keySet());
+        later.commit();
+        reader.commit();
+
+        assertEquals(0, Database.getVersionStore().numVersions());
+    }
+
+    /**
+     * Of two transactions deleting the same row, the second one aborts,
+     * whether or not the first has committed.
+     */
+    @Test public void firstWriterWins() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        Tuple row = scan(t2).get(5);
+        Database.getBufferPool().deleteTuple(t1.getId(), scan(t1).get(5));
+        try {
+            Database.getBufferPool().deleteTuple(t2.getId(), row);
+            fail("expected a write-write conflict");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        t1.commit();
+        try {
+            Database.getBufferPool().deleteTuple(t2.getId(), row);
+            fail("expected a write-write conflict");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        t2.abort();
+    }
+
+    /**
+     * An aborted writer's changes are never seen, and inserts do not take
+     * the slots it emptied while it is running.
+     */
+    @Test public void abortedWriterInvisible() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        Tuple row = scan(writer).get(3);
+        Database.getBufferPool().deleteTuple(writer.getId(), row);
+
+        Transaction other = new Transaction();
+        other.start();
+        Tuple t = Utility.getHeapTuple(100, 2);
+        Database.getBufferPool().insertTuple(other.getId(), hf.getId(), t);
+        assertNotEquals(row.getRecordId(), t.getRecordId());
+        other.commit();
+
+        writer.abort();
+        Transaction reader = new Transaction();
+        reader.start();
+        Set<Integer> expected = range(0, 10);
+        expected.add(100);
+        assertEquals(expected, scan(reader).keySet());
+        reader.commit();
+        assertEquals(0, Database.getVersionStore().numVersions());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
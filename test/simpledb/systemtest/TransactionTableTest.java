@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.TransactionTable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the table of running transactions: an entry holds a transaction's
+ * first LSN, locks and dirty pages while it runs, and goes away when it
+ * completes.
+ */
+public class TransactionTableTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        File file = File.createTempFile("txntable", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    /**
+     * A running transaction's entry records its BEGIN record, its row locks
+     * and the page it dirtied; commit removes the entry and the locks.
+     */
+    @Test public void entryFollowsTransaction() throws Exception {
+        TransactionTable table = Database.getTransactionTable();
+        Transaction t = new Transaction();
+        t.start();
+        TransactionTable.Entry e = table.get(t.getId());
+        assertNotNull(e);
+        assertNotEquals(TransactionTable.NO_LSN, e.getFirstLsn());
+        assertTrue(e.getStartTime() <= System.currentTimeMillis());
+
+        Tuple tuple = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), tuple);
+        PageId pid = tuple.getRecordId().getPageId();
+        assertTrue(e.getDirtyPages().contains(pid));
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), pid));
+        assertEquals(Long.valueOf(e.getFirstLsn()), table.logged().get(t.getId().getId()));
+
+        t.commit();
+        assertNull(table.get(t.getId()));
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), pid));
+        assertEquals(0, Database.getBufferPool().getLockManager().numLocks(t.getId()));
+    }
+
+    /**
+     * Rollback finds an aborting transaction's first record through the
+     * table, and only running transactions are listed for a checkpoint.
+     */
+    @Test public void abortAndCheckpoint() throws Exception {
+        TransactionTable table = Database.getTransactionTable();
+        Transaction done = new Transaction();
+        done.start();
+        Database.getBufferPool().insertTuple(done.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        done.commit();
+
+        Transaction running = new Transaction();
+        running.start();
+        Database.getBufferPool().insertTuple(running.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, table.logged().size());
+        assertTrue(table.logged().containsKey(running.getId().getId()));
+        Database.getLogFile().logCheckpoint();
+
+        running.abort();
+        assertNull(table.get(running.getId()));
+        assertTrue(table.logged().isEmpty());
+        SystemTestUtil.matchTuples(hf, Collections.singletonList(Arrays.asList(1, 1)));
+    }
+
+    /**
+     * The entry lists a transaction's update records, flushPages writes just
+     * the pages it dirtied, and aborting through the BufferPool undoes just
+     * its own updates.
+     */
+    @Test public void flushAndAbortOwnPages() throws Exception {
+        File file = File.createTempFile("txntable", ".dat");
+        file.deleteOnExit();
+        HeapFile other = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        TransactionTable table = Database.getTransactionTable();
+        TransactionId mine = new TransactionId(), theirs = new TransactionId();
+        Tuple kept = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(theirs, other.getId(), kept);
+        Database.getBufferPool().insertTuple(mine, hf.getId(), Utility.getHeapTuple(2, 2));
+        Database.getBufferPool().insertTuple(mine, hf.getId(), Utility.getHeapTuple(3, 2));
+        TransactionTable.Entry e = table.get(mine);
+        assertEquals(2, e.getUpdates().size());
+        assertEquals(Collections.singleton(new HeapPageId(hf.getId(), 0)), e.getDirtyPages());
+
+        Database.getBufferPool().flushPages(mine);
+        assertNull(Database.getBufferPool().getPage(mine, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY).isDirty());
+        assertNotNull(Database.getBufferPool().getPage(theirs, kept.getRecordId().getPageId(), Permissions.READ_ONLY).isDirty());
+
+        Database.getBufferPool().transactionComplete(mine, false);
+        assertNull(table.get(mine));
+        Database.getBufferPool().transactionComplete(theirs, true);
+        SystemTestUtil.matchTuples(hf, Collections.emptyList());
+        SystemTestUtil.matchTuples(other, Collections.singletonList(Arrays.asList(1, 1)));
+    }
+
+    /**
+     * Truncating the log keeps the update records of a transaction that
+     * logged no BEGIN record, so that it can still be rolled back.
+     */
+    @Test public void truncateKeepsUpdates() throws Exception {
+        TransactionId mine = new TransactionId();
+        Database.getBufferPool().insertTuple(mine, hf.getId(), Utility.getHeapTuple(1, 2));
+        Transaction done = new Transaction();
+        done.start();
+        Database.getBufferPool().insertTuple(done.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        done.commit();
+        // with no dirty pages, only mine's records reach back before the checkpoint
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        Database.getBufferPool().transactionComplete(mine, false);
+        SystemTestUtil.matchTuples(hf, Collections.singletonList(Arrays.asList(2, 2)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(TransactionTableTest.class);
+    }
+}